@@ -16,23 +16,50 @@
 
 package com.google.cloud.dataflow.contrib.joinlibrary;
 
+import com.google.cloud.dataflow.sdk.coders.Coder;
 import com.google.cloud.dataflow.sdk.coders.KvCoder;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.cloud.dataflow.sdk.coders.VoidCoder;
+import com.google.cloud.dataflow.sdk.transforms.Count;
 import com.google.cloud.dataflow.sdk.transforms.DoFn;
+import com.google.cloud.dataflow.sdk.transforms.GroupByKey;
 import com.google.cloud.dataflow.sdk.transforms.ParDo;
+import com.google.cloud.dataflow.sdk.transforms.View;
 import com.google.cloud.dataflow.sdk.transforms.join.CoGbkResult;
 import com.google.cloud.dataflow.sdk.transforms.join.CoGroupByKey;
 import com.google.cloud.dataflow.sdk.transforms.join.KeyedPCollectionTuple;
 import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.cloud.dataflow.sdk.values.PCollectionView;
 import com.google.cloud.dataflow.sdk.values.TupleTag;
 import com.google.common.base.Preconditions;
 
+import java.util.Map;
+import java.util.Random;
+
 /**
  * Utility class with different versions of joins. All methods join two collections of
  * key/value pairs (KV).
+ *
+ * <p>The plain joins group both collections with a {@link CoGroupByKey}, which shuffles every
+ * element of both sides. The broadcast joins instead materialize the smaller side as a side
+ * input and probe it once per element of the larger side, so the larger side is never
+ * shuffled. The smaller side has to fit into memory on every worker; use
+ * {@link #shouldBroadcast} to pick a strategy from size estimates of both sides.
+ *
+ * <p>When a few keys carry a large share of both sides, the skewed joins spread each hot key
+ * of the left collection over several salted sub-keys and replicate the matching right values
+ * to every one of them, so no single worker has to produce the whole cross product of a hot
+ * key.
  */
 public class Join {
 
+  /**
+   * Default upper bound, in bytes, on the estimated size of a collection that
+   * {@link #shouldBroadcast(long, long)} considers small enough to broadcast.
+   */
+  public static final long DEFAULT_MAX_BROADCAST_BYTES = 64L * 1024 * 1024;
+
   /**
    * Inner join of two collections of KV elements.
    * @param leftCollection Left side collection to join.
@@ -182,4 +209,312 @@ public class Join {
                            KvCoder.of(((KvCoder) leftCollection.getCoder()).getValueCoder(),
                                       ((KvCoder) rightCollection.getCoder()).getValueCoder())));
   }
+
+  /**
+   * Returns whether joining a collection of roughly {@code smallSideBytes} with one of roughly
+   * {@code largeSideBytes} should use a broadcast join rather than a shuffle join, using
+   * {@link #DEFAULT_MAX_BROADCAST_BYTES} as the bound on the broadcast side.
+   * @param smallSideBytes Estimated encoded size of the collection to broadcast.
+   * @param largeSideBytes Estimated encoded size of the collection to probe with.
+   * @return true if the broadcast variant should be used.
+   */
+  public static boolean shouldBroadcast(long smallSideBytes, long largeSideBytes) {
+    return shouldBroadcast(smallSideBytes, largeSideBytes, DEFAULT_MAX_BROADCAST_BYTES);
+  }
+
+  /**
+   * Returns whether joining a collection of roughly {@code smallSideBytes} with one of roughly
+   * {@code largeSideBytes} should use a broadcast join rather than a shuffle join. Broadcasting
+   * pays off when the broadcast side fits within {@code maxBroadcastBytes} and is not larger
+   * than the side that would otherwise be shuffled along with it.
+   * @param smallSideBytes Estimated encoded size of the collection to broadcast.
+   * @param largeSideBytes Estimated encoded size of the collection to probe with.
+   * @param maxBroadcastBytes Largest collection, in bytes, that may be held in memory by
+   *        every worker.
+   * @return true if the broadcast variant should be used.
+   */
+  public static boolean shouldBroadcast(
+    long smallSideBytes, long largeSideBytes, long maxBroadcastBytes) {
+    Preconditions.checkArgument(smallSideBytes >= 0 && largeSideBytes >= 0,
+        "shouldBroadcast needs non-negative size estimates but got %s and %s",
+        smallSideBytes, largeSideBytes);
+    Preconditions.checkArgument(maxBroadcastBytes > 0,
+        "shouldBroadcast needs a positive broadcast bound but got %s", maxBroadcastBytes);
+    return smallSideBytes <= maxBroadcastBytes && smallSideBytes <= largeSideBytes;
+  }
+
+  /**
+   * Inner join of two collections of KV elements that broadcasts the right collection instead
+   * of shuffling both. The right collection must be small enough to fit into memory.
+   * @param leftCollection Left side collection to join, which is not shuffled.
+   * @param rightCollection Right side collection to join, which is broadcast.
+   * @param <K> Type of the key for both collections
+   * @param <V1> Type of the values for the left collection.
+   * @param <V2> Type of the values for the right collection.
+   * @return A joined collection of KV where Key is the key and value is a
+   *         KV where Key is of type V1 and Value is type V2.
+   */
+  public static <K, V1, V2> PCollection<KV<K, KV<V1, V2>>> broadcastInnerJoin(
+    final PCollection<KV<K, V1>> leftCollection, final PCollection<KV<K, V2>> rightCollection) {
+    Preconditions.checkNotNull(leftCollection);
+    Preconditions.checkNotNull(rightCollection);
+
+    final PCollectionView<Map<K, Iterable<V2>>> rightView = asBroadcastView(rightCollection);
+
+    return leftCollection.apply(ParDo.withSideInputs(rightView).of(
+      new DoFn<KV<K, V1>, KV<K, KV<V1, V2>>>() {
+        @Override
+        public void processElement(ProcessContext c) {
+          KV<K, V1> e = c.element();
+
+          Iterable<V2> rightValuesIterable = c.sideInput(rightView).get(e.getKey());
+          if (rightValuesIterable == null) {
+            return;
+          }
+          for (V2 rightValue : rightValuesIterable) {
+            c.output(KV.of(e.getKey(), KV.of(e.getValue(), rightValue)));
+          }
+        }
+      }))
+      .setCoder(KvCoder.of(((KvCoder) leftCollection.getCoder()).getKeyCoder(),
+                           KvCoder.of(((KvCoder) leftCollection.getCoder()).getValueCoder(),
+                                      ((KvCoder) rightCollection.getCoder()).getValueCoder())));
+  }
+
+  /**
+   * Left Outer Join of two collections of KV elements that broadcasts the right collection
+   * instead of shuffling both. The right collection must be small enough to fit into memory.
+   * @param leftCollection Left side collection to join, which is not shuffled.
+   * @param rightCollection Right side collection to join, which is broadcast.
+   * @param nullValue Value to use as null value when right side do not match left side.
+   * @param <K> Type of the key for both collections
+   * @param <V1> Type of the values for the left collection.
+   * @param <V2> Type of the values for the right collection.
+   * @return A joined collection of KV where Key is the key and value is a
+   *         KV where Key is of type V1 and Value is type V2. Values that
+   *         should be null or empty is replaced with nullValue.
+   */
+  public static <K, V1, V2> PCollection<KV<K, KV<V1, V2>>> broadcastLeftOuterJoin(
+    final PCollection<KV<K, V1>> leftCollection,
+    final PCollection<KV<K, V2>> rightCollection,
+    final V2 nullValue) {
+    Preconditions.checkNotNull(leftCollection);
+    Preconditions.checkNotNull(rightCollection);
+    Preconditions.checkNotNull(nullValue);
+
+    final PCollectionView<Map<K, Iterable<V2>>> rightView = asBroadcastView(rightCollection);
+
+    return leftCollection.apply(ParDo.withSideInputs(rightView).of(
+      new DoFn<KV<K, V1>, KV<K, KV<V1, V2>>>() {
+        @Override
+        public void processElement(ProcessContext c) {
+          KV<K, V1> e = c.element();
+
+          Iterable<V2> rightValuesIterable = c.sideInput(rightView).get(e.getKey());
+          if (rightValuesIterable == null) {
+            c.output(KV.of(e.getKey(), KV.of(e.getValue(), nullValue)));
+            return;
+          }
+          for (V2 rightValue : rightValuesIterable) {
+            c.output(KV.of(e.getKey(), KV.of(e.getValue(), rightValue)));
+          }
+        }
+      }))
+      .setCoder(KvCoder.of(((KvCoder) leftCollection.getCoder()).getKeyCoder(),
+                           KvCoder.of(((KvCoder) leftCollection.getCoder()).getValueCoder(),
+                                      ((KvCoder) rightCollection.getCoder()).getValueCoder())));
+  }
+
+  /**
+   * Right Outer Join of two collections of KV elements that broadcasts the left collection
+   * instead of shuffling both. Unmatched elements can only be emitted from the side that is not
+   * broadcast, so here it is the left collection that must be small enough to fit into memory.
+   * @param leftCollection Left side collection to join, which is broadcast.
+   * @param rightCollection Right side collection to join, which is not shuffled.
+   * @param nullValue Value to use as null value when left side do not match right side.
+   * @param <K> Type of the key for both collections
+   * @param <V1> Type of the values for the left collection.
+   * @param <V2> Type of the values for the right collection.
+   * @return A joined collection of KV where Key is the key and value is a
+   *         KV where Key is of type V1 and Value is type V2. Keys that
+   *         should be null or empty is replaced with nullValue.
+   */
+  public static <K, V1, V2> PCollection<KV<K, KV<V1, V2>>> broadcastRightOuterJoin(
+    final PCollection<KV<K, V1>> leftCollection,
+    final PCollection<KV<K, V2>> rightCollection,
+    final V1 nullValue) {
+    Preconditions.checkNotNull(leftCollection);
+    Preconditions.checkNotNull(rightCollection);
+    Preconditions.checkNotNull(nullValue);
+
+    final PCollectionView<Map<K, Iterable<V1>>> leftView = asBroadcastView(leftCollection);
+
+    return rightCollection.apply(ParDo.withSideInputs(leftView).of(
+      new DoFn<KV<K, V2>, KV<K, KV<V1, V2>>>() {
+        @Override
+        public void processElement(ProcessContext c) {
+          KV<K, V2> e = c.element();
+
+          Iterable<V1> leftValuesIterable = c.sideInput(leftView).get(e.getKey());
+          if (leftValuesIterable == null) {
+            c.output(KV.of(e.getKey(), KV.of(nullValue, e.getValue())));
+            return;
+          }
+          for (V1 leftValue : leftValuesIterable) {
+            c.output(KV.of(e.getKey(), KV.of(leftValue, e.getValue())));
+          }
+        }
+      }))
+      .setCoder(KvCoder.of(((KvCoder) leftCollection.getCoder()).getKeyCoder(),
+                           KvCoder.of(((KvCoder) leftCollection.getCoder()).getValueCoder(),
+                                      ((KvCoder) rightCollection.getCoder()).getValueCoder())));
+  }
+
+  /**
+   * Materializes the side of a broadcast join as a map from each key to all of its values.
+   * The values are grouped before taking a {@link View#asMap} rather than using
+   * {@link View#asMultimap}, which would collapse repeated key/value pairs that a join has to
+   * match once per occurrence. Only the small side is shuffled by the grouping.
+   */
+  private static <K, V> PCollectionView<Map<K, Iterable<V>>> asBroadcastView(
+    PCollection<KV<K, V>> collection) {
+    return collection
+      .apply(GroupByKey.<K, V>create())
+      .apply(View.<K, Iterable<V>>asMap());
+  }
+
+  /**
+   * Inner join of two collections of KV elements that spreads hot keys over several workers.
+   * Keys with at least {@code hotKeyThreshold} elements in the left collection are counted as
+   * hot; see {@link #skewedInnerJoin(PCollection, PCollection, PCollection, int)}.
+   * @param leftCollection Left side collection to join, which is the larger of the two.
+   * @param rightCollection Right side collection to join.
+   * @param hotKeyThreshold Number of left elements from which a key is considered hot.
+   * @param numSalts Number of sub-keys each hot key is spread over.
+   * @param <K> Type of the key for both collections
+   * @param <V1> Type of the values for the left collection.
+   * @param <V2> Type of the values for the right collection.
+   * @return A joined collection of KV where Key is the key and value is a
+   *         KV where Key is of type V1 and Value is type V2.
+   */
+  public static <K, V1, V2> PCollection<KV<K, KV<V1, V2>>> skewedInnerJoin(
+    final PCollection<KV<K, V1>> leftCollection,
+    final PCollection<KV<K, V2>> rightCollection,
+    final long hotKeyThreshold,
+    final int numSalts) {
+    Preconditions.checkNotNull(leftCollection);
+    Preconditions.checkNotNull(rightCollection);
+    Preconditions.checkArgument(hotKeyThreshold > 0,
+        "skewedInnerJoin needs a positive hot key threshold but got %s", hotKeyThreshold);
+
+    // Count.perKey combines before the shuffle, so only partial counts are shuffled.
+    PCollection<K> hotKeys = leftCollection
+      .apply(Count.<K, V1>perKey())
+      .apply(ParDo.named("SelectHotKeys").of(
+        new DoFn<KV<K, Long>, K>() {
+          @Override
+          public void processElement(ProcessContext c) {
+            if (c.element().getValue() >= hotKeyThreshold) {
+              c.output(c.element().getKey());
+            }
+          }
+        }))
+      .setCoder(((KvCoder) leftCollection.getCoder()).getKeyCoder());
+
+    return skewedInnerJoin(leftCollection, rightCollection, hotKeys, numSalts);
+  }
+
+  /**
+   * Inner join of two collections of KV elements that spreads the given hot keys over several
+   * workers. Every left element with a hot key is assigned to one of {@code numSalts} sub-keys,
+   * and every right element with a hot key is replicated to all of them, so the cross product
+   * of a hot key is split into {@code numSalts} parts. Elements with other keys are joined as
+   * in {@link #innerJoin}. The set of hot keys is passed to both sides as a side input.
+   * @param leftCollection Left side collection to join, which is the larger of the two.
+   * @param rightCollection Right side collection to join, whose hot key values are replicated.
+   * @param hotKeys Keys to spread over several workers. Repeated keys are ignored.
+   * @param numSalts Number of sub-keys each hot key is spread over.
+   * @param <K> Type of the key for both collections
+   * @param <V1> Type of the values for the left collection.
+   * @param <V2> Type of the values for the right collection.
+   * @return A joined collection of KV where Key is the key and value is a
+   *         KV where Key is of type V1 and Value is type V2.
+   */
+  public static <K, V1, V2> PCollection<KV<K, KV<V1, V2>>> skewedInnerJoin(
+    final PCollection<KV<K, V1>> leftCollection,
+    final PCollection<KV<K, V2>> rightCollection,
+    final PCollection<K> hotKeys,
+    final int numSalts) {
+    Preconditions.checkNotNull(leftCollection);
+    Preconditions.checkNotNull(rightCollection);
+    Preconditions.checkNotNull(hotKeys);
+    Preconditions.checkArgument(numSalts > 0,
+        "skewedInnerJoin needs a positive number of salts but got %s", numSalts);
+
+    Coder<K> keyCoder = ((KvCoder) leftCollection.getCoder()).getKeyCoder();
+    Coder<V1> leftValueCoder = ((KvCoder) leftCollection.getCoder()).getValueCoder();
+    Coder<V2> rightValueCoder = ((KvCoder) rightCollection.getCoder()).getValueCoder();
+    Coder<KV<K, Integer>> saltedKeyCoder = KvCoder.of(keyCoder, VarIntCoder.of());
+
+    final PCollectionView<Map<K, Iterable<Void>>> hotKeysView = hotKeys
+      .apply(ParDo.named("ToHotKeyEntries").of(
+        new DoFn<K, KV<K, Void>>() {
+          @Override
+          public void processElement(ProcessContext c) {
+            c.output(KV.of(c.element(), (Void) null));
+          }
+        }))
+      .setCoder(KvCoder.of(keyCoder, VoidCoder.of()))
+      .apply(View.<K, Void>asMultimap());
+
+    PCollection<KV<KV<K, Integer>, V1>> saltedLeft = leftCollection
+      .apply(ParDo.named("SaltHotKeys").withSideInputs(hotKeysView).of(
+        new DoFn<KV<K, V1>, KV<KV<K, Integer>, V1>>() {
+          private transient int nextSalt;
+
+          @Override
+          public void startBundle(Context c) {
+            // Start each bundle at a different salt so small bundles do not all pick salt 0.
+            nextSalt = new Random().nextInt(numSalts);
+          }
+
+          @Override
+          public void processElement(ProcessContext c) {
+            KV<K, V1> e = c.element();
+
+            int salt = 0;
+            if (c.sideInput(hotKeysView).containsKey(e.getKey())) {
+              salt = nextSalt;
+              nextSalt = (nextSalt + 1) % numSalts;
+            }
+            c.output(KV.of(KV.of(e.getKey(), salt), e.getValue()));
+          }
+        }))
+      .setCoder(KvCoder.of(saltedKeyCoder, leftValueCoder));
+
+    PCollection<KV<KV<K, Integer>, V2>> replicatedRight = rightCollection
+      .apply(ParDo.named("ReplicateHotKeys").withSideInputs(hotKeysView).of(
+        new DoFn<KV<K, V2>, KV<KV<K, Integer>, V2>>() {
+          @Override
+          public void processElement(ProcessContext c) {
+            KV<K, V2> e = c.element();
+
+            int replicas = c.sideInput(hotKeysView).containsKey(e.getKey()) ? numSalts : 1;
+            for (int salt = 0; salt < replicas; salt++) {
+              c.output(KV.of(KV.of(e.getKey(), salt), e.getValue()));
+            }
+          }
+        }))
+      .setCoder(KvCoder.of(saltedKeyCoder, rightValueCoder));
+
+    return innerJoin(saltedLeft, replicatedRight)
+      .apply(ParDo.named("UnsaltKeys").of(
+        new DoFn<KV<KV<K, Integer>, KV<V1, V2>>, KV<K, KV<V1, V2>>>() {
+          @Override
+          public void processElement(ProcessContext c) {
+            c.output(KV.of(c.element().getKey().getKey(), c.element().getValue()));
+          }
+        }))
+      .setCoder(KvCoder.of(keyCoder, KvCoder.of(leftValueCoder, rightValueCoder)));
+  }
 }
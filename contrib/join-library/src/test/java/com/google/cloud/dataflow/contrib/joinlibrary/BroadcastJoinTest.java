@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015 The Google Cloud Dataflow join-library Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.contrib.joinlibrary;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.testing.DataflowAssert;
+import com.google.cloud.dataflow.sdk.testing.TestPipeline;
+import com.google.cloud.dataflow.sdk.transforms.Create;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This test the broadcast joins, both on their own and against the shuffle joins on uniform
+ * and skewed key distributions.
+ */
+public class BroadcastJoinTest {
+
+  Pipeline p;
+  List<KV<String, Long>> leftListOfKv;
+  List<KV<String, String>> listRightOfKv;
+  List<KV<String, KV<Long, String>>> expectedResult;
+
+  @Before
+  public void setup() {
+
+    p = TestPipeline.create();
+    leftListOfKv = new ArrayList<>();
+    listRightOfKv = new ArrayList<>();
+
+    expectedResult = new ArrayList<>();
+  }
+
+  @Test
+  public void testInnerJoinOneToManyMapping() {
+    leftListOfKv.add(KV.of("Key2", 4L));
+    leftListOfKv.add(KV.of("Key3", 7L));
+    PCollection<KV<String, Long>> leftCollection = p
+        .apply("CreateLeft", Create.of(leftListOfKv));
+
+    listRightOfKv.add(KV.of("Key2", "bar"));
+    listRightOfKv.add(KV.of("Key2", "gazonk"));
+    PCollection<KV<String, String>> rightCollection = p
+        .apply("CreateRight", Create.of(listRightOfKv));
+
+    PCollection<KV<String, KV<Long, String>>> output = Join.broadcastInnerJoin(
+      leftCollection, rightCollection);
+
+    expectedResult.add(KV.of("Key2", KV.of(4L, "bar")));
+    expectedResult.add(KV.of("Key2", KV.of(4L, "gazonk")));
+    DataflowAssert.that(output).containsInAnyOrder(expectedResult);
+
+    p.run();
+  }
+
+  @Test
+  public void testInnerJoinKeepsRepeatedBroadcastValues() {
+    leftListOfKv.add(KV.of("Key2", 4L));
+    PCollection<KV<String, Long>> leftCollection = p
+        .apply("CreateLeft", Create.of(leftListOfKv));
+
+    listRightOfKv.add(KV.of("Key2", "bar"));
+    listRightOfKv.add(KV.of("Key2", "bar"));
+    PCollection<KV<String, String>> rightCollection = p
+        .apply("CreateRight", Create.of(listRightOfKv));
+
+    PCollection<KV<String, KV<Long, String>>> output = Join.broadcastInnerJoin(
+      leftCollection, rightCollection);
+
+    expectedResult.add(KV.of("Key2", KV.of(4L, "bar")));
+    expectedResult.add(KV.of("Key2", KV.of(4L, "bar")));
+    DataflowAssert.that(output).containsInAnyOrder(expectedResult);
+
+    p.run();
+  }
+
+  @Test
+  public void testLeftOuterJoinOneToNoneMapping() {
+    leftListOfKv.add(KV.of("Key1", 5L));
+    leftListOfKv.add(KV.of("Key2", 4L));
+    PCollection<KV<String, Long>> leftCollection = p
+        .apply("CreateLeft", Create.of(leftListOfKv));
+
+    listRightOfKv.add(KV.of("Key1", "foo"));
+    listRightOfKv.add(KV.of("Key3", "bar"));
+    PCollection<KV<String, String>> rightCollection = p
+        .apply("CreateRight", Create.of(listRightOfKv));
+
+    PCollection<KV<String, KV<Long, String>>> output = Join.broadcastLeftOuterJoin(
+      leftCollection, rightCollection, "");
+
+    expectedResult.add(KV.of("Key1", KV.of(5L, "foo")));
+    expectedResult.add(KV.of("Key2", KV.of(4L, "")));
+    DataflowAssert.that(output).containsInAnyOrder(expectedResult);
+
+    p.run();
+  }
+
+  @Test
+  public void testRightOuterJoinNoneToOneMapping() {
+    leftListOfKv.add(KV.of("Key1", 5L));
+    leftListOfKv.add(KV.of("Key3", 3L));
+    PCollection<KV<String, Long>> leftCollection = p
+        .apply("CreateLeft", Create.of(leftListOfKv));
+
+    listRightOfKv.add(KV.of("Key1", "foo"));
+    listRightOfKv.add(KV.of("Key2", "bar"));
+    PCollection<KV<String, String>> rightCollection = p
+        .apply("CreateRight", Create.of(listRightOfKv));
+
+    PCollection<KV<String, KV<Long, String>>> output = Join.broadcastRightOuterJoin(
+      leftCollection, rightCollection, -1L);
+
+    expectedResult.add(KV.of("Key1", KV.of(5L, "foo")));
+    expectedResult.add(KV.of("Key2", KV.of(-1L, "bar")));
+    DataflowAssert.that(output).containsInAnyOrder(expectedResult);
+
+    p.run();
+  }
+
+  @Test
+  public void testInnerJoinMatchesShuffleJoinOnUniformKeys() {
+    Random random = new Random(0);
+    for (long i = 0; i < 1000; i++) {
+      leftListOfKv.add(KV.of("Key" + random.nextInt(100), i));
+    }
+    for (int i = 0; i < 50; i++) {
+      listRightOfKv.add(KV.of("Key" + random.nextInt(200), "value" + i));
+    }
+    checkInnerJoinStrategiesAgree();
+  }
+
+  @Test
+  public void testInnerJoinMatchesShuffleJoinOnSkewedKeys() {
+    Random random = new Random(0);
+    for (long i = 0; i < 1000; i++) {
+      // Nine in ten elements share a single hot key.
+      String key = random.nextInt(10) == 0 ? "Key" + random.nextInt(100) : "HotKey";
+      leftListOfKv.add(KV.of(key, i));
+    }
+    for (int i = 0; i < 5; i++) {
+      listRightOfKv.add(KV.of("HotKey", "hot" + i));
+    }
+    for (int i = 0; i < 50; i++) {
+      listRightOfKv.add(KV.of("Key" + random.nextInt(200), "value" + i));
+    }
+    checkInnerJoinStrategiesAgree();
+  }
+
+  private void checkInnerJoinStrategiesAgree() {
+    for (KV<String, Long> left : leftListOfKv) {
+      for (KV<String, String> right : listRightOfKv) {
+        if (left.getKey().equals(right.getKey())) {
+          expectedResult.add(KV.of(left.getKey(), KV.of(left.getValue(), right.getValue())));
+        }
+      }
+    }
+
+    for (boolean broadcast : new boolean[] {false, true}) {
+      Pipeline pipeline = TestPipeline.create();
+      PCollection<KV<String, Long>> leftCollection = pipeline
+          .apply("CreateLeft", Create.of(leftListOfKv));
+      PCollection<KV<String, String>> rightCollection = pipeline
+          .apply("CreateRight", Create.of(listRightOfKv));
+
+      PCollection<KV<String, KV<Long, String>>> output = broadcast
+          ? Join.broadcastInnerJoin(leftCollection, rightCollection)
+          : Join.innerJoin(leftCollection, rightCollection);
+      DataflowAssert.that(output).containsInAnyOrder(expectedResult);
+
+      pipeline.run();
+    }
+  }
+
+  @Test
+  public void testShouldBroadcast() {
+    assertTrue(Join.shouldBroadcast(1L << 20, 1L << 30));
+    assertFalse(Join.shouldBroadcast(1L << 30, 1L << 40));
+    assertFalse(Join.shouldBroadcast(1L << 20, 1L << 10));
+    assertTrue(Join.shouldBroadcast(1L << 30, 1L << 40, 1L << 31));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testShouldBroadcastNegativeSize() {
+    Join.shouldBroadcast(-1L, 1L << 30);
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void testJoinLeftCollectionNull() {
+    Join.broadcastInnerJoin(null, p.apply(Create.of(listRightOfKv)));
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void testJoinNullValueIsNull() {
+    Join.broadcastLeftOuterJoin(
+        p.apply("CreateLeft", Create.of(leftListOfKv)),
+        p.apply("CreateRight", Create.of(listRightOfKv)),
+        null);
+  }
+}
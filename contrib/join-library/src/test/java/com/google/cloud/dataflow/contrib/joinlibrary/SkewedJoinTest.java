@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 The Google Cloud Dataflow join-library Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.contrib.joinlibrary;
+
+import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.testing.DataflowAssert;
+import com.google.cloud.dataflow.sdk.testing.TestPipeline;
+import com.google.cloud.dataflow.sdk.transforms.Create;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This test the skew tolerant inner join.
+ */
+public class SkewedJoinTest {
+
+  Pipeline p;
+  List<KV<String, Long>> leftListOfKv;
+  List<KV<String, String>> listRightOfKv;
+  List<KV<String, KV<Long, String>>> expectedResult;
+
+  @Before
+  public void setup() {
+
+    p = TestPipeline.create();
+    leftListOfKv = new ArrayList<>();
+    listRightOfKv = new ArrayList<>();
+
+    expectedResult = new ArrayList<>();
+  }
+
+  @Test
+  public void testJoinWithGivenHotKeys() {
+    leftListOfKv.add(KV.of("Key1", 5L));
+    leftListOfKv.add(KV.of("Key2", 4L));
+    leftListOfKv.add(KV.of("Key2", 6L));
+    leftListOfKv.add(KV.of("Key3", 3L));
+    PCollection<KV<String, Long>> leftCollection = p
+        .apply("CreateLeft", Create.of(leftListOfKv));
+
+    listRightOfKv.add(KV.of("Key1", "foo"));
+    listRightOfKv.add(KV.of("Key2", "bar"));
+    listRightOfKv.add(KV.of("Key2", "gazonk"));
+    PCollection<KV<String, String>> rightCollection = p
+        .apply("CreateRight", Create.of(listRightOfKv));
+
+    PCollection<String> hotKeys = p
+        .apply("CreateHotKeys", Create.of("Key2", "Key2", "Key3").withCoder(StringUtf8Coder.of()));
+
+    PCollection<KV<String, KV<Long, String>>> output = Join.skewedInnerJoin(
+      leftCollection, rightCollection, hotKeys, 4);
+
+    expectedResult.add(KV.of("Key1", KV.of(5L, "foo")));
+    expectedResult.add(KV.of("Key2", KV.of(4L, "bar")));
+    expectedResult.add(KV.of("Key2", KV.of(4L, "gazonk")));
+    expectedResult.add(KV.of("Key2", KV.of(6L, "bar")));
+    expectedResult.add(KV.of("Key2", KV.of(6L, "gazonk")));
+    DataflowAssert.that(output).containsInAnyOrder(expectedResult);
+
+    p.run();
+  }
+
+  @Test
+  public void testJoinWithDetectedHotKeys() {
+    Random random = new Random(0);
+    for (long i = 0; i < 1000; i++) {
+      // Nine in ten elements share a single hot key.
+      String key = random.nextInt(10) == 0 ? "Key" + random.nextInt(100) : "HotKey";
+      leftListOfKv.add(KV.of(key, i));
+    }
+    for (int i = 0; i < 5; i++) {
+      listRightOfKv.add(KV.of("HotKey", "hot" + i));
+    }
+    for (int i = 0; i < 50; i++) {
+      listRightOfKv.add(KV.of("Key" + random.nextInt(200), "value" + i));
+    }
+    for (KV<String, Long> left : leftListOfKv) {
+      for (KV<String, String> right : listRightOfKv) {
+        if (left.getKey().equals(right.getKey())) {
+          expectedResult.add(KV.of(left.getKey(), KV.of(left.getValue(), right.getValue())));
+        }
+      }
+    }
+
+    PCollection<KV<String, Long>> leftCollection = p
+        .apply("CreateLeft", Create.of(leftListOfKv));
+    PCollection<KV<String, String>> rightCollection = p
+        .apply("CreateRight", Create.of(listRightOfKv));
+
+    PCollection<KV<String, KV<Long, String>>> output = Join.skewedInnerJoin(
+      leftCollection, rightCollection, 100, 8);
+
+    DataflowAssert.that(output).containsInAnyOrder(expectedResult);
+
+    p.run();
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void testJoinLeftCollectionNull() {
+    Join.skewedInnerJoin(null, p.apply(Create.of(listRightOfKv)), 100, 8);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testJoinNumSaltsNotPositive() {
+    Join.skewedInnerJoin(
+        p.apply("CreateLeft", Create.of(KV.of("Key1", 5L))),
+        p.apply("CreateRight", Create.of(KV.of("Key1", "foo"))),
+        100,
+        0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testJoinHotKeyThresholdNotPositive() {
+    Join.skewedInnerJoin(
+        p.apply("CreateLeft", Create.of(KV.of("Key1", 5L))),
+        p.apply("CreateRight", Create.of(KV.of("Key1", "foo"))),
+        0,
+        8);
+  }
+}
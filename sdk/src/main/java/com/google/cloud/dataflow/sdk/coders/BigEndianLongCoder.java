@@ -16,15 +16,15 @@
 
 package com.google.cloud.dataflow.sdk.coders;
 
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Longs;
+
 import com.fasterxml.jackson.annotation.JsonCreator;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UTFDataFormatException;
 
 /**
  * A {@link BigEndianLongCoder} encodes {@link Long}s in 8 bytes, big-endian.
@@ -48,19 +48,23 @@ public class BigEndianLongCoder extends AtomicCoder<Long> {
     if (value == null) {
       throw new CoderException("cannot encode a null Long");
     }
-    new DataOutputStream(outStream).writeLong(value);
+    // Codes the bytes directly rather than through a DataOutputStream, since this coder codes the
+    // timestamp of every element.
+    outStream.write(Longs.toByteArray(value));
   }
 
   @Override
   public Long decode(InputStream inStream, Context context)
       throws IOException, CoderException {
+    byte[] bytes = new byte[8];
     try {
-      return new DataInputStream(inStream).readLong();
-    } catch (EOFException | UTFDataFormatException exn) {
-      // These exceptions correspond to decoding problems, so change
-      // what kind of exception they're branded as.
+      ByteStreams.readFully(inStream, bytes);
+    } catch (EOFException exn) {
+      // This exception corresponds to a decoding problem, so change
+      // what kind of exception it's branded as.
       throw new CoderException(exn);
     }
+    return Longs.fromByteArray(bytes);
   }
 
   /**
@@ -22,14 +22,15 @@ import com.google.cloud.dataflow.sdk.util.common.ElementByteSizeObservableIterab
 import com.google.cloud.dataflow.sdk.util.common.ElementByteSizeObserver;
 import com.google.common.base.Preconditions;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
@@ -71,6 +72,9 @@ public abstract class IterableLikeCoder<T, IterableT extends Iterable<T>>
   /////////////////////////////////////////////////////////////////////////////
   // Internal operations below here.
 
+  // The big endian size of a collection holding a single element.
+  private static final byte[] SINGLETON_SIZE = {0, 0, 0, 1};
+
   private final Coder<T> elementCoder;
   private final String iterableName;
 
@@ -132,28 +136,79 @@ public abstract class IterableLikeCoder<T, IterableT extends Iterable<T>>
   @Override
   public IterableT decode(InputStream inStream, Context context)
       throws IOException, CoderException {
+    return decodeToIterable(decodeElements(inStream, context, false));
+  }
+
+  /**
+   * Encodes {@code element} exactly as {@link #encode} encodes a {@link Collection} holding only
+   * that element, without requiring the collection.
+   */
+  public void encodeSingleton(T element, OutputStream outStream, Context context)
+      throws IOException, CoderException {
+    outStream.write(SINGLETON_SIZE);
+    elementCoder.encode(element, outStream, context.nested());
+  }
+
+  /**
+   * Decodes the elements of an iterable encoded by {@link #encode} without building an
+   * {@code IterableT}. A single element is returned in an immutable singleton list; in any case
+   * the returned list must not be modified.
+   */
+  public List<T> decodeElements(InputStream inStream, Context context)
+      throws IOException, CoderException {
+    return decodeElements(inStream, context, true);
+  }
+
+  /**
+   * Notifies the {@link ElementByteSizeObserver} about the byte size of {@code element} encoded
+   * by {@link #encodeSingleton}.
+   */
+  public void registerSingletonByteSizeObserver(
+      T element, ElementByteSizeObserver observer, Context context) throws Exception {
+    observer.update(4L);
+    elementCoder.registerByteSizeObserver(element, observer, context.nested());
+  }
+
+  private List<T> decodeElements(InputStream inStream, Context context, boolean immutable)
+      throws IOException, CoderException {
     Context nestedContext = context.nested();
-    DataInputStream dataInStream = new DataInputStream(inStream);
-    int size = dataInStream.readInt();
-    if (size >= 0) {
+    int size = readSize(inStream);
+    if (size == 1 && immutable) {
+      return Collections.singletonList(elementCoder.decode(inStream, nestedContext));
+    } else if (size >= 0) {
       List<T> elements = new ArrayList<>(size);
       for (int i = 0; i < size; i++) {
-        elements.add(elementCoder.decode(dataInStream, nestedContext));
+        elements.add(elementCoder.decode(inStream, nestedContext));
       }
-      return decodeToIterable(elements);
+      return elements;
     } else {
       List<T> elements = new ArrayList<>();
       long count;
       // We don't know the size a priori.  Check if we're done with
       // each block of elements.
-      while ((count = VarInt.decodeLong(dataInStream)) > 0) {
+      while ((count = VarInt.decodeLong(inStream)) > 0) {
         while (count > 0) {
-          elements.add(elementCoder.decode(dataInStream, nestedContext));
+          elements.add(elementCoder.decode(inStream, nestedContext));
           count -= 1;
         }
       }
-      return decodeToIterable(elements);
+      return elements;
+    }
+  }
+
+  /**
+   * Reads the big endian size written by {@link #encode}, like {@link java.io.DataInputStream}
+   * does, without allocating one for every decoded iterable.
+   */
+  private static int readSize(InputStream inStream) throws IOException {
+    int b0 = inStream.read();
+    int b1 = inStream.read();
+    int b2 = inStream.read();
+    int b3 = inStream.read();
+    if ((b0 | b1 | b2 | b3) < 0) {
+      throw new EOFException();
     }
+    return (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
   }
 
   @Override
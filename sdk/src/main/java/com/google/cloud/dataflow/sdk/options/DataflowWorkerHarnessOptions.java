@@ -47,4 +47,104 @@ public interface DataflowWorkerHarnessOptions extends DataflowPipelineOptions {
   @Default.Integer(100)
   Integer getWorkerCacheMb();
   void setWorkerCacheMb(Integer value);
+
+  /**
+   * The size of the off-heap tier of a streaming worker's state cache, in megabytes, or zero to
+   * disable it.
+   *
+   * <p>State evicted from the on-heap state cache is kept in this tier in encoded form, outside
+   * of the Java heap, and decoded when it is next accessed.
+   */
+  @Description("The size of the off-heap tier of a streaming worker's state cache, in "
+      + "megabytes, or zero to disable it.")
+  @Default.Integer(0)
+  Integer getWorkerStateCacheOffHeapMb();
+  void setWorkerStateCacheOffHeapMb(Integer value);
+
+  /**
+   * The size of the bag state, in megabytes, that a batch worker keeps in memory before spilling
+   * it to local disk, or zero to keep all state in memory.
+   *
+   * <p>The size of state is measured by the size of its encoding, which is usually smaller than
+   * the memory it takes up.
+   */
+  @Description("The size of the bag state, in megabytes, that a batch worker keeps in memory "
+      + "before spilling it to local disk, or zero to keep all state in memory.")
+  @Default.Integer(0)
+  Integer getWorkerStateSpillThresholdMb();
+  void setWorkerStateSpillThresholdMb(Integer value);
+
+  /**
+   * The number of map task executors that a streaming worker constructs in the background for
+   * each computation when the computation is added.
+   *
+   * <p>Pre-warmed executors absorb the cost of deserializing user functions and coders ahead of
+   * the first work items for the computation.
+   */
+  @Description("The number of map task executors that a streaming worker constructs in the "
+      + "background for each computation when the computation is added.")
+  @Default.Integer(1)
+  Integer getStreamingPrewarmedExecutorsPerComputation();
+  void setStreamingPrewarmedExecutorsPerComputation(Integer value);
+
+  /**
+   * The maximum number of idle unbounded source readers that a streaming worker keeps open for
+   * reuse by later work items.
+   */
+  @Description("The maximum number of idle unbounded source readers that a streaming worker "
+      + "keeps open for reuse by later work items.")
+  @Default.Long(10000)
+  Long getStreamingReaderCacheMaxReaders();
+  void setStreamingReaderCacheMaxReaders(Long value);
+
+  /**
+   * The time, in seconds, after which a streaming worker closes an unbounded source reader that
+   * no work item has used.
+   *
+   * <p>A closed reader is recreated from its checkpoint by the next work item for its key, so
+   * this should be longer than the usual gap between work items for a key.
+   */
+  @Description("The time, in seconds, after which a streaming worker closes an unbounded source "
+      + "reader that no work item has used.")
+  @Default.Long(600)
+  Long getStreamingReaderCacheIdleExpirationSec();
+  void setStreamingReaderCacheIdleExpirationSec(Long value);
+
+  /**
+   * Order in which a streaming worker runs queued work items.
+   */
+  public enum StreamingWorkPriority {
+    /** Run work items in the order they were received. */
+    FIFO,
+
+    /** Run work items holding the oldest input first. */
+    OLDEST_INPUT_FIRST,
+
+    /** Run work items of the computations whose input watermark lags the most first. */
+    WATERMARK_LAG,
+
+    /** Interleave the work items of different computations. */
+    FAIR
+  }
+
+  /**
+   * The order in which a streaming worker runs queued work items.
+   *
+   * <p>Under every policy other than {@link StreamingWorkPriority#FIFO}, a work item is overtaken
+   * only by work items queued less than {@link #getStreamingWorkMaxPriorityDelayMillis} after it.
+   */
+  @Description("The order in which a streaming worker runs queued work items.")
+  @Default.Enum("FIFO")
+  StreamingWorkPriority getStreamingWorkPriority();
+  void setStreamingWorkPriority(StreamingWorkPriority value);
+
+  /**
+   * The longest time, in milliseconds, for which a prioritized streaming work item can be
+   * overtaken by work items queued after it.
+   */
+  @Description("The longest time, in milliseconds, for which a prioritized streaming work item "
+      + "can be overtaken by work items queued after it.")
+  @Default.Long(10000)
+  Long getStreamingWorkMaxPriorityDelayMillis();
+  void setStreamingWorkMaxPriorityDelayMillis(Long value);
 }
@@ -49,6 +49,9 @@ import com.google.cloud.dataflow.sdk.util.common.Metric;
 import com.google.cloud.dataflow.sdk.util.common.worker.NativeReader;
 import com.google.cloud.dataflow.sdk.util.common.worker.StateSampler;
 import com.google.cloud.dataflow.sdk.util.common.worker.WorkExecutor;
+import com.google.cloud.dataflow.sdk.util.state.InMemoryStateInternals;
+import com.google.cloud.dataflow.sdk.util.state.SpillingStateInternals;
+import com.google.cloud.dataflow.sdk.util.state.SpillingStateInternals.SpillBudget;
 import com.google.cloud.dataflow.sdk.values.PCollectionView;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
@@ -56,6 +59,7 @@ import com.google.common.cache.CacheBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -94,6 +98,12 @@ public class DataflowWorker {
    */
   private final Cache<PCollectionViewWindow<?>, WeightedValue<Object>> sideInputCache;
 
+  /**
+   * The memory shared by the spilling state of all work items, or null if state is not spilled.
+   */
+  @Nullable
+  private final SpillBudget stateSpillBudget;
+
   private static final int DEFAULT_STATUS_PORT = 18081;
 
   /**
@@ -123,6 +133,10 @@ public class DataflowWorker {
         .weigher(Weighers.fixedWeightKeys(OVERHEAD_WEIGHT))
         .softValues()
         .build();
+    this.stateSpillBudget = options.getWorkerStateSpillThresholdMb() > 0
+        ? new SpillBudget(new File(System.getProperty("java.io.tmpdir")),
+            options.getWorkerStateSpillThresholdMb() * MEGABYTES)
+        : null;
   }
 
   /**
@@ -155,8 +169,8 @@ public class DataflowWorker {
       // Populate PipelineOptions with data from work unit.
       options.setProject(workItem.getProjectId());
 
-      DataflowExecutionContext<?> executionContext =
-          new DataflowWorkerExecutionContext(sideInputCache, options);
+      DataflowWorkerExecutionContext executionContext =
+          new DataflowWorkerExecutionContext(sideInputCache, stateSpillBudget, options);
 
       CounterSet counters = new CounterSet();
       StateSampler sampler = null;
@@ -187,6 +201,10 @@ public class DataflowWorker {
           executeWork(worker, progressUpdater);
         } finally {
           worker.close();
+          // Release the state of the last key, and the files that state spilled to during the
+          // work item, whose contents may have been held past their key until now.
+          executionContext.clearState();
+          executionContext.deleteSpilledState();
           // Grab nextReportIndex so we can use it in handleWorkError if there is an exception.
           nextReportIndex = progressUpdater.getNextReportIndex();
         }
@@ -433,20 +451,45 @@ public class DataflowWorker {
 
   /**
    * A {@link DataflowExecutionContext} that provides a caching side input reader using
-   * the worker's shared cache.
+   * the worker's shared cache, and state that spills to disk under the worker's shared budget.
    */
   private static class DataflowWorkerExecutionContext extends BatchModeExecutionContext {
 
     private final Cache<PCollectionViewWindow<?>, WeightedValue<Object>> cache;
+    @Nullable
+    private final SpillBudget stateSpillBudget;
+    private final List<SpillingStateInternals> spillingStateInternals = new ArrayList<>();
     private final PipelineOptions options;
 
     public DataflowWorkerExecutionContext(
-        Cache<PCollectionViewWindow<?>, WeightedValue<Object>> cache, PipelineOptions options) {
+        Cache<PCollectionViewWindow<?>, WeightedValue<Object>> cache,
+        @Nullable SpillBudget stateSpillBudget,
+        PipelineOptions options) {
       super(options);
       this.cache = cache;
+      this.stateSpillBudget = stateSpillBudget;
       this.options = options;
     }
 
+    @Override
+    protected InMemoryStateInternals createStateInternals() {
+      if (stateSpillBudget == null) {
+        return super.createStateInternals();
+      }
+      SpillingStateInternals stateInternals = new SpillingStateInternals(stateSpillBudget);
+      spillingStateInternals.add(stateInternals);
+      return stateInternals;
+    }
+
+    /**
+     * Deletes the files that the state of any step has spilled to.
+     */
+    public void deleteSpilledState() {
+      for (SpillingStateInternals stateInternals : spillingStateInternals) {
+        stateInternals.deleteFiles();
+      }
+    }
+
     @Override
     protected SideInputReader getSideInputReader(Iterable<? extends SideInputInfo> sideInputInfos)
       throws Exception {
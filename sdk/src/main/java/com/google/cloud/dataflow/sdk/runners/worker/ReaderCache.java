@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.runners.worker;
+
+import com.google.cloud.dataflow.sdk.io.UnboundedSource;
+import com.google.cloud.dataflow.sdk.runners.worker.status.BaseStatusServlet;
+import com.google.cloud.dataflow.sdk.runners.worker.status.StatusDataProvider;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.protobuf.ByteString;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Process-wide cache of active {@link UnboundedSource.UnboundedReader UnboundedReaders}, bounded
+ * by the number of readers and by how long a reader may sit idle.
+ *
+ * <p>A reader is removed from the cache while a work item is using it, and is returned to the
+ * cache when the work item is done with it, so readers in use are never evicted. Readers that are
+ * evicted, or that are invalidated because their cache token no longer matches, are closed.
+ */
+public class ReaderCache implements StatusDataProvider {
+  private static final Logger LOG = LoggerFactory.getLogger(ReaderCache.class);
+
+  // Maximum number of idle readers in the cache.
+  static final long DEFAULT_MAX_READERS = 10000;
+  // Time after which an idle reader is evicted. Evicted readers are recreated from their
+  // checkpoints, so this is much longer than the usual gap between work items for a key.
+  static final long DEFAULT_IDLE_EXPIRATION_SEC = 600;
+
+  private final Cache<ReaderId, CacheEntry> cache;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public ReaderCache() {
+    this(DEFAULT_MAX_READERS, DEFAULT_IDLE_EXPIRATION_SEC);
+  }
+
+  /**
+   * Creates a cache that holds at most {@code maxReaders} idle readers, and closes readers that
+   * have been idle for {@code idleExpirationSec} seconds.
+   */
+  public ReaderCache(long maxReaders, long idleExpirationSec) {
+    this(maxReaders, idleExpirationSec, TimeUnit.SECONDS, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  ReaderCache(long maxReaders, long idleExpiration, TimeUnit unit, Ticker ticker) {
+    Preconditions.checkArgument(maxReaders >= 0,
+        "ReaderCache needs a non-negative maximum number of readers, but got %s", maxReaders);
+    Preconditions.checkArgument(idleExpiration > 0,
+        "ReaderCache needs a positive idle expiration, but got %s", idleExpiration);
+    this.cache =
+        CacheBuilder.newBuilder()
+        .maximumSize(maxReaders)
+        .expireAfterAccess(idleExpiration, unit)
+        .ticker(ticker)
+        .removalListener(new RemovalListener<ReaderId, CacheEntry>() {
+              @Override
+              public void onRemoval(RemovalNotification<ReaderId, CacheEntry> removal) {
+                // Explicit removals hand the reader to a work item, and replacements are
+                // handled by release().
+                if (removal.wasEvicted()) {
+                  evictions.incrementAndGet();
+                  closeReader(removal.getValue().reader);
+                }
+              }
+            })
+        .build();
+  }
+
+  /**
+   * Per-computation view of the reader cache.
+   */
+  public class ForComputation {
+    private final String computation;
+
+    private ForComputation(String computation) {
+      this.computation = computation;
+    }
+
+    /**
+     * Removes and returns the cached reader for the key for use by a work item, or returns null
+     * if there is no reader for the key with the given cache token.
+     */
+    @Nullable
+    public UnboundedSource.UnboundedReader<?> acquire(ByteString key, long cacheToken) {
+      return ReaderCache.this.acquire(new ReaderId(computation, key), cacheToken);
+    }
+
+    /**
+     * Returns a reader to the cache after a work item has finished using it.
+     */
+    public void release(
+        ByteString key, long cacheToken, UnboundedSource.UnboundedReader<?> reader) {
+      ReaderCache.this.release(new ReaderId(computation, key), cacheToken, reader);
+    }
+  }
+
+  /**
+   * Returns a per-computation view of the reader cache.
+   */
+  public ForComputation forComputation(String computation) {
+    return new ForComputation(computation);
+  }
+
+  private UnboundedSource.UnboundedReader<?> acquire(ReaderId id, long cacheToken) {
+    CacheEntry entry = cache.asMap().remove(id);
+    if (entry == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    if (entry.token != cacheToken) {
+      invalidations.incrementAndGet();
+      closeReader(entry.reader);
+      return null;
+    }
+    hits.incrementAndGet();
+    return entry.reader;
+  }
+
+  private void release(
+      ReaderId id, long cacheToken, UnboundedSource.UnboundedReader<?> reader) {
+    CacheEntry previous = cache.asMap().put(id, new CacheEntry(reader, cacheToken));
+    if (previous != null && previous.reader != reader) {
+      closeReader(previous.reader);
+    }
+  }
+
+  /**
+   * Performs pending evictions of idle readers. The underlying cache only does so as a side
+   * effect of other operations, so this should be called periodically.
+   */
+  public void cleanUp() {
+    cache.cleanUp();
+  }
+
+  @VisibleForTesting
+  long size() {
+    return cache.size();
+  }
+
+  private static void closeReader(UnboundedSource.UnboundedReader<?> reader) {
+    try {
+      reader.close();
+    } catch (Exception e) {
+      LOG.warn("Failed to close evicted reader: ", e);
+    }
+  }
+
+  /**
+   * Struct identifying a cached reader by computation and key.
+   */
+  private static class ReaderId {
+    private final String computation;
+    private final ByteString key;
+
+    public ReaderId(String computation, ByteString key) {
+      this.computation = computation;
+      this.key = key;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other instanceof ReaderId) {
+        ReaderId otherId = (ReaderId) other;
+        return computation.equals(otherId.computation) && key.equals(otherId.key);
+      }
+      return false;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(computation, key);
+    }
+  }
+
+  /**
+   * Entry in the reader cache, along with the token representing the validity of the reader.
+   */
+  private static class CacheEntry {
+    private final UnboundedSource.UnboundedReader<?> reader;
+    private final long token;
+
+    public CacheEntry(UnboundedSource.UnboundedReader<?> reader, long token) {
+      this.reader = reader;
+      this.token = token;
+    }
+  }
+
+  /**
+   * Print summary statistics of the cache to the given {@link PrintWriter}.
+   */
+  @Override
+  public void appendSummaryHtml(PrintWriter response) {
+    long hitCount = hits.get();
+    long requestCount = hitCount + misses.get() + invalidations.get();
+    response.println("Reader Cache Stats: <br><table border=0>");
+    response.println("<tr><th>Hit Ratio</th><th>Hits</th><th>Misses</th><th>Invalidations</th>"
+        + "<th>Evictions</th><th>Idle Readers</th></tr><tr>");
+    response.println("<th>" + (requestCount == 0 ? 1.0 : (double) hitCount / requestCount)
+        + "</th>");
+    response.println("<th>" + hitCount + "</th>");
+    response.println("<th>" + misses.get() + "</th>");
+    response.println("<th>" + invalidations.get() + "</th>");
+    response.println("<th>" + evictions.get() + "</th>");
+    response.println("<th>" + cache.size() + "</th>");
+    response.println("</tr></table><br>");
+  }
+
+  public BaseStatusServlet statusServlet() {
+    return new BaseStatusServlet("/readercachez") {
+      @Override
+      protected void doGet(HttpServletRequest request, HttpServletResponse response)
+          throws IOException, ServletException {
+
+        PrintWriter writer = response.getWriter();
+        writer.println("<h1>Reader Cache Information</h1>");
+        appendSummaryHtml(writer);
+      }
+    };
+  }
+}
@@ -19,7 +19,6 @@ package com.google.cloud.dataflow.sdk.runners.worker;
 import com.google.api.services.dataflow.model.MapTask;
 import com.google.api.services.dataflow.model.ParallelInstruction;
 import com.google.cloud.dataflow.sdk.coders.Coder;
-import com.google.cloud.dataflow.sdk.io.UnboundedSource;
 import com.google.cloud.dataflow.sdk.options.DataflowWorkerHarnessOptions;
 import com.google.cloud.dataflow.sdk.options.PipelineOptionsFactory;
 import com.google.cloud.dataflow.sdk.runners.dataflow.CustomSources;
@@ -43,6 +42,7 @@ import com.google.cloud.dataflow.sdk.util.common.worker.MapTaskExecutor;
 import com.google.cloud.dataflow.sdk.util.common.worker.OutputObjectAndByteCounter;
 import com.google.cloud.dataflow.sdk.util.common.worker.ReadOperation;
 import com.google.cloud.dataflow.sdk.util.common.worker.StateSampler;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.protobuf.ByteString;
@@ -74,6 +74,7 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 
@@ -104,6 +105,9 @@ public class StreamingDataflowWorker {
    */
   private static final long MAX_GET_WORK_ITEMS = 100;
 
+  // Delay before a work item that failed is retried locally.
+  private static final int DEFAULT_RETRY_LOCALLY_DELAY_MS = 10000;
+
   /**
    * Indicates that the key token was invalid when data was attempted to be fetched.
    */
@@ -184,19 +188,6 @@ public class StreamingDataflowWorker {
     worker.startStatusPages();
   }
 
-  /**
-   * Entry in a per-key UnboundedSource#UnboundedReader cache.
-   */
-  public static class ReaderCacheEntry {
-    UnboundedSource.UnboundedReader<?> reader;
-    long token;
-
-    public ReaderCacheEntry(UnboundedSource.UnboundedReader<?> reader, long token) {
-      this.reader = reader;
-      this.token = token;
-    }
-  }
-
   /**
    * Bounded set of queues, with a maximum total weight.
    */
@@ -266,10 +257,8 @@ public class StreamingDataflowWorker {
 
   // Maps from computation ids to per-computation state.
   private final ConcurrentMap<String, MapTask> instructionMap;
-  private final ConcurrentMap<String, ConcurrentLinkedQueue<WorkerAndContext>> mapTaskExecutors;
+  private final ConcurrentMap<String, ExecutorPool> mapTaskExecutors;
   private final ConcurrentMap<String, ActiveWorkForComputation> activeWorkMap;
-  // Per computation cache of active readers, keyed by split ID.
-  private final ConcurrentMap<String, ConcurrentMap<ByteString, ReaderCacheEntry>> readerCache;
   private final KeyedWeightBoundedQueue<String, Windmill.WorkItemCommitRequest> commitQueue =
       new KeyedWeightBoundedQueue<>(
           MAX_COMMIT_QUEUE_BYTES, new Function<Windmill.WorkItemCommitRequest, Integer>() {
@@ -286,11 +275,14 @@ public class StreamingDataflowWorker {
   private ConcurrentMap<String, String> stateNameMap;
   private ConcurrentMap<String, String> systemNameToComputationIdMap;
 
-  private WindmillStateCache stateCache = new WindmillStateCache();
+  private final WindmillStateCache stateCache;
+  // Cache of active readers, keyed by computation and split ID.
+  private final ReaderCache readerCache;
 
   private ThreadFactory threadFactory;
   private BoundedQueueExecutor workUnitExecutor;
   private ExecutorService commitExecutor;
+  private ExecutorService prewarmExecutor;
   private WindmillServerStub windmillServer;
   private Thread dispatchThread;
   private AtomicBoolean running;
@@ -310,10 +302,13 @@ public class StreamingDataflowWorker {
   public StreamingDataflowWorker(
       List<MapTask> mapTasks, WindmillServerStub server, DataflowWorkerHarnessOptions options) {
     this.options = options;
+    this.stateCache =
+        new WindmillStateCache((long) options.getWorkerStateCacheOffHeapMb() << 20);
+    this.readerCache = new ReaderCache(options.getStreamingReaderCacheMaxReaders(),
+        options.getStreamingReaderCacheIdleExpirationSec());
     this.instructionMap = new ConcurrentHashMap<>();
     this.mapTaskExecutors = new ConcurrentHashMap<>();
     this.activeWorkMap = new ConcurrentHashMap<>();
-    this.readerCache = new ConcurrentHashMap<>();
     this.commitCallbacks = new ConcurrentHashMap<>();
     this.stateNameMap = new ConcurrentHashMap<>();
     this.systemNameToComputationIdMap = new ConcurrentHashMap<>();
@@ -327,7 +322,7 @@ public class StreamingDataflowWorker {
       };
     this.workUnitExecutor = new BoundedQueueExecutor(
         chooseMaximumNumberOfThreads(options), THREAD_EXPIRATION_TIME_SEC, TimeUnit.SECONDS,
-        MAX_WORK_UNITS_QUEUED, threadFactory);
+        MAX_WORK_UNITS_QUEUED, threadFactory, WorkPrioritizer.fromOptions(options));
     this.commitExecutor =
         new ThreadPoolExecutor(
             1,
@@ -346,6 +341,23 @@ public class StreamingDataflowWorker {
               }
             },
             new ThreadPoolExecutor.DiscardPolicy());
+    this.prewarmExecutor =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            Long.MAX_VALUE,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                t.setName("PrewarmThread");
+                return t;
+              }
+            });
     this.windmillServer = server;
     this.metricTrackingWindmillServer = new MetricTrackingWindmillServerStub(server, memoryMonitor);
     this.running = new AtomicBoolean();
@@ -388,6 +400,8 @@ public class StreamingDataflowWorker {
       @Override
       public void run() {
         reportPeriodicStats();
+        // Closes readers that have been idle for too long, even if no work arrives for them.
+        readerCache.cleanUp();
       }
     }, 1000, 1000);
     reportHarnessStartup();
@@ -395,6 +409,7 @@ public class StreamingDataflowWorker {
 
   public void startStatusPages() {
     statusPages.addServlet(stateCache.statusServlet());
+    statusPages.addServlet(readerCache.statusServlet());
 
     statusPages.addStatusDataProvider("harness", "Harness", new HarnessDataProvider());
     statusPages.addStatusDataProvider("resources", "Resources", memoryMonitor);
@@ -403,6 +418,7 @@ public class StreamingDataflowWorker {
         "exception", "Last Exception", new LastExceptionDataProvider());
     statusPages.addStatusDataProvider("specs", "Specs", new SpecsDataProvider());
     statusPages.addStatusDataProvider("cache", "State Cache", stateCache);
+    statusPages.addStatusDataProvider("readers", "Reader Cache", readerCache);
 
     statusPages.start();
   }
@@ -419,9 +435,14 @@ public class StreamingDataflowWorker {
       if (!workUnitExecutor.awaitTermination(5, TimeUnit.MINUTES)) {
         throw new RuntimeException("Work executor did not terminate within 5 minutes");
       }
-      for (ConcurrentLinkedQueue<WorkerAndContext> queue : mapTaskExecutors.values()) {
+      // Stop pre-warming before draining the pools, so no new executors are added to them.
+      prewarmExecutor.shutdownNow();
+      if (!prewarmExecutor.awaitTermination(5, TimeUnit.MINUTES)) {
+        throw new RuntimeException("Prewarm executor did not terminate within 5 minutes");
+      }
+      for (ExecutorPool pool : mapTaskExecutors.values()) {
         WorkerAndContext workerAndContext;
-        while ((workerAndContext = queue.poll()) != null) {
+        while ((workerAndContext = pool.drain()) != null) {
           workerAndContext.getWorker().close();
         }
       }
@@ -434,8 +455,8 @@ public class StreamingDataflowWorker {
     }
   }
 
-  private void addComputation(MapTask mapTask) {
-    String computationId =
+  private void addComputation(final MapTask mapTask) {
+    final String computationId =
         systemNameToComputationIdMap.containsKey(mapTask.getSystemName())
             ? systemNameToComputationIdMap.get(mapTask.getSystemName())
             : mapTask.getSystemName();
@@ -443,13 +464,95 @@ public class StreamingDataflowWorker {
       LOG.info("Adding config for {}: {}", computationId, mapTask);
       commitQueue.addQueue(computationId);
       instructionMap.put(computationId, mapTask);
-      mapTaskExecutors.put(computationId, new ConcurrentLinkedQueue<WorkerAndContext>());
+      mapTaskExecutors.put(computationId, new ExecutorPool());
       activeWorkMap.put(computationId, new ActiveWorkForComputation(workUnitExecutor));
-      readerCache.put(
-          computationId, new ConcurrentHashMap<ByteString, ReaderCacheEntry>());
+      prewarmExecutors(computationId, mapTask);
     }
   }
 
+  /**
+   * Constructs executors for the computation on a background thread and adds them to its pool,
+   * so that its first work items do not pay for deserializing user functions and coders.
+   */
+  private void prewarmExecutors(final String computation, final MapTask mapTask) {
+    final int count = options.getStreamingPrewarmedExecutorsPerComputation();
+    if (count <= 0) {
+      return;
+    }
+    prewarmExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        DataflowWorkerLoggingMDC.setStageName(computation);
+        try {
+          for (int i = 0; i < count && !Thread.currentThread().isInterrupted(); i++) {
+            mapTaskExecutors.get(computation).addPrewarmed(
+                createWorkerAndContext(computation, mapTask));
+          }
+        } catch (Throwable t) {
+          // Work items for the computation construct their own executors, and report any
+          // failure to do so.
+          LOG.warn("Failed to pre-warm executors for {}: ", computation, t);
+        } finally {
+          DataflowWorkerLoggingMDC.setStageName(null);
+        }
+      }
+    });
+  }
+
+  private WorkerAndContext createWorkerAndContext(String computation, MapTask mapTask)
+      throws Exception {
+    CounterSet counters = new CounterSet();
+    StreamingModeExecutionContext context = new StreamingModeExecutionContext(
+        mapTask.getSystemName(), readerCache.forComputation(computation), stateNameMap,
+        stateCache.forComputation(computation));
+    StateSampler sampler =
+        new StateSampler(mapTask.getStageName() + "-", counters.getAddCounterMutator());
+    // In streaming mode, state samplers are long lived. So here a unique id is generated as
+    // the item_id for the userCodeTimeTracker.
+    int stateSamplerId = nextStateSamplerId.incrementAndGet();
+    sampler.addSamplingCallback(
+        new UserCodeTimeTracker.StateSamplerCallback(
+            userCodeTimeTracker, stateSamplerId));
+    // "work" will never finish here.
+    userCodeTimeTracker.workStarted(
+        sampler.getPrefix(), stateSamplerId, counters.getAddCounterMutator());
+    MapTaskExecutor worker =
+        MapTaskExecutorFactory.create(options, mapTask, context, counters, sampler);
+    ReadOperation readOperation = worker.getReadOperation();
+    // Disable progress updates since its results are unused for streaming
+    // and involves starting a thread.
+    readOperation.setProgressUpdatePeriodMs(ReadOperation.DONT_UPDATE_PERIODICALLY);
+    Preconditions.checkState(
+        worker.supportsRestart(), "Streaming runner requires all operations support restart.");
+
+    // If using a custom source, count bytes read for autoscaling.
+    ParallelInstruction read = mapTask.getInstructions().get(0);
+    if (CustomSources.class.getName().equals(
+            read.getRead().getSource().getSpec().get("@type"))) {
+      Coder<?> coder = Serializer.deserialize(read.getOutputs().get(0).getCodec(), Coder.class);
+      readOperation.receivers[0].addOutputCounter(
+          new OutputObjectAndByteCounter(
+              new MapTaskExecutorFactory.ElementByteSizeObservableCoder<>(coder),
+              worker.getOutputCounters().getAddCounterMutator())
+              .setSamplingPeriod(100)
+              .countBytes("dataflow_input_size-" + mapTask.getSystemName()));
+    }
+    return new WorkerAndContext(worker, context);
+  }
+
+  private int retryLocallyDelayMs = DEFAULT_RETRY_LOCALLY_DELAY_MS;
+
+  @VisibleForTesting
+  void setRetryLocallyDelayMs(int retryLocallyDelayMs) {
+    this.retryLocallyDelayMs = retryLocallyDelayMs;
+  }
+
+  @VisibleForTesting
+  @Nullable
+  ExecutorPool getExecutorPool(String computation) {
+    return mapTaskExecutors.get(computation);
+  }
+
   private static void sleep(int millis) {
     try {
       Thread.sleep(millis);
@@ -505,7 +608,7 @@ public class StreamingDataflowWorker {
                   workItem.getOutputDataWatermark());
           Preconditions.checkState(inputDataWatermark == null || outputDataWatermark == null
               || !outputDataWatermark.isAfter(inputDataWatermark));
-          Work work = new Work(workItem.getWorkToken()) {
+          Work work = new Work(computation, workItem, inputDataWatermark) {
             @Override
             public void run() {
               process(computation, mapTask, inputDataWatermark, outputDataWatermark,
@@ -523,12 +626,43 @@ public class StreamingDataflowWorker {
 
   abstract static class Work implements Runnable {
     private final long workToken;
+    @Nullable private final String computation;
+    @Nullable private final Windmill.WorkItem workItem;
+    @Nullable private final Instant inputDataWatermark;
+
     public Work(long workToken) {
       this.workToken = workToken;
+      this.computation = null;
+      this.workItem = null;
+      this.inputDataWatermark = null;
+    }
+
+    public Work(String computation, Windmill.WorkItem workItem,
+        @Nullable Instant inputDataWatermark) {
+      this.workToken = workItem.getWorkToken();
+      this.computation = computation;
+      this.workItem = workItem;
+      this.inputDataWatermark = inputDataWatermark;
     }
+
     public long getWorkToken() {
       return workToken;
     }
+
+    @Nullable
+    public String getComputation() {
+      return computation;
+    }
+
+    @Nullable
+    public Windmill.WorkItem getWorkItem() {
+      return workItem;
+    }
+
+    @Nullable
+    public Instant getInputDataWatermark() {
+      return inputDataWatermark;
+    }
   }
 
   private void process(final String computation, final MapTask mapTask,
@@ -549,46 +683,12 @@ public class StreamingDataflowWorker {
       DataflowWorkerLoggingMDC.setWorkId(
           work.getKey().toStringUtf8() + "-" + Long.toString(work.getWorkToken()));
       DataflowWorkerLoggingMDC.setStageName(computation);
-      WorkerAndContext workerAndContext = mapTaskExecutors.get(computation).poll();
+      WorkerAndContext workerAndContext = mapTaskExecutors.get(computation).acquire();
       if (workerAndContext == null) {
-        CounterSet counters = new CounterSet();
-        context = new StreamingModeExecutionContext(mapTask.getSystemName(),
-            readerCache.get(computation), stateNameMap, stateCache.forComputation(computation));
-        StateSampler sampler =
-            new StateSampler(mapTask.getStageName() + "-", counters.getAddCounterMutator());
-        // In streaming mode, state samplers are long lived. So here a unique id is generated as
-        // the item_id for the userCodeTimeTracker.
-        int stateSamplerId = nextStateSamplerId.incrementAndGet();
-        sampler.addSamplingCallback(
-            new UserCodeTimeTracker.StateSamplerCallback(
-                userCodeTimeTracker, stateSamplerId));
-        // "work" will never finish here.
-        userCodeTimeTracker.workStarted(
-            sampler.getPrefix(), stateSamplerId, counters.getAddCounterMutator());
-        worker = MapTaskExecutorFactory.create(options, mapTask, context, counters, sampler);
-        ReadOperation readOperation = worker.getReadOperation();
-        // Disable progress updates since its results are unused for streaming
-        // and involves starting a thread.
-        readOperation.setProgressUpdatePeriodMs(ReadOperation.DONT_UPDATE_PERIODICALLY);
-        Preconditions.checkState(
-            worker.supportsRestart(), "Streaming runner requires all operations support restart.");
-
-        // If using a custom source, count bytes read for autoscaling.
-        ParallelInstruction read = mapTask.getInstructions().get(0);
-        if (CustomSources.class.getName().equals(
-                read.getRead().getSource().getSpec().get("@type"))) {
-          Coder<?> coder = Serializer.deserialize(read.getOutputs().get(0).getCodec(), Coder.class);
-          readOperation.receivers[0].addOutputCounter(
-              new OutputObjectAndByteCounter(
-                  new MapTaskExecutorFactory.ElementByteSizeObservableCoder<>(coder),
-                  worker.getOutputCounters().getAddCounterMutator())
-                  .setSamplingPeriod(100)
-                  .countBytes("dataflow_input_size-" + mapTask.getSystemName()));
-        }
-      } else {
-        worker = workerAndContext.getWorker();
-        context = workerAndContext.getContext();
+        workerAndContext = createWorkerAndContext(computation, mapTask);
       }
+      worker = workerAndContext.getWorker();
+      context = workerAndContext.getContext();
 
       WindmillStateReader stateReader = new WindmillStateReader(
           metricTrackingWindmillServer, computation, work.getKey(), work.getWorkToken());
@@ -627,10 +727,7 @@ public class StreamingDataflowWorker {
         }
       }
       long stateBytesRead = stateReader.getBytesRead() + localStateFetcher.getBytesRead();
-      long stateBytesWritten = Windmill.WorkItemCommitRequest.newBuilder(outputBuilder.build())
-                                   .clearOutputMessages()
-                                   .build()
-                                   .getSerializedSize();
+      long stateBytesWritten = context.getStateBytesWritten();
       CounterSet counters = worker.getOutputCounters();
       counters
           .getAddCounterMutator()
@@ -647,7 +744,7 @@ public class StreamingDataflowWorker {
 
       buildCounters(counters, outputBuilder);
 
-      mapTaskExecutors.get(computation).offer(new WorkerAndContext(worker, context));
+      mapTaskExecutors.get(computation).release(workerAndContext);
       worker = null;
       context = null;
 
@@ -656,6 +753,11 @@ public class StreamingDataflowWorker {
 
       LOG.debug("Processing done for work token: {}", work.getWorkToken());
     } catch (Throwable t) {
+      if (context != null) {
+        // Close the reader acquired by the work item rather than leaking it; it is not returned
+        // to the reader cache.
+        context.invalidateActiveReader();
+      }
       if (worker != null) {
         try {
           worker.close();
@@ -689,9 +791,10 @@ public class StreamingDataflowWorker {
         LastExceptionDataProvider.reportException(t);
         LOG.debug("Failed work: {}", work);
         if (reportFailure(computation, work, t)) {
-          // Try again, after some delay and at the end of the queue to avoid a tight loop.
-          sleep(10000);
-          workUnitExecutor.forceExecute(new Runnable() {
+          // Try again, after some delay and at the end of the queue to avoid a tight loop.  The
+          // retry is queued as Work for the same item so that it keeps its priority.
+          sleep(retryLocallyDelayMs);
+          workUnitExecutor.forceExecute(new Work(computation, work, inputDataWatermark) {
             @Override
             public void run() {
               process(computation, mapTask, inputDataWatermark, outputDataWatermark,
@@ -975,7 +1078,104 @@ public class StreamingDataflowWorker {
     }
   }
 
-  private static class WorkerAndContext {
+  /**
+   * Pool of idle {@link MapTaskExecutor MapTaskExecutors} for a computation.
+   *
+   * <p>Tracks how often work found an idle executor in the pool, and how many executors were
+   * added to it ahead of time.
+   */
+  @VisibleForTesting
+  static class ExecutorPool {
+    private final ConcurrentLinkedQueue<WorkerAndContext> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong prewarmed = new AtomicLong();
+
+    /**
+     * Removes an idle executor from the pool for use by work, or returns null if the caller
+     * must construct a new one.
+     */
+    @Nullable
+    public WorkerAndContext acquire() {
+      WorkerAndContext workerAndContext = idle.poll();
+      if (workerAndContext == null) {
+        misses.incrementAndGet();
+      } else {
+        hits.incrementAndGet();
+      }
+      return workerAndContext;
+    }
+
+    /**
+     * Returns an executor to the pool after it has successfully executed work.
+     */
+    public void release(WorkerAndContext workerAndContext) {
+      idle.offer(workerAndContext);
+    }
+
+    /**
+     * Adds an executor that was constructed ahead of any work.
+     */
+    public void addPrewarmed(WorkerAndContext workerAndContext) {
+      prewarmed.incrementAndGet();
+      idle.offer(workerAndContext);
+    }
+
+    /**
+     * Removes an idle executor from the pool without counting it as used, or returns null if the
+     * pool is empty.
+     */
+    @Nullable
+    public WorkerAndContext drain() {
+      return idle.poll();
+    }
+
+    /**
+     * Returns the number of executors that are waiting in the pool for work.
+     */
+    public int getIdleCount() {
+      return idle.size();
+    }
+
+    /**
+     * Returns the number of times work found an idle executor in the pool.
+     */
+    public long getHitCount() {
+      return hits.get();
+    }
+
+    /**
+     * Returns the number of times work had to construct a new executor.
+     */
+    public long getMissCount() {
+      return misses.get();
+    }
+
+    /**
+     * Returns the number of executors that were added to the pool ahead of any work.
+     */
+    public long getPrewarmedCount() {
+      return prewarmed.get();
+    }
+
+    public void printHtml(PrintWriter writer) {
+      long hitCount = hits.get();
+      long requestCount = hitCount + misses.get();
+      writer.print(" Idle: ");
+      writer.print(idle.size());
+      writer.print(" Hits: ");
+      writer.print(hitCount);
+      writer.print("/");
+      writer.print(requestCount);
+      writer.print(" Hit Ratio: ");
+      writer.print(requestCount == 0 ? 1.0 : (double) hitCount / requestCount);
+      writer.print(" Pre-warmed: ");
+      writer.print(prewarmed.get());
+    }
+  }
+
+  @VisibleForTesting
+  static class WorkerAndContext {
     public MapTaskExecutor worker;
     public StreamingModeExecutionContext context;
 
@@ -1021,6 +1221,7 @@ public class StreamingDataflowWorker {
       writer.println("Active Threads: " + workUnitExecutor.getActiveCount() + "<br>");
       writer.println("Work Queue Size: " + workUnitExecutor.getQueue().size()
           + "/" + MAX_WORK_UNITS_QUEUED + "<br>");
+      writer.println("Work Priority: " + options.getStreamingWorkPriority() + "<br>");
       writer.print("Commit Queues: (");
       writer.print(commitQueue.weight() >> 20);
       writer.println("MB)<ul>");
@@ -1033,6 +1234,16 @@ public class StreamingDataflowWorker {
       }
       writer.println("</ul>");
 
+      writer.println("Executor Pools: <ul>");
+      for (Map.Entry<String, ExecutorPool> poolEntry : mapTaskExecutors.entrySet()) {
+        writer.print("<li>");
+        writer.print(poolEntry.getKey());
+        writer.print(":");
+        poolEntry.getValue().printHtml(writer);
+        writer.println("</li>");
+      }
+      writer.println("</ul>");
+
       writer.println("Active Keys: <ul>");
       for (Map.Entry<String, ActiveWorkForComputation> computationEntry
           : activeWorkMap.entrySet()) {
@@ -45,10 +45,14 @@ public abstract class StreamingGroupAlsoByWindowsDoFn<K, InputT, OutputT, W exte
           final AppliedCombineFn<K, InputT, AccumT, OutputT> combineFn,
           final Coder<K> keyCoder) {
     Preconditions.checkNotNull(combineFn);
+    // Overlapping sliding windows share the combining state of their slices where possible.
+    SystemReduceFn.Factory<K, InputT, OutputT, W> reduceFnFactory =
+        SystemReduceFn.canCombineBySlices(windowingStrategy)
+            ? SystemReduceFn.<K, InputT, AccumT, OutputT, W>combiningBySlices(
+                keyCoder, combineFn, windowingStrategy)
+            : SystemReduceFn.<K, InputT, AccumT, OutputT, W>combining(keyCoder, combineFn);
     DoFn<KeyedWorkItem<K, InputT>, KV<K, OutputT>> fn =
-        GroupAlsoByWindowViaWindowSetDoFn.create(
-            windowingStrategy,
-            SystemReduceFn.<K, InputT, AccumT, OutputT, W>combining(keyCoder, combineFn));
+        GroupAlsoByWindowViaWindowSetDoFn.create(windowingStrategy, reduceFnFactory);
     return fn;
   }
 
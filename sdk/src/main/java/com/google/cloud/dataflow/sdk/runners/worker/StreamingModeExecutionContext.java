@@ -21,7 +21,6 @@ import com.google.cloud.dataflow.sdk.coders.Coder;
 import com.google.cloud.dataflow.sdk.io.UnboundedSource;
 import com.google.cloud.dataflow.sdk.runners.dataflow.CustomSources;
 import com.google.cloud.dataflow.sdk.runners.worker.StateFetcher.SideInputState;
-import com.google.cloud.dataflow.sdk.runners.worker.StreamingDataflowWorker.ReaderCacheEntry;
 import com.google.cloud.dataflow.sdk.runners.worker.windmill.Windmill;
 import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
 import com.google.cloud.dataflow.sdk.util.BaseExecutionContext;
@@ -40,8 +39,11 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableSet;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 
 import org.joda.time.Instant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.HashMap;
@@ -59,11 +61,13 @@ import javax.annotation.Nullable;
  */
 public class StreamingModeExecutionContext
     extends DataflowExecutionContext<StreamingModeExecutionContext.StepContext> {
+  private static final Logger LOG = LoggerFactory.getLogger(StreamingModeExecutionContext.class);
+
   private final String stageName;
   private final Map<TupleTag<?>, Map<BoundedWindow, Object>> sideInputCache;
 
   // Per-key cache of active Reader objects in use by this process.
-  private final ConcurrentMap<ByteString, ReaderCacheEntry> readerCache;
+  private final ReaderCache.ForComputation readerCache;
   private final ConcurrentMap<String, String> stateNameMap;
   private final WindmillStateCache.ForComputation stateCache;
 
@@ -75,9 +79,11 @@ public class StreamingModeExecutionContext
   private StateFetcher stateFetcher;
   private Windmill.WorkItemCommitRequest.Builder outputBuilder;
   private UnboundedSource.UnboundedReader<?> activeReader;
+  // Serialized size of everything added to outputBuilder other than outputs and counters.
+  private long stateBytesWritten;
 
   public StreamingModeExecutionContext(String stageName,
-      ConcurrentMap<ByteString, ReaderCacheEntry> readerCache,
+      ReaderCache.ForComputation readerCache,
       ConcurrentMap<String, String> stateNameMap, WindmillStateCache.ForComputation stateCache) {
     this.stageName = stageName;
     this.sideInputCache = new HashMap<>();
@@ -101,6 +107,12 @@ public class StreamingModeExecutionContext
     this.stateReader = stateReader;
     this.stateFetcher = stateFetcher;
     this.outputBuilder = outputBuilder;
+    this.activeReader = null;
+    this.stateBytesWritten =
+        CodedOutputStream.computeBytesSize(
+            Windmill.WorkItemCommitRequest.KEY_FIELD_NUMBER, outputBuilder.getKey())
+        + CodedOutputStream.computeFixed64Size(
+            Windmill.WorkItemCommitRequest.WORK_TOKEN_FIELD_NUMBER, outputBuilder.getWorkToken());
     this.sideInputCache.clear();
 
     for (ExecutionContext.StepContext stepContext : getAllStepContexts()) {
@@ -186,22 +198,46 @@ public class StreamingModeExecutionContext
     return outputBuilder;
   }
 
+  /**
+   * Returns the number of bytes the current work item adds to its commit request other than
+   * output messages and counters, as tracked while they are added. This avoids having to build
+   * the commit request more than once to measure it.
+   */
+  public long getStateBytesWritten() {
+    return stateBytesWritten;
+  }
+
+  /**
+   * Takes the cached reader for the current key out of the reader cache, or returns null if there
+   * is no valid reader for it. The active reader is returned to the cache by {@link #flushState},
+   * or closed by {@link #invalidateActiveReader} if the work item fails.
+   */
   public UnboundedSource.UnboundedReader<?> getCachedReader() {
-    ReaderCacheEntry entry = readerCache.get(getSerializedKey());
-    if (entry == null) {
-      return null;
-    } else if (entry.token != getWork().getCacheToken()) {
-      readerCache.remove(getSerializedKey());
-      return null;
-    } else {
-      return entry.reader;
-    }
+    return readerCache.acquire(getSerializedKey(), getWork().getCacheToken());
   }
 
   public void setActiveReader(UnboundedSource.UnboundedReader<?> reader) {
     activeReader = reader;
   }
 
+  /**
+   * Closes the active reader of a work item that failed, if it has not been returned to the
+   * reader cache. The reader may have advanced past the checkpoint of the failed work item, so
+   * it cannot be reused.
+   */
+  public void invalidateActiveReader() {
+    if (activeReader == null) {
+      return;
+    }
+    try {
+      activeReader.close();
+    } catch (Exception e) {
+      LOG.warn("Failed to close reader of failed work: ", e);
+    } finally {
+      activeReader = null;
+    }
+  }
+
   public UnboundedSource.CheckpointMark getReaderCheckpoint(
       Coder<? extends UnboundedSource.CheckpointMark> coder) {
     try {
@@ -219,7 +255,7 @@ public class StreamingModeExecutionContext
     Map<Long, Runnable> callbacks = new HashMap<>();
 
     for (ExecutionContext.StepContext stepContext : getAllStepContexts()) {
-      ((StepContext) stepContext).flushState();
+      stateBytesWritten += ((StepContext) stepContext).flushState();
     }
 
 
@@ -256,8 +292,14 @@ public class StreamingModeExecutionContext
         }
         sourceStateBuilder.setState(stream.toByteString());
       }
-      outputBuilder.setSourceWatermark(
-          WindmillTimeUtils.harnessToWindmillTimestamp(watermark));
+      long windmillWatermark = WindmillTimeUtils.harnessToWindmillTimestamp(watermark);
+      outputBuilder.setSourceWatermark(windmillWatermark);
+      stateBytesWritten +=
+          CodedOutputStream.computeMessageSize(
+              Windmill.WorkItemCommitRequest.SOURCE_STATE_UPDATES_FIELD_NUMBER,
+              sourceStateBuilder.build())
+          + CodedOutputStream.computeInt64Size(
+              Windmill.WorkItemCommitRequest.SOURCE_WATERMARK_FIELD_NUMBER, windmillWatermark);
 
       long backlogBytes = activeReader.getSplitBacklogBytes();
       if (backlogBytes == UnboundedSource.UnboundedReader.BACKLOG_UNKNOWN
@@ -266,17 +308,19 @@ public class StreamingModeExecutionContext
         backlogBytes = activeReader.getTotalBacklogBytes();
       }
       if (backlogBytes != UnboundedSource.UnboundedReader.BACKLOG_UNKNOWN) {
-        outputBuilder.addCounterUpdates(
-            Windmill.Counter.newBuilder()
+        Windmill.Counter backlogCounter = Windmill.Counter.newBuilder()
             .setName("dataflow_backlog_size-" + stageName)
             .setKind(Windmill.Counter.Kind.SUM)
             .setIntScalar(backlogBytes)
             .setCumulative(true)
-            .build());
+            .build();
+        outputBuilder.addCounterUpdates(backlogCounter);
+        stateBytesWritten += CodedOutputStream.computeMessageSize(
+            Windmill.WorkItemCommitRequest.COUNTER_UPDATES_FIELD_NUMBER, backlogCounter);
       }
 
-      readerCache.put(
-          getSerializedKey(), new ReaderCacheEntry(activeReader, getWork().getCacheToken()));
+      readerCache.release(getSerializedKey(), getWork().getCacheToken(), activeReader);
+      activeReader = null;
     }
     return callbacks;
   }
@@ -362,9 +406,14 @@ public class StreamingModeExecutionContext
       return outputDataWatermark;
     }
 
-    public void persistTo(Windmill.WorkItemCommitRequest.Builder outputBuilder) {
+    /**
+     * Adds the timer updates to {@code outputBuilder}, and returns the number of bytes they add
+     * to its serialized form.
+     */
+    public long persistTo(Windmill.WorkItemCommitRequest.Builder outputBuilder) {
+      long bytesWritten = 0;
       for (Entry<TimerData, Boolean> entry : timers.entrySet()) {
-        Windmill.Timer.Builder timer = outputBuilder.addOutputTimersBuilder()
+        Windmill.Timer.Builder timer = Windmill.Timer.newBuilder()
             .setTag(timerTag(entry.getKey()))
             .setType(timerType(entry.getKey().getDomain()));
         if (stateFamily != null) {
@@ -376,8 +425,13 @@ public class StreamingModeExecutionContext
           timer.setTimestamp(
               WindmillTimeUtils.harnessToWindmillTimestamp(entry.getKey().getTimestamp()));
         }
+        Windmill.Timer builtTimer = timer.build();
+        outputBuilder.addOutputTimers(builtTimer);
+        bytesWritten += CodedOutputStream.computeMessageSize(
+            Windmill.WorkItemCommitRequest.OUTPUT_TIMERS_FIELD_NUMBER, builtTimer);
       }
       timers.clear();
+      return bytesWritten;
     }
 
     private Windmill.Timer.Type timerType(TimeDomain domain) {
@@ -437,9 +491,12 @@ new WindmillTimerInternals(
           stateFamily, inputDataWatermark, outputDataWatermark, synchronizedProcessingTime);
     }
 
-    public void flushState() {
-      stateInternals.persist(outputBuilder);
-      timerInternals.persistTo(outputBuilder);
+    /**
+     * Adds the state and timer updates of this step to the commit request, and returns the number
+     * of bytes they add to its serialized form.
+     */
+    public long flushState() {
+      return stateInternals.persist(outputBuilder) + timerInternals.persistTo(outputBuilder);
     }
 
     public Iterable<Windmill.GlobalDataId> getSideInputNotifications() {
@@ -472,7 +529,10 @@ new WindmillTimerInternals(
         builder.setStateFamily(stateFamily);
       }
 
-      outputBuilder.addGlobalDataUpdates(builder.build());
+      Windmill.GlobalData globalData = builder.build();
+      outputBuilder.addGlobalDataUpdates(globalData);
+      stateBytesWritten += CodedOutputStream.computeMessageSize(
+          Windmill.WorkItemCommitRequest.GLOBAL_DATA_UPDATES_FIELD_NUMBER, globalData);
     }
 
     /**
@@ -496,6 +556,12 @@ new WindmillTimerInternals(
       }
       outputBuilder.addGlobalDataRequests(sideInput);
       outputBuilder.addGlobalDataIdRequests(sideInput.getDataId());
+      stateBytesWritten +=
+          CodedOutputStream.computeMessageSize(
+              Windmill.WorkItemCommitRequest.GLOBAL_DATA_REQUESTS_FIELD_NUMBER, sideInput)
+          + CodedOutputStream.computeMessageSize(
+              Windmill.WorkItemCommitRequest.GLOBAL_DATA_ID_REQUESTS_FIELD_NUMBER,
+              sideInput.getDataId());
     }
 
     /**
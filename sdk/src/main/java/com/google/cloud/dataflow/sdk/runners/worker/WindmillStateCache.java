@@ -21,6 +21,7 @@ import com.google.cloud.dataflow.sdk.util.Weighted;
 import com.google.cloud.dataflow.sdk.util.state.State;
 import com.google.cloud.dataflow.sdk.util.state.StateNamespace;
 import com.google.cloud.dataflow.sdk.util.state.StateTag;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.RemovalCause;
@@ -29,20 +30,51 @@ import com.google.common.cache.RemovalNotification;
 import com.google.common.cache.Weigher;
 import com.google.protobuf.ByteString;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Nullable;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
  * Process-wide cache of per-key state.
+ *
+ * <p>Decoded state objects are held on heap. Optionally, entries evicted from the heap are kept
+ * in a second tier that holds the encoded form of the {@link OffHeapEncodable} states of the
+ * entry in blocks of direct memory. An entry found in the off-heap tier is decoded and moved back
+ * to the heap when it is next accessed.
+ *
+ * <p>The states of an entry may be in use by the work item for its key when the entry is
+ * evicted, so evicted entries are not encoded right away. They are set aside, still decoded, and
+ * encoded by the next work item to {@link ForKey#commit commit}, on its own thread. Entries still
+ * in use by a work item at that point are dropped.
+ *
+ * <p>The direct memory of the off-heap tier is allocated in slabs, up to the configured size,
+ * and divided into fixed-size blocks that are returned to a free list when their entry leaves
+ * the tier. The tier is weighed by the blocks of its entries plus an estimate of the heap they
+ * use for bookkeeping, and keeps some of its blocks free for entries being encoded.
  */
 public class WindmillStateCache implements StatusDataProvider {
+  private static final Logger LOG = LoggerFactory.getLogger(WindmillStateCache.class);
+
   // Estimate of overhead per StateId.
   private static final int PER_STATE_ID_OVERHEAD = 20;
   // Initial size of hash tables per entry.
@@ -53,15 +85,84 @@ public class WindmillStateCache implements StatusDataProvider {
   private static final int PER_CACHE_ENTRY_OVERHEAD =
       16 + HASH_MAP_ENTRY_OVERHEAD * INITIAL_HASH_MAP_CAPACITY;
 
+  // Size of the blocks of direct memory holding encoded state.
+  @VisibleForTesting
+  static final int OFF_HEAP_BLOCK_SIZE = 1 << 10;
+  // Size of the slabs of direct memory that blocks are allocated from.
+  private static final int OFF_HEAP_SLAB_SIZE = 1 << 20;
+  // Estimate of the heap used by an off-heap entry: the entry, its block list and map, and its
+  // node in the cache.
+  private static final int PER_OFF_HEAP_ENTRY_OVERHEAD = 96 + HASH_MAP_ENTRY_OVERHEAD;
+  // Estimate of the heap used by each state of an off-heap entry: its tag, decoder and location.
+  private static final int PER_OFF_HEAP_VALUE_OVERHEAD = 64 + HASH_MAP_ENTRY_OVERHEAD;
+
+  private static final long DEFAULT_MAX_WEIGHT = 100000000; /* 100 MB */
+
   private Cache<StateId, StateCacheEntry> stateCache;
   private int displayedWeight = 0;  // Only used for status pages and unit tests.
 
+  // Null if the off-heap tier is disabled.
+  @Nullable private final Cache<StateId, OffHeapEntry> offHeapCache;
+  @Nullable private final BlockPool blockPool;
+  // Entries evicted from the heap that have yet to be moved to the off-heap tier.
+  private final ConcurrentMap<StateId, StateCacheEntry> evictedEntries =
+      new ConcurrentHashMap<>();
+  private final long maxOffHeapEntryBytes;
+  private final AtomicLong offHeapBytes = new AtomicLong();
+  private final AtomicLong offHeapHits = new AtomicLong();
+  private final AtomicLong offHeapMisses = new AtomicLong();
+
   public WindmillStateCache() {
+    this(0);
+  }
+
+  /**
+   * Creates a cache whose off-heap tier uses up to {@code maxOffHeapBytes} bytes of direct memory,
+   * or has no off-heap tier if {@code maxOffHeapBytes} is zero.
+   */
+  public WindmillStateCache(long maxOffHeapBytes) {
+    this(DEFAULT_MAX_WEIGHT, maxOffHeapBytes);
+  }
+
+  @VisibleForTesting
+  WindmillStateCache(long maxWeight, long maxOffHeapBytes) {
     final Weigher<Weighted, Weighted> weigher = Weighers.weightedKeysAndValues();
 
+    if (maxOffHeapBytes > 0) {
+      blockPool = new BlockPool(maxOffHeapBytes);
+      // A quarter of the blocks are left for entries being encoded, which are only weighed once
+      // they have been added, and no entry may take more than half of those.
+      maxOffHeapEntryBytes = maxOffHeapBytes / 8;
+      offHeapCache =
+          CacheBuilder.newBuilder()
+          .maximumWeight(maxOffHeapBytes - maxOffHeapBytes / 4)
+          .recordStats()
+          .weigher(new Weigher<StateId, OffHeapEntry>() {
+                @Override
+                public int weigh(StateId id, OffHeapEntry entry) {
+                  return (int) (id.getWeight() + entry.getWeight());
+                }
+              })
+          .removalListener(new RemovalListener<StateId, OffHeapEntry>() {
+                @Override
+                public void onRemoval(RemovalNotification<StateId, OffHeapEntry> removal) {
+                  // Explicitly removed entries are released by the code that removed them, once
+                  // it has decoded them.
+                  if (removal.getCause() != RemovalCause.EXPLICIT) {
+                    release(removal.getValue());
+                  }
+                }
+              })
+          .build();
+    } else {
+      blockPool = null;
+      maxOffHeapEntryBytes = 0;
+      offHeapCache = null;
+    }
+
     stateCache =
         CacheBuilder.newBuilder()
-        .maximumWeight(100000000 /* 100 MB */)
+        .maximumWeight(maxWeight)
         .recordStats()
         .weigher(weigher)
         .removalListener(new RemovalListener<StateId, StateCacheEntry>() {
@@ -70,6 +171,9 @@ public class WindmillStateCache implements StatusDataProvider {
                 if (removal.getCause() != RemovalCause.REPLACED) {
                   displayedWeight -= weigher.weigh(removal.getKey(), removal.getValue());
                 }
+                if (offHeapCache != null && removal.wasEvicted()) {
+                  evictedEntries.put(removal.getKey(), removal.getValue());
+                }
               }
             })
         .build();
@@ -79,6 +183,42 @@ public class WindmillStateCache implements StatusDataProvider {
     return displayedWeight;
   }
 
+  /**
+   * Returns the number of bytes of direct memory held by the entries of the off-heap tier.
+   */
+  public long getOffHeapBytes() {
+    return offHeapBytes.get();
+  }
+
+  /**
+   * Returns the number of bytes of direct memory allocated for the off-heap tier, whether held by
+   * entries or free.
+   */
+  @VisibleForTesting
+  long getOffHeapAllocatedBytes() {
+    return blockPool == null ? 0 : blockPool.getAllocatedBytes();
+  }
+
+  /**
+   * A state that can be held in the off-heap tier of the cache in encoded form.
+   */
+  interface OffHeapEncodable {
+    /**
+     * Writes the encoded contents of this state to {@code out} and returns the decoder that
+     * recreates the state from them, or returns null if the contents cannot currently be
+     * encoded. The decoder must not retain a reference to this state.
+     */
+    @Nullable
+    OffHeapDecoder<?> encode(OutputStream out) throws IOException;
+  }
+
+  /**
+   * Recreates a state from the contents written by {@link OffHeapEncodable#encode}.
+   */
+  interface OffHeapDecoder<T extends State> {
+    T decode(InputStream in) throws IOException;
+  }
+
   /**
    * Per-computation view of the state cache.
    */
@@ -97,13 +237,17 @@ public class WindmillStateCache implements StatusDataProvider {
   }
 
   /**
-   * Per-computation, per-key view of the state cache.
+   * Per-computation, per-key view of the state cache, used by a single work item.
+   *
+   * <p>The entries the work item reads or writes through this view are in use by it until it
+   * calls {@link #commit}.
    */
   public class ForKey {
     private final String computation;
     private final ByteString key;
     private final String stateFamily;
     private final long cacheToken;
+    private final List<StateCacheEntry> usedEntries = new ArrayList<>();
 
     private ForKey(String computation, ByteString key, String stateFamily, long cacheToken) {
       this.computation = computation;
@@ -114,13 +258,31 @@ public class WindmillStateCache implements StatusDataProvider {
 
     public <T extends State> T get(StateNamespace namespace, StateTag<T> address) {
       return WindmillStateCache.this.get(
-          computation, key, stateFamily, cacheToken, namespace, address);
+          this, computation, key, stateFamily, cacheToken, namespace, address);
     }
 
     public <T extends State> void put(
         StateNamespace namespace, StateTag<T> address, T value, long weight) {
       WindmillStateCache.this.put(
-          computation, key, stateFamily, cacheToken, namespace, address, value, weight);
+          this, computation, key, stateFamily, cacheToken, namespace, address, value, weight);
+    }
+
+    /**
+     * Called by the work item once it has persisted its state. Releases the entries it used, and
+     * moves the entries evicted from the heap that are no longer in use to the off-heap tier.
+     */
+    public void commit() {
+      for (StateCacheEntry entry : usedEntries) {
+        entry.release(this);
+      }
+      usedEntries.clear();
+      moveEvictedEntriesOffHeap();
+    }
+
+    private void use(StateCacheEntry entry) {
+      if (entry.use(this)) {
+        usedEntries.add(entry);
+      }
     }
   }
 
@@ -131,35 +293,125 @@ public class WindmillStateCache implements StatusDataProvider {
     return new ForComputation(computation);
   }
 
-  private <T extends State> T get(String computation, ByteString processingKey, String stateFamily,
-      long token, StateNamespace namespace, StateTag<T> address) {
+  private <T extends State> T get(ForKey owner, String computation, ByteString processingKey,
+      String stateFamily, long token, StateNamespace namespace, StateTag<T> address) {
     StateId id = new StateId(computation, processingKey, stateFamily, namespace);
     StateCacheEntry entry = stateCache.getIfPresent(id);
     if (entry == null) {
-      return null;
+      entry = takeEvicted(id, token);
+      if (entry == null) {
+        return null;
+      }
+      this.displayedWeight += id.getWeight();
+      this.displayedWeight += entry.getWeight();
+      stateCache.put(id, entry);
     }
     if (entry.getToken() != token) {
       stateCache.invalidate(id);
       return null;
     }
+    owner.use(entry);
     return entry.get(namespace, address);
   }
 
-  private <T extends State> void put(String computation, ByteString processingKey,
+  private <T extends State> void put(ForKey owner, String computation, ByteString processingKey,
       String stateFamily, long token, StateNamespace namespace, StateTag<T> address, T value,
       long weight) {
     StateId id = new StateId(computation, processingKey, stateFamily, namespace);
     StateCacheEntry entry = stateCache.getIfPresent(id);
+    if (entry == null) {
+      entry = takeEvicted(id, token);
+      if (entry != null) {
+        this.displayedWeight += id.getWeight();
+        this.displayedWeight += entry.getWeight();
+      }
+    }
     if (entry == null || entry.getToken() != token) {
       entry = new StateCacheEntry(token);
       this.displayedWeight += id.getWeight();
       this.displayedWeight += entry.getWeight();
     }
+    owner.use(entry);
     this.displayedWeight += entry.put(namespace, address, value, weight);
     // Always add back to the cache to update the weight.
     stateCache.put(id, entry);
   }
 
+  /**
+   * Encodes the entries evicted from the heap into the off-heap tier. Entries in use by a work
+   * item, and states that are not {@link OffHeapEncodable} or cannot currently be encoded, are
+   * dropped.
+   */
+  private void moveEvictedEntriesOffHeap() {
+    for (Map.Entry<StateId, StateCacheEntry> evicted : evictedEntries.entrySet()) {
+      StateId id = evicted.getKey();
+      StateCacheEntry entry = evicted.getValue();
+      // Whoever removes the entry owns it; it is no longer reachable from the cache.
+      if (!evictedEntries.remove(id, entry)) {
+        continue;
+      }
+      OffHeapEntry offHeapEntry =
+          entry.isInUse() ? null : entry.encode(blockPool, maxOffHeapEntryBytes);
+      if (offHeapEntry == null) {
+        // Drop any older entry, which is stale now.
+        releaseOffHeap(id);
+        continue;
+      }
+      offHeapBytes.addAndGet(offHeapEntry.getBytes());
+      offHeapCache.put(id, offHeapEntry);
+      if (stateCache.asMap().containsKey(id)) {
+        // The state was read again, and cached anew, while the entry was being encoded.
+        releaseOffHeap(id);
+      }
+    }
+  }
+
+  private void releaseOffHeap(StateId id) {
+    OffHeapEntry offHeapEntry = offHeapCache.asMap().remove(id);
+    if (offHeapEntry != null) {
+      release(offHeapEntry);
+    }
+  }
+
+  /**
+   * Releases an entry that has left the off-heap tier and is no longer read. Called exactly once
+   * for each entry.
+   */
+  private void release(OffHeapEntry offHeapEntry) {
+    offHeapBytes.addAndGet(-offHeapEntry.getBytes());
+    offHeapEntry.release();
+  }
+
+  /**
+   * Takes the entry for {@code id} that was evicted from the heap, either while it is waiting to
+   * be encoded or from the off-heap tier, or returns null if there is no entry with the given
+   * token.
+   */
+  @Nullable
+  private StateCacheEntry takeEvicted(StateId id, long token) {
+    if (offHeapCache == null) {
+      return null;
+    }
+    StateCacheEntry entry = evictedEntries.remove(id);
+    if (entry != null && entry.getToken() == token) {
+      return entry;
+    }
+    OffHeapEntry offHeapEntry = offHeapCache.asMap().remove(id);
+    if (offHeapEntry == null || offHeapEntry.token != token) {
+      offHeapMisses.incrementAndGet();
+      if (offHeapEntry != null) {
+        release(offHeapEntry);
+      }
+      return null;
+    }
+    offHeapHits.incrementAndGet();
+    try {
+      return offHeapEntry.decode();
+    } finally {
+      release(offHeapEntry);
+    }
+  }
+
   /**
    * Struct identifying a cache entry that contains all data for a key and namespace.
    */
@@ -208,6 +460,9 @@ public class WindmillStateCache implements StatusDataProvider {
     private final long token;
     private final Map<NamespacedTag<?>, WeightedValue<?>> values;
     private long weight;
+    // The view of the work item using the states of this entry, if any.
+    @Nullable
+    private volatile ForKey user = null;
 
     public StateCacheEntry(long token) {
       this.values = new HashMap<>(INITIAL_HASH_MAP_CAPACITY);
@@ -250,6 +505,68 @@ public class WindmillStateCache implements StatusDataProvider {
       return token;
     }
 
+    /**
+     * Marks this entry as in use by the work item of {@code forKey}, and returns true if it was
+     * not already.
+     */
+    private boolean use(ForKey forKey) {
+      if (user == forKey) {
+        return false;
+      }
+      user = forKey;
+      return true;
+    }
+
+    private void release(ForKey forKey) {
+      if (user == forKey) {
+        user = null;
+      }
+    }
+
+    private boolean isInUse() {
+      return user != null;
+    }
+
+    /**
+     * Returns the encoded form of the {@link OffHeapEncodable} states of this entry, held in
+     * blocks from {@code blockPool}, or null if there are none, they take more than
+     * {@code maxBytes}, or there are not enough free blocks.
+     */
+    @Nullable
+    public OffHeapEntry encode(BlockPool blockPool, long maxBytes) {
+      ByteString.Output stream = ByteString.newOutput();
+      Map<NamespacedTag<?>, EncodedValue> encodedValues = new HashMap<>();
+      for (Map.Entry<NamespacedTag<?>, WeightedValue<?>> value : values.entrySet()) {
+        if (!(value.getValue().value instanceof OffHeapEncodable)) {
+          continue;
+        }
+        ByteString.Output valueStream = ByteString.newOutput();
+        try {
+          OffHeapDecoder<?> decoder =
+              ((OffHeapEncodable) value.getValue().value).encode(valueStream);
+          if (decoder != null) {
+            int offset = stream.size();
+            valueStream.toByteString().writeTo(stream);
+            encodedValues.put(value.getKey(), new EncodedValue(
+                decoder, offset, valueStream.size(), value.getValue().weight));
+          }
+        } catch (IOException | RuntimeException e) {
+          LOG.debug("Unable to encode cached state, dropping it: ", e);
+        }
+      }
+      if (encodedValues.isEmpty() || stream.size() > maxBytes) {
+        return null;
+      }
+      int[] blocks = blockPool.allocate(
+          (stream.size() + OFF_HEAP_BLOCK_SIZE - 1) / OFF_HEAP_BLOCK_SIZE);
+      if (blocks == null) {
+        LOG.debug("No free off-heap blocks for cached state, dropping it");
+        return null;
+      }
+      blockPool.write(blocks, stream.toByteString().toByteArray());
+      return new OffHeapEntry(token, blockPool, blocks, encodedValues);
+    }
+
     private static class NamespacedTag<T extends State> {
       private final StateNamespace namespace;
       private final StateTag<T> tag;
@@ -279,6 +596,182 @@ public class WindmillStateCache implements StatusDataProvider {
     }
   }
 
+  /**
+   * Entry in the off-heap tier of the cache, holding the encoded states of a
+   * {@link StateCacheEntry} in blocks of direct memory.
+   */
+  private static class OffHeapEntry implements Weighted {
+    private final long token;
+    private final BlockPool blockPool;
+    private final int[] blocks;
+    private final Map<StateCacheEntry.NamespacedTag<?>, EncodedValue> values;
+
+    public OffHeapEntry(long token, BlockPool blockPool, int[] blocks,
+        Map<StateCacheEntry.NamespacedTag<?>, EncodedValue> values) {
+      this.token = token;
+      this.blockPool = blockPool;
+      this.blocks = blocks;
+      this.values = values;
+    }
+
+    /**
+     * Returns the number of bytes of direct memory held by this entry.
+     */
+    public int getBytes() {
+      return blocks.length * OFF_HEAP_BLOCK_SIZE;
+    }
+
+    @Override
+    public long getWeight() {
+      return getBytes() + PER_OFF_HEAP_ENTRY_OVERHEAD
+          + (long) values.size() * PER_OFF_HEAP_VALUE_OVERHEAD;
+    }
+
+    /**
+     * Returns the blocks of this entry to the pool.
+     */
+    public void release() {
+      blockPool.release(blocks);
+    }
+
+    /**
+     * Returns an on-heap entry holding the decoded states. States that fail to decode are
+     * dropped.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public StateCacheEntry decode() {
+      StateCacheEntry entry = new StateCacheEntry(token);
+      for (Map.Entry<StateCacheEntry.NamespacedTag<?>, EncodedValue> value : values.entrySet()) {
+        EncodedValue encoded = value.getValue();
+        byte[] bytes = blockPool.read(blocks, encoded.offset, encoded.length);
+        State state;
+        try {
+          state = encoded.decoder.decode(new ByteArrayInputStream(bytes));
+        } catch (IOException | RuntimeException e) {
+          LOG.warn("Unable to decode cached state, dropping it: ", e);
+          continue;
+        }
+        StateCacheEntry.NamespacedTag tag = value.getKey();
+        entry.put(tag.namespace, tag.tag, state, encoded.weight);
+      }
+      return entry;
+    }
+  }
+
+  /**
+   * Fixed-size blocks of direct memory, allocated in slabs as they are first needed and reused
+   * once released. Direct memory is never freed, but never exceeds the size of the pool.
+   */
+  private static class BlockPool {
+    private final int blocksPerSlab;
+    private final int maxBlocks;
+    private final ByteBuffer[] slabs;
+    // The released blocks, as a stack, and the number of blocks ever handed out.
+    private int[] freeBlocks = new int[16];
+    private int numFreeBlocks = 0;
+    private int numAllocatedBlocks = 0;
+
+    private BlockPool(long maxBytes) {
+      maxBlocks = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / OFF_HEAP_BLOCK_SIZE));
+      blocksPerSlab = Math.min(maxBlocks, OFF_HEAP_SLAB_SIZE / OFF_HEAP_BLOCK_SIZE);
+      slabs = new ByteBuffer[(maxBlocks + blocksPerSlab - 1) / blocksPerSlab];
+    }
+
+    /**
+     * Returns the indices of {@code count} free blocks, or null if there are not that many.
+     */
+    @Nullable
+    private synchronized int[] allocate(int count) {
+      if (numFreeBlocks + maxBlocks - numAllocatedBlocks < count) {
+        return null;
+      }
+      int[] blocks = new int[count];
+      for (int i = 0; i < count; i++) {
+        if (numFreeBlocks > 0) {
+          blocks[i] = freeBlocks[--numFreeBlocks];
+        } else {
+          int block = numAllocatedBlocks++;
+          if (slabs[block / blocksPerSlab] == null) {
+            slabs[block / blocksPerSlab] =
+                ByteBuffer.allocateDirect(blocksPerSlab * OFF_HEAP_BLOCK_SIZE);
+          }
+          blocks[i] = block;
+        }
+      }
+      return blocks;
+    }
+
+    private synchronized void release(int[] blocks) {
+      if (freeBlocks.length < numFreeBlocks + blocks.length) {
+        freeBlocks = Arrays.copyOf(
+            freeBlocks, Math.max(2 * freeBlocks.length, numFreeBlocks + blocks.length));
+      }
+      System.arraycopy(blocks, 0, freeBlocks, numFreeBlocks, blocks.length);
+      numFreeBlocks += blocks.length;
+    }
+
+    private synchronized long getAllocatedBytes() {
+      long bytes = 0;
+      for (ByteBuffer slab : slabs) {
+        if (slab != null) {
+          bytes += slab.capacity();
+        }
+      }
+      return bytes;
+    }
+
+    private synchronized ByteBuffer block(int block) {
+      ByteBuffer buffer = slabs[block / blocksPerSlab].duplicate();
+      buffer.position((block % blocksPerSlab) * OFF_HEAP_BLOCK_SIZE);
+      buffer.limit(buffer.position() + OFF_HEAP_BLOCK_SIZE);
+      return buffer;
+    }
+
+    /**
+     * Writes {@code bytes} to the given blocks, in order.
+     */
+    private void write(int[] blocks, byte[] bytes) {
+      for (int i = 0; i < blocks.length; i++) {
+        int offset = i * OFF_HEAP_BLOCK_SIZE;
+        block(blocks[i]).put(bytes, offset, Math.min(OFF_HEAP_BLOCK_SIZE, bytes.length - offset));
+      }
+    }
+
+    /**
+     * Reads {@code length} bytes starting at {@code offset} within the given blocks.
+     */
+    private byte[] read(int[] blocks, int offset, int length) {
+      byte[] bytes = new byte[length];
+      int read = 0;
+      while (read < length) {
+        int position = offset + read;
+        ByteBuffer block = block(blocks[position / OFF_HEAP_BLOCK_SIZE]);
+        block.position(block.position() + position % OFF_HEAP_BLOCK_SIZE);
+        int count = Math.min(block.remaining(), length - read);
+        block.get(bytes, read, count);
+        read += count;
+      }
+      return bytes;
+    }
+  }
+
+  /**
+   * Location and decoder of a state encoded in an {@link OffHeapEntry}.
+   */
+  private static class EncodedValue {
+    private final OffHeapDecoder<?> decoder;
+    private final int offset;
+    private final int length;
+    private final long weight;
+
+    public EncodedValue(OffHeapDecoder<?> decoder, int offset, int length, long weight) {
+      this.decoder = decoder;
+      this.offset = offset;
+      this.length = length;
+      this.weight = weight;
+    }
+  }
+
   /**
    * Print summary statistics of the cache to the given {@link PrintWriter}.
    */
@@ -292,6 +785,18 @@ public class WindmillStateCache implements StatusDataProvider {
     response.println("<th>" + stateCache.size() + "</th>");
     response.println("<th>" + getWeight() + "</th>");
     response.println("</tr></table><br>");
+    if (offHeapCache != null) {
+      long hits = offHeapHits.get();
+      long requests = hits + offHeapMisses.get();
+      response.println("Off-heap Cache Stats: <br><table border=0>");
+      response.println(
+          "<tr><th>Hit Ratio</th><th>Evictions</th><th>Size</th><th>Bytes</th></tr><tr>");
+      response.println("<th>" + (requests == 0 ? 1.0 : (double) hits / requests) + "</th>");
+      response.println("<th>" + offHeapCache.stats().evictionCount() + "</th>");
+      response.println("<th>" + offHeapCache.size() + "</th>");
+      response.println("<th>" + getOffHeapBytes() + "</th>");
+      response.println("</tr></table><br>");
+    }
   }
 
 
@@ -21,6 +21,7 @@ import com.google.cloud.dataflow.sdk.runners.worker.windmill.Windmill.WorkItemCo
 import com.google.cloud.dataflow.sdk.transforms.Combine.CombineFn;
 import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
 import com.google.cloud.dataflow.sdk.transforms.windowing.OutputTimeFn;
+import com.google.cloud.dataflow.sdk.util.VarInt;
 import com.google.cloud.dataflow.sdk.util.Weighted;
 import com.google.cloud.dataflow.sdk.util.common.worker.StateSampler;
 import com.google.cloud.dataflow.sdk.util.state.BagState;
@@ -48,7 +49,11 @@ import com.google.protobuf.ByteString;
 
 import org.joda.time.Instant;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -140,7 +145,11 @@ class WindmillStateInternals extends MergingStateInternals {
     this.workItemState = new CachingStateTable(stateFamily, reader, cache, scopedReadStateSupplier);
   }
 
-  public void persist(final Windmill.WorkItemCommitRequest.Builder commitBuilder) {
+  /**
+   * Adds the updates to all state accessed during the work item to {@code commitBuilder}, and
+   * returns the number of bytes they add to its serialized form.
+   */
+  public long persist(final Windmill.WorkItemCommitRequest.Builder commitBuilder) {
     List<Future<WorkItemCommitRequest>> commitsToMerge = new ArrayList<>();
 
     // Call persist on each first, which may schedule some futures for reading.
@@ -162,13 +171,21 @@ class WindmillStateInternals extends MergingStateInternals {
     // Clear out the map of already retrieved state instances.
     workItemState.clear();
 
+    // The updates only contain repeated fields, so merging them into the commit concatenates
+    // their serialized forms and the sizes add up.
+    long bytesWritten = 0;
     try (StateSampler.ScopedState scope = scopedReadStateSupplier.get()) {
       for (Future<WorkItemCommitRequest> commitFuture : commitsToMerge) {
-        commitBuilder.mergeFrom(commitFuture.get());
+        WorkItemCommitRequest commit = commitFuture.get();
+        bytesWritten += commit.getSerializedSize();
+        commitBuilder.mergeFrom(commit);
       }
     } catch (ExecutionException | InterruptedException exc) {
       throw new RuntimeException("Failed to retrieve Windmill state during persist()", exc);
     }
+    // The states have all been added back to the cache, and are no longer used by this work item.
+    cache.commit();
+    return bytesWritten;
   }
 
   /**
@@ -248,7 +265,8 @@ class WindmillStateInternals extends MergingStateInternals {
     return workItemState.get(namespace, address);
   }
 
-  private static class WindmillValue<T> extends SimpleWindmillState implements ValueState<T> {
+  private static class WindmillValue<T> extends SimpleWindmillState
+      implements ValueState<T>, WindmillStateCache.OffHeapEncodable {
     private final StateNamespace namespace;
     private final StateTag<ValueState<T>> address;
     private final ByteString stateKey;
@@ -302,6 +320,44 @@ class WindmillStateInternals extends MergingStateInternals {
       this.value = value;
     }
 
+    @Override
+    public WindmillStateCache.OffHeapDecoder<WindmillValue<T>> encode(OutputStream out)
+        throws IOException {
+      if (modified || !valueIsKnown) {
+        return null;
+      }
+      out.write(value == null ? 0 : 1);
+      if (value != null) {
+        coder.encode(value, out, Coder.Context.OUTER);
+      }
+      return new Decoder<T>(namespace, address, stateFamily, coder);
+    }
+
+    private static class Decoder<T> implements WindmillStateCache.OffHeapDecoder<WindmillValue<T>> {
+      private final StateNamespace namespace;
+      private final StateTag<ValueState<T>> address;
+      private final String stateFamily;
+      private final Coder<T> coder;
+
+      private Decoder(StateNamespace namespace, StateTag<ValueState<T>> address,
+          String stateFamily, Coder<T> coder) {
+        this.namespace = namespace;
+        this.address = address;
+        this.stateFamily = stateFamily;
+        this.coder = coder;
+      }
+
+      @Override
+      public WindmillValue<T> decode(InputStream in) throws IOException {
+        WindmillValue<T> result = new WindmillValue<>(namespace, address, stateFamily, coder);
+        result.valueIsKnown = true;
+        if (in.read() == 1) {
+          result.value = coder.decode(in, Coder.Context.OUTER);
+        }
+        return result;
+      }
+    }
+
     @Override
     protected WorkItemCommitRequest persistDirectly(WindmillStateCache.ForKey cache)
         throws IOException {
@@ -317,11 +373,10 @@ class WindmillStateInternals extends MergingStateInternals {
       ByteString encoded = stream.toByteString();
 
       WorkItemCommitRequest.Builder commitBuilder = WorkItemCommitRequest.newBuilder();
+      modified = false;
       // Update the entry of the cache with the new value and change in encoded size.
       cache.put(namespace, address, this, encoded.size());
 
-      modified = false;
-
       commitBuilder
           .addValueUpdatesBuilder()
           .setTag(stateKey)
@@ -334,7 +389,8 @@ class WindmillStateInternals extends MergingStateInternals {
     }
   }
 
-  private static class WindmillBag<T> extends SimpleWindmillState implements BagState<T> {
+  private static class WindmillBag<T> extends SimpleWindmillState
+      implements BagState<T>, WindmillStateCache.OffHeapEncodable {
 
     private final StateNamespace namespace;
     private final StateTag<BagState<T>> address;
@@ -429,6 +485,50 @@ class WindmillStateInternals extends MergingStateInternals {
       localAdditions.add(input);
     }
 
+    @Override
+    public WindmillStateCache.OffHeapDecoder<WindmillBag<T>> encode(OutputStream out)
+        throws IOException {
+      if (cleared || cachedValues == null || !localAdditions.isEmpty()) {
+        return null;
+      }
+      VarInt.encode(Iterables.size(cachedValues), out);
+      for (T value : cachedValues) {
+        elemCoder.encode(value, out, Coder.Context.NESTED);
+      }
+      return new Decoder<T>(namespace, address, stateFamily, elemCoder, encodedSize);
+    }
+
+    private static class Decoder<T> implements WindmillStateCache.OffHeapDecoder<WindmillBag<T>> {
+      private final StateNamespace namespace;
+      private final StateTag<BagState<T>> address;
+      private final String stateFamily;
+      private final Coder<T> elemCoder;
+      private final long encodedSize;
+
+      private Decoder(StateNamespace namespace, StateTag<BagState<T>> address,
+          String stateFamily, Coder<T> elemCoder, long encodedSize) {
+        this.namespace = namespace;
+        this.address = address;
+        this.stateFamily = stateFamily;
+        this.elemCoder = elemCoder;
+        this.encodedSize = encodedSize;
+      }
+
+      @Override
+      public WindmillBag<T> decode(InputStream in) throws IOException {
+        int size = VarInt.decodeInt(in);
+        List<T> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+          values.add(elemCoder.decode(in, Coder.Context.NESTED));
+        }
+        WindmillBag<T> result = new WindmillBag<>(namespace, address, stateFamily, elemCoder);
+        result.cachedValues = new ConcatIterables<T>();
+        result.cachedValues.extendWith(values);
+        result.encodedSize = encodedSize;
+        return result;
+      }
+    }
+
     @Override
     public WorkItemCommitRequest persistDirectly(WindmillStateCache.ForKey cache)
         throws IOException {
@@ -464,6 +564,7 @@ class WindmillStateInternals extends MergingStateInternals {
         }
       }
 
+      cleared = false;
       if (cachedValues != null) {
         cachedValues.extendWith(localAdditions);
         // Don't reuse the localAdditions object; we don't want future changes to it to modify the
@@ -473,7 +574,6 @@ class WindmillStateInternals extends MergingStateInternals {
       } else {
         localAdditions.clear();
       }
-      cleared = false;
 
       return commitBuilder.buildPartial();
     }
@@ -505,8 +605,8 @@ class WindmillStateInternals extends MergingStateInternals {
     }
   }
 
-  private static class WindmillWatermarkState
-      extends WindmillState implements WatermarkStateInternal {
+  private static class WindmillWatermarkState extends WindmillState
+      implements WatermarkStateInternal, WindmillStateCache.OffHeapEncodable {
     // The encoded size of an Instant.
     private static final int ENCODED_SIZE = 8;
 
@@ -588,16 +688,69 @@ class WindmillStateInternals extends MergingStateInternals {
 
     @Override
     public void add(Instant outputTime) {
+      // If the persisted hold is known and already accounts for this hold, as is usual for
+      // later elements of a window, then there is nothing to write. Since combine is associative
+      // this also holds for any other additions that are dropped.
+      if (!cleared && cachedValue != null && cachedValue.isPresent()
+          && outputTimeFn.combine(cachedValue.get(), outputTime).equals(cachedValue.get())) {
+        return;
+      }
       localAdditions = (localAdditions == null) ? outputTime
           : outputTimeFn.combine(outputTime, localAdditions);
     }
 
+    @Override
+    public WindmillStateCache.OffHeapDecoder<WindmillWatermarkState> encode(OutputStream out)
+        throws IOException {
+      if (cleared || cachedValue == null || localAdditions != null) {
+        return null;
+      }
+      DataOutputStream dataOut = new DataOutputStream(out);
+      dataOut.writeBoolean(cachedValue.isPresent());
+      if (cachedValue.isPresent()) {
+        dataOut.writeLong(cachedValue.get().getMillis());
+      }
+      dataOut.flush();
+      return new Decoder(namespace, address, stateFamily, outputTimeFn);
+    }
+
+    private static class Decoder
+        implements WindmillStateCache.OffHeapDecoder<WindmillWatermarkState> {
+      private final StateNamespace namespace;
+      private final StateTag<WatermarkStateInternal> address;
+      private final String stateFamily;
+      private final OutputTimeFn<?> outputTimeFn;
+
+      private Decoder(StateNamespace namespace, StateTag<WatermarkStateInternal> address,
+          String stateFamily, OutputTimeFn<?> outputTimeFn) {
+        this.namespace = namespace;
+        this.address = address;
+        this.stateFamily = stateFamily;
+        this.outputTimeFn = outputTimeFn;
+      }
+
+      @Override
+      public WindmillWatermarkState decode(InputStream in) throws IOException {
+        DataInputStream dataIn = new DataInputStream(in);
+        WindmillWatermarkState result =
+            new WindmillWatermarkState(namespace, address, stateFamily, outputTimeFn);
+        result.cachedValue = dataIn.readBoolean()
+            ? Optional.of(new Instant(dataIn.readLong()))
+            : Optional.<Instant>absent();
+        return result;
+      }
+    }
+
     @Override
     public Future<WorkItemCommitRequest> persist(final WindmillStateCache.ForKey cache) {
       Future<WorkItemCommitRequest> result;
 
       if (!cleared && localAdditions == null) {
-        // Nothing to do
+        // Nothing to do, but keep a hold that was read so that later work on this key can skip
+        // both the read and any additions it already accounts for.
+        if (cachedValue != null) {
+          cache.put(namespace, address, this, ENCODED_SIZE);
+        }
         return Futures.immediateFuture(WorkItemCommitRequest.newBuilder().buildPartial());
       } else if (cleared && localAdditions == null) {
         // Just clearing the persisted state; blind delete
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.runners.worker;
+
+import com.google.cloud.dataflow.sdk.options.DataflowWorkerHarnessOptions;
+import com.google.cloud.dataflow.sdk.options.DataflowWorkerHarnessOptions.StreamingWorkPriority;
+import com.google.cloud.dataflow.sdk.runners.worker.StreamingDataflowWorker.Work;
+import com.google.cloud.dataflow.sdk.runners.worker.windmill.Windmill;
+import com.google.cloud.dataflow.sdk.util.BoundedQueueExecutor;
+
+import org.joda.time.DateTimeUtils;
+import org.joda.time.Instant;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Orders the queued {@link Work} of a {@link StreamingDataflowWorker} according to a
+ * {@link StreamingWorkPriority} policy.
+ *
+ * <p>Each queued task is given a deadline at most {@code maxDelayMillis} after it is queued, and
+ * tasks run in deadline order. The policy only decides how much earlier than that bound a
+ * task's deadline is, so a task can be overtaken only by tasks queued less than
+ * {@code maxDelayMillis} after it, and is never starved. Tasks other than work items get the
+ * latest possible deadline.
+ */
+class WorkPrioritizer implements BoundedQueueExecutor.Prioritizer {
+  // Under FAIR, how much later each queued work item of a computation is due than the previous.
+  static final long FAIR_SHARE_MILLIS = 10;
+
+  private final StreamingWorkPriority policy;
+  private final long maxDelayMillis;
+  // Under FAIR, the deadline of the last work item queued for each computation.
+  private final Map<String, Long> lastDeadlines = new HashMap<>();
+
+  WorkPrioritizer(StreamingWorkPriority policy, long maxDelayMillis) {
+    this.policy = policy;
+    this.maxDelayMillis = maxDelayMillis;
+  }
+
+  /**
+   * Returns the prioritizer for the policy in the options, or null if work should run in the
+   * order it is received.
+   */
+  @Nullable
+  static WorkPrioritizer fromOptions(DataflowWorkerHarnessOptions options) {
+    if (options.getStreamingWorkPriority() == StreamingWorkPriority.FIFO) {
+      return null;
+    }
+    return new WorkPrioritizer(
+        options.getStreamingWorkPriority(), options.getStreamingWorkMaxPriorityDelayMillis());
+  }
+
+  @Override
+  public long priority(Runnable task) {
+    long now = DateTimeUtils.currentTimeMillis();
+    long latestDeadline = now + maxDelayMillis;
+    if (!(task instanceof Work) || ((Work) task).getWorkItem() == null) {
+      return latestDeadline;
+    }
+    Work work = (Work) task;
+    switch (policy) {
+      case OLDEST_INPUT_FIRST:
+        return latestDeadline - boundedLag(now, oldestInputTimestamp(work.getWorkItem()));
+      case WATERMARK_LAG:
+        return latestDeadline - boundedLag(now, work.getInputDataWatermark());
+      case FAIR:
+        return fairDeadline(work.getComputation(), now);
+      default:
+        return latestDeadline;
+    }
+  }
+
+  /**
+   * Returns how far {@code time} is behind {@code now}, clamped to {@code [0, maxDelayMillis]}.
+   */
+  private long boundedLag(long now, @Nullable Instant time) {
+    if (time == null) {
+      return 0;
+    }
+    return Math.max(0, Math.min(maxDelayMillis, now - time.getMillis()));
+  }
+
+  /**
+   * Makes each work item of a computation due a share later than the previous one, so that a
+   * burst of work for one computation is interleaved with the work of others.
+   */
+  private synchronized long fairDeadline(String computation, long now) {
+    Long lastDeadline = lastDeadlines.get(computation);
+    long deadline = Math.min(
+        now + maxDelayMillis,
+        Math.max(now, lastDeadline == null ? now : lastDeadline) + FAIR_SHARE_MILLIS);
+    lastDeadlines.put(computation, deadline);
+    return deadline;
+  }
+
+  /**
+   * Returns the earliest event time of the messages and watermark timers in the work item, or
+   * null if it has none.
+   */
+  @Nullable
+  static Instant oldestInputTimestamp(Windmill.WorkItem workItem) {
+    long oldestUs = Long.MAX_VALUE;
+    for (Windmill.InputMessageBundle bundle : workItem.getMessageBundlesList()) {
+      for (Windmill.Message message : bundle.getMessagesList()) {
+        oldestUs = Math.min(oldestUs, message.getTimestamp());
+      }
+    }
+    for (Windmill.Timer timer : workItem.getTimers().getTimersList()) {
+      if (timer.getType() == Windmill.Timer.Type.WATERMARK && timer.hasTimestamp()) {
+        oldestUs = Math.min(oldestUs, timer.getTimestamp());
+      }
+    }
+    if (oldestUs == Long.MAX_VALUE || oldestUs == Long.MIN_VALUE) {
+      return null;
+    }
+    return WindmillTimeUtils.windmillToHarnessTimestamp(oldestUs);
+  }
+}
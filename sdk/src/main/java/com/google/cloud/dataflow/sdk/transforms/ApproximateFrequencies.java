@@ -0,0 +1,882 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.transforms;
+
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.Coder.Context;
+import com.google.cloud.dataflow.sdk.coders.CoderException;
+import com.google.cloud.dataflow.sdk.coders.CoderRegistry;
+import com.google.cloud.dataflow.sdk.coders.CustomCoder;
+import com.google.cloud.dataflow.sdk.coders.KvCoder;
+import com.google.cloud.dataflow.sdk.transforms.Combine.CombineFn;
+import com.google.cloud.dataflow.sdk.util.VarInt;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@code PTransform}s for estimating how often elements occur in a
+ * {@code PCollection}, or how often values occur with each key in a
+ * {@code PCollection} of {@code KV}s, without shuffling every distinct
+ * element as {@link Count#perElement} does.
+ *
+ * <p>{@link #countMinGlobally} summarizes the frequencies of all the
+ * elements in a {@link CountMinSketch}, which can be queried for the
+ * frequency of any element. {@link #heavyHittersGlobally} finds the most
+ * frequent elements with the space-saving algorithm.
+ *
+ * <p>Both accumulators have a fixed size, chosen up front, and are merged
+ * without reference to the input, so they may be used with
+ * {@link Combine#globally}, {@link Combine#perKey} and in any windowing.
+ * Elements are identified by their encodings, as by {@link GroupByKey}.
+ */
+public class ApproximateFrequencies {
+  private ApproximateFrequencies() {
+    // do not instantiate
+  }
+
+  /**
+   * Returns a {@code PTransform} that takes a {@code PCollection<T>} and
+   * returns a {@code PCollection<CountMinSketch>} whose single value
+   * summarizes the frequencies of the elements of the input
+   * {@code PCollection}.
+   *
+   * <p>The frequency of an element estimated by the sketch is never less
+   * than its true frequency, and with probability {@code confidence} exceeds
+   * it by at most {@code epsilon} times the number of elements.
+   *
+   * <p>Example of use:
+   * <pre> {@code
+   * PCollection<String> pc = ...;
+   * PCollection<CountMinSketch> frequencies =
+   *     pc.apply(ApproximateFrequencies.<String>countMinGlobally(0.001, 0.99));
+   * } </pre>
+   *
+   * @param <T> the type of the elements in the input {@code PCollection}
+   * @param epsilon the relative error, which should be in {@code (0, 1)}
+   * @param confidence the probability that the error is within
+   *        {@code epsilon}, which should be in {@code (0, 1)}
+   */
+  public static <T> CountMinGlobally<T> countMinGlobally(double epsilon, double confidence) {
+    return new CountMinGlobally<>(epsilon, confidence);
+  }
+
+  /**
+   * Like {@link #countMinGlobally}, but returns a {@link CountMinSketch}
+   * of the values associated with each distinct key in the input
+   * {@code PCollection}.
+   *
+   * @param <K> the type of the keys in the input and output
+   *        {@code PCollection}s
+   * @param <V> the type of the values in the input {@code PCollection}
+   */
+  public static <K, V> CountMinPerKey<K, V> countMinPerKey(double epsilon, double confidence) {
+    return new CountMinPerKey<>(epsilon, confidence);
+  }
+
+  /**
+   * Returns a {@code PTransform} that takes a {@code PCollection<T>} and
+   * returns a {@code PCollection<List<KV<T, Long>>>} whose single value is
+   * the {@code numHitters} most frequent elements of the input
+   * {@code PCollection}, paired with their estimated frequencies, in
+   * decreasing order of frequency.
+   *
+   * <p>The frequencies are estimated by tracking at most {@code capacity}
+   * elements. Every element occurring more than {@code N / capacity} times,
+   * where {@code N} is the number of elements, is tracked, and the estimated
+   * frequency of a tracked element is never less than its true frequency,
+   * and exceeds it by at most {@code N / capacity}.
+   *
+   * <p>Example of use:
+   * <pre> {@code
+   * PCollection<String> pc = ...;
+   * PCollection<List<KV<String, Long>>> mostFrequent =
+   *     pc.apply(ApproximateFrequencies.<String>heavyHittersGlobally(10, 1000));
+   * } </pre>
+   *
+   * @param <T> the type of the elements in the input {@code PCollection}
+   * @param numHitters the number of elements to output
+   * @param capacity the number of elements to track, at least
+   *        {@code numHitters}
+   */
+  public static <T> HeavyHittersGlobally<T> heavyHittersGlobally(int numHitters, int capacity) {
+    return new HeavyHittersGlobally<>(numHitters, capacity);
+  }
+
+  /**
+   * Like {@link #heavyHittersGlobally}, but returns the most frequent values
+   * associated with each distinct key in the input {@code PCollection}.
+   *
+   * @param <K> the type of the keys in the input and output
+   *        {@code PCollection}s
+   * @param <V> the type of the values in the input {@code PCollection}
+   */
+  public static <K, V> HeavyHittersPerKey<K, V> heavyHittersPerKey(
+      int numHitters, int capacity) {
+    return new HeavyHittersPerKey<>(numHitters, capacity);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * {@code PTransform} for summarizing the frequencies of the elements in a
+   * {@code PCollection} with a {@link CountMinSketch}.
+   *
+   * @param <T> the type of the elements in the input {@code PCollection}
+   */
+  static class CountMinGlobally<T>
+      extends PTransform<PCollection<T>, PCollection<CountMinSketch>> {
+    private final double epsilon;
+    private final double confidence;
+
+    /**
+     * @see ApproximateFrequencies#countMinGlobally
+     */
+    public CountMinGlobally(double epsilon, double confidence) {
+      checkCountMinArguments(epsilon, confidence);
+      this.epsilon = epsilon;
+      this.confidence = confidence;
+    }
+
+    @Override
+    public PCollection<CountMinSketch> apply(PCollection<T> input) {
+      return input.apply(Combine.globally(
+          CountMinSketchCombineFn.create(epsilon, confidence, input.getCoder())));
+    }
+  }
+
+  /**
+   * {@code PTransform} for summarizing the frequencies of the values
+   * associated with each key in a {@code PCollection} of {@code KV}s with a
+   * {@link CountMinSketch}.
+   *
+   * @param <K> the type of the keys in the input and output
+   *        {@code PCollection}s
+   * @param <V> the type of the values in the input {@code PCollection}
+   */
+  static class CountMinPerKey<K, V>
+      extends PTransform<PCollection<KV<K, V>>, PCollection<KV<K, CountMinSketch>>> {
+    private final double epsilon;
+    private final double confidence;
+
+    /**
+     * @see ApproximateFrequencies#countMinPerKey
+     */
+    public CountMinPerKey(double epsilon, double confidence) {
+      checkCountMinArguments(epsilon, confidence);
+      this.epsilon = epsilon;
+      this.confidence = confidence;
+    }
+
+    @Override
+    public PCollection<KV<K, CountMinSketch>> apply(PCollection<KV<K, V>> input) {
+      return input.apply(Combine.perKey(
+          CountMinSketchCombineFn.create(epsilon, confidence, getValueCoder(input, this))
+          .<K>asKeyedFn()));
+    }
+  }
+
+  /**
+   * {@code PTransform} for finding the most frequent elements in a
+   * {@code PCollection}.
+   *
+   * @param <T> the type of the elements in the input {@code PCollection}
+   */
+  static class HeavyHittersGlobally<T>
+      extends PTransform<PCollection<T>, PCollection<List<KV<T, Long>>>> {
+    private final int numHitters;
+    private final int capacity;
+
+    /**
+     * @see ApproximateFrequencies#heavyHittersGlobally
+     */
+    public HeavyHittersGlobally(int numHitters, int capacity) {
+      checkHeavyHittersArguments(numHitters, capacity);
+      this.numHitters = numHitters;
+      this.capacity = capacity;
+    }
+
+    @Override
+    public PCollection<List<KV<T, Long>>> apply(PCollection<T> input) {
+      return input.apply(Combine.globally(
+          new HeavyHittersCombineFn<>(numHitters, capacity, input.getCoder())));
+    }
+  }
+
+  /**
+   * {@code PTransform} for finding the most frequent values associated with
+   * each key in a {@code PCollection} of {@code KV}s.
+   *
+   * @param <K> the type of the keys in the input and output
+   *        {@code PCollection}s
+   * @param <V> the type of the values in the input {@code PCollection}
+   */
+  static class HeavyHittersPerKey<K, V>
+      extends PTransform<PCollection<KV<K, V>>, PCollection<KV<K, List<KV<V, Long>>>>> {
+    private final int numHitters;
+    private final int capacity;
+
+    /**
+     * @see ApproximateFrequencies#heavyHittersPerKey
+     */
+    public HeavyHittersPerKey(int numHitters, int capacity) {
+      checkHeavyHittersArguments(numHitters, capacity);
+      this.numHitters = numHitters;
+      this.capacity = capacity;
+    }
+
+    @Override
+    public PCollection<KV<K, List<KV<V, Long>>>> apply(PCollection<KV<K, V>> input) {
+      return input.apply(Combine.perKey(
+          new HeavyHittersCombineFn<>(numHitters, capacity, getValueCoder(input, this))
+          .<K>asKeyedFn()));
+    }
+  }
+
+  private static <K, V> Coder<V> getValueCoder(
+      PCollection<KV<K, V>> input, PTransform<?, ?> transform) {
+    Coder<KV<K, V>> inputCoder = input.getCoder();
+    if (!(inputCoder instanceof KvCoder)) {
+      throw new IllegalStateException(
+          "ApproximateFrequencies." + transform.getClass().getSimpleName()
+          + " requires its input to use KvCoder");
+    }
+    @SuppressWarnings("unchecked")
+    Coder<V> valueCoder = ((KvCoder<K, V>) inputCoder).getValueCoder();
+    return valueCoder;
+  }
+
+  private static void checkCountMinArguments(double epsilon, double confidence) {
+    if (!(epsilon > 0 && epsilon < 1) || !(confidence > 0 && confidence < 1)) {
+      throw new IllegalArgumentException(
+          "ApproximateFrequencies needs an epsilon and a confidence between 0 and 1, "
+          + "but they were " + epsilon + " and " + confidence + ".");
+    }
+  }
+
+  private static void checkHeavyHittersArguments(int numHitters, int capacity) {
+    if (numHitters < 1 || capacity < numHitters) {
+      throw new IllegalArgumentException(
+          "ApproximateFrequencies needs at least one heavy hitter, and a capacity of at "
+          + "least the number of heavy hitters, but they were " + numHitters + " and "
+          + capacity + ".");
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * A count-min sketch of the frequencies of a collection of elements.
+   *
+   * <p>The sketch is a table of {@code depth} rows of {@code width}
+   * counters. Each element is hashed to one counter in each row, which is
+   * incremented when the element is added. The frequency of an element is
+   * estimated by the smallest of its counters, which overestimates it by the
+   * frequencies of the other elements sharing that counter.
+   *
+   * <pre>
+   *   [CM05] Cormode &amp; Muthukrishnan, "An Improved Data Stream Summary:
+   *   The Count-Min Sketch and its Applications", J. Algorithms 55(1),
+   *   p 58-75, 2005.
+   * </pre>
+   */
+  public static class CountMinSketch implements Serializable {
+    private final int depth;
+    private final int width;
+    private final long[] counters;
+    private long totalCount;
+
+    public CountMinSketch(int depth, int width) {
+      this(depth, width, new long[depth * width], 0);
+    }
+
+    private CountMinSketch(int depth, int width, long[] counters, long totalCount) {
+      Preconditions.checkArgument(depth >= 1 && width >= 1,
+          "CountMinSketch needs a positive depth and width, but they were %s and %s",
+          depth, width);
+      this.depth = depth;
+      this.width = width;
+      this.counters = counters;
+      this.totalCount = totalCount;
+    }
+
+    public int getDepth() {
+      return depth;
+    }
+
+    public int getWidth() {
+      return width;
+    }
+
+    /**
+     * Returns the number of elements added to the sketch.
+     */
+    public long getTotalCount() {
+      return totalCount;
+    }
+
+    /**
+     * Returns the estimated number of times {@code element} was added to the
+     * sketch, encoding it with {@code coder}, which must be the coder that
+     * the sketch was built with.
+     */
+    public <T> long estimateCount(T element, Coder<T> coder) {
+      return estimateCount(hash(element, coder));
+    }
+
+    void add(byte[] hash, long count) {
+      long hash1 = ByteBuffer.wrap(hash).getLong(0);
+      long hash2 = ByteBuffer.wrap(hash).getLong(8);
+      for (int row = 0; row < depth; row++) {
+        counters[row * width + index(hash1, hash2, row)] += count;
+      }
+      totalCount += count;
+    }
+
+    long estimateCount(byte[] hash) {
+      long hash1 = ByteBuffer.wrap(hash).getLong(0);
+      long hash2 = ByteBuffer.wrap(hash).getLong(8);
+      long estimate = Long.MAX_VALUE;
+      for (int row = 0; row < depth; row++) {
+        estimate = Math.min(estimate, counters[row * width + index(hash1, hash2, row)]);
+      }
+      return estimate;
+    }
+
+    /**
+     * Adds the counters of {@code other}, which must have the same shape, to
+     * those of this sketch.
+     */
+    public void merge(CountMinSketch other) {
+      Preconditions.checkArgument(depth == other.depth && width == other.width,
+          "Cannot merge CountMinSketches of depth %s and width %s and of depth %s and width %s",
+          depth, width, other.depth, other.width);
+      for (int i = 0; i < counters.length; i++) {
+        counters[i] += other.counters[i];
+      }
+      totalCount += other.totalCount;
+    }
+
+    /**
+     * Returns the counter of the row for the hash, using the double hashing
+     * of Kirsch &amp; Mitzenmacher to derive the hash of each row.
+     */
+    private int index(long hash1, long hash2, int row) {
+      return (int) (((hash1 + row * hash2) & Long.MAX_VALUE) % width);
+    }
+  }
+
+  /**
+   * {@code CombineFn} that summarizes the frequencies of the values that
+   * were combined in a {@link CountMinSketch}.
+   *
+   * <p>Used to implement
+   * {@link #countMinGlobally ApproximateFrequencies.countMinGlobally(...)} and
+   * {@link #countMinPerKey ApproximateFrequencies.countMinPerKey(...)}.
+   *
+   * @param <T> the type of the values being combined
+   */
+  public static class CountMinSketchCombineFn<T>
+      extends CombineFn<T, CountMinSketch, CountMinSketch> {
+    private final int depth;
+    private final int width;
+    private final Coder<T> coder;
+
+    public CountMinSketchCombineFn(int depth, int width, Coder<T> coder) {
+      Preconditions.checkArgument(depth >= 1 && width >= 1,
+          "CountMinSketch needs a positive depth and width, but they were %s and %s",
+          depth, width);
+      this.depth = depth;
+      this.width = width;
+      this.coder = coder;
+    }
+
+    /**
+     * Returns a {@code CountMinSketchCombineFn} whose sketches overestimate
+     * frequencies by at most {@code epsilon} times the number of elements,
+     * with probability {@code confidence}.
+     */
+    public static <T> CountMinSketchCombineFn<T> create(
+        double epsilon, double confidence, Coder<T> coder) {
+      checkCountMinArguments(epsilon, confidence);
+      int width = (int) Math.ceil(Math.E / epsilon);
+      int depth = (int) Math.ceil(Math.log(1 / (1 - confidence)));
+      return new CountMinSketchCombineFn<>(depth, width, coder);
+    }
+
+    @Override
+    public CountMinSketch createAccumulator() {
+      return new CountMinSketch(depth, width);
+    }
+
+    @Override
+    public CountMinSketch addInput(CountMinSketch sketch, T input) {
+      sketch.add(hash(input, coder), 1);
+      return sketch;
+    }
+
+    @Override
+    public CountMinSketch mergeAccumulators(Iterable<CountMinSketch> sketches) {
+      Iterator<CountMinSketch> iterator = sketches.iterator();
+      CountMinSketch sketch = iterator.next();
+      while (iterator.hasNext()) {
+        sketch.merge(iterator.next());
+      }
+      return sketch;
+    }
+
+    @Override
+    public CountMinSketch extractOutput(CountMinSketch sketch) {
+      return sketch;
+    }
+
+    @Override
+    public Coder<CountMinSketch> getAccumulatorCoder(
+        CoderRegistry registry, Coder<T> inputCoder) {
+      return CountMinSketchCoder.of();
+    }
+
+    @Override
+    public Coder<CountMinSketch> getDefaultOutputCoder(
+        CoderRegistry registry, Coder<T> inputCoder) {
+      return CountMinSketchCoder.of();
+    }
+  }
+
+  /**
+   * Coder for {@link CountMinSketch}. The counters are encoded as
+   * variable-length integers, so that sparsely populated sketches are small.
+   */
+  public static class CountMinSketchCoder extends CustomCoder<CountMinSketch> {
+    private static final CountMinSketchCoder INSTANCE = new CountMinSketchCoder();
+
+    public static CountMinSketchCoder of() {
+      return INSTANCE;
+    }
+
+    @Override
+    public void encode(CountMinSketch sketch, OutputStream outStream, Context context)
+        throws CoderException, IOException {
+      VarInt.encode(sketch.depth, outStream);
+      VarInt.encode(sketch.width, outStream);
+      VarInt.encode(sketch.totalCount, outStream);
+      for (long counter : sketch.counters) {
+        VarInt.encode(counter, outStream);
+      }
+    }
+
+    @Override
+    public CountMinSketch decode(InputStream inStream, Context context)
+        throws CoderException, IOException {
+      int depth = VarInt.decodeInt(inStream);
+      int width = VarInt.decodeInt(inStream);
+      long totalCount = VarInt.decodeLong(inStream);
+      long[] counters = new long[depth * width];
+      for (int i = 0; i < counters.length; i++) {
+        counters[i] = VarInt.decodeLong(inStream);
+      }
+      return new CountMinSketch(depth, width, counters, totalCount);
+    }
+
+    @Override
+    public void verifyDeterministic() {}
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * A space-saving summary of the most frequent elements of a collection.
+   *
+   * <p>The summary tracks at most {@code capacity} elements, each with a
+   * count and the maximum amount by which the count may exceed the element's
+   * true frequency. An element that is not tracked replaces the tracked
+   * element with the smallest count, taking over its count as its error.
+   * Summaries are merged as described in:
+   * <pre>
+   *   [ACHPWY12] Agarwal et al., "Mergeable Summaries", Proc. 2012 ACM PODS,
+   *   p 23-34, May 2012.
+   * </pre>
+   *
+   * <p>The tracked elements form a binary min-heap by count, so that adding
+   * an element takes logarithmic time in {@code capacity}.
+   *
+   * @param <T> the type of the elements
+   */
+  public static class SpaceSaving<T> {
+    private final int capacity;
+
+    /** The slots of the tracked elements, indexed by their structural values. */
+    private final Map<Object, Integer> slots;
+    private final List<Object> keys;
+    private final List<T> elements;
+    private final long[] counts;
+    private final long[] errors;
+
+    /** The slots ordered as a min-heap by count, and the position of each slot in it. */
+    private final int[] heap;
+    private final int[] heapPositions;
+
+    private SpaceSaving(int capacity) {
+      this.capacity = capacity;
+      this.slots = new HashMap<>();
+      this.keys = new ArrayList<>();
+      this.elements = new ArrayList<>();
+      this.counts = new long[capacity];
+      this.errors = new long[capacity];
+      this.heap = new int[capacity];
+      this.heapPositions = new int[capacity];
+    }
+
+    public int getCapacity() {
+      return capacity;
+    }
+
+    /**
+     * Returns the number of tracked elements.
+     */
+    public int size() {
+      return elements.size();
+    }
+
+    /**
+     * Adds {@code count} occurrences of {@code element}, which is identified
+     * by {@code key}.
+     */
+    void add(Object key, T element, long count) {
+      Integer slot = slots.get(key);
+      if (slot != null) {
+        counts[slot] += count;
+        siftDown(heapPositions[slot]);
+      } else if (size() < capacity) {
+        int newSlot = size();
+        slots.put(key, newSlot);
+        keys.add(key);
+        elements.add(element);
+        counts[newSlot] = count;
+        errors[newSlot] = 0;
+        heap[newSlot] = newSlot;
+        heapPositions[newSlot] = newSlot;
+        siftUp(newSlot);
+      } else {
+        int minSlot = heap[0];
+        slots.remove(keys.get(minSlot));
+        slots.put(key, minSlot);
+        keys.set(minSlot, key);
+        elements.set(minSlot, element);
+        errors[minSlot] = counts[minSlot];
+        counts[minSlot] += count;
+        siftDown(0);
+      }
+    }
+
+    /**
+     * Returns the smallest count that an element that is not tracked could
+     * have, which is zero unless the summary is full.
+     */
+    private long missingCount() {
+      return size() < capacity ? 0 : counts[heap[0]];
+    }
+
+    /**
+     * Adds all the elements summarized by {@code other}, which must have the
+     * same capacity, to this summary.
+     */
+    public void merge(SpaceSaving<T> other) {
+      Preconditions.checkArgument(capacity == other.capacity,
+          "Cannot merge SpaceSaving summaries of capacity %s and %s",
+          capacity, other.capacity);
+      long missing = missingCount();
+      long otherMissing = other.missingCount();
+
+      // Every element of either summary, with its count and error in the union.
+      int unionSize = size() + other.size();
+      List<Object> unionKeys = new ArrayList<>(unionSize);
+      List<T> unionElements = new ArrayList<>(unionSize);
+      long[] unionCounts = new long[unionSize];
+      long[] unionErrors = new long[unionSize];
+      for (int slot = 0; slot < size(); slot++) {
+        Integer otherSlot = other.slots.get(keys.get(slot));
+        unionKeys.add(keys.get(slot));
+        unionElements.add(elements.get(slot));
+        unionCounts[slot] = counts[slot]
+            + (otherSlot == null ? otherMissing : other.counts[otherSlot]);
+        unionErrors[slot] = errors[slot]
+            + (otherSlot == null ? otherMissing : other.errors[otherSlot]);
+      }
+      for (int otherSlot = 0; otherSlot < other.size(); otherSlot++) {
+        if (!slots.containsKey(other.keys.get(otherSlot))) {
+          int slot = unionKeys.size();
+          unionKeys.add(other.keys.get(otherSlot));
+          unionElements.add(other.elements.get(otherSlot));
+          unionCounts[slot] = other.counts[otherSlot] + missing;
+          unionErrors[slot] = other.errors[otherSlot] + missing;
+        }
+      }
+
+      // Keeps the elements of the union with the largest counts.
+      List<Integer> order = sortedByCount(unionCounts, unionKeys.size());
+      slots.clear();
+      keys.clear();
+      elements.clear();
+      for (int i = 0; i < Math.min(capacity, order.size()); i++) {
+        int unionSlot = order.get(i);
+        slots.put(unionKeys.get(unionSlot), i);
+        keys.add(unionKeys.get(unionSlot));
+        elements.add(unionElements.get(unionSlot));
+        counts[i] = unionCounts[unionSlot];
+        errors[i] = unionErrors[unionSlot];
+      }
+      rebuildHeap();
+    }
+
+    /**
+     * Returns the {@code limit} tracked elements with the largest counts, in
+     * decreasing order of count, paired with their counts.
+     */
+    public List<KV<T, Long>> getTop(int limit) {
+      List<Integer> order = sortedByCount(counts, size());
+      List<KV<T, Long>> top = new ArrayList<>(Math.min(limit, order.size()));
+      for (int i = 0; i < Math.min(limit, order.size()); i++) {
+        top.add(KV.of(elements.get(order.get(i)), counts[order.get(i)]));
+      }
+      return top;
+    }
+
+    /**
+     * Returns the maximum amount by which the count of each of the elements
+     * returned by {@code getTop(limit)} may exceed its true frequency.
+     */
+    public List<Long> getTopErrors(int limit) {
+      List<Integer> order = sortedByCount(counts, size());
+      List<Long> topErrors = new ArrayList<>(Math.min(limit, order.size()));
+      for (int i = 0; i < Math.min(limit, order.size()); i++) {
+        topErrors.add(errors[order.get(i)]);
+      }
+      return topErrors;
+    }
+
+    private static List<Integer> sortedByCount(final long[] counts, int size) {
+      List<Integer> order = new ArrayList<>(size);
+      for (int slot = 0; slot < size; slot++) {
+        order.add(slot);
+      }
+      Collections.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          // Ties are ordered by slot, which keeps the order stable.
+          int byCount = Long.compare(counts[b], counts[a]);
+          return byCount != 0 ? byCount : Integer.compare(a, b);
+        }
+      });
+      return order;
+    }
+
+    private void rebuildHeap() {
+      for (int slot = 0; slot < size(); slot++) {
+        heap[slot] = slot;
+        heapPositions[slot] = slot;
+      }
+      for (int position = size() / 2 - 1; position >= 0; position--) {
+        siftDown(position);
+      }
+    }
+
+    private void siftUp(int position) {
+      while (position > 0) {
+        int parent = (position - 1) / 2;
+        if (counts[heap[parent]] <= counts[heap[position]]) {
+          return;
+        }
+        swap(position, parent);
+        position = parent;
+      }
+    }
+
+    private void siftDown(int position) {
+      while (true) {
+        int smallest = position;
+        int left = 2 * position + 1;
+        int right = left + 1;
+        if (left < size() && counts[heap[left]] < counts[heap[smallest]]) {
+          smallest = left;
+        }
+        if (right < size() && counts[heap[right]] < counts[heap[smallest]]) {
+          smallest = right;
+        }
+        if (smallest == position) {
+          return;
+        }
+        swap(position, smallest);
+        position = smallest;
+      }
+    }
+
+    private void swap(int a, int b) {
+      int slotA = heap[a];
+      heap[a] = heap[b];
+      heap[b] = slotA;
+      heapPositions[heap[a]] = a;
+      heapPositions[heap[b]] = b;
+    }
+  }
+
+  /**
+   * {@code CombineFn} that outputs the most frequent of the values that were
+   * combined, paired with their estimated frequencies, using a
+   * {@link SpaceSaving} summary.
+   *
+   * <p>Used to implement
+   * {@link #heavyHittersGlobally ApproximateFrequencies.heavyHittersGlobally(...)} and
+   * {@link #heavyHittersPerKey ApproximateFrequencies.heavyHittersPerKey(...)}.
+   *
+   * @param <T> the type of the values being combined
+   */
+  public static class HeavyHittersCombineFn<T>
+      extends CombineFn<T, SpaceSaving<T>, List<KV<T, Long>>> {
+    private final int numHitters;
+    private final int capacity;
+    private final Coder<T> coder;
+
+    public HeavyHittersCombineFn(int numHitters, int capacity, Coder<T> coder) {
+      checkHeavyHittersArguments(numHitters, capacity);
+      this.numHitters = numHitters;
+      this.capacity = capacity;
+      this.coder = coder;
+    }
+
+    @Override
+    public SpaceSaving<T> createAccumulator() {
+      return new SpaceSaving<>(capacity);
+    }
+
+    @Override
+    public SpaceSaving<T> addInput(SpaceSaving<T> summary, T input) {
+      summary.add(structuralValue(input, coder), input, 1);
+      return summary;
+    }
+
+    @Override
+    public SpaceSaving<T> mergeAccumulators(Iterable<SpaceSaving<T>> summaries) {
+      Iterator<SpaceSaving<T>> iterator = summaries.iterator();
+      SpaceSaving<T> summary = iterator.next();
+      while (iterator.hasNext()) {
+        summary.merge(iterator.next());
+      }
+      return summary;
+    }
+
+    @Override
+    public List<KV<T, Long>> extractOutput(SpaceSaving<T> summary) {
+      return summary.getTop(numHitters);
+    }
+
+    @Override
+    public Coder<SpaceSaving<T>> getAccumulatorCoder(
+        CoderRegistry registry, Coder<T> inputCoder) {
+      return new SpaceSavingCoder<>(coder);
+    }
+  }
+
+  /**
+   * Coder for {@link SpaceSaving}. The tracked elements are encoded in
+   * decreasing order of count.
+   */
+  static class SpaceSavingCoder<T> extends CustomCoder<SpaceSaving<T>> {
+    private final Coder<T> elementCoder;
+
+    SpaceSavingCoder(Coder<T> elementCoder) {
+      this.elementCoder = elementCoder;
+    }
+
+    @Override
+    public void encode(SpaceSaving<T> summary, OutputStream outStream, Context context)
+        throws CoderException, IOException {
+      Context nestedContext = context.nested();
+      VarInt.encode(summary.capacity, outStream);
+      List<Integer> order = SpaceSaving.sortedByCount(summary.counts, summary.size());
+      VarInt.encode(order.size(), outStream);
+      for (int slot : order) {
+        elementCoder.encode(summary.elements.get(slot), outStream, nestedContext);
+        VarInt.encode(summary.counts[slot], outStream);
+        VarInt.encode(summary.errors[slot], outStream);
+      }
+    }
+
+    @Override
+    public SpaceSaving<T> decode(InputStream inStream, Context context)
+        throws CoderException, IOException {
+      Context nestedContext = context.nested();
+      SpaceSaving<T> summary = new SpaceSaving<>(VarInt.decodeInt(inStream));
+      int size = VarInt.decodeInt(inStream);
+      for (int slot = 0; slot < size; slot++) {
+        T element = elementCoder.decode(inStream, nestedContext);
+        Object key = ApproximateFrequencies.structuralValue(element, elementCoder);
+        summary.slots.put(key, slot);
+        summary.keys.add(key);
+        summary.elements.add(element);
+        summary.counts[slot] = VarInt.decodeLong(inStream);
+        summary.errors[slot] = VarInt.decodeLong(inStream);
+      }
+      summary.rebuildHeap();
+      return summary;
+    }
+
+    @Override
+    public void verifyDeterministic() throws NonDeterministicException {
+      verifyDeterministic(
+          "ApproximateFrequencies.SpaceSaving.ElementCoder must be deterministic",
+          elementCoder);
+    }
+  }
+
+  /**
+   * Encodes the given element using the given coder and hashes the encoding
+   * to 128 bits.
+   */
+  static <T> byte[] hash(T element, Coder<T> coder) {
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      coder.encode(element, baos, Context.OUTER);
+      return Hashing.murmur3_128().hashBytes(baos.toByteArray()).asBytes();
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to encode element '" + element + "'", e);
+    }
+  }
+
+  private static <T> Object structuralValue(T element, Coder<T> coder) {
+    try {
+      return coder.structuralValue(element);
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to encode element '" + element + "'", e);
+    }
+  }
+}
@@ -53,6 +53,10 @@ import javax.annotation.Nullable;
  * {@code PTransform}s for getting an idea of a {@code PCollection}'s
  * data distribution using approximate {@code N}-tiles (e.g. quartiles,
  * percentiles, etc.), either globally or per-key.
+ *
+ * <p>See {@link KllQuantiles} for transforms computing the same output with
+ * a more compact sketch, including combiners specialized for {@code Long}s
+ * and {@code Double}s.
  */
 public class ApproximateQuantiles {
   private ApproximateQuantiles() {
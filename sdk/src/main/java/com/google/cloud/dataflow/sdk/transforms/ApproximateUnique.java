@@ -20,21 +20,29 @@ import com.google.cloud.dataflow.sdk.coders.Coder;
 import com.google.cloud.dataflow.sdk.coders.Coder.Context;
 import com.google.cloud.dataflow.sdk.coders.CoderException;
 import com.google.cloud.dataflow.sdk.coders.CoderRegistry;
+import com.google.cloud.dataflow.sdk.coders.CustomCoder;
 import com.google.cloud.dataflow.sdk.coders.KvCoder;
 import com.google.cloud.dataflow.sdk.coders.SerializableCoder;
 import com.google.cloud.dataflow.sdk.transforms.Combine.CombineFn;
+import com.google.cloud.dataflow.sdk.util.VarInt;
 import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.common.base.Preconditions;
 import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.PriorityQueue;
 
+import javax.annotation.Nullable;
+
 /**
  * {@code PTransform}s for estimating the number of distinct elements
  * in a {@code PCollection}, or the number of distinct values
@@ -147,6 +155,75 @@ public class ApproximateUnique {
     return new PerKey<>(maximumEstimationError);
   }
 
+  /**
+   * Like {@link #globally(int)}, but estimates the number of distinct
+   * elements with a HyperLogLog sketch of {@code 2^precision} registers
+   * rather than a sample of hashes.
+   *
+   * <p>The estimation error is about {@code 1.04 / sqrt(2^precision)}, so
+   * for {@code ApproximateUnique.hyperLogLogGlobally(14)} the estimation
+   * error is about 0.8%. Each accumulator holds at most {@code 2^precision}
+   * bytes, and much less while it has seen few distinct elements.
+   *
+   * @param <T> the type of the elements in the input {@code PCollection}
+   * @param precision the base-2 logarithm of the number of registers,
+   *        which should be in the range {@code [4, 18]}
+   * @throws IllegalArgumentException if the {@code precision} argument
+   *         is out of range
+   */
+  public static <T> HyperLogLogGlobally<T> hyperLogLogGlobally(int precision) {
+    return new HyperLogLogGlobally<>(precision);
+  }
+
+  /**
+   * Like {@link #hyperLogLogGlobally(int)}, but specifies the desired
+   * maximum estimation error instead of the precision.
+   *
+   * @param <T> the type of the elements in the input {@code PCollection}
+   * @param maximumEstimationError the maximum estimation error, which
+   *        should be in the range {@code [0.0025, 0.5]}
+   * @throws IllegalArgumentException if the
+   *         {@code maximumEstimationError} argument is out of range
+   */
+  public static <T> HyperLogLogGlobally<T> hyperLogLogGlobally(double maximumEstimationError) {
+    return new HyperLogLogGlobally<>(precisionFromEstimationError(maximumEstimationError));
+  }
+
+  /**
+   * Like {@link #perKey(int)}, but estimates the number of distinct values
+   * associated with each key with a HyperLogLog sketch. See
+   * {@link #hyperLogLogGlobally(int)} for an explanation of the
+   * {@code precision} parameter.
+   *
+   * @param <K> the type of the keys in the input and output
+   *        {@code PCollection}s
+   * @param <V> the type of the values in the input {@code PCollection}
+   * @param precision the base-2 logarithm of the number of registers,
+   *        which should be in the range {@code [4, 18]}
+   * @throws IllegalArgumentException if the {@code precision} argument
+   *         is out of range
+   */
+  public static <K, V> HyperLogLogPerKey<K, V> hyperLogLogPerKey(int precision) {
+    return new HyperLogLogPerKey<>(precision);
+  }
+
+  /**
+   * Like {@link #hyperLogLogPerKey(int)}, but specifies the desired
+   * maximum estimation error instead of the precision.
+   *
+   * @param <K> the type of the keys in the input and output
+   *        {@code PCollection}s
+   * @param <V> the type of the values in the input {@code PCollection}
+   * @param maximumEstimationError the maximum estimation error, which
+   *        should be in the range {@code [0.0025, 0.5]}
+   * @throws IllegalArgumentException if the
+   *         {@code maximumEstimationError} argument is out of range
+   */
+  public static <K, V> HyperLogLogPerKey<K, V> hyperLogLogPerKey(
+      double maximumEstimationError) {
+    return new HyperLogLogPerKey<>(precisionFromEstimationError(maximumEstimationError));
+  }
+
 
   /////////////////////////////////////////////////////////////////////////////
 
@@ -253,6 +330,69 @@ public class ApproximateUnique {
     }
   }
 
+  /**
+   * {@code PTransform} for estimating the number of distinct elements
+   * in a {@code PCollection} with a HyperLogLog sketch.
+   *
+   * @param <T> the type of the elements in the input {@code PCollection}
+   */
+  static class HyperLogLogGlobally<T> extends PTransform<PCollection<T>, PCollection<Long>> {
+    private final int precision;
+
+    /**
+     * @see ApproximateUnique#hyperLogLogGlobally(int)
+     */
+    public HyperLogLogGlobally(int precision) {
+      checkPrecision(precision);
+      this.precision = precision;
+    }
+
+    @Override
+    public PCollection<Long> apply(PCollection<T> input) {
+      Coder<T> coder = input.getCoder();
+      return input.apply(
+          Combine.globally(
+              new HyperLogLogCombineFn<>(precision, coder)));
+    }
+  }
+
+  /**
+   * {@code PTransform} for estimating the number of distinct values
+   * associated with each key in a {@code PCollection} of {@code KV}s
+   * with a HyperLogLog sketch.
+   *
+   * @param <K> the type of the keys in the input and output
+   *        {@code PCollection}s
+   * @param <V> the type of the values in the input {@code PCollection}
+   */
+  static class HyperLogLogPerKey<K, V>
+      extends PTransform<PCollection<KV<K, V>>, PCollection<KV<K, Long>>> {
+    private final int precision;
+
+    /**
+     * @see ApproximateUnique#hyperLogLogPerKey(int)
+     */
+    public HyperLogLogPerKey(int precision) {
+      checkPrecision(precision);
+      this.precision = precision;
+    }
+
+    @Override
+    public PCollection<KV<K, Long>> apply(PCollection<KV<K, V>> input) {
+      Coder<KV<K, V>> inputCoder = input.getCoder();
+      if (!(inputCoder instanceof KvCoder)) {
+        throw new IllegalStateException(
+            "ApproximateUnique.HyperLogLogPerKey requires its input to use KvCoder");
+      }
+      @SuppressWarnings("unchecked")
+      final Coder<V> coder = ((KvCoder<K, V>) inputCoder).getValueCoder();
+
+      return input.apply(
+          Combine.perKey(new HyperLogLogCombineFn<>(
+              precision, coder).<K>asKeyedFn()));
+    }
+  }
+
 
   /////////////////////////////////////////////////////////////////////////////
 
@@ -405,6 +545,396 @@ public class ApproximateUnique {
     }
   }
 
+  /**
+   * {@code CombineFn} that computes an estimate of the number of
+   * distinct values that were combined, using a HyperLogLog sketch in the
+   * style of HyperLogLog++.
+   *
+   * <p>Each input element is hashed to 64 bits. While the sketch has seen
+   * few distinct hashes, it keeps a sorted array of them, truncated to
+   * {@value HyperLogLog#SPARSE_PRECISION} bits and paired with the number of
+   * leading zeros of the rest, and estimates the count by linear counting.
+   * Once that array would take more space than the registers, it switches to
+   * {@code 2^precision} byte registers, each holding the largest number of
+   * leading zeros of the hashes assigned to it, and estimates the count
+   * with the estimator of:
+   * <pre>
+   *   [Ertl17] Ertl, "New cardinality estimation algorithms for HyperLogLog
+   *   sketches", 2017. https://arxiv.org/abs/1702.01284
+   * </pre>
+   * which, unlike HyperLogLog++, needs no empirical bias correction.
+   *
+   * <p>Merging sketches takes the register-wise maximum of their registers,
+   * so the result does not depend on how the input is split or in what
+   * order it is merged.
+   *
+   * <p>Used to implement
+   * {@link #hyperLogLogGlobally(int) ApproximateUnique.hyperLogLogGlobally(...)} and
+   * {@link #hyperLogLogPerKey(int) ApproximateUnique.hyperLogLogPerKey(...)}.
+   *
+   * @param <T> the type of the values being combined
+   */
+  public static class HyperLogLogCombineFn<T> extends
+      CombineFn<T, HyperLogLogCombineFn.HyperLogLog, Long> {
+
+    /**
+     * A HyperLogLog sketch of a set of 64-bit hashes.
+     */
+    public static class HyperLogLog {
+      /** The number of bits of the hashes kept by the sparse representation. */
+      static final int SPARSE_PRECISION = 25;
+
+      /** The number of bits of a sparse entry holding the number of leading zeros. */
+      private static final int RHO_BITS = 6;
+
+      private static final int INITIAL_SPARSE_CAPACITY = 8;
+
+      private final int precision;
+
+      /**
+       * The sparse entries, of which the first {@code sparseSize} are in use. Null once the
+       * sketch has switched to registers.
+       */
+      @Nullable
+      private int[] sparse;
+      private int sparseSize;
+
+      /** The dense registers. Null while the sketch is sparse. */
+      @Nullable
+      private byte[] registers;
+
+      public HyperLogLog(int precision) {
+        checkPrecision(precision);
+        this.precision = precision;
+        this.sparse = new int[INITIAL_SPARSE_CAPACITY];
+      }
+
+      private HyperLogLog(int precision, @Nullable int[] sparse, @Nullable byte[] registers) {
+        this.precision = precision;
+        this.sparse = sparse;
+        this.sparseSize = sparse == null ? 0 : sparse.length;
+        this.registers = registers;
+      }
+
+      public int getPrecision() {
+        return precision;
+      }
+
+      /**
+       * Returns whether the sketch holds sparse entries rather than registers.
+       */
+      public boolean isSparse() {
+        return registers == null;
+      }
+
+      /**
+       * Adds a 64-bit hash to the sketch.
+       */
+      public void add(long hash) {
+        if (registers != null) {
+          int index = (int) (hash >>> (64 - precision));
+          updateRegister(index, rho(hash << precision, 64 - precision));
+        } else {
+          int index = (int) (hash >>> (64 - SPARSE_PRECISION));
+          addSparse(
+              (index << RHO_BITS) | rho(hash << SPARSE_PRECISION, 64 - SPARSE_PRECISION));
+        }
+      }
+
+      /**
+       * Adds all the hashes added to {@code other} to this sketch.
+       */
+      public void merge(HyperLogLog other) {
+        Preconditions.checkArgument(other.precision == precision,
+            "Cannot merge HyperLogLog sketches of precision %s and %s",
+            precision, other.precision);
+        if (other.registers != null) {
+          if (registers == null) {
+            toDense();
+          }
+          for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+              registers[i] = other.registers[i];
+            }
+          }
+        } else if (registers != null) {
+          for (int i = 0; i < other.sparseSize; i++) {
+            addSparseToRegisters(other.sparse[i]);
+          }
+        } else {
+          if (sparseSize + other.sparseSize > sparse.length) {
+            sparse = Arrays.copyOf(
+                sparse, Math.max(sparseSize + other.sparseSize, sparse.length * 2));
+          }
+          System.arraycopy(other.sparse, 0, sparse, sparseSize, other.sparseSize);
+          sparseSize += other.sparseSize;
+          compactSparse();
+        }
+      }
+
+      /**
+       * Returns the estimated number of distinct hashes added to the sketch.
+       */
+      public long estimate() {
+        if (registers == null) {
+          compactSparse();
+        }
+        if (registers == null) {
+          // Linear counting over the 2^SPARSE_PRECISION truncated hashes.
+          double m = 1 << SPARSE_PRECISION;
+          return Math.round(m * Math.log(m / (m - sparseSize)));
+        }
+
+        int q = 64 - precision;
+        int[] histogram = new int[q + 2];
+        for (byte register : registers) {
+          histogram[register]++;
+        }
+        double m = registers.length;
+        double z = m * tau(1 - histogram[q + 1] / m);
+        for (int k = q; k >= 1; k--) {
+          z = 0.5 * (z + histogram[k]);
+        }
+        z += m * sigma(histogram[0] / m);
+        return Math.round(m * m / (2 * Math.log(2)) / z);
+      }
+
+      /**
+       * Returns one plus the number of leading zeros of the top {@code bits} bits of
+       * {@code value}.
+       */
+      private static int rho(long value, int bits) {
+        return Math.min(Long.numberOfLeadingZeros(value), bits) + 1;
+      }
+
+      private void updateRegister(int index, int rho) {
+        if (rho > registers[index]) {
+          registers[index] = (byte) rho;
+        }
+      }
+
+      private void addSparse(int entry) {
+        if (sparseSize == sparse.length) {
+          compactSparse();
+          if (registers != null) {
+            addSparseToRegisters(entry);
+            return;
+          }
+          if (sparseSize * 2 >= sparse.length) {
+            sparse = Arrays.copyOf(
+                sparse, Math.max(INITIAL_SPARSE_CAPACITY, sparse.length * 2));
+          }
+        }
+        sparse[sparseSize++] = entry;
+      }
+
+      /**
+       * Sorts the sparse entries, keeping the largest number of leading zeros for each
+       * truncated hash, and switches to registers if they would now be smaller.
+       */
+      private void compactSparse() {
+        Arrays.sort(sparse, 0, sparseSize);
+        int size = 0;
+        for (int i = 0; i < sparseSize; i++) {
+          // Entries for the same hash are adjacent, ordered by number of leading zeros.
+          if (i + 1 < sparseSize && sparse[i + 1] >>> RHO_BITS == sparse[i] >>> RHO_BITS) {
+            continue;
+          }
+          sparse[size++] = sparse[i];
+        }
+        sparseSize = size;
+        if (sparseSize * 4 > (1 << precision)) {
+          toDense();
+        }
+      }
+
+      private void toDense() {
+        registers = new byte[1 << precision];
+        for (int i = 0; i < sparseSize; i++) {
+          addSparseToRegisters(sparse[i]);
+        }
+        sparse = null;
+        sparseSize = 0;
+      }
+
+      private void addSparseToRegisters(int entry) {
+        int sparseIndex = entry >>> RHO_BITS;
+        int extraBits = SPARSE_PRECISION - precision;
+        int index = sparseIndex >>> extraBits;
+        int extraIndexBits = sparseIndex & ((1 << extraBits) - 1);
+        int rho;
+        if (extraIndexBits != 0) {
+          // The leading zeros end within the bits kept by the sparse index.
+          rho = Integer.numberOfLeadingZeros(extraIndexBits) - (32 - extraBits) + 1;
+        } else {
+          rho = extraBits + (entry & ((1 << RHO_BITS) - 1));
+        }
+        updateRegister(index, rho);
+      }
+
+      private static double sigma(double x) {
+        if (x == 1) {
+          return Double.POSITIVE_INFINITY;
+        }
+        double y = 1;
+        double z = x;
+        double previous;
+        do {
+          x *= x;
+          previous = z;
+          z += x * y;
+          y += y;
+        } while (z != previous);
+        return z;
+      }
+
+      private static double tau(double x) {
+        if (x == 0 || x == 1) {
+          return 0;
+        }
+        double y = 1;
+        double z = 1 - x;
+        double previous;
+        do {
+          x = Math.sqrt(x);
+          previous = z;
+          y *= 0.5;
+          z -= (1 - x) * (1 - x) * y;
+        } while (z != previous);
+        return z / 3;
+      }
+    }
+
+    private final int precision;
+    private final Coder<T> coder;
+
+    public HyperLogLogCombineFn(int precision, Coder<T> coder) {
+      checkPrecision(precision);
+      this.precision = precision;
+      this.coder = coder;
+    }
+
+    @Override
+    public HyperLogLog createAccumulator() {
+      return new HyperLogLog(precision);
+    }
+
+    @Override
+    public HyperLogLog addInput(HyperLogLog sketch, T input) {
+      try {
+        sketch.add(ApproximateUniqueCombineFn.hash(input, coder));
+        return sketch;
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public HyperLogLog mergeAccumulators(Iterable<HyperLogLog> sketches) {
+      Iterator<HyperLogLog> iterator = sketches.iterator();
+      HyperLogLog sketch = iterator.next();
+      while (iterator.hasNext()) {
+        sketch.merge(iterator.next());
+      }
+      return sketch;
+    }
+
+    @Override
+    public Long extractOutput(HyperLogLog sketch) {
+      return sketch.estimate();
+    }
+
+    @Override
+    public Coder<HyperLogLog> getAccumulatorCoder(CoderRegistry registry,
+        Coder<T> inputCoder) {
+      return HyperLogLogCoder.of();
+    }
+  }
+
+  /**
+   * Coder for {@link HyperLogLogCombineFn.HyperLogLog}. Sparse entries are encoded as
+   * variable-length differences between consecutive sorted entries, and registers as one byte
+   * each.
+   */
+  static class HyperLogLogCoder extends CustomCoder<HyperLogLogCombineFn.HyperLogLog> {
+    private static final HyperLogLogCoder INSTANCE = new HyperLogLogCoder();
+
+    public static HyperLogLogCoder of() {
+      return INSTANCE;
+    }
+
+    @Override
+    public void encode(
+        HyperLogLogCombineFn.HyperLogLog sketch, OutputStream outStream, Context context)
+        throws CoderException, IOException {
+      VarInt.encode(sketch.precision, outStream);
+      if (sketch.registers != null) {
+        outStream.write(1);
+        outStream.write(sketch.registers);
+        return;
+      }
+      sketch.compactSparse();
+      if (sketch.registers != null) {
+        outStream.write(1);
+        outStream.write(sketch.registers);
+        return;
+      }
+      outStream.write(0);
+      VarInt.encode(sketch.sparseSize, outStream);
+      int previous = 0;
+      for (int i = 0; i < sketch.sparseSize; i++) {
+        VarInt.encode(sketch.sparse[i] - previous, outStream);
+        previous = sketch.sparse[i];
+      }
+    }
+
+    @Override
+    public HyperLogLogCombineFn.HyperLogLog decode(InputStream inStream, Context context)
+        throws CoderException, IOException {
+      int precision = VarInt.decodeInt(inStream);
+      if (inStream.read() == 1) {
+        byte[] registers = new byte[1 << precision];
+        ByteStreams.readFully(inStream, registers);
+        return new HyperLogLogCombineFn.HyperLogLog(precision, null, registers);
+      }
+      int[] sparse = new int[VarInt.decodeInt(inStream)];
+      int previous = 0;
+      for (int i = 0; i < sparse.length; i++) {
+        sparse[i] = previous + VarInt.decodeInt(inStream);
+        previous = sparse[i];
+      }
+      return new HyperLogLogCombineFn.HyperLogLog(precision, sparse, null);
+    }
+
+    @Override
+    public void verifyDeterministic() {}
+  }
+
+  private static void checkPrecision(int precision) {
+    if (precision < 4 || precision > 18) {
+      throw new IllegalArgumentException(
+          "ApproximateUnique needs a HyperLogLog precision between 4 and 18, "
+          + "but was " + precision + ".  The estimation error is about "
+          + "1.04 / sqrt(2^precision).");
+    }
+  }
+
+  /**
+   * Computes the HyperLogLog precision based on the desired estimation error.
+   *
+   * @param estimationError should be bounded by [0.0025, 0.5]
+   * @return the precision needed for the desired estimation error
+   */
+  static int precisionFromEstimationError(double estimationError) {
+    if (estimationError < 0.0025 || estimationError > 0.5) {
+      throw new IllegalArgumentException(
+          "ApproximateUnique needs a HyperLogLog "
+          + "estimation error between 0.25% (0.0025) and 50% (0.5).");
+    }
+    int precision = (int) Math.ceil(Math.log(Math.pow(1.04 / estimationError, 2)) / Math.log(2));
+    return Math.max(4, precision);
+  }
+
   /**
    * Computes the sampleSize based on the desired estimation error.
    *
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.transforms;
+
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.ListCoder;
+import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.util.common.Counter;
+import com.google.cloud.dataflow.sdk.util.common.Counter.AggregationKind;
+import com.google.cloud.dataflow.sdk.util.common.ElementByteSizeObserver;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+import org.joda.time.Duration;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@code BatchElements<T>} takes a {@code PCollection<T>} and returns a
+ * {@code PCollection<List<T>>} that has all the elements of the input grouped into batches,
+ * for {@link DoFn}s that pay a large overhead per call, such as requests to an external service.
+ *
+ * <p>Batches are formed within each bundle and window, so each batch is in the window of its
+ * elements, and has the timestamp of the last element added to it. A batch is emitted when any
+ * of these limits is reached:
+ * <ul>
+ *   <li>the current target batch size, which adapts between {@link #withMinBatchSize} and
+ *       {@link #withMaxBatchSize} so that downstream processing of a batch takes about
+ *       {@link #withTargetBatchDuration};
+ *   <li>{@link #withMaxBatchBytes}, as measured by the input {@code Coder}'s byte size
+ *       observer;
+ *   <li>{@link #withMaxBufferingDuration}, the time since the first element of the batch
+ *       arrived, which is checked as later elements arrive.
+ * </ul>
+ * All remaining batches are emitted at the end of the bundle.
+ *
+ * <p>The processing time of a batch is measured around its output. When the downstream
+ * {@code DoFn}s are fused with this transform, as on the Dataflow service, that includes their
+ * processing of the batch; otherwise the batch size quickly grows to the maximum.
+ *
+ * <p>The distributions of batch sizes and of the time taken to fill each batch are reported by
+ * the {@code "Batches"}, {@code "BatchedElements"}, {@code "MinBatchSize"},
+ * {@code "MaxBatchSize"}, {@code "BatchFillMillis"}, {@code "MaxBatchFillMillis"} and
+ * {@code "BatchProcessingMillis"} aggregators.
+ *
+ * <p>Example of use:
+ * <pre> {@code
+ * PCollection<Request> requests = ...;
+ * PCollection<List<Request>> batches = requests.apply(
+ *     BatchElements.<Request>create()
+ *         .withMaxBatchSize(500)
+ *         .withMaxBufferingDuration(Duration.standardSeconds(5)));
+ * } </pre>
+ *
+ * <p>By default, the {@code Coder} of the output {@code PCollection} is a {@code ListCoder}
+ * of the {@code Coder} of the input {@code PCollection}.
+ *
+ * @param <T> the type of the elements of the input {@code PCollection}
+ */
+public class BatchElements<T> extends PTransform<PCollection<T>, PCollection<List<T>>> {
+  private static final int DEFAULT_MIN_BATCH_SIZE = 1;
+  private static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+  private static final Duration DEFAULT_TARGET_BATCH_DURATION = Duration.standardSeconds(1);
+
+  /**
+   * Returns a {@code BatchElements<T>} {@code PTransform} with batches of between
+   * {@code 1} and {@code 1000} elements, no byte size or buffering time limit, and a target
+   * batch processing time of one second.
+   *
+   * @param <T> the type of the elements of the input {@code PCollection}
+   */
+  public static <T> BatchElements<T> create() {
+    return new BatchElements<>(DEFAULT_MIN_BATCH_SIZE, DEFAULT_MAX_BATCH_SIZE, Long.MAX_VALUE,
+        null, DEFAULT_TARGET_BATCH_DURATION);
+  }
+
+  private final int minBatchSize;
+  private final int maxBatchSize;
+  private final long maxBatchBytes;
+  private final Duration maxBufferingDuration;
+  private final Duration targetBatchDuration;
+
+  private BatchElements(int minBatchSize, int maxBatchSize, long maxBatchBytes,
+      Duration maxBufferingDuration, Duration targetBatchDuration) {
+    Preconditions.checkArgument(minBatchSize > 0,
+        "BatchElements needs a positive minimum batch size, but got %s", minBatchSize);
+    Preconditions.checkArgument(maxBatchSize >= minBatchSize,
+        "BatchElements needs a maximum batch size of at least the minimum %s, but got %s",
+        minBatchSize, maxBatchSize);
+    Preconditions.checkArgument(maxBatchBytes > 0,
+        "BatchElements needs a positive maximum batch byte size, but got %s", maxBatchBytes);
+    Preconditions.checkArgument(
+        maxBufferingDuration == null || !maxBufferingDuration.isShorterThan(Duration.ZERO),
+        "BatchElements needs a non-negative maximum buffering duration, but got %s",
+        maxBufferingDuration);
+    Preconditions.checkArgument(targetBatchDuration.isLongerThan(Duration.ZERO),
+        "BatchElements needs a positive target batch duration, but got %s",
+        targetBatchDuration);
+    this.minBatchSize = minBatchSize;
+    this.maxBatchSize = maxBatchSize;
+    this.maxBatchBytes = maxBatchBytes;
+    this.maxBufferingDuration = maxBufferingDuration;
+    this.targetBatchDuration = targetBatchDuration;
+  }
+
+  /**
+   * Returns a new {@code BatchElements} like this one, whose adaptive batch size never drops
+   * below {@code minBatchSize}, unless a byte size or time limit or the end of the bundle
+   * cuts a batch short. Raises the maximum batch size to {@code minBatchSize} if needed.
+   */
+  public BatchElements<T> withMinBatchSize(int minBatchSize) {
+    return new BatchElements<>(minBatchSize, Math.max(minBatchSize, maxBatchSize), maxBatchBytes,
+        maxBufferingDuration, targetBatchDuration);
+  }
+
+  /**
+   * Returns a new {@code BatchElements} like this one, with at most {@code maxBatchSize}
+   * elements per batch. Lowers the minimum batch size to {@code maxBatchSize} if needed.
+   */
+  public BatchElements<T> withMaxBatchSize(int maxBatchSize) {
+    return new BatchElements<>(Math.min(minBatchSize, maxBatchSize), maxBatchSize, maxBatchBytes,
+        maxBufferingDuration, targetBatchDuration);
+  }
+
+  /**
+   * Returns a new {@code BatchElements} like this one, whose batches hold at most
+   * {@code maxBatchBytes} of elements, as estimated by the input {@code Coder}. A single
+   * element larger than that is emitted on its own.
+   */
+  public BatchElements<T> withMaxBatchBytes(long maxBatchBytes) {
+    return new BatchElements<>(minBatchSize, maxBatchSize, maxBatchBytes,
+        maxBufferingDuration, targetBatchDuration);
+  }
+
+  /**
+   * Returns a new {@code BatchElements} like this one, which emits a batch once an element
+   * arrives at least {@code maxBufferingDuration} after the first element of the batch.
+   */
+  public BatchElements<T> withMaxBufferingDuration(Duration maxBufferingDuration) {
+    return new BatchElements<>(minBatchSize, maxBatchSize, maxBatchBytes,
+        maxBufferingDuration, targetBatchDuration);
+  }
+
+  /**
+   * Returns a new {@code BatchElements} like this one, which adapts the batch size so that
+   * processing a batch downstream takes about {@code targetBatchDuration}.
+   */
+  public BatchElements<T> withTargetBatchDuration(Duration targetBatchDuration) {
+    return new BatchElements<>(minBatchSize, maxBatchSize, maxBatchBytes,
+        maxBufferingDuration, targetBatchDuration);
+  }
+
+  @Override
+  public PCollection<List<T>> apply(PCollection<T> input) {
+    return input
+        .apply(ParDo.named("BatchElements").of(new BatchElementsFn<T>(
+            input.getCoder(), minBatchSize, maxBatchSize, maxBatchBytes,
+            maxBufferingDuration == null ? -1 : maxBufferingDuration.getMillis() * 1000000,
+            targetBatchDuration.getMillis() * 1000000)))
+        .setCoder(ListCoder.of(input.getCoder()));
+  }
+
+  /**
+   * The {@link DoFn} behind {@link BatchElements}. It buffers a batch per window, in the order
+   * the batches were started, so that the ones past their buffering time are at the front.
+   */
+  static class BatchElementsFn<T> extends DoFn<T, List<T>>
+      implements DoFn.RequiresWindowAccess {
+    final Aggregator<Long, Long> batches =
+        createAggregator("Batches", new Sum.SumLongFn());
+    final Aggregator<Long, Long> batchedElements =
+        createAggregator("BatchedElements", new Sum.SumLongFn());
+    final Aggregator<Long, Long> minBatchSizeSeen =
+        createAggregator("MinBatchSize", new Min.MinLongFn());
+    final Aggregator<Long, Long> maxBatchSizeSeen =
+        createAggregator("MaxBatchSize", new Max.MaxLongFn());
+    final Aggregator<Long, Long> batchFillMillis =
+        createAggregator("BatchFillMillis", new Sum.SumLongFn());
+    final Aggregator<Long, Long> maxBatchFillMillis =
+        createAggregator("MaxBatchFillMillis", new Max.MaxLongFn());
+    final Aggregator<Long, Long> batchProcessingMillis =
+        createAggregator("BatchProcessingMillis", new Sum.SumLongFn());
+
+    private final Coder<T> coder;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long maxBatchBytes;
+    private final long maxBufferingNanos;
+    private final long targetBatchNanos;
+
+    private transient Map<BoundedWindow, Batch> buffered;
+    private transient BatchSizeEstimator estimator;
+    private transient ElementByteSizeObserver sizeObserver;
+    private transient Counter<Long> sizeCounter;
+
+    BatchElementsFn(Coder<T> coder, int minBatchSize, int maxBatchSize, long maxBatchBytes,
+        long maxBufferingNanos, long targetBatchNanos) {
+      this.coder = coder;
+      this.minBatchSize = minBatchSize;
+      this.maxBatchSize = maxBatchSize;
+      this.maxBatchBytes = maxBatchBytes;
+      this.maxBufferingNanos = maxBufferingNanos;
+      this.targetBatchNanos = targetBatchNanos;
+    }
+
+    @Override
+    public void startBundle(Context c) {
+      buffered = new LinkedHashMap<>();
+      if (estimator == null) {
+        // The estimate carries over from bundle to bundle.
+        estimator = new BatchSizeEstimator(minBatchSize, maxBatchSize, targetBatchNanos);
+      }
+      if (maxBatchBytes != Long.MAX_VALUE && sizeObserver == null) {
+        sizeCounter = Counter.longs("BatchElementBytes", AggregationKind.SUM);
+        sizeObserver = new ElementByteSizeObserver(sizeCounter);
+      }
+    }
+
+    @Override
+    public void processElement(ProcessContext c) throws Exception {
+      long now = System.nanoTime();
+      if (maxBufferingNanos >= 0) {
+        emitExpired(now);
+      }
+
+      long elementBytes = 0;
+      if (sizeObserver != null) {
+        coder.registerByteSizeObserver(c.element(), sizeObserver, Coder.Context.NESTED);
+        sizeObserver.advance();
+        elementBytes = sizeCounter.getAndResetDelta();
+      }
+
+      BoundedWindow window = c.window();
+      Batch batch = buffered.get(window);
+      if (batch != null && batch.bytes + elementBytes > maxBatchBytes) {
+        emit(buffered.remove(window), now);
+        batch = null;
+      }
+      if (batch == null) {
+        batch = new Batch(now);
+        buffered.put(window, batch);
+      }
+      batch.elements.add(c.element());
+      batch.bytes += elementBytes;
+      // Emit through the context of the latest element, which is in the batch's window.
+      batch.context = c;
+
+      if (batch.elements.size() >= estimator.getBatchSize()
+          || batch.bytes >= maxBatchBytes
+          || (maxBufferingNanos >= 0 && now - batch.startNanos >= maxBufferingNanos)) {
+        emit(buffered.remove(window), now);
+      }
+    }
+
+    @Override
+    public void finishBundle(Context c) {
+      long now = System.nanoTime();
+      for (Batch batch : buffered.values()) {
+        emit(batch, now);
+      }
+      buffered = null;
+    }
+
+    /**
+     * Emits the batches whose first element arrived at least the maximum buffering duration
+     * before {@code now}.
+     */
+    private void emitExpired(long now) {
+      Iterator<Batch> iter = buffered.values().iterator();
+      while (iter.hasNext()) {
+        Batch batch = iter.next();
+        if (now - batch.startNanos < maxBufferingNanos) {
+          break;
+        }
+        iter.remove();
+        emit(batch, now);
+      }
+    }
+
+    private void emit(Batch batch, long now) {
+      int size = batch.elements.size();
+      long fillMillis = (now - batch.startNanos) / 1000000;
+
+      long startNanos = System.nanoTime();
+      batch.context.output(batch.elements);
+      long processingNanos = System.nanoTime() - startNanos;
+      estimator.update(size, processingNanos);
+
+      batches.addValue(1L);
+      batchedElements.addValue((long) size);
+      minBatchSizeSeen.addValue((long) size);
+      maxBatchSizeSeen.addValue((long) size);
+      batchFillMillis.addValue(fillMillis);
+      maxBatchFillMillis.addValue(fillMillis);
+      batchProcessingMillis.addValue(processingNanos / 1000000);
+    }
+
+    /**
+     * The elements buffered for one window.
+     */
+    private class Batch {
+      private final List<T> elements = new ArrayList<>();
+      private final long startNanos;
+      private long bytes;
+      private ProcessContext context;
+
+      Batch(long startNanos) {
+        this.startNanos = startNanos;
+      }
+    }
+  }
+
+  /**
+   * Adapts the batch size to the measured processing time of batches. It keeps a moving
+   * average of the processing time per element and targets the size whose batches take the
+   * target duration, growing at most twofold per batch so that a few cheap batches do not
+   * jump straight to the maximum.
+   */
+  @VisibleForTesting
+  static class BatchSizeEstimator {
+    /** The weight of the latest batch in the moving average. */
+    private static final double SMOOTHING = 0.3;
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long targetBatchNanos;
+
+    private int batchSize;
+    private double nanosPerElement = -1;
+
+    BatchSizeEstimator(int minBatchSize, int maxBatchSize, long targetBatchNanos) {
+      this.minBatchSize = minBatchSize;
+      this.maxBatchSize = maxBatchSize;
+      this.targetBatchNanos = targetBatchNanos;
+      this.batchSize = minBatchSize;
+    }
+
+    /**
+     * Returns the current target batch size.
+     */
+    int getBatchSize() {
+      return batchSize;
+    }
+
+    /**
+     * Records that a batch of {@code size} elements took {@code nanos} to process.
+     */
+    void update(int size, long nanos) {
+      double sample = (double) Math.max(nanos, 1) / size;
+      nanosPerElement = nanosPerElement < 0
+          ? sample : SMOOTHING * sample + (1 - SMOOTHING) * nanosPerElement;
+      double idealSize = targetBatchNanos / nanosPerElement;
+      long nextSize = (long) Math.min(idealSize, 2.0 * batchSize);
+      batchSize = (int) Math.max(minBatchSize, Math.min(maxBatchSize, nextSize));
+    }
+  }
+}
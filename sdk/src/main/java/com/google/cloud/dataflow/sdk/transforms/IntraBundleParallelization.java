@@ -28,10 +28,18 @@ import com.google.cloud.dataflow.sdk.values.TupleTag;
 import com.google.cloud.dataflow.sdk.values.TypeDescriptor;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.joda.time.Instant;
 
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -64,6 +72,16 @@ import java.util.concurrent.atomic.AtomicReference;
  * <p>An uncaught exception from the wrapped {@link DoFn} will result in the exception
  * being rethrown in later calls to {@link MultiThreadedIntraBundleProcessingDoFn#processElement}
  * or a call to {@link MultiThreadedIntraBundleProcessingDoFn#finishBundle}.
+ *
+ * <p>When elements wait on non-blocking I/O, such as an asynchronous RPC client, an
+ * {@link AsyncDoFn} avoids tying up a thread per element. Its {@code processElement} returns a
+ * future of the outputs, and up to a configurable number of elements are in flight at once:
+ * <pre>{@code
+ * PCollection<T> data = ...;
+ * data.apply(
+ *   IntraBundleParallelization.ofAsync(new MyAsyncDoFn())
+ *                             .withMaxInFlightElements(100)));
+ * }</pre>
  */
 public class IntraBundleParallelization {
   /**
@@ -84,6 +102,18 @@ public class IntraBundleParallelization {
     return new Unbound().withMaxParallelism(maxParallelism);
   }
 
+  /**
+   * Creates a {@link IntraBundleParallelization} {@link PTransform} for the given
+   * {@link AsyncDoFn}, which keeps multiple elements in flight without a thread per element.
+   *
+   * <p>Note that the specified {@code asyncFn} needs to be thread safe if the futures it
+   * returns touch its state.
+   */
+  public static <InputT, OutputT> AsyncBound<InputT, OutputT> ofAsync(
+      AsyncDoFn<InputT, OutputT> asyncFn) {
+    return new AsyncBound<>(asyncFn, DEFAULT_MAX_IN_FLIGHT_ELEMENTS, false);
+  }
+
   /**
    * An incomplete {@code IntraBundleParallelization} transform, with unbound input/output types.
    *
@@ -339,8 +369,279 @@ public class IntraBundleParallelization {
     private transient AtomicReference<Throwable> failure;
   }
 
+  /**
+   * A function that processes each element asynchronously, returning a future of its outputs.
+   * The outputs are emitted in the element's window and with its timestamp once the future
+   * completes.
+   *
+   * @see IntraBundleParallelization#ofAsync(AsyncDoFn)
+   *
+   * @param <InputT> the type of the (main) input elements
+   * @param <OutputT> the type of the (main) output elements
+   */
+  public abstract static class AsyncDoFn<InputT, OutputT> implements Serializable {
+    /**
+     * Prepares this {@code AsyncDoFn} instance for processing a bundle of elements, for
+     * example by creating an asynchronous client.
+     */
+    public void startBundle(PipelineOptions options) throws Exception {
+    }
+
+    /**
+     * Starts processing {@code element} and returns a future of its outputs. A {@code null}
+     * result produces no outputs, and a failed future fails the bundle.
+     *
+     * <p>Called on the bundle thread, so it should not block. If the returned future is a
+     * Guava {@code ListenableFuture}, a full bundle waits for whichever element completes
+     * first rather than for the oldest one.
+     */
+    public abstract Future<? extends Iterable<OutputT>> processElement(InputT element)
+        throws Exception;
+
+    /**
+     * Finishes a bundle, after the futures of all its elements have completed and their outputs
+     * have been emitted.
+     */
+    public void finishBundle(PipelineOptions options) throws Exception {
+    }
+
+    /**
+     * Returns a {@link TypeDescriptor} capturing what is known statically about the input type
+     * of this {@code AsyncDoFn} instance's most-derived class.
+     */
+    protected TypeDescriptor<InputT> getInputTypeDescriptor() {
+      return new TypeDescriptor<InputT>(getClass()) {};
+    }
+
+    /**
+     * Returns a {@link TypeDescriptor} capturing what is known statically about the output type
+     * of this {@code AsyncDoFn} instance's most-derived class.
+     */
+    protected TypeDescriptor<OutputT> getOutputTypeDescriptor() {
+      return new TypeDescriptor<OutputT>(getClass()) {};
+    }
+  }
+
+  /**
+   * A {@code PTransform} that, when applied to a {@code PCollection<InputT>},
+   * invokes a user-specified {@code AsyncDoFn<InputT, OutputT>} on all its elements,
+   * with all its outputs collected into an output {@code PCollection<OutputT>}.
+   *
+   * @param <InputT> the type of the (main) input {@code PCollection} elements
+   * @param <OutputT> the type of the (main) output {@code PCollection} elements
+   */
+  public static class AsyncBound<InputT, OutputT>
+      extends PTransform<PCollection<? extends InputT>, PCollection<OutputT>> {
+    private final AsyncDoFn<InputT, OutputT> asyncFn;
+    private final int maxInFlightElements;
+    private final boolean orderedOutput;
+
+    AsyncBound(AsyncDoFn<InputT, OutputT> asyncFn, int maxInFlightElements,
+        boolean orderedOutput) {
+      Preconditions.checkArgument(maxInFlightElements > 0,
+          "Expected in-flight elements greater than zero, received %s.", maxInFlightElements);
+      this.asyncFn = asyncFn;
+      this.maxInFlightElements = maxInFlightElements;
+      this.orderedOutput = orderedOutput;
+    }
+
+    /**
+     * Returns a new {@link IntraBundleParallelization} {@link PTransform} like this one
+     * with the specified maximum number of elements whose futures have not been completed
+     * and emitted yet.
+     */
+    public AsyncBound<InputT, OutputT> withMaxInFlightElements(int maxInFlightElements) {
+      return new AsyncBound<>(asyncFn, maxInFlightElements, orderedOutput);
+    }
+
+    /**
+     * Returns a new {@link IntraBundleParallelization} {@link PTransform} like this one
+     * that emits the outputs of each bundle's elements in the order the elements arrived,
+     * rather than in the order their futures complete.
+     *
+     * <p>A slow element then holds back the outputs of the elements after it, and counts them
+     * as in flight until it completes.
+     */
+    public AsyncBound<InputT, OutputT> withOrderedOutput() {
+      return new AsyncBound<>(asyncFn, maxInFlightElements, true);
+    }
+
+    @Override
+    public PCollection<OutputT> apply(PCollection<? extends InputT> input) {
+      return input.apply(ParDo.of(
+          new AsyncIntraBundleProcessingDoFn<>(asyncFn, maxInFlightElements, orderedOutput)));
+    }
+  }
+
+  /**
+   * A {@code DoFn} wrapper for an {@link AsyncDoFn}.
+   *
+   * <p>Only the bundle thread touches the pending elements: it polls their futures during later
+   * calls to {@code processElement} and emits the outputs of those that are done. When too many
+   * are in flight, it waits on a completion signal from listenable futures, or else on the
+   * oldest element. {@code finishBundle} waits for every pending
+   * element before finishing the bundle. A failed future is rethrown
+   * by the call that collects it; {@code finishBundle} still waits for the remaining elements
+   * before rethrowing, so no future is left running once the bundle is done.
+   *
+   * @see IntraBundleParallelization#ofAsync(AsyncDoFn)
+   *
+   * @param <InputT> the type of the (main) input elements
+   * @param <OutputT> the type of the (main) output elements
+   */
+  public static class AsyncIntraBundleProcessingDoFn<InputT, OutputT>
+      extends DoFn<InputT, OutputT> {
+
+    public AsyncIntraBundleProcessingDoFn(AsyncDoFn<InputT, OutputT> asyncFn,
+        int maxInFlightElements, boolean orderedOutput) {
+      Preconditions.checkArgument(maxInFlightElements > 0,
+          "Expected in-flight elements greater than zero, received %s.", maxInFlightElements);
+      this.asyncFn = asyncFn;
+      this.maxInFlightElements = maxInFlightElements;
+      this.orderedOutput = orderedOutput;
+    }
+
+    @Override
+    public void startBundle(Context c) throws Exception {
+      asyncFn.startBundle(c.getPipelineOptions());
+
+      pending = new ArrayDeque<>();
+      completions = new Semaphore(0);
+      numUnlistenable = 0;
+    }
+
+    @Override
+    public void processElement(ProcessContext c) throws Exception {
+      emitCompleted();
+      while (pending.size() >= maxInFlightElements) {
+        if (orderedOutput || numUnlistenable > 0) {
+          emit(pending.poll());
+        } else {
+          // Permits of elements that were already emitted only cause an extra pass.
+          completions.acquire();
+          emitCompleted();
+        }
+      }
+
+      PendingElement element = new PendingElement(c, asyncFn.processElement(c.element()));
+      pending.add(element);
+      if (element.future instanceof ListenableFuture) {
+        ((ListenableFuture<?>) element.future).addListener(new Runnable() {
+          @Override
+          public void run() {
+            completions.release();
+          }
+        }, MoreExecutors.directExecutor());
+      } else {
+        numUnlistenable++;
+      }
+    }
+
+    @Override
+    public void finishBundle(Context c) throws Exception {
+      RuntimeException failure = null;
+      while (!pending.isEmpty()) {
+        try {
+          emit(pending.poll());
+        } catch (RuntimeException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      asyncFn.finishBundle(c.getPipelineOptions());
+    }
+
+    @Override
+    protected TypeDescriptor<InputT> getInputTypeDescriptor() {
+      return asyncFn.getInputTypeDescriptor();
+    }
+
+    @Override
+    protected TypeDescriptor<OutputT> getOutputTypeDescriptor() {
+      return asyncFn.getOutputTypeDescriptor();
+    }
+
+    /**
+     * Emits the outputs of the elements whose futures are done, without blocking. With ordered
+     * output, stops at the first element that is not done.
+     */
+    private void emitCompleted() {
+      if (orderedOutput) {
+        while (!pending.isEmpty() && pending.peek().future.isDone()) {
+          emit(pending.poll());
+        }
+      } else {
+        for (Iterator<PendingElement> iter = pending.iterator(); iter.hasNext(); ) {
+          PendingElement element = iter.next();
+          if (element.future.isDone()) {
+            iter.remove();
+            emit(element);
+          }
+        }
+      }
+    }
+
+    /**
+     * Waits for the future of {@code element} and emits its outputs to its context.
+     */
+    private void emit(PendingElement element) {
+      if (!(element.future instanceof ListenableFuture)) {
+        numUnlistenable--;
+      }
+      Iterable<OutputT> outputs;
+      try {
+        outputs = element.future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for an element", e);
+      } catch (ExecutionException e) {
+        throw Throwables.propagate(e.getCause());
+      }
+      if (outputs != null) {
+        for (OutputT output : outputs) {
+          element.context.output(output);
+        }
+      }
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * An element whose outputs have not been emitted yet, with the context to emit them to.
+     */
+    private class PendingElement {
+      private final ProcessContext context;
+      private final Future<? extends Iterable<OutputT>> future;
+
+      PendingElement(ProcessContext context, Future<? extends Iterable<OutputT>> future) {
+        this.context = context;
+        this.future = future;
+      }
+    }
+
+    private final AsyncDoFn<InputT, OutputT> asyncFn;
+    private final int maxInFlightElements;
+    private final boolean orderedOutput;
+
+    /** Elements whose outputs have not been emitted yet, in arrival order. */
+    private transient Queue<PendingElement> pending;
+    /** Released by the listenable futures of pending elements as they complete. */
+    private transient Semaphore completions;
+    /** The number of pending elements whose futures cannot signal {@link #completions}. */
+    private transient int numUnlistenable;
+  }
+
   /**
    * Default maximum for number of concurrent elements to process.
    */
   private static final int DEFAULT_MAX_PARALLELISM = 16;
+
+  /**
+   * Default maximum for number of in-flight elements of an {@link AsyncDoFn}.
+   */
+  private static final int DEFAULT_MAX_IN_FLIGHT_ELEMENTS = 64;
 }
@@ -0,0 +1,1028 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.transforms;
+
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.CoderException;
+import com.google.cloud.dataflow.sdk.coders.CoderRegistry;
+import com.google.cloud.dataflow.sdk.coders.CustomCoder;
+import com.google.cloud.dataflow.sdk.transforms.Combine.AccumulatingCombineFn;
+import com.google.cloud.dataflow.sdk.transforms.Combine.AccumulatingCombineFn.Accumulator;
+import com.google.cloud.dataflow.sdk.util.VarInt;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.common.base.Preconditions;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * {@code PTransform}s and {@code CombineFn}s for computing approximate
+ * {@code N}-tiles with a compacting sketch, as an alternative to
+ * {@link ApproximateQuantiles}.
+ *
+ * <p>The output is the same as that of {@link ApproximateQuantiles}: a
+ * {@code List} of size {@code numQuantiles} containing the minimum value,
+ * {@code numQuantiles-2} evenly spaced intermediate values, and the maximum
+ * value, in sorted order.
+ *
+ * <p>The quantiles are estimated using the sketch described here:
+ * <pre>
+ *   [KLL16] Karnin, Lang &amp; Liberty, "Optimal Quantile Approximation in
+ *   Streams", Proc. 2016 IEEE FOCS, p 71-78, October 2016.
+ *   https://arxiv.org/abs/1603.05346
+ * </pre>
+ *
+ * <p>The sketch keeps a stack of compactors whose capacities shrink
+ * geometrically from the top level down, so that for a given accuracy it
+ * retains far fewer values than the buffers of {@link ApproximateQuantiles},
+ * and two sketches are merged by concatenating their compactors rather than
+ * by collapsing sorted buffers. {@link #ofLongs} and {@link #ofDoubles}
+ * return combiners that keep their values in primitive arrays and encode
+ * their accumulators compactly, which makes them well suited to
+ * {@link Combine.PerKey} over many keys.
+ */
+public class KllQuantiles {
+  private KllQuantiles() {
+    // do not instantiate
+  }
+
+  /**
+   * Like {@link ApproximateQuantiles#globally(int, Comparator)}, but uses
+   * {@link KllQuantilesCombineFn}.
+   */
+  public static <T, ComparatorT extends Comparator<T> & Serializable>
+      PTransform<PCollection<T>, PCollection<List<T>>> globally(
+          int numQuantiles, ComparatorT compareFn) {
+    return Combine.globally(KllQuantilesCombineFn.create(numQuantiles, compareFn));
+  }
+
+  /**
+   * Like {@link ApproximateQuantiles#globally(int)}, but uses
+   * {@link KllQuantilesCombineFn}.
+   */
+  public static <T extends Comparable<T>>
+      PTransform<PCollection<T>, PCollection<List<T>>> globally(int numQuantiles) {
+    return Combine.globally(KllQuantilesCombineFn.<T>create(numQuantiles));
+  }
+
+  /**
+   * Like {@link ApproximateQuantiles#perKey(int, Comparator)}, but uses
+   * {@link KllQuantilesCombineFn}.
+   */
+  public static <K, V, ComparatorT extends Comparator<V> & Serializable>
+      PTransform<PCollection<KV<K, V>>, PCollection<KV<K, List<V>>>>
+      perKey(int numQuantiles, ComparatorT compareFn) {
+    return Combine.perKey(
+        KllQuantilesCombineFn.create(numQuantiles, compareFn).<K>asKeyedFn());
+  }
+
+  /**
+   * Like {@link ApproximateQuantiles#perKey(int)}, but uses
+   * {@link KllQuantilesCombineFn}.
+   */
+  public static <K, V extends Comparable<V>>
+      PTransform<PCollection<KV<K, V>>, PCollection<KV<K, List<V>>>>
+      perKey(int numQuantiles) {
+    return Combine.perKey(
+        KllQuantilesCombineFn.<V>create(numQuantiles).<K>asKeyedFn());
+  }
+
+  /**
+   * Returns a combiner of {@code Long}s that keeps its values in primitive
+   * arrays, with the default error bound of {@code 1 / numQuantiles}.
+   */
+  public static LongKllQuantilesCombineFn ofLongs(int numQuantiles) {
+    return new LongKllQuantilesCombineFn(numQuantiles, kForEpsilon(1.0 / numQuantiles));
+  }
+
+  /**
+   * Returns a combiner of {@code Double}s that keeps its values in primitive
+   * arrays, with the default error bound of {@code 1 / numQuantiles}.
+   */
+  public static DoubleKllQuantilesCombineFn ofDoubles(int numQuantiles) {
+    return new DoubleKllQuantilesCombineFn(numQuantiles, kForEpsilon(1.0 / numQuantiles));
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * The smallest size of the top compactor. Inputs with at most this many
+   * values are summarized exactly.
+   */
+  static final int MIN_K = 200;
+
+  /** The smallest capacity of a compactor below the top one. */
+  private static final int MIN_LEVEL_CAPACITY = 8;
+
+  /** The ratio of the capacities of consecutive compactors. */
+  private static final double LEVEL_CAPACITY_RATIO = 2.0 / 3.0;
+
+  /**
+   * Returns the size of the top compactor for which the rank error is at
+   * most {@code epsilon}, using the empirical fit of the error of the
+   * sketch from the DataSketches library.
+   */
+  static int kForEpsilon(double epsilon) {
+    Preconditions.checkArgument(epsilon > 0 && epsilon < 1,
+        "epsilon must be in (0, 1), but was %s", epsilon);
+    return Math.max(MIN_K, (int) Math.ceil(Math.pow(2.296 / epsilon, 1 / 0.9723)));
+  }
+
+  /**
+   * The {@code KllQuantilesCombineFn} combiner computes the same output as
+   * {@link ApproximateQuantiles.ApproximateQuantilesCombineFn}, using a
+   * compacting sketch of the values.
+   *
+   * <p>The default error bound is {@code 1 / numQuantiles}. Unlike that of
+   * {@link ApproximateQuantiles}, the bound does not depend on the number of
+   * values combined, but it holds with high probability (99%) rather than
+   * always. The values kept are chosen pseudorandomly from the state of the
+   * sketch, so the output for a given sequence of inputs and merges is
+   * deterministic. See
+   * {@link #withEpsilon} for how to adjust the bound.
+   *
+   * @param <T> the type of the values being combined
+   */
+  public static class KllQuantilesCombineFn
+      <T, ComparatorT extends Comparator<T> & Serializable>
+      extends AccumulatingCombineFn<T, ObjectSketch<T, ComparatorT>, List<T>> {
+
+    private final ComparatorT compareFn;
+    private final int numQuantiles;
+    private final int k;
+
+    private KllQuantilesCombineFn(int numQuantiles, ComparatorT compareFn, int k) {
+      Preconditions.checkArgument(numQuantiles >= 2);
+      this.numQuantiles = numQuantiles;
+      this.compareFn = compareFn;
+      this.k = k;
+    }
+
+    /**
+     * Returns a combiner with the given {@code compareFn} and desired number
+     * of quantiles, and an error bound of {@code 1 / numQuantiles}.
+     *
+     * <p>The {@code Comparator} must be {@code Serializable}.
+     */
+    public static <T, ComparatorT extends Comparator<T> & Serializable>
+        KllQuantilesCombineFn<T, ComparatorT> create(
+            int numQuantiles, ComparatorT compareFn) {
+      return new KllQuantilesCombineFn<>(
+          numQuantiles, compareFn, kForEpsilon(1.0 / numQuantiles));
+    }
+
+    /**
+     * Like {@link #create(int, Comparator)}, but sorts values using their natural ordering.
+     */
+    public static <T extends Comparable<T>>
+        KllQuantilesCombineFn<T, Top.Largest<T>> create(int numQuantiles) {
+      return create(numQuantiles, new Top.Largest<T>());
+    }
+
+    /**
+     * Returns a {@code KllQuantilesCombineFn} that's like this one except
+     * that its error bound is {@code epsilon}. Does not modify this combiner.
+     *
+     * <p>If one considers the input as a sorted list x_1, ..., x_N, then with
+     * high probability the distance between each exact quantile x_c and its
+     * approximation x_c' is bounded by {@code |c - c'| < epsilon * N}.
+     */
+    public KllQuantilesCombineFn<T, ComparatorT> withEpsilon(double epsilon) {
+      return new KllQuantilesCombineFn<>(numQuantiles, compareFn, kForEpsilon(epsilon));
+    }
+
+    @Override
+    public ObjectSketch<T, ComparatorT> createAccumulator() {
+      return new ObjectSketch<>(compareFn, numQuantiles, k);
+    }
+
+    @Override
+    public Coder<ObjectSketch<T, ComparatorT>> getAccumulatorCoder(
+        CoderRegistry registry, Coder<T> elementCoder) {
+      return new ObjectSketchCoder<>(compareFn, elementCoder);
+    }
+  }
+
+  /**
+   * A {@link KllQuantilesCombineFn} of {@code Long}s that keeps its values in
+   * primitive arrays.
+   */
+  public static class LongKllQuantilesCombineFn
+      extends AccumulatingCombineFn<Long, LongSketch, List<Long>> {
+    private final int numQuantiles;
+    private final int k;
+
+    private LongKllQuantilesCombineFn(int numQuantiles, int k) {
+      Preconditions.checkArgument(numQuantiles >= 2);
+      this.numQuantiles = numQuantiles;
+      this.k = k;
+    }
+
+    /**
+     * Returns a {@code LongKllQuantilesCombineFn} that's like this one except
+     * that its error bound is {@code epsilon}. Does not modify this combiner.
+     */
+    public LongKllQuantilesCombineFn withEpsilon(double epsilon) {
+      return new LongKllQuantilesCombineFn(numQuantiles, kForEpsilon(epsilon));
+    }
+
+    @Override
+    public LongSketch createAccumulator() {
+      return new LongSketch(numQuantiles, k);
+    }
+
+    @Override
+    public Coder<LongSketch> getAccumulatorCoder(
+        CoderRegistry registry, Coder<Long> elementCoder) {
+      return new LongSketchCoder();
+    }
+  }
+
+  /**
+   * A {@link KllQuantilesCombineFn} of {@code Double}s that keeps its values
+   * in primitive arrays.
+   */
+  public static class DoubleKllQuantilesCombineFn
+      extends AccumulatingCombineFn<Double, DoubleSketch, List<Double>> {
+    private final int numQuantiles;
+    private final int k;
+
+    private DoubleKllQuantilesCombineFn(int numQuantiles, int k) {
+      Preconditions.checkArgument(numQuantiles >= 2);
+      this.numQuantiles = numQuantiles;
+      this.k = k;
+    }
+
+    /**
+     * Returns a {@code DoubleKllQuantilesCombineFn} that's like this one
+     * except that its error bound is {@code epsilon}. Does not modify this
+     * combiner.
+     */
+    public DoubleKllQuantilesCombineFn withEpsilon(double epsilon) {
+      return new DoubleKllQuantilesCombineFn(numQuantiles, kForEpsilon(epsilon));
+    }
+
+    @Override
+    public DoubleSketch createAccumulator() {
+      return new DoubleSketch(numQuantiles, k);
+    }
+
+    @Override
+    public Coder<DoubleSketch> getAccumulatorCoder(
+        CoderRegistry registry, Coder<Double> elementCoder) {
+      return new DoubleSketchCoder();
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * The compactors of the sketch, independent of how their values are stored.
+   *
+   * <p>Level {@code h} holds values of weight {@code 2^h}. When the sketch
+   * holds as many values as the compactors have capacity for, the lowest
+   * level that is at capacity is sorted, and one of each pair of adjacent
+   * values is promoted to the level above, choosing pseudorandomly between
+   * the smaller and the larger values of the pairs.
+   */
+  abstract static class KllSketch<T, SketchT extends KllSketch<T, SketchT>>
+      implements Accumulator<T, SketchT, List<T>> {
+    final int numQuantiles;
+    final int k;
+
+    /** The number of values added to the sketch. */
+    long count = 0;
+
+    /** The number of values held by each level. */
+    int[] levelSizes = new int[1];
+
+    /** The number of values held by all the levels. */
+    int numRetained = 0;
+
+    /** The number of values the levels can hold before one must be compacted. */
+    private int totalCapacity;
+
+    KllSketch(int numQuantiles, int k) {
+      this.numQuantiles = numQuantiles;
+      this.k = k;
+      this.totalCapacity = computeTotalCapacity();
+    }
+
+    int numLevels() {
+      return levelSizes.length;
+    }
+
+    /** Ensures that {@code level} has room for {@code capacity} values. */
+    abstract void ensureCapacity(int level, int capacity);
+
+    /** Sorts the values in {@code level}. */
+    abstract void sortLevel(int level);
+
+    /**
+     * Appends the values at {@code start + offset + 2 * i} of {@code level},
+     * for {@code 0 <= i < numPairs}, to the level above it.
+     */
+    abstract void promote(int level, int start, int numPairs, int offset);
+
+    /** Appends the values of {@code level} in {@code other} to the same level of this. */
+    abstract void appendLevel(SketchT other, int level);
+
+    /** Merges the minimum and maximum of {@code other} into this one. */
+    abstract void mergeMinMax(SketchT other);
+
+    /** Adds storage for one more level. */
+    abstract void addLevelStorage();
+
+    /**
+     * Counts a value that the subclass has stored in level 0, compacting if
+     * the sketch is now full.
+     */
+    void added() {
+      count++;
+      numRetained++;
+      levelSizes[0]++;
+      compactIfNeeded();
+    }
+
+    public boolean isEmpty() {
+      return count == 0;
+    }
+
+    @Override
+    public void mergeAccumulator(SketchT other) {
+      if (other.isEmpty()) {
+        return;
+      }
+      mergeMinMax(other);
+      while (numLevels() < other.numLevels()) {
+        addLevel();
+      }
+      for (int level = 0; level < other.numLevels(); level++) {
+        int otherSize = other.levelSizes[level];
+        if (otherSize > 0) {
+          ensureCapacity(level, levelSizes[level] + otherSize);
+          appendLevel(other, level);
+          levelSizes[level] += otherSize;
+          numRetained += otherSize;
+        }
+      }
+      count += other.count;
+      compactIfNeeded();
+    }
+
+    private void compactIfNeeded() {
+      while (numRetained >= totalCapacity) {
+        int level = 0;
+        while (levelSizes[level] < levelCapacity(level)) {
+          level++;
+        }
+        compact(level);
+      }
+    }
+
+    private void compact(int level) {
+      if (level == numLevels() - 1) {
+        addLevel();
+      }
+      sortLevel(level);
+      int size = levelSizes[level];
+      // An odd value out stays behind, as the smallest value in the level.
+      int start = size & 1;
+      int numPairs = size >>> 1;
+      ensureCapacity(level + 1, levelSizes[level + 1] + numPairs);
+      promote(level, start, numPairs, randomBit(level));
+      levelSizes[level + 1] += numPairs;
+      levelSizes[level] = start;
+      numRetained -= numPairs;
+    }
+
+    void addLevel() {
+      levelSizes = Arrays.copyOf(levelSizes, levelSizes.length + 1);
+      addLevelStorage();
+      totalCapacity = computeTotalCapacity();
+    }
+
+    int levelCapacity(int level) {
+      int depth = numLevels() - 1 - level;
+      return Math.max(
+          MIN_LEVEL_CAPACITY, (int) Math.ceil(k * Math.pow(LEVEL_CAPACITY_RATIO, depth)));
+    }
+
+    private int computeTotalCapacity() {
+      int total = 0;
+      for (int level = 0; level < numLevels(); level++) {
+        total += levelCapacity(level);
+      }
+      return total;
+    }
+
+    /**
+     * Returns a pseudorandom bit derived from the state of the sketch, so that
+     * the values promoted depend only on the encoded state and the inputs.
+     */
+    private int randomBit(int level) {
+      long hash = (count * 0x9E3779B97F4A7C15L + numRetained) * 0xC2B2AE3D27D4EB4FL + level;
+      hash ^= hash >>> 31;
+      hash *= 0xD6E8FEB86659FD93L;
+      hash ^= hash >>> 32;
+      return (int) (hash & 1);
+    }
+
+    /**
+     * Returns the indices of the {@code numQuantiles - 2} intermediate
+     * quantiles among values sorted across all levels with the given
+     * {@code weights}, which are replaced by their cumulative sums.
+     */
+    int[] quantileIndices(long[] weights) {
+      for (int i = 1; i < weights.length; i++) {
+        weights[i] += weights[i - 1];
+      }
+      int[] indices = new int[numQuantiles - 2];
+      int index = 0;
+      for (int j = 0; j < indices.length; j++) {
+        double target = (j + 1) * (count - 1.0) / (numQuantiles - 1);
+        while (index < weights.length - 1 && weights[index] <= target) {
+          index++;
+        }
+        indices[j] = index;
+      }
+      return indices;
+    }
+
+    /** Returns the weight of each value in {@code level}. */
+    static long weight(int level) {
+      return 1L << level;
+    }
+  }
+
+  /**
+   * A sketch of values of any type, ordered by a {@code Comparator}.
+   */
+  static class ObjectSketch<T, ComparatorT extends Comparator<T> & Serializable>
+      extends KllSketch<T, ObjectSketch<T, ComparatorT>> {
+    private final ComparatorT compareFn;
+    private Object[][] levels = new Object[1][];
+    @Nullable private T min;
+    @Nullable private T max;
+
+    ObjectSketch(ComparatorT compareFn, int numQuantiles, int k) {
+      super(numQuantiles, k);
+      this.compareFn = compareFn;
+      levels[0] = new Object[MIN_LEVEL_CAPACITY];
+    }
+
+    @Override
+    public void addInput(T value) {
+      if (isEmpty()) {
+        min = max = value;
+      } else if (compareFn.compare(value, min) < 0) {
+        min = value;
+      } else if (compareFn.compare(value, max) > 0) {
+        max = value;
+      }
+      ensureCapacity(0, levelSizes[0] + 1);
+      levels[0][levelSizes[0]] = value;
+      added();
+    }
+
+    @Override
+    void ensureCapacity(int level, int capacity) {
+      if (levels[level].length < capacity) {
+        levels[level] = Arrays.copyOf(
+            levels[level], Math.max(capacity, levels[level].length * 2));
+      }
+    }
+
+    @Override
+    void sortLevel(int level) {
+      Arrays.sort(items(level), 0, levelSizes[level], compareFn);
+    }
+
+    @Override
+    void promote(int level, int start, int numPairs, int offset) {
+      Object[] from = levels[level];
+      Object[] to = levels[level + 1];
+      int toSize = levelSizes[level + 1];
+      for (int i = 0; i < numPairs; i++) {
+        to[toSize + i] = from[start + offset + 2 * i];
+      }
+      Arrays.fill(from, start, levelSizes[level], null);
+    }
+
+    @Override
+    void appendLevel(ObjectSketch<T, ComparatorT> other, int level) {
+      System.arraycopy(other.levels[level], 0, levels[level], levelSizes[level],
+          other.levelSizes[level]);
+    }
+
+    @Override
+    void mergeMinMax(ObjectSketch<T, ComparatorT> other) {
+      if (min == null || compareFn.compare(other.min, min) < 0) {
+        min = other.min;
+      }
+      if (max == null || compareFn.compare(other.max, max) > 0) {
+        max = other.max;
+      }
+    }
+
+    @Override
+    void addLevelStorage() {
+      levels = Arrays.copyOf(levels, levels.length + 1);
+      levels[levels.length - 1] = new Object[MIN_LEVEL_CAPACITY];
+    }
+
+    @SuppressWarnings("unchecked")
+    private T[] items(int level) {
+      return (T[]) levels[level];
+    }
+
+    /**
+     * Outputs numQuantiles elements consisting of the minimum, maximum, and
+     * numQuantiles - 2 evenly spaced intermediate elements.
+     *
+     * <p>Returns the empty list if no elements have been added.
+     */
+    @Override
+    public List<T> extractOutput() {
+      List<T> quantiles = new ArrayList<>(numQuantiles);
+      if (isEmpty()) {
+        return quantiles;
+      }
+      T[] sorted = Arrays.copyOf(items(0), numRetained);
+      long[] weights = new long[numRetained];
+      int length = 0;
+      for (int level = 0; level < numLevels(); level++) {
+        sortLevel(level);
+        T[] items = items(level);
+        long weight = weight(level);
+        // Merges the sorted level into the sorted prefix, from the back.
+        int i = length - 1;
+        int j = levelSizes[level] - 1;
+        for (int out = length + levelSizes[level] - 1; j >= 0; out--) {
+          if (i >= 0 && compareFn.compare(sorted[i], items[j]) > 0) {
+            sorted[out] = sorted[i];
+            weights[out] = weights[i--];
+          } else {
+            sorted[out] = items[j--];
+            weights[out] = weight;
+          }
+        }
+        length += levelSizes[level];
+      }
+      quantiles.add(min);
+      for (int index : quantileIndices(weights)) {
+        quantiles.add(sorted[index]);
+      }
+      quantiles.add(max);
+      return quantiles;
+    }
+  }
+
+  /**
+   * A sketch of {@code long} values, held in primitive arrays.
+   */
+  static class LongSketch extends KllSketch<Long, LongSketch> {
+    private long[][] levels = new long[1][MIN_LEVEL_CAPACITY];
+    private long min;
+    private long max;
+
+    LongSketch(int numQuantiles, int k) {
+      super(numQuantiles, k);
+    }
+
+    @Override
+    public void addInput(Long input) {
+      long value = input;
+      if (isEmpty()) {
+        min = max = value;
+      } else {
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+      }
+      ensureCapacity(0, levelSizes[0] + 1);
+      levels[0][levelSizes[0]] = value;
+      added();
+    }
+
+    @Override
+    void ensureCapacity(int level, int capacity) {
+      if (levels[level].length < capacity) {
+        levels[level] = Arrays.copyOf(
+            levels[level], Math.max(capacity, levels[level].length * 2));
+      }
+    }
+
+    @Override
+    void sortLevel(int level) {
+      Arrays.sort(levels[level], 0, levelSizes[level]);
+    }
+
+    @Override
+    void promote(int level, int start, int numPairs, int offset) {
+      long[] from = levels[level];
+      long[] to = levels[level + 1];
+      int toSize = levelSizes[level + 1];
+      for (int i = 0; i < numPairs; i++) {
+        to[toSize + i] = from[start + offset + 2 * i];
+      }
+    }
+
+    @Override
+    void appendLevel(LongSketch other, int level) {
+      System.arraycopy(other.levels[level], 0, levels[level], levelSizes[level],
+          other.levelSizes[level]);
+    }
+
+    @Override
+    void mergeMinMax(LongSketch other) {
+      if (isEmpty()) {
+        min = other.min;
+        max = other.max;
+      } else {
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+      }
+    }
+
+    @Override
+    void addLevelStorage() {
+      levels = Arrays.copyOf(levels, levels.length + 1);
+      levels[levels.length - 1] = new long[MIN_LEVEL_CAPACITY];
+    }
+
+    @Override
+    public List<Long> extractOutput() {
+      List<Long> quantiles = new ArrayList<>(numQuantiles);
+      if (isEmpty()) {
+        return quantiles;
+      }
+      long[] sorted = new long[numRetained];
+      long[] weights = new long[numRetained];
+      int length = 0;
+      for (int level = 0; level < numLevels(); level++) {
+        sortLevel(level);
+        long[] items = levels[level];
+        long weight = weight(level);
+        int i = length - 1;
+        int j = levelSizes[level] - 1;
+        for (int out = length + levelSizes[level] - 1; j >= 0; out--) {
+          if (i >= 0 && sorted[i] > items[j]) {
+            sorted[out] = sorted[i];
+            weights[out] = weights[i--];
+          } else {
+            sorted[out] = items[j--];
+            weights[out] = weight;
+          }
+        }
+        length += levelSizes[level];
+      }
+      quantiles.add(min);
+      for (int index : quantileIndices(weights)) {
+        quantiles.add(sorted[index]);
+      }
+      quantiles.add(max);
+      return quantiles;
+    }
+  }
+
+  /**
+   * A sketch of {@code double} values, held in primitive arrays. Values are
+   * ordered as by {@link Double#compare}.
+   */
+  static class DoubleSketch extends KllSketch<Double, DoubleSketch> {
+    private double[][] levels = new double[1][MIN_LEVEL_CAPACITY];
+    private double min;
+    private double max;
+
+    DoubleSketch(int numQuantiles, int k) {
+      super(numQuantiles, k);
+    }
+
+    @Override
+    public void addInput(Double input) {
+      double value = input;
+      if (isEmpty()) {
+        min = max = value;
+      } else if (Double.compare(value, min) < 0) {
+        min = value;
+      } else if (Double.compare(value, max) > 0) {
+        max = value;
+      }
+      ensureCapacity(0, levelSizes[0] + 1);
+      levels[0][levelSizes[0]] = value;
+      added();
+    }
+
+    @Override
+    void ensureCapacity(int level, int capacity) {
+      if (levels[level].length < capacity) {
+        levels[level] = Arrays.copyOf(
+            levels[level], Math.max(capacity, levels[level].length * 2));
+      }
+    }
+
+    @Override
+    void sortLevel(int level) {
+      Arrays.sort(levels[level], 0, levelSizes[level]);
+    }
+
+    @Override
+    void promote(int level, int start, int numPairs, int offset) {
+      double[] from = levels[level];
+      double[] to = levels[level + 1];
+      int toSize = levelSizes[level + 1];
+      for (int i = 0; i < numPairs; i++) {
+        to[toSize + i] = from[start + offset + 2 * i];
+      }
+    }
+
+    @Override
+    void appendLevel(DoubleSketch other, int level) {
+      System.arraycopy(other.levels[level], 0, levels[level], levelSizes[level],
+          other.levelSizes[level]);
+    }
+
+    @Override
+    void mergeMinMax(DoubleSketch other) {
+      if (isEmpty() || Double.compare(other.min, min) < 0) {
+        min = other.min;
+      }
+      if (isEmpty() || Double.compare(other.max, max) > 0) {
+        max = other.max;
+      }
+    }
+
+    @Override
+    void addLevelStorage() {
+      levels = Arrays.copyOf(levels, levels.length + 1);
+      levels[levels.length - 1] = new double[MIN_LEVEL_CAPACITY];
+    }
+
+    @Override
+    public List<Double> extractOutput() {
+      List<Double> quantiles = new ArrayList<>(numQuantiles);
+      if (isEmpty()) {
+        return quantiles;
+      }
+      double[] sorted = new double[numRetained];
+      long[] weights = new long[numRetained];
+      int length = 0;
+      for (int level = 0; level < numLevels(); level++) {
+        sortLevel(level);
+        double[] items = levels[level];
+        long weight = weight(level);
+        int i = length - 1;
+        int j = levelSizes[level] - 1;
+        for (int out = length + levelSizes[level] - 1; j >= 0; out--) {
+          if (i >= 0 && Double.compare(sorted[i], items[j]) > 0) {
+            sorted[out] = sorted[i];
+            weights[out] = weights[i--];
+          } else {
+            sorted[out] = items[j--];
+            weights[out] = weight;
+          }
+        }
+        length += levelSizes[level];
+      }
+      quantiles.add(min);
+      for (int index : quantileIndices(weights)) {
+        quantiles.add(sorted[index]);
+      }
+      quantiles.add(max);
+      return quantiles;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Base coder for sketches, encoding the shape of the sketch followed by the
+   * values of each level.
+   */
+  private abstract static class KllSketchCoder<SketchT extends KllSketch<?, SketchT>>
+      extends CustomCoder<SketchT> {
+
+    abstract SketchT createSketch(int numQuantiles, int k);
+
+    abstract void encodeValues(SketchT sketch, OutputStream outStream, Coder.Context context)
+        throws IOException;
+
+    abstract void decodeValues(SketchT sketch, InputStream inStream, Coder.Context context)
+        throws IOException;
+
+    @Override
+    public void encode(SketchT sketch, OutputStream outStream, Coder.Context context)
+        throws CoderException, IOException {
+      VarInt.encode(sketch.numQuantiles, outStream);
+      VarInt.encode(sketch.k, outStream);
+      VarInt.encode(sketch.count, outStream);
+      if (sketch.isEmpty()) {
+        return;
+      }
+      VarInt.encode(sketch.numLevels(), outStream);
+      for (int size : sketch.levelSizes) {
+        VarInt.encode(size, outStream);
+      }
+      encodeValues(sketch, outStream, context.nested());
+    }
+
+    @Override
+    public SketchT decode(InputStream inStream, Coder.Context context)
+        throws CoderException, IOException {
+      int numQuantiles = VarInt.decodeInt(inStream);
+      int k = VarInt.decodeInt(inStream);
+      SketchT sketch = createSketch(numQuantiles, k);
+      long count = VarInt.decodeLong(inStream);
+      if (count == 0) {
+        return sketch;
+      }
+      int numLevels = VarInt.decodeInt(inStream);
+      while (sketch.numLevels() < numLevels) {
+        sketch.addLevel();
+      }
+      for (int level = 0; level < numLevels; level++) {
+        int size = VarInt.decodeInt(inStream);
+        sketch.ensureCapacity(level, size);
+        sketch.levelSizes[level] = size;
+        sketch.numRetained += size;
+      }
+      sketch.count = count;
+      decodeValues(sketch, inStream, context.nested());
+      return sketch;
+    }
+  }
+
+  /**
+   * Coder for {@link ObjectSketch}.
+   */
+  private static class ObjectSketchCoder<T, ComparatorT extends Comparator<T> & Serializable>
+      extends KllSketchCoder<ObjectSketch<T, ComparatorT>> {
+    private final ComparatorT compareFn;
+    private final Coder<T> elementCoder;
+
+    private ObjectSketchCoder(ComparatorT compareFn, Coder<T> elementCoder) {
+      this.compareFn = compareFn;
+      this.elementCoder = elementCoder;
+    }
+
+    @Override
+    ObjectSketch<T, ComparatorT> createSketch(int numQuantiles, int k) {
+      return new ObjectSketch<>(compareFn, numQuantiles, k);
+    }
+
+    @Override
+    void encodeValues(
+        ObjectSketch<T, ComparatorT> sketch, OutputStream outStream, Coder.Context context)
+        throws IOException {
+      elementCoder.encode(sketch.min, outStream, context);
+      elementCoder.encode(sketch.max, outStream, context);
+      for (int level = 0; level < sketch.numLevels(); level++) {
+        T[] items = sketch.items(level);
+        for (int i = 0; i < sketch.levelSizes[level]; i++) {
+          elementCoder.encode(items[i], outStream, context);
+        }
+      }
+    }
+
+    @Override
+    void decodeValues(
+        ObjectSketch<T, ComparatorT> sketch, InputStream inStream, Coder.Context context)
+        throws IOException {
+      sketch.min = elementCoder.decode(inStream, context);
+      sketch.max = elementCoder.decode(inStream, context);
+      for (int level = 0; level < sketch.numLevels(); level++) {
+        Object[] items = sketch.levels[level];
+        for (int i = 0; i < sketch.levelSizes[level]; i++) {
+          items[i] = elementCoder.decode(inStream, context);
+        }
+      }
+    }
+
+    @Override
+    public void verifyDeterministic() throws NonDeterministicException {
+      verifyDeterministic(
+          "KllQuantiles.ObjectSketch.ElementCoder must be deterministic",
+          elementCoder);
+    }
+  }
+
+  /**
+   * Coder for {@link LongSketch}. Each level is sorted and encoded as
+   * variable-length differences between consecutive values.
+   */
+  private static class LongSketchCoder extends KllSketchCoder<LongSketch> {
+    @Override
+    LongSketch createSketch(int numQuantiles, int k) {
+      return new LongSketch(numQuantiles, k);
+    }
+
+    @Override
+    void encodeValues(LongSketch sketch, OutputStream outStream, Coder.Context context)
+        throws IOException {
+      VarInt.encode(zigZag(sketch.min), outStream);
+      VarInt.encode(sketch.max - sketch.min, outStream);
+      for (int level = 0; level < sketch.numLevels(); level++) {
+        sketch.sortLevel(level);
+        long[] items = sketch.levels[level];
+        long previous = sketch.min;
+        for (int i = 0; i < sketch.levelSizes[level]; i++) {
+          VarInt.encode(items[i] - previous, outStream);
+          previous = items[i];
+        }
+      }
+    }
+
+    @Override
+    void decodeValues(LongSketch sketch, InputStream inStream, Coder.Context context)
+        throws IOException {
+      sketch.min = unZigZag(VarInt.decodeLong(inStream));
+      sketch.max = sketch.min + VarInt.decodeLong(inStream);
+      for (int level = 0; level < sketch.numLevels(); level++) {
+        long[] items = sketch.levels[level];
+        long previous = sketch.min;
+        for (int i = 0; i < sketch.levelSizes[level]; i++) {
+          items[i] = previous + VarInt.decodeLong(inStream);
+          previous = items[i];
+        }
+      }
+    }
+
+    private static long zigZag(long value) {
+      return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    @Override
+    public void verifyDeterministic() {}
+  }
+
+  /**
+   * Coder for {@link DoubleSketch}.
+   */
+  private static class DoubleSketchCoder extends KllSketchCoder<DoubleSketch> {
+    @Override
+    DoubleSketch createSketch(int numQuantiles, int k) {
+      return new DoubleSketch(numQuantiles, k);
+    }
+
+    @Override
+    void encodeValues(DoubleSketch sketch, OutputStream outStream, Coder.Context context)
+        throws IOException {
+      DataOutputStream outData = new DataOutputStream(outStream);
+      outData.writeDouble(sketch.min);
+      outData.writeDouble(sketch.max);
+      for (int level = 0; level < sketch.numLevels(); level++) {
+        double[] items = sketch.levels[level];
+        for (int i = 0; i < sketch.levelSizes[level]; i++) {
+          outData.writeDouble(items[i]);
+        }
+      }
+      outData.flush();
+    }
+
+    @Override
+    void decodeValues(DoubleSketch sketch, InputStream inStream, Coder.Context context)
+        throws IOException {
+      DataInputStream inData = new DataInputStream(inStream);
+      sketch.min = inData.readDouble();
+      sketch.max = inData.readDouble();
+      for (int level = 0; level < sketch.numLevels(); level++) {
+        double[] items = sketch.levels[level];
+        for (int i = 0; i < sketch.levelSizes[level]; i++) {
+          items[i] = inData.readDouble();
+        }
+      }
+    }
+
+    @Override
+    public void verifyDeterministic() {}
+  }
+}
@@ -16,9 +16,19 @@
 
 package com.google.cloud.dataflow.sdk.transforms;
 
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.CoderException;
+import com.google.cloud.dataflow.sdk.coders.KvCoder;
+import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.util.CoderUtils;
 import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.cloud.dataflow.sdk.values.PCollection;
 import com.google.cloud.dataflow.sdk.values.TypeDescriptor;
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * {@code RemoveDuplicates<T>} takes a {@code PCollection<T>} and
@@ -47,6 +57,9 @@ import com.google.cloud.dataflow.sdk.values.TypeDescriptor;
  *
  * <p>Does not preserve any order the input PCollection might have had.
  *
+ * <p>When most elements repeat many times, {@link #withPreDeduplication} drops repeats within
+ * each bundle before they are shuffled, using a bounded amount of memory per bundle.
+ *
  * <p>Example of use:
  * <pre> {@code
  * PCollection<String> words = ...;
@@ -59,6 +72,11 @@ import com.google.cloud.dataflow.sdk.values.TypeDescriptor;
  */
 public class RemoveDuplicates<T> extends PTransform<PCollection<T>,
                                                     PCollection<T>> {
+  /**
+   * The budget of pre-deduplication, in bytes, when it is disabled.
+   */
+  private static final long NO_PRE_DEDUPLICATION = 0;
+
   /**
    * Returns a {@code RemoveDuplicates<T>} {@code PTransform}.
    *
@@ -66,7 +84,7 @@ public class RemoveDuplicates<T> extends PTransform<PCollection<T>,
    * {@code PCollection}s
    */
   public static <T> RemoveDuplicates<T> create() {
-    return new RemoveDuplicates<T>();
+    return new RemoveDuplicates<T>(NO_PRE_DEDUPLICATION);
   }
 
   /**
@@ -78,19 +96,47 @@ public class RemoveDuplicates<T> extends PTransform<PCollection<T>,
    */
   public static <T, IdT> WithRepresentativeValues<T, IdT> withRepresentativeValueFn(
       SerializableFunction<T, IdT> fn) {
-    return new WithRepresentativeValues<T, IdT>(fn, null);
+    return new WithRepresentativeValues<T, IdT>(fn, null, NO_PRE_DEDUPLICATION);
+  }
+
+  private final long preDeduplicationBytes;
+
+  private RemoveDuplicates(long preDeduplicationBytes) {
+    this.preDeduplicationBytes = preDeduplicationBytes;
+  }
+
+  /**
+   * Returns a {@code RemoveDuplicates} {@link PTransform} that is like this one, but that
+   * removes duplicates within each bundle before the shuffle, remembering at most
+   * {@code memoryBudgetBytes} of encoded elements per bundle.
+   *
+   * <p>Once the budget is used up, elements not seen so far in the bundle are passed on to the
+   * shuffle as usual. The number of elements removed before the shuffle is reported by the
+   * {@code "PreDeduplicatedElements"} aggregator.
+   *
+   * @param memoryBudgetBytes the approximate number of bytes of elements to remember per bundle
+   */
+  public RemoveDuplicates<T> withPreDeduplication(long memoryBudgetBytes) {
+    checkPreDeduplicationBudget(memoryBudgetBytes);
+    return new RemoveDuplicates<T>(memoryBudgetBytes);
   }
 
   @Override
   public PCollection<T> apply(PCollection<T> in) {
-    return in
+    PCollection<KV<T, Void>> index = in
         .apply(ParDo.named("CreateIndex")
             .of(new DoFn<T, KV<T, Void>>() {
                   @Override
                   public void processElement(ProcessContext c) {
                     c.output(KV.of(c.element(), (Void) null));
                   }
-                }))
+                }));
+    if (preDeduplicationBytes != NO_PRE_DEDUPLICATION) {
+      index = index.apply(ParDo.named("PreDeduplicate")
+          .of(new PreDeduplicateFn<T, Void>(in.getCoder(), preDeduplicationBytes)))
+          .setCoder(index.getCoder());
+    }
+    return index
         .apply(Combine.<T, Void>perKey(
             new SerializableFunction<Iterable<Void>, Void>() {
               @Override
@@ -114,11 +160,14 @@ public class RemoveDuplicates<T> extends PTransform<PCollection<T>,
       extends PTransform<PCollection<T>, PCollection<T>> {
     private final SerializableFunction<T, IdT> fn;
     private final TypeDescriptor<IdT> representativeType;
+    private final long preDeduplicationBytes;
 
     private WithRepresentativeValues(
-        SerializableFunction<T, IdT> fn, TypeDescriptor<IdT> representativeType) {
+        SerializableFunction<T, IdT> fn, TypeDescriptor<IdT> representativeType,
+        long preDeduplicationBytes) {
       this.fn = fn;
       this.representativeType = representativeType;
+      this.preDeduplicationBytes = preDeduplicationBytes;
     }
 
     @Override
@@ -127,8 +176,14 @@ public class RemoveDuplicates<T> extends PTransform<PCollection<T>,
       if (representativeType != null) {
         withKeys = withKeys.withKeyType(representativeType);
       }
-      return in
-          .apply(withKeys)
+      PCollection<KV<IdT, T>> keyed = in.apply(withKeys);
+      if (preDeduplicationBytes != NO_PRE_DEDUPLICATION) {
+        Coder<IdT> representativeCoder = ((KvCoder<IdT, T>) keyed.getCoder()).getKeyCoder();
+        keyed = keyed.apply(ParDo.named("PreDeduplicate")
+            .of(new PreDeduplicateFn<IdT, T>(representativeCoder, preDeduplicationBytes)))
+            .setCoder(keyed.getCoder());
+      }
+      return keyed
           .apply(Combine.<IdT, T, T>perKey(
               new Combine.BinaryCombineFn<T>() {
                 @Override
@@ -152,7 +207,106 @@ public class RemoveDuplicates<T> extends PTransform<PCollection<T>,
      *         the specified output type descriptor.
      */
     public WithRepresentativeValues<T, IdT> withRepresentativeType(TypeDescriptor<IdT> type) {
-      return new WithRepresentativeValues<>(fn, type);
+      return new WithRepresentativeValues<>(fn, type, preDeduplicationBytes);
+    }
+
+    /**
+     * Return a {@code WithRepresentativeValues} {@link PTransform} that is like this one, but that
+     * removes elements with duplicate representative values within each bundle before the
+     * shuffle, as described in {@link RemoveDuplicates#withPreDeduplication}.
+     *
+     * @param memoryBudgetBytes the approximate number of bytes of representative values to
+     *                          remember per bundle
+     */
+    public WithRepresentativeValues<T, IdT> withPreDeduplication(long memoryBudgetBytes) {
+      checkPreDeduplicationBudget(memoryBudgetBytes);
+      return new WithRepresentativeValues<>(fn, representativeType, memoryBudgetBytes);
+    }
+  }
+
+  private static void checkPreDeduplicationBudget(long memoryBudgetBytes) {
+    Preconditions.checkArgument(memoryBudgetBytes > 0,
+        "RemoveDuplicates needs a positive pre-deduplication memory budget, but got %s",
+        memoryBudgetBytes);
+  }
+
+  /**
+   * A {@link DoFn} that drops elements whose key it has already output in the same window and
+   * bundle. Keys are compared by their encoding, as in the shuffle, and the encodings are
+   * remembered until they use up the memory budget. Keys first seen after that are passed on
+   * without being remembered.
+   */
+  static class PreDeduplicateFn<K, V> extends DoFn<KV<K, V>, KV<K, V>>
+      implements DoFn.RequiresWindowAccess {
+
+    /**
+     * The estimated bytes of overhead to remember a key besides its encoding: a hash set entry,
+     * a {@code KV} of the window and the key, an {@link EncodedKey}, and an array
+     * header.
+     */
+    static final int PER_KEY_OVERHEAD = 128;
+
+    final Aggregator<Long, Long> preDeduplicatedElements =
+        createAggregator("PreDeduplicatedElements", new Sum.SumLongFn());
+
+    private final Coder<K> keyCoder;
+    private final long memoryBudgetBytes;
+
+    private transient Set<KV<BoundedWindow, EncodedKey>> seen;
+    private transient long seenBytes;
+
+    PreDeduplicateFn(Coder<K> keyCoder, long memoryBudgetBytes) {
+      this.keyCoder = keyCoder;
+      this.memoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    @Override
+    public void startBundle(Context c) {
+      seen = new HashSet<>();
+      seenBytes = 0;
+    }
+
+    @Override
+    public void processElement(ProcessContext c) throws CoderException {
+      byte[] encodedKey = CoderUtils.encodeToByteArray(keyCoder, c.element().getKey());
+      KV<BoundedWindow, EncodedKey> windowedKey =
+          KV.of(c.window(), new EncodedKey(encodedKey));
+      if (seen.contains(windowedKey)) {
+        preDeduplicatedElements.addValue(1L);
+        return;
+      }
+      long keyBytes = encodedKey.length + PER_KEY_OVERHEAD;
+      if (seenBytes + keyBytes <= memoryBudgetBytes) {
+        seen.add(windowedKey);
+        seenBytes += keyBytes;
+      }
+      c.output(c.element());
+    }
+
+    @Override
+    public void finishBundle(Context c) {
+      seen = null;
+    }
+  }
+
+  /**
+   * The encoding of a key, compared by its contents.
+   */
+  private static final class EncodedKey {
+    private final byte[] bytes;
+
+    EncodedKey(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof EncodedKey && Arrays.equals(bytes, ((EncodedKey) other).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(bytes);
     }
   }
 }
@@ -23,9 +23,11 @@ import com.google.cloud.dataflow.sdk.coders.CustomCoder;
 import com.google.cloud.dataflow.sdk.coders.ListCoder;
 import com.google.cloud.dataflow.sdk.transforms.Combine.AccumulatingCombineFn;
 import com.google.cloud.dataflow.sdk.transforms.Combine.AccumulatingCombineFn.Accumulator;
+import com.google.cloud.dataflow.sdk.transforms.Combine.CombineFn;
 import com.google.cloud.dataflow.sdk.transforms.Combine.PerKey;
 import com.google.cloud.dataflow.sdk.transforms.windowing.GlobalWindow;
 import com.google.cloud.dataflow.sdk.transforms.windowing.GlobalWindows;
+import com.google.cloud.dataflow.sdk.util.VarInt;
 import com.google.cloud.dataflow.sdk.util.common.ElementByteSizeObserver;
 import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.cloud.dataflow.sdk.values.PCollection;
@@ -37,7 +39,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.PriorityQueue;
 
@@ -330,6 +334,110 @@ new TopCombineFn<>(count, new Largest<V>()).<K>asKeyedFn())
         .named("Largest.PerKey");
   }
 
+  /**
+   * Like {@link #largest}, but specialized for {@code Long} values. The accumulator keeps the
+   * largest {@code count} values in a flat {@code long[]} rather than a heap of boxed values,
+   * and is encoded as packed varints.
+   */
+  public static Combine.Globally<Long, List<Long>> largestLongs(int count) {
+    return Combine.globally(new TopLongFn(count, true)).named("Largest.Longs.Globally");
+  }
+
+  /**
+   * Like {@link #largestLongs}, but returns the smallest {@code count} values, in increasing
+   * order.
+   */
+  public static Combine.Globally<Long, List<Long>> smallestLongs(int count) {
+    return Combine.globally(new TopLongFn(count, false)).named("Smallest.Longs.Globally");
+  }
+
+  /**
+   * Like {@link #largestPerKey}, but specialized for {@code Long} values in the same way as
+   * {@link #largestLongs}.
+   */
+  public static <K> PerKey<K, Long, List<Long>> largestLongsPerKey(int count) {
+    return Combine.perKey(new TopLongFn(count, true).<K>asKeyedFn())
+        .named("Largest.Longs.PerKey");
+  }
+
+  /**
+   * Like {@link #smallestPerKey}, but specialized for {@code Long} values in the same way as
+   * {@link #largestLongs}.
+   */
+  public static <K> PerKey<K, Long, List<Long>> smallestLongsPerKey(int count) {
+    return Combine.perKey(new TopLongFn(count, false).<K>asKeyedFn())
+        .named("Smallest.Longs.PerKey");
+  }
+
+  /**
+   * Like {@link #largest}, but specialized for {@code Integer} values in the same way as
+   * {@link #largestLongs}.
+   */
+  public static Combine.Globally<Integer, List<Integer>> largestIntegers(int count) {
+    return Combine.globally(new TopIntegerFn(count, true)).named("Largest.Integers.Globally");
+  }
+
+  /**
+   * Like {@link #smallest}, but specialized for {@code Integer} values in the same way as
+   * {@link #largestLongs}.
+   */
+  public static Combine.Globally<Integer, List<Integer>> smallestIntegers(int count) {
+    return Combine.globally(new TopIntegerFn(count, false)).named("Smallest.Integers.Globally");
+  }
+
+  /**
+   * Like {@link #largestPerKey}, but specialized for {@code Integer} values in the same way as
+   * {@link #largestLongs}.
+   */
+  public static <K> PerKey<K, Integer, List<Integer>> largestIntegersPerKey(int count) {
+    return Combine.perKey(new TopIntegerFn(count, true).<K>asKeyedFn())
+        .named("Largest.Integers.PerKey");
+  }
+
+  /**
+   * Like {@link #smallestPerKey}, but specialized for {@code Integer} values in the same way as
+   * {@link #largestLongs}.
+   */
+  public static <K> PerKey<K, Integer, List<Integer>> smallestIntegersPerKey(int count) {
+    return Combine.perKey(new TopIntegerFn(count, false).<K>asKeyedFn())
+        .named("Smallest.Integers.PerKey");
+  }
+
+  /**
+   * Like {@link #largest}, but specialized for {@code Double} values in the same way as
+   * {@link #largestLongs}. Values are ordered as by {@link Double#compare}, so {@code NaN} is
+   * the largest value and {@code -0.0} is smaller than {@code 0.0}.
+   */
+  public static Combine.Globally<Double, List<Double>> largestDoubles(int count) {
+    return Combine.globally(new TopDoubleFn(count, true)).named("Largest.Doubles.Globally");
+  }
+
+  /**
+   * Like {@link #smallest}, but specialized for {@code Double} values in the same way as
+   * {@link #largestDoubles}.
+   */
+  public static Combine.Globally<Double, List<Double>> smallestDoubles(int count) {
+    return Combine.globally(new TopDoubleFn(count, false)).named("Smallest.Doubles.Globally");
+  }
+
+  /**
+   * Like {@link #largestPerKey}, but specialized for {@code Double} values in the same way as
+   * {@link #largestDoubles}.
+   */
+  public static <K> PerKey<K, Double, List<Double>> largestDoublesPerKey(int count) {
+    return Combine.perKey(new TopDoubleFn(count, true).<K>asKeyedFn())
+        .named("Largest.Doubles.PerKey");
+  }
+
+  /**
+   * Like {@link #smallestPerKey}, but specialized for {@code Double} values in the same way as
+   * {@link #largestDoubles}.
+   */
+  public static <K> PerKey<K, Double, List<Double>> smallestDoublesPerKey(int count) {
+    return Combine.perKey(new TopDoubleFn(count, false).<K>asKeyedFn())
+        .named("Smallest.Doubles.PerKey");
+  }
+
   /**
    * A {@code Serializable} {@code Comparator} that that uses the compared elements' natural
    * ordering.
@@ -405,11 +513,21 @@ new TopCombineFn<>(count, new Largest<V>()).<K>asKeyedFn())
    * {@code Comparator}. Implemented as an {@link Accumulator} to facilitate implementation of
    * {@link Top}.
    *
+   * <p>Heaps of at most {@link #MAX_SORTED_LIST_SIZE} elements skip the queue entirely and keep
+   * their elements in a flat list sorted largest-to-smallest, inserting new elements in place.
+   *
    * <p>This class is <i>not</i> safe for multithreaded use, except read-only.
    */
   static class BoundedHeap<T, ComparatorT extends Comparator<T> & Serializable>
       implements Accumulator<T, BoundedHeap<T, ComparatorT>, List<T>> {
 
+    /**
+     * The largest maximum size for which the heap is kept as a sorted list. Shifting a few
+     * hundred references on insertion is cheaper than maintaining a {@link PriorityQueue}, and
+     * the list is already in the form of extractOutput().
+     */
+    static final int MAX_SORTED_LIST_SIZE = 256;
+
     /**
      * A queue with smallest at the head, for quick adds.
      *
@@ -454,6 +572,10 @@ new TopCombineFn<>(count, new Largest<V>()).<K>asKeyedFn())
         return false;
       }
 
+      if (maximumSize <= MAX_SORTED_LIST_SIZE) {
+        return maybeInsertInput(value);
+      }
+
       // If asQueue == null, then this is the first add after the latest call to the
       // constructor or asList().
       if (asQueue == null) {
@@ -476,8 +598,40 @@ new TopCombineFn<>(count, new Largest<V>()).<K>asKeyedFn())
       }
     }
 
+    /**
+     * Inserts {@code value} in place into the sorted {@code asList} if it is larger than any of
+     * the current elements. Returns {@code true} if {@code value} was added.
+     */
+    private boolean maybeInsertInput(T value) {
+      int size = asList.size();
+      if (size == maximumSize) {
+        if (compareFn.compare(value, asList.get(size - 1)) <= 0) {
+          return false;
+        }
+        asList.remove(--size);
+      }
+
+      // Find the first element smaller than value, so that equal elements keep their order.
+      int low = 0;
+      int high = size;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (compareFn.compare(value, asList.get(mid)) > 0) {
+          high = mid;
+        } else {
+          low = mid + 1;
+        }
+      }
+      asList.add(low, value);
+      return true;
+    }
+
     @Override
     public void mergeAccumulator(BoundedHeap<T, ComparatorT> accumulator) {
+      if (maximumSize <= MAX_SORTED_LIST_SIZE) {
+        asList = mergeSorted(asList, accumulator.asList());
+        return;
+      }
       for (T value : accumulator.asList()) {
         if (!maybeAddInput(value)) {
           // If this element of accumulator does not make the top N, neither
@@ -487,8 +641,32 @@ new TopCombineFn<>(count, new Largest<V>()).<K>asKeyedFn())
       }
     }
 
+    /**
+     * Merges two lists sorted largest-to-smallest into a new one holding the largest
+     * {@code maximumSize} elements of both.
+     */
+    private List<T> mergeSorted(List<T> left, List<T> right) {
+      int size = Math.min(maximumSize, left.size() + right.size());
+      List<T> merged = new ArrayList<>(size);
+      int i = 0;
+      int j = 0;
+      while (merged.size() < size) {
+        if (j == right.size()
+            || (i < left.size() && compareFn.compare(left.get(i), right.get(j)) >= 0)) {
+          merged.add(left.get(i++));
+        } else {
+          merged.add(right.get(j++));
+        }
+      }
+      return merged;
+    }
+
     @Override
     public List<T> extractOutput() {
+      if (maximumSize <= MAX_SORTED_LIST_SIZE) {
+        // The sorted list is updated in place by later inputs.
+        return new ArrayList<>(asList);
+      }
       return asList();
     }
 
@@ -556,4 +734,291 @@ new TopCombineFn<>(count, new Largest<V>()).<K>asKeyedFn())
       listCoder.registerByteSizeObserver(value.asList(), observer, context);
     }
   }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Base class of the {@code CombineFn}s behind {@link #largestLongs} and its siblings, which
+   * keep the top {@code count} primitive values without boxing them in a heap.
+   *
+   * <p>Each value is mapped to a {@code long} key whose signed order is the natural order of the
+   * values (or its reverse, for the smallest values), and the accumulator keeps the largest
+   * keys in a flat sorted {@code long[]}.
+   *
+   * @param <T> type of element being compared
+   */
+  public abstract static class PrimitiveTopCombineFn<T>
+      extends CombineFn<T, BoundedLongList, List<T>> {
+
+    private final int count;
+    private final boolean largest;
+
+    private PrimitiveTopCombineFn(int count, boolean largest) {
+      Preconditions.checkArgument(
+          count >= 0,
+          "count must be >= 0");
+      this.count = count;
+      this.largest = largest;
+    }
+
+    /**
+     * Returns a {@code long} whose signed order is the natural order of {@code value}.
+     */
+    abstract long toKey(T value);
+
+    /**
+     * The inverse of {@link #toKey}.
+     */
+    abstract T fromKey(long key);
+
+    @Override
+    public BoundedLongList createAccumulator() {
+      return new BoundedLongList(count);
+    }
+
+    @Override
+    public BoundedLongList addInput(BoundedLongList accumulator, T input) {
+      long key = toKey(input);
+      accumulator.add(largest ? key : ~key);
+      return accumulator;
+    }
+
+    @Override
+    public BoundedLongList mergeAccumulators(Iterable<BoundedLongList> accumulators) {
+      Iterator<BoundedLongList> iter = accumulators.iterator();
+      if (!iter.hasNext()) {
+        return createAccumulator();
+      }
+      BoundedLongList running = iter.next();
+      while (iter.hasNext()) {
+        running.merge(iter.next());
+      }
+      return running;
+    }
+
+    @Override
+    public List<T> extractOutput(BoundedLongList accumulator) {
+      List<T> output = new ArrayList<>(accumulator.size);
+      for (int i = 0; i < accumulator.size; i++) {
+        long key = accumulator.keys[i];
+        output.add(fromKey(largest ? key : ~key));
+      }
+      return output;
+    }
+
+    @Override
+    public Coder<BoundedLongList> getAccumulatorCoder(
+        CoderRegistry registry, Coder<T> inputCoder) {
+      return new BoundedLongListCoder(count);
+    }
+
+    @Override
+    public Coder<List<T>> getDefaultOutputCoder(CoderRegistry registry, Coder<T> inputCoder) {
+      return ListCoder.of(inputCoder);
+    }
+
+    @Override
+    public String getIncompatibleGlobalWindowErrorMessage() {
+      return "Default values are not supported in Top.[largest, smallest][Longs, Integers, "
+          + "Doubles]() if the output PCollection is not windowed by GlobalWindows. Instead, use "
+          + "withoutDefaults() to output an empty PCollection if the input PCollection is empty, "
+          + "or asSingletonView() to get a PCollection containing the empty list if the input "
+          + "PCollection is empty.";
+    }
+  }
+
+  /**
+   * {@code CombineFn} for {@link #largestLongs} and {@link #smallestLongs}.
+   */
+  public static class TopLongFn extends PrimitiveTopCombineFn<Long> {
+    /**
+     * Creates a {@code TopLongFn} that keeps the largest {@code count} values if
+     * {@code largest} is set, and the smallest ones otherwise.
+     */
+    public TopLongFn(int count, boolean largest) {
+      super(count, largest);
+    }
+
+    @Override
+    long toKey(Long value) {
+      return value;
+    }
+
+    @Override
+    Long fromKey(long key) {
+      return key;
+    }
+  }
+
+  /**
+   * {@code CombineFn} for {@link #largestIntegers} and {@link #smallestIntegers}.
+   */
+  public static class TopIntegerFn extends PrimitiveTopCombineFn<Integer> {
+    /**
+     * Creates a {@code TopIntegerFn} that keeps the largest {@code count} values if
+     * {@code largest} is set, and the smallest ones otherwise.
+     */
+    public TopIntegerFn(int count, boolean largest) {
+      super(count, largest);
+    }
+
+    @Override
+    long toKey(Integer value) {
+      return value;
+    }
+
+    @Override
+    Integer fromKey(long key) {
+      return (int) key;
+    }
+  }
+
+  /**
+   * {@code CombineFn} for {@link #largestDoubles} and {@link #smallestDoubles}.
+   */
+  public static class TopDoubleFn extends PrimitiveTopCombineFn<Double> {
+    /**
+     * Creates a {@code TopDoubleFn} that keeps the largest {@code count} values if
+     * {@code largest} is set, and the smallest ones otherwise.
+     */
+    public TopDoubleFn(int count, boolean largest) {
+      super(count, largest);
+    }
+
+    @Override
+    long toKey(Double value) {
+      // Flipping all but the sign bit of negative values makes the signed order of the bits
+      // match Double.compare().
+      long bits = Double.doubleToLongBits(value);
+      return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    @Override
+    Double fromKey(long key) {
+      return Double.longBitsToDouble(key ^ ((key >> 63) & Long.MAX_VALUE));
+    }
+  }
+
+  /**
+   * The accumulator of {@link PrimitiveTopCombineFn}: the largest {@code maximumSize} keys added
+   * so far, sorted largest-to-smallest in a flat array that is updated in place.
+   *
+   * <p>This class is <i>not</i> safe for multithreaded use, except read-only.
+   */
+  static class BoundedLongList {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int maximumSize;
+    private long[] keys;
+    private int size;
+
+    private BoundedLongList(int maximumSize) {
+      this(maximumSize, new long[Math.min(maximumSize, INITIAL_CAPACITY)], 0);
+    }
+
+    private BoundedLongList(int maximumSize, long[] keys, int size) {
+      this.maximumSize = maximumSize;
+      this.keys = keys;
+      this.size = size;
+    }
+
+    private void add(long key) {
+      if (size == maximumSize) {
+        if (size == 0 || key <= keys[size - 1]) {
+          return;
+        }
+        size--;
+      } else if (size == keys.length) {
+        keys = Arrays.copyOf(keys, capacityFor(2L * size));
+      }
+
+      // Find the first key smaller than the new one.
+      int low = 0;
+      int high = size;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (keys[mid] >= key) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      System.arraycopy(keys, low, keys, low + 1, size - low);
+      keys[low] = key;
+      size++;
+    }
+
+    private void merge(BoundedLongList other) {
+      int mergedSize = (int) Math.min(maximumSize, (long) size + other.size);
+      long[] merged = new long[capacityFor(mergedSize)];
+      int i = 0;
+      int j = 0;
+      for (int k = 0; k < mergedSize; k++) {
+        if (j == other.size || (i < size && keys[i] >= other.keys[j])) {
+          merged[k] = keys[i++];
+        } else {
+          merged[k] = other.keys[j++];
+        }
+      }
+      keys = merged;
+      size = mergedSize;
+    }
+
+    /**
+     * Returns an array length of at least {@code required} keys, but never less than the
+     * initial capacity or more than {@code maximumSize}.
+     */
+    private int capacityFor(long required) {
+      return (int) Math.min(maximumSize, Math.max(INITIAL_CAPACITY, required));
+    }
+  }
+
+  /**
+   * A {@link Coder} for {@link BoundedLongList}. The keys are written largest first as a varint
+   * count, the zigzag-encoded first key, and then the varint gaps between consecutive keys,
+   * which stay small when the top values are close together.
+   */
+  private static class BoundedLongListCoder extends CustomCoder<BoundedLongList> {
+    private final int maximumSize;
+
+    public BoundedLongListCoder(int maximumSize) {
+      this.maximumSize = maximumSize;
+    }
+
+    @Override
+    public void encode(BoundedLongList value, OutputStream outStream, Context context)
+        throws CoderException, IOException {
+      VarInt.encode(value.size, outStream);
+      if (value.size == 0) {
+        return;
+      }
+      long first = value.keys[0];
+      VarInt.encode((first << 1) ^ (first >> 63), outStream);
+      for (int i = 1; i < value.size; i++) {
+        VarInt.encode(value.keys[i - 1] - value.keys[i], outStream);
+      }
+    }
+
+    @Override
+    public BoundedLongList decode(InputStream inStream, Context context)
+        throws CoderException, IOException {
+      int size = VarInt.decodeInt(inStream);
+      if (size < 0 || size > maximumSize) {
+        throw new CoderException("Invalid size " + size + " for a top " + maximumSize + " list");
+      }
+      long[] keys =
+          new long[Math.max(size, Math.min(maximumSize, BoundedLongList.INITIAL_CAPACITY))];
+      if (size > 0) {
+        long zigzag = VarInt.decodeLong(inStream);
+        keys[0] = (zigzag >>> 1) ^ -(zigzag & 1);
+        for (int i = 1; i < size; i++) {
+          keys[i] = keys[i - 1] - VarInt.decodeLong(inStream);
+        }
+      }
+      return new BoundedLongList(maximumSize, keys, size);
+    }
+
+    @Override
+    public void verifyDeterministic() {}
+  }
 }
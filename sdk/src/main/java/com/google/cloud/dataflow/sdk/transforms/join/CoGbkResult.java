@@ -27,7 +27,9 @@ import com.google.cloud.dataflow.sdk.util.PropertyNames;
 import com.google.cloud.dataflow.sdk.util.common.Reiterator;
 import com.google.cloud.dataflow.sdk.values.TupleTag;
 import com.google.cloud.dataflow.sdk.values.TupleTagList;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.PeekingIterator;
 
@@ -37,14 +39,26 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A row result of a {@link CoGroupByKey}.  This is a tuple of {@link Iterable}s produced for
@@ -129,6 +143,83 @@ public class CoGbkResult {
     }
   }
 
+  /**
+   * A row in the {@link PCollection} resulting from a {@link CoGroupByKey} transform that keeps
+   * at most {@code inMemoryElementsPerTag} values of each tag in memory. The remaining values of
+   * a tag are encoded with the matching component of {@code unionCoder} and spilled to a local
+   * temporary file, which {@link #getAll} reads back lazily on every iteration. This bounds the
+   * memory used by a row regardless of how the tagged values are ordered, at the cost of a
+   * single pass over {@code taggedValues} and a decoding pass per iteration of a spilled tag.
+   *
+   * <p>A spill file is deleted once the values of its tag have been garbage collected, which is
+   * checked every time another tag is spilled, and at the latest when the JVM shuts down.
+   *
+   * @param schema the set of tuple tags used to refer to input tables and
+   *               result values
+   * @param taggedValues the raw results from a group-by-key
+   * @param unionCoder the coder of the raw union values, used to encode spilled values
+   * @param inMemoryElementsPerTag the number of values of each tag kept in memory
+   */
+  public CoGbkResult(
+      CoGbkResultSchema schema,
+      Iterable<RawUnionValue> taggedValues,
+      UnionCoder unionCoder,
+      int inMemoryElementsPerTag) {
+    Preconditions.checkArgument(inMemoryElementsPerTag >= 0,
+        "CoGbkResult needs a non-negative number of in-memory elements per tag but got %s",
+        inMemoryElementsPerTag);
+    this.schema = schema;
+    valueMap = new ArrayList<>();
+    List<List<Object>> heads = new ArrayList<>();
+    List<SpilledValues<Object>> spills = new ArrayList<>();
+    for (int unionTag = 0; unionTag < schema.size(); unionTag++) {
+      heads.add(new ArrayList<>());
+      spills.add(null);
+    }
+
+    try {
+      for (RawUnionValue value : taggedValues) {
+        int unionTag = value.getUnionTag();
+        if (schema.size() <= unionTag) {
+          throw new IllegalStateException("union tag " + unionTag +
+              " has no corresponding tuple tag in the result schema");
+        }
+        List<Object> head = heads.get(unionTag);
+        if (head.size() < inMemoryElementsPerTag) {
+          head.add(value.getValue());
+          continue;
+        }
+        SpilledValues<Object> spill = spills.get(unionTag);
+        if (spill == null) {
+          @SuppressWarnings("unchecked")
+          Coder<Object> valueCoder = (Coder<Object>) unionCoder.getComponents().get(unionTag);
+          spill = new SpilledValues<>(valueCoder);
+          spills.set(unionTag, spill);
+        }
+        spill.add(value.getValue());
+      }
+
+      for (int unionTag = 0; unionTag < schema.size(); unionTag++) {
+        SpilledValues<Object> spill = spills.get(unionTag);
+        if (spill == null) {
+          valueMap.add(heads.get(unionTag));
+        } else {
+          spill.finishWriting();
+          LOG.debug("CoGbkResult spilled " + spill.size() + " elements of union tag " + unionTag
+              + " to disk, reiteration (which may be slow) is required.");
+          valueMap.add(Iterables.concat(heads.get(unionTag), spill));
+        }
+      }
+    } catch (IOException e) {
+      for (SpilledValues<Object> spill : spills) {
+        if (spill != null) {
+          spill.delete();
+        }
+      }
+      throw new RuntimeException("Unable to spill CoGbkResult values to disk", e);
+    }
+  }
+
   private <T> void updateUnionTag(
       final Reiterator<RawUnionValue> tail, final Boolean[] containsTag,
       int unionTag, final int unionTag0) {
@@ -460,4 +551,169 @@ public class CoGbkResult {
       throw new UnsupportedOperationException();
     }
   }
+
+  /**
+   * Returns the number of spill files that have not been deleted yet.
+   */
+  @VisibleForTesting
+  static int liveSpillFileCount() {
+    SpillFile.deleteUnreachable();
+    return SpillFile.LIVE.size();
+  }
+
+  /**
+   * A local temporary file holding the spilled values of one union tag. It is deleted when
+   * {@link #delete} is called, after the {@link SpilledValues} owning it has been garbage
+   * collected, or when the JVM shuts down, whichever comes first. Collected owners are found
+   * every time a new spill file is created rather than by a finalizer, which a large heap may
+   * not run for a long time.
+   */
+  private static class SpillFile extends PhantomReference<Object> {
+    private static final ReferenceQueue<Object> UNREACHABLE = new ReferenceQueue<>();
+    private static final Set<SpillFile> LIVE =
+        Collections.newSetFromMap(new ConcurrentHashMap<SpillFile, Boolean>());
+
+    static {
+      Runtime.getRuntime().addShutdownHook(new Thread("CoGbkResultSpillFileCleanup") {
+        @Override
+        public void run() {
+          for (SpillFile spillFile : LIVE) {
+            spillFile.delete();
+          }
+        }
+      });
+    }
+
+    private final File file;
+
+    private static SpillFile create(Object owner) throws IOException {
+      deleteUnreachable();
+      SpillFile spillFile = new SpillFile(owner, File.createTempFile("cogbk", ".spill"));
+      LIVE.add(spillFile);
+      return spillFile;
+    }
+
+    private static void deleteUnreachable() {
+      Reference<?> reference;
+      while ((reference = UNREACHABLE.poll()) != null) {
+        ((SpillFile) reference).delete();
+      }
+    }
+
+    private SpillFile(Object owner, File file) {
+      super(owner, UNREACHABLE);
+      this.file = file;
+    }
+
+    private void delete() {
+      clear();
+      LIVE.remove(this);
+      if (file.exists() && !file.delete()) {
+        LOG.warn("Unable to delete CoGbkResult spill file " + file);
+      }
+    }
+  }
+
+  /**
+   * The values of one union tag that did not fit in memory, held in encoded form in a
+   * {@link SpillFile}. Every call to {@link #iterator} decodes the file from the start. Iterators
+   * keep this object, and therefore the file, alive until they are no longer reachable.
+   */
+  private static class SpilledValues<V> implements Iterable<V> {
+
+    private final Coder<V> coder;
+    private final SpillFile spillFile;
+    private final File file;
+    private OutputStream out;
+    private long size;
+
+    private SpilledValues(Coder<V> coder) throws IOException {
+      this.coder = coder;
+      this.spillFile = SpillFile.create(this);
+      this.file = spillFile.file;
+      this.out = new BufferedOutputStream(new FileOutputStream(file));
+    }
+
+    private void add(V value) throws IOException {
+      coder.encode(value, out, Coder.Context.NESTED);
+      size++;
+    }
+
+    private void finishWriting() throws IOException {
+      out.close();
+      out = null;
+    }
+
+    private long size() {
+      return size;
+    }
+
+    private void delete() {
+      try {
+        if (out != null) {
+          out.close();
+        }
+      } catch (IOException e) {
+        LOG.warn("Unable to close CoGbkResult spill file " + file, e);
+      }
+      spillFile.delete();
+    }
+
+    @Override
+    public Iterator<V> iterator() {
+      Preconditions.checkState(out == null, "Spilled values are still being written");
+      return new SpilledValuesIterator();
+    }
+
+    @Override
+    public String toString() {
+      return "[" + size + " spilled values]";
+    }
+
+    private class SpilledValuesIterator implements Iterator<V> {
+      private InputStream in;
+      private long remaining = size;
+
+      @Override
+      public boolean hasNext() {
+        if (remaining == 0 && in != null) {
+          close();
+        }
+        return remaining > 0;
+      }
+
+      @Override
+      public V next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        try {
+          if (in == null) {
+            in = new BufferedInputStream(new FileInputStream(file));
+          }
+          V value = coder.decode(in, Coder.Context.NESTED);
+          remaining--;
+          return value;
+        } catch (IOException e) {
+          close();
+          throw new RuntimeException("Unable to read CoGbkResult spill file " + file, e);
+        }
+      }
+
+      private void close() {
+        try {
+          in.close();
+        } catch (IOException e) {
+          LOG.warn("Unable to close CoGbkResult spill file " + file, e);
+        }
+        in = null;
+        remaining = 0;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    }
+  }
 }
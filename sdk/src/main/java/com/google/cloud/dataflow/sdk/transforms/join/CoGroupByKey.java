@@ -28,6 +28,7 @@ import com.google.cloud.dataflow.sdk.transforms.join.KeyedPCollectionTuple.Tagge
 import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.cloud.dataflow.sdk.values.PCollection;
 import com.google.cloud.dataflow.sdk.values.PCollectionList;
+import com.google.common.base.Preconditions;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -81,10 +82,34 @@ public class CoGroupByKey<K> extends
    * {@code PCollection}s
    */
   public static <K> CoGroupByKey<K> create() {
-    return new CoGroupByKey<>();
+    return new CoGroupByKey<>(NO_SPILLING);
   }
 
-  private CoGroupByKey() { }
+  /**
+   * Returns a {@code CoGroupByKey<K>} {@code PTransform} like this one whose
+   * {@link CoGbkResult}s keep at most {@code inMemoryElementsPerTag} values of
+   * each input in memory, and spill the rest to local disk in encoded form.
+   * This bounds the memory needed per key when a key has too many values
+   * to hold in memory, at the cost of decoding the spilled values on every
+   * iteration.
+   */
+  public CoGroupByKey<K> withSpillThreshold(int inMemoryElementsPerTag) {
+    Preconditions.checkArgument(inMemoryElementsPerTag > 0,
+        "CoGroupByKey needs a positive spill threshold but got %s", inMemoryElementsPerTag);
+    return new CoGroupByKey<>(inMemoryElementsPerTag);
+  }
+
+  /**
+   * Indicates that {@link CoGbkResult}s are demultiplexed in memory, with a
+   * lazy tail when the grouped values can be reiterated.
+   */
+  private static final int NO_SPILLING = 0;
+
+  private final int spillThreshold;
+
+  private CoGroupByKey(int spillThreshold) {
+    this.spillThreshold = spillThreshold;
+  }
 
   @Override
   public PCollection<KV<K, CoGbkResult>> apply(
@@ -128,7 +153,7 @@ public class CoGroupByKey<K> extends
 
     CoGbkResultSchema tupleTags = input.getCoGbkResultSchema();
     PCollection<KV<K, CoGbkResult>> result = groupedTable.apply(
-        ParDo.of(new ConstructCoGbkResultFn<K>(tupleTags))
+        ParDo.of(new ConstructCoGbkResultFn<K>(tupleTags, unionCoder, spillThreshold))
           .named("ConstructCoGbkResultFn"));
     result.setCoder(KvCoder.of(keyCoder,
         CoGbkResultCoder.of(tupleTags, unionCoder)));
@@ -197,15 +222,23 @@ public class CoGroupByKey<K> extends
                  KV<K, CoGbkResult>> {
 
     private final CoGbkResultSchema schema;
+    private final UnionCoder unionCoder;
+    private final int spillThreshold;
 
-    public ConstructCoGbkResultFn(CoGbkResultSchema schema) {
+    public ConstructCoGbkResultFn(
+        CoGbkResultSchema schema, UnionCoder unionCoder, int spillThreshold) {
       this.schema = schema;
+      this.unionCoder = unionCoder;
+      this.spillThreshold = spillThreshold;
     }
 
     @Override
     public void processElement(ProcessContext c) {
       KV<K, Iterable<RawUnionValue>> e = c.element();
-      c.output(KV.of(e.getKey(), new CoGbkResult(schema, e.getValue())));
+      CoGbkResult result = spillThreshold == NO_SPILLING
+          ? new CoGbkResult(schema, e.getValue())
+          : new CoGbkResult(schema, e.getValue(), unionCoder, spillThreshold);
+      c.output(KV.of(e.getKey(), result));
     }
   }
 }
@@ -40,7 +40,11 @@ import java.util.Objects;
 @Experimental(Experimental.Kind.TRIGGER)
 public class AfterPane<W extends BoundedWindow> extends OnceTrigger<W>{
 
-  private static final StateTag<CombiningValueState<Long, Long>> ELEMENTS_IN_PANE_TAG =
+  /**
+   * The state holding the number of elements counted towards a pane. Trigger runners that keep
+   * this trigger's state themselves use this tag to stay compatible with it.
+   */
+  public static final StateTag<CombiningValueState<Long, Long>> ELEMENTS_IN_PANE_TAG =
       StateTags.makeSystemTagInternal(StateTags.combiningValueFromInputInternal(
           "count", VarLongCoder.of(), new Sum.SumLongFn()));
 
@@ -58,6 +62,13 @@ public class AfterPane<W extends BoundedWindow> extends OnceTrigger<W>{
     return new AfterPane<>(countElems);
   }
 
+  /**
+   * Returns the number of elements a pane must contain for this trigger to fire.
+   */
+  public int getElementCount() {
+    return countElems;
+  }
+
   @Override
   public void onElement(OnElementContext c) throws Exception {
     c.state().access(ELEMENTS_IN_PANE_TAG).add(1L);
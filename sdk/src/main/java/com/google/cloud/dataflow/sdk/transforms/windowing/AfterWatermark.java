@@ -30,6 +30,8 @@ import org.joda.time.Instant;
 import java.util.List;
 import java.util.Objects;
 
+import javax.annotation.Nullable;
+
 /**
  * <p>{@code AfterWatermark} triggers fire based on progress of the system watermark. This time is a
  * lower-bound, sometimes heuristically established, on event times that have been fully processed
@@ -134,7 +136,11 @@ public class AfterWatermark<W extends BoundedWindow> {
     }
   }
 
-  private static class AfterWatermarkEarlyAndLate<W extends BoundedWindow>
+  /**
+   * A trigger that fires when the watermark passes the end of the window, and repeatedly whenever
+   * its early trigger fires before that or its late trigger fires after that.
+   */
+  public static class AfterWatermarkEarlyAndLate<W extends BoundedWindow>
       extends Trigger<W>
       implements TriggerBuilder<W>, AfterWatermarkEarly<W>, AfterWatermarkLate<W> {
 
@@ -153,6 +159,15 @@ public class AfterWatermark<W extends BoundedWindow> {
       this.lateTrigger = lateTrigger;
     }
 
+    public OnceTrigger<W> getEarlyTrigger() {
+      return earlyTrigger;
+    }
+
+    @Nullable
+    public OnceTrigger<W> getLateTrigger() {
+      return lateTrigger;
+    }
+
     @Override
     public TriggerBuilder<W> withEarlyFirings(OnceTrigger<W> earlyTrigger) {
       return new AfterWatermarkEarlyAndLate<W>(earlyTrigger, lateTrigger);
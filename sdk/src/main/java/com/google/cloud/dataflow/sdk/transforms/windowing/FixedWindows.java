@@ -76,8 +76,8 @@ public class FixedWindows extends PartitioningWindowFn<Object, IntervalWindow> {
 
   @Override
   public IntervalWindow assignWindow(Instant timestamp) {
-    long start = timestamp.getMillis()
-        - timestamp.plus(size).minus(offset).getMillis() % size.getMillis();
+    long millis = timestamp.getMillis();
+    long start = millis - (millis + size.getMillis() - offset.getMillis()) % size.getMillis();
     return new IntervalWindow(new Instant(start), size);
   }
 
@@ -112,9 +112,8 @@ public class SlidingWindows extends NonMergingWindowFn<Object, IntervalWindow> {
         new ArrayList<>((int) (size.getMillis() / period.getMillis()));
     Instant timestamp = c.timestamp();
     long lastStart = lastStartFor(timestamp);
-    for (long start = lastStart;
-         start > timestamp.minus(size).getMillis();
-         start -= period.getMillis()) {
+    long firstStartBound = timestamp.getMillis() - size.getMillis();
+    for (long start = lastStart; start > firstStartBound; start -= period.getMillis()) {
       windows.add(new IntervalWindow(new Instant(start), size));
     }
     return windows;
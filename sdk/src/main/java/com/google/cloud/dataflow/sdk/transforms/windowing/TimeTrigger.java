@@ -39,7 +39,11 @@ import java.util.List;
 @Experimental(Experimental.Kind.TRIGGER)
 public abstract class TimeTrigger<W extends BoundedWindow> extends OnceTrigger<W> {
 
-  protected static final StateTag<CombiningValueState<Instant, Instant>> DELAYED_UNTIL_TAG =
+  /**
+   * The state holding the time at which a time-based trigger fires. Trigger runners that keep
+   * this trigger's state themselves use this tag to stay compatible with it.
+   */
+  public static final StateTag<CombiningValueState<Instant, Instant>> DELAYED_UNTIL_TAG =
       StateTags.makeSystemTagInternal(StateTags.combiningValueFromInputInternal(
           "delayed", InstantCoder.of(), Min.MinFn.<Instant>naturalOrder()));
 
@@ -61,6 +65,14 @@ public abstract class TimeTrigger<W extends BoundedWindow> extends OnceTrigger<W
     this.timestampMappers = timestampMappers;
   }
 
+  /**
+   * Returns the functions, applied in order, that map the time this trigger starts waiting to the
+   * time at which it fires.
+   */
+  public List<SerializableFunction<Instant, Instant>> getTimestampMappers() {
+    return timestampMappers;
+  }
+
   protected Instant computeTargetTimestamp(Instant time) {
     Instant result = time;
     for (SerializableFunction<Instant, Instant> timestampMapper : timestampMappers) {
@@ -143,4 +143,11 @@ public interface ActiveWindowSet<W extends BoundedWindow> {
    * written. Always one of the results of {@link #readStateAddresses}.
    */
   W writeStateAddress(W window);
+
+  /**
+   * Record that all the state of ACTIVE {@code window} has been moved into its
+   * {@link #writeStateAddress}, which becomes its only state address window. Its other state
+   * address windows are no longer MERGED but EPHEMERAL.
+   */
+  void compactStateAddresses(W window);
 }
@@ -18,7 +18,10 @@ package com.google.cloud.dataflow.sdk.util;
 
 import com.google.cloud.dataflow.sdk.transforms.DoFn;
 import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.FixedWindows;
+import com.google.cloud.dataflow.sdk.transforms.windowing.IntervalWindow;
 import com.google.cloud.dataflow.sdk.transforms.windowing.PaneInfo;
+import com.google.cloud.dataflow.sdk.transforms.windowing.SlidingWindows;
 import com.google.cloud.dataflow.sdk.transforms.windowing.WindowFn;
 
 import org.joda.time.Instant;
@@ -28,6 +31,11 @@ import java.util.Collection;
 /**
  * {@link DoFn} that tags elements of a PCollection with windows, according
  * to the provided {@link WindowFn}.
+ *
+ * <p>The windows of {@link FixedWindows} and {@link SlidingWindows} only depend on the timestamp,
+ * so elements whose timestamps fall between the same window boundaries as the previous element are
+ * given the windows assigned to that element, rather than newly allocated equal windows.
+ *
  * @param <T> Type of elements being windowed
  * @param <W> Window type
  */
@@ -35,33 +43,79 @@ import java.util.Collection;
 public class AssignWindowsDoFn<T, W extends BoundedWindow> extends DoFn<T, T> {
   private WindowFn<? super T, W> fn;
 
+  // The windows assigned to the last element, and the range [reuseFrom, reuseUntil) of timestamps
+  // that are assigned exactly the same windows.
+  private transient Collection<W> lastWindows;
+  private transient long reuseFrom;
+  private transient long reuseUntil;
+
   public AssignWindowsDoFn(WindowFn<? super T, W> fn) {
     this.fn = fn;
   }
 
   @Override
-  @SuppressWarnings("unchecked")
   public void processElement(final ProcessContext c) throws Exception {
-    Collection<W> windows =
-        ((WindowFn<T, W>) fn).assignWindows(
-            ((WindowFn<T, W>) fn).new AssignContext() {
-                @Override
-                public T element() {
-                  return c.element();
-                }
+    long timestamp = c.timestamp().getMillis();
+    if (lastWindows == null || timestamp < reuseFrom || timestamp >= reuseUntil) {
+      lastWindows = assignWindows(c);
+      rememberBoundaries(lastWindows);
+    }
+
+    c.windowingInternals()
+        .outputWindowedValue(c.element(), c.timestamp(), lastWindows, PaneInfo.NO_FIRING);
+  }
 
-                @Override
-                public Instant timestamp() {
-                  return c.timestamp();
-                }
+  @SuppressWarnings("unchecked")
+  private Collection<W> assignWindows(final ProcessContext c) throws Exception {
+    return ((WindowFn<T, W>) fn).assignWindows(
+        ((WindowFn<T, W>) fn).new AssignContext() {
+          @Override
+          public T element() {
+            return c.element();
+          }
 
-                @Override
-                public Collection<? extends BoundedWindow> windows() {
-                  return c.windowingInternals().windows();
-                }
-              });
+          @Override
+          public Instant timestamp() {
+            return c.timestamp();
+          }
 
-    c.windowingInternals()
-        .outputWindowedValue(c.element(), c.timestamp(), windows, PaneInfo.NO_FIRING);
+          @Override
+          public Collection<? extends BoundedWindow> windows() {
+            return c.windowingInternals().windows();
+          }
+        });
+  }
+
+  /**
+   * Sets the range of timestamps that are assigned the given windows: those in all of them, after
+   * the end of the window before the first one and before the start of the window after the last.
+   */
+  private void rememberBoundaries(Collection<W> windows) {
+    long period;
+    if (fn.getClass() == FixedWindows.class) {
+      period = ((FixedWindows) fn).getSize().getMillis();
+    } else if (fn.getClass() == SlidingWindows.class) {
+      period = ((SlidingWindows) fn).getPeriod().getMillis();
+    } else {
+      // Other window fns may assign windows based on more than the timestamp.
+      period = 0;
+    }
+
+    reuseFrom = Long.MAX_VALUE;
+    reuseUntil = Long.MIN_VALUE;
+    if (period == 0 || windows.isEmpty()) {
+      return;
+    }
+    long firstStart = Long.MAX_VALUE;
+    long lastStart = Long.MIN_VALUE;
+    long firstEnd = Long.MAX_VALUE;
+    for (W window : windows) {
+      IntervalWindow interval = (IntervalWindow) window;
+      firstStart = Math.min(firstStart, interval.start().getMillis());
+      lastStart = Math.max(lastStart, interval.start().getMillis());
+      firstEnd = Math.min(firstEnd, interval.end().getMillis());
+    }
+    reuseFrom = Math.max(lastStart, firstEnd - period);
+    reuseUntil = Math.min(firstEnd, lastStart + period);
   }
 }
@@ -85,6 +85,13 @@ public class BatchModeExecutionContext
     // because the state is either used after a GroupByKeyOnly where
     // each key only occurs once, or after some ParDo's that preserved
     // the key.
+    clearState();
+  }
+
+  /**
+   * Clears the state stored in the step contexts.
+   */
+  public void clearState() {
     for (ExecutionContext.StepContext stepContext : getAllStepContexts()) {
       InMemoryStateInternals stateInternals =
           (InMemoryStateInternals) stepContext.stateInternals();
@@ -92,6 +99,13 @@ public class BatchModeExecutionContext
     }
   }
 
+  /**
+   * Creates the {@link StateInternals} of a step, which is cleared whenever the key changes.
+   */
+  protected InMemoryStateInternals createStateInternals() {
+    return new InMemoryStateInternals();
+  }
+
   /**
    * Returns the key of the work currently being processed.
    *
@@ -120,7 +134,7 @@ public class BatchModeExecutionContext
    */
   public class StepContext extends BaseExecutionContext.StepContext {
 
-    private final InMemoryStateInternals stateInternals = new InMemoryStateInternals();
+    private final InMemoryStateInternals stateInternals = createStateInternals();
 
     private StepContext(String stepName, String transformName) {
       super(BatchModeExecutionContext.this, stepName, transformName);
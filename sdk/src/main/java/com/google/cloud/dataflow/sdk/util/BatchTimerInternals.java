@@ -17,23 +17,41 @@
 package com.google.cloud.dataflow.sdk.util;
 
 import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 
 import org.joda.time.Instant;
 
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.PriorityQueue;
-import java.util.Set;
 
 import javax.annotation.Nullable;
 
 /**
  * TimerInternals that uses priority queues to manage the timers that are ready to fire.
+ *
+ * <p>Deleted timers are left in their queue and skipped when they reach its head, so that
+ * deleting a timer does not need to search the queue. A deleted timer that is set again reuses
+ * its queue entry, so each timer is queued at most once.
  */
 public class BatchTimerInternals implements TimerInternals {
-  /** Set of timers that are scheduled used for deduplicating timers. */
-  private Set<TimerData> existingTimers = new HashSet<>();
+  /**
+   * The state of a timer that has been set.
+   */
+  private enum TimerState {
+    /** Queued and waiting to fire. */
+    PENDING,
+    /** Queued, but deleted before it fired. */
+    DELETED,
+    /** Already fired, and no longer queued. */
+    FIRED
+  }
+
+  /** Timers that have been set, used for deduplicating timers, mapped to their state. */
+  private Map<TimerData, TimerState> existingTimers = new HashMap<>();
 
   // Keep these queues separate so we can advance over them separately.
   private PriorityQueue<TimerData> watermarkTimers = new PriorityQueue<>(11);
@@ -53,15 +71,24 @@ public class BatchTimerInternals implements TimerInternals {
 
   @Override
   public void setTimer(TimerData timer) {
-    if (existingTimers.add(timer)) {
+    TimerState state = existingTimers.get(timer);
+    if (state == null) {
+      existingTimers.put(timer, TimerState.PENDING);
       queue(timer.getDomain()).add(timer);
+    } else if (state == TimerState.DELETED) {
+      // The timer is still queued, so its entry is reused.
+      existingTimers.put(timer, TimerState.PENDING);
     }
   }
 
   @Override
   public void deleteTimer(TimerData timer) {
-    existingTimers.remove(timer);
-    queue(timer.getDomain()).remove(timer);
+    TimerState state = existingTimers.get(timer);
+    if (state == TimerState.PENDING) {
+      existingTimers.put(timer, TimerState.DELETED);
+    } else if (state == TimerState.FIRED) {
+      existingTimers.remove(timer);
+    }
   }
 
   @Override
@@ -96,11 +123,35 @@ public class BatchTimerInternals implements TimerInternals {
   @Override
   public String toString() {
     return MoreObjects.toStringHelper(getClass())
-        .add("watermarkTimers", watermarkTimers)
-        .add("processingTimers", processingTimers)
+        .add("watermarkTimers", pendingTimers(watermarkTimers))
+        .add("processingTimers", pendingTimers(processingTimers))
         .toString();
   }
 
+  private PriorityQueue<TimerData> pendingTimers(PriorityQueue<TimerData> timers) {
+    PriorityQueue<TimerData> pending = new PriorityQueue<>(timers);
+    Iterator<TimerData> iterator = pending.iterator();
+    while (iterator.hasNext()) {
+      if (!isPending(iterator.next())) {
+        iterator.remove();
+      }
+    }
+    return pending;
+  }
+
+  private boolean isPending(TimerData timer) {
+    return existingTimers.get(timer) == TimerState.PENDING;
+  }
+
+  /**
+   * Returns the number of queued timers, including deleted timers that have not yet reached the
+   * head of their queue.
+   */
+  @VisibleForTesting
+  int queuedTimerCount() {
+    return watermarkTimers.size() + processingTimers.size();
+  }
+
   public void advanceInputWatermark(ReduceFnRunner<?, ?, ?, ?> runner, Instant newInputWatermark) {
     Preconditions.checkState(!newInputWatermark.isBefore(inputWatermarkTime),
         "Cannot move input watermark time backwards from %s to %s", inputWatermarkTime,
@@ -129,7 +180,13 @@ public class BatchTimerInternals implements TimerInternals {
         // timer we don't remove it.
         timers.remove();
 
-        runner.onTimer(timer);
+        // Skip timers that were deleted.
+        if (isPending(timer)) {
+          existingTimers.put(timer, TimerState.FIRED);
+          runner.onTimer(timer);
+        } else {
+          existingTimers.remove(timer);
+        }
       }
     } while (shouldFire);
   }
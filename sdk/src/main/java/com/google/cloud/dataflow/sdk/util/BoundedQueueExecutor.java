@@ -16,16 +16,63 @@
 
 package com.google.cloud.dataflow.sdk.util;
 
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
 
 /**
  * Executor that blocks on execute() if its queue is full.
+ *
+ * <p>Queued tasks run in the order they were added, unless the executor is given a
+ * {@link Prioritizer}.
  */
 public class BoundedQueueExecutor extends ThreadPoolExecutor {
+  /**
+   * Assigns priorities to the tasks of a {@link BoundedQueueExecutor}.
+   */
+  public interface Prioritizer {
+    /**
+     * Returns the priority of a task that is being queued. Queued tasks with lower values run
+     * first, and tasks with equal values run in the order they were queued.
+     */
+    long priority(Runnable task);
+  }
+
+  /**
+   * A task queued along with its priority.
+   */
+  private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+    private final Runnable task;
+    private final long priority;
+    private final long sequence;
+
+    PrioritizedTask(Runnable task, long priority, long sequence) {
+      this.task = task;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public void run() {
+      task.run();
+    }
+
+    @Override
+    public int compareTo(PrioritizedTask other) {
+      if (priority != other.priority) {
+        return priority < other.priority ? -1 : 1;
+      }
+      return Long.compare(sequence, other.sequence);
+    }
+  }
+
   private static class ReducableSemaphore extends Semaphore {
     ReducableSemaphore(int permits) {
       super(permits);
@@ -37,29 +84,60 @@ public class BoundedQueueExecutor extends ThreadPoolExecutor {
     }
   }
   private ReducableSemaphore semaphore;
+  @Nullable private final Prioritizer prioritizer;
+  private final AtomicLong nextSequence = new AtomicLong();
 
   public BoundedQueueExecutor(int maximumPoolSize,
                    long keepAliveTime,
                    TimeUnit unit,
                    int maximumQueueSize,
                    ThreadFactory threadFactory) {
+    this(maximumPoolSize, keepAliveTime, unit, maximumQueueSize, threadFactory, null);
+  }
+
+  /**
+   * Creates an executor that runs queued tasks in the order given by {@code prioritizer}, or in
+   * the order they were added if it is null.
+   */
+  public BoundedQueueExecutor(int maximumPoolSize,
+                   long keepAliveTime,
+                   TimeUnit unit,
+                   int maximumQueueSize,
+                   ThreadFactory threadFactory,
+                   @Nullable Prioritizer prioritizer) {
     super(maximumPoolSize, maximumPoolSize, keepAliveTime, unit,
-        new LinkedBlockingQueue<Runnable>(), threadFactory);
+        createQueue(prioritizer), threadFactory);
     this.semaphore = new ReducableSemaphore(maximumQueueSize);
+    this.prioritizer = prioritizer;
     allowCoreThreadTimeOut(true);
   }
 
+  private static BlockingQueue<Runnable> createQueue(@Nullable Prioritizer prioritizer) {
+    if (prioritizer == null) {
+      return new LinkedBlockingQueue<Runnable>();
+    }
+    // Only PrioritizedTasks are added to the queue.
+    return new PriorityBlockingQueue<Runnable>();
+  }
+
   // Before adding a Runnable to the queue, acquire the semaphore.
   @Override
   public void execute(Runnable r) {
     semaphore.acquireUninterruptibly();
-    super.execute(r);
+    super.execute(prioritize(r));
   }
 
   // Forcibly add something to the queue, ignoring the length limit.
   public void forceExecute(Runnable r) {
     semaphore.reducePermits(1);
-    super.execute(r);
+    super.execute(prioritize(r));
+  }
+
+  private Runnable prioritize(Runnable r) {
+    if (prioritizer == null) {
+      return r;
+    }
+    return new PrioritizedTask(r, prioritizer.priority(r), nextSequence.getAndIncrement());
   }
 
   // Release the semaphore after taking a Runnable off the queue.
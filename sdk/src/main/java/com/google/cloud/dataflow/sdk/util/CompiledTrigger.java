@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import com.google.cloud.dataflow.sdk.transforms.SerializableFunction;
+import com.google.cloud.dataflow.sdk.transforms.windowing.AfterPane;
+import com.google.cloud.dataflow.sdk.transforms.windowing.AfterProcessingTime;
+import com.google.cloud.dataflow.sdk.transforms.windowing.AfterWatermark;
+import com.google.cloud.dataflow.sdk.transforms.windowing.AfterWatermark.AfterWatermarkEarlyAndLate;
+import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.DefaultTrigger;
+import com.google.cloud.dataflow.sdk.transforms.windowing.Repeatedly;
+import com.google.cloud.dataflow.sdk.transforms.windowing.TimeTrigger;
+import com.google.cloud.dataflow.sdk.transforms.windowing.Trigger;
+import com.google.cloud.dataflow.sdk.util.state.CombiningValueState;
+import com.google.cloud.dataflow.sdk.util.state.StateTag;
+import com.google.cloud.dataflow.sdk.util.state.ValueState;
+
+import org.joda.time.Instant;
+
+import java.util.BitSet;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * A flat form of the common {@link ExecutableTrigger} trees, which {@link TriggerRunner} runs in
+ * place of walking the tree and creating a {@link Trigger} context per node for every call.
+ *
+ * <p>A tree is compiled into one of a fixed set of shapes with at most two leaves, each of
+ * which is an {@link AfterPane}, an {@link AfterProcessingTime} or
+ * {@link AfterWatermark#pastEndOfWindow}:
+ * <ul>
+ *   <li>{@link DefaultTrigger},
+ *   <li>a single leaf,
+ *   <li>{@link Repeatedly#forever} of a leaf,
+ *   <li>{@link AfterWatermark#pastEndOfWindow} with early firings and optionally late firings.
+ * </ul>
+ *
+ * <p>The transitions of each shape are written out directly against the finished bits, which for
+ * these trees fit in one {@code long}, and the state of the leaves. Both are kept exactly where the
+ * tree interpreter keeps them, so the compiled and interpreted forms can be used interchangeably
+ * on the same persisted state. Only non-merging windows are supported; merging falls back to the
+ * interpreter, as do all other trees.
+ *
+ * @param <W> The kind of windows being processed.
+ */
+class CompiledTrigger<W extends BoundedWindow> {
+
+  // The leaves keep their state under the same tags as the triggers they stand in for.
+  private static final StateTag<CombiningValueState<Long, Long>> ELEMENTS_IN_PANE_TAG =
+      AfterPane.ELEMENTS_IN_PANE_TAG;
+  private static final StateTag<CombiningValueState<Instant, Instant>> DELAYED_UNTIL_TAG =
+      TimeTrigger.DELAYED_UNTIL_TAG;
+
+  private static final long ROOT_FINISHED = 1L;
+
+  private enum Shape {
+    DEFAULT,
+    ONCE,
+    REPEATEDLY,
+    EARLY_AND_LATE
+  }
+
+  private enum LeafKind {
+    END_OF_WINDOW,
+    ELEMENT_COUNT,
+    PROCESSING_TIME
+  }
+
+  /** A {@link Trigger.OnceTrigger} at the bottom of a compiled tree. */
+  private static class Leaf {
+    private final LeafKind kind;
+    private final int triggerIndex;
+    private final long finishedBit;
+    private final int elementCount;
+    private final List<SerializableFunction<Instant, Instant>> timestampMappers;
+
+    private Leaf(LeafKind kind, int triggerIndex, int elementCount,
+        List<SerializableFunction<Instant, Instant>> timestampMappers) {
+      this.kind = kind;
+      this.triggerIndex = triggerIndex;
+      this.finishedBit = 1L << triggerIndex;
+      this.elementCount = elementCount;
+      this.timestampMappers = timestampMappers;
+    }
+
+    private Instant targetTimestamp(Instant processingTime) {
+      Instant result = processingTime;
+      for (SerializableFunction<Instant, Instant> timestampMapper : timestampMappers) {
+        result = timestampMapper.apply(result);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Returns the compiled form of {@code rootTrigger}, or {@code null} if it, or the windows it runs
+   * in, are not supported.
+   */
+  @Nullable
+  static <W extends BoundedWindow> CompiledTrigger<W> compile(
+      ExecutableTrigger<W> rootTrigger, TriggerContextFactory<W> contextFactory) {
+    if (contextFactory.isMerging()) {
+      return null;
+    }
+
+    Trigger<W> spec = rootTrigger.getSpec();
+    if (spec instanceof DefaultTrigger) {
+      return new CompiledTrigger<>(Shape.DEFAULT, null, null, contextFactory);
+    }
+
+    Leaf leaf = compileLeaf(rootTrigger);
+    if (leaf != null) {
+      return new CompiledTrigger<>(Shape.ONCE, leaf, null, contextFactory);
+    }
+
+    List<ExecutableTrigger<W>> subTriggers = rootTrigger.subTriggers();
+    if (spec instanceof Repeatedly) {
+      leaf = compileLeaf(subTriggers.get(0));
+      return leaf == null
+          ? null : new CompiledTrigger<>(Shape.REPEATEDLY, leaf, null, contextFactory);
+    }
+
+    if (spec instanceof AfterWatermarkEarlyAndLate) {
+      Leaf early = compileLeaf(subTriggers.get(0));
+      Leaf late = subTriggers.size() > 1 ? compileLeaf(subTriggers.get(1)) : null;
+      if (early == null || (subTriggers.size() > 1 && late == null)) {
+        return null;
+      }
+      return new CompiledTrigger<>(Shape.EARLY_AND_LATE, early, late, contextFactory);
+    }
+
+    return null;
+  }
+
+  @Nullable
+  private static Leaf compileLeaf(ExecutableTrigger<?> trigger) {
+    Trigger<?> spec = trigger.getSpec();
+    // Match exact classes, since subclasses may change the behavior.
+    if (spec.getClass().equals(AfterPane.class)) {
+      return new Leaf(LeafKind.ELEMENT_COUNT, trigger.getTriggerIndex(),
+          ((AfterPane<?>) spec).getElementCount(), null);
+    } else if (spec.getClass().equals(AfterProcessingTime.class)) {
+      return new Leaf(LeafKind.PROCESSING_TIME, trigger.getTriggerIndex(),
+          0, ((AfterProcessingTime<?>) spec).getTimestampMappers());
+    } else if (spec.getClass().equals(AfterWatermark.FromEndOfWindow.class)) {
+      return new Leaf(LeafKind.END_OF_WINDOW, trigger.getTriggerIndex(), 0, null);
+    } else {
+      return null;
+    }
+  }
+
+  private final Shape shape;
+  // The only leaf, or the early leaf for EARLY_AND_LATE. Null for DEFAULT.
+  @Nullable private final Leaf leaf;
+  @Nullable private final Leaf lateLeaf;
+  private final TriggerContextFactory<W> contextFactory;
+
+  private CompiledTrigger(Shape shape, @Nullable Leaf leaf, @Nullable Leaf lateLeaf,
+      TriggerContextFactory<W> contextFactory) {
+    this.shape = shape;
+    this.leaf = leaf;
+    this.lateLeaf = lateLeaf;
+    this.contextFactory = contextFactory;
+  }
+
+  /**
+   * Returns whether the tree can ever finish, and so needs its finished bits persisted.
+   */
+  boolean isFinishedSetNeeded() {
+    return shape != Shape.DEFAULT;
+  }
+
+  boolean isClosed(ReduceFn.StateContext state) {
+    return (readFinishedBits(state) & ROOT_FINISHED) != 0;
+  }
+
+  void prefetchForValue(W window, ReduceFn.StateContext state) {
+    prefetchFinishedBits(state);
+    // Only processing time leaves read their state when an element arrives.
+    if (leaf != null && leaf.kind == LeafKind.PROCESSING_TIME) {
+      prefetchLeaf(window, leaf);
+    }
+    if (lateLeaf != null && lateLeaf.kind == LeafKind.PROCESSING_TIME) {
+      prefetchLeaf(window, lateLeaf);
+    }
+  }
+
+  void prefetchShouldFire(W window, ReduceFn.StateContext state) {
+    prefetchFinishedBits(state);
+    prefetchLeaf(window, leaf);
+    prefetchLeaf(window, lateLeaf);
+  }
+
+  void processValue(ReduceFn<?, ?, ?, W>.ProcessValueContext c) {
+    W window = c.window();
+    switch (shape) {
+      case DEFAULT:
+        // If the end of the window has already been reached, then we are already ready to fire
+        // and do not need to set a wake-up timer.
+        if (!endOfWindowReached(window, c.timers())) {
+          c.timers().setTimer(window.maxTimestamp(), TimeDomain.EVENT_TIME);
+        }
+        break;
+      case ONCE:
+      case REPEATEDLY:
+        onElement(leaf, window, c.timers());
+        break;
+      case EARLY_AND_LATE:
+        long finishedBits = readFinishedBits(c.state());
+        if ((finishedBits & leaf.finishedBit) == 0) {
+          onElement(leaf, window, c.timers());
+        } else if (lateLeaf != null && (finishedBits & lateLeaf.finishedBit) == 0) {
+          onElement(lateLeaf, window, c.timers());
+        }
+        break;
+      default:
+        throw new IllegalStateException("Unknown shape " + shape);
+    }
+  }
+
+  boolean shouldFire(ReduceFn<?, ?, ?, W>.Context c) {
+    W window = c.window();
+    switch (shape) {
+      case DEFAULT:
+        return endOfWindowReached(window, c.timers());
+      case ONCE:
+      case REPEATEDLY:
+        return shouldFire(leaf, window, c.timers());
+      case EARLY_AND_LATE:
+        if ((readFinishedBits(c.state()) & leaf.finishedBit) == 0) {
+          return shouldFire(leaf, window, c.timers()) || endOfWindowReached(window, c.timers());
+        }
+        return lateLeaf != null && shouldFire(lateLeaf, window, c.timers());
+      default:
+        throw new IllegalStateException("Unknown shape " + shape);
+    }
+  }
+
+  void onFire(ReduceFn<?, ?, ?, W>.Context c) {
+    W window = c.window();
+    switch (shape) {
+      case DEFAULT:
+        break;
+      case ONCE:
+        clear(leaf, window);
+        writeFinishedBits(c.state(), readFinishedBits(c.state()) | ROOT_FINISHED);
+        break;
+      case REPEATEDLY:
+        // The leaf finishes and is immediately reset.
+        clear(leaf, window);
+        break;
+      case EARLY_AND_LATE:
+        long originalBits = readFinishedBits(c.state());
+        long finishedBits = originalBits;
+        if ((finishedBits & leaf.finishedBit) == 0) {
+          // An early or on time firing. The early leaf is reset either way.
+          clear(leaf, window);
+          if (endOfWindowReached(window, c.timers())) {
+            finishedBits |= leaf.finishedBit;
+            if (lateLeaf == null) {
+              finishedBits |= ROOT_FINISHED;
+            } else {
+              clear(lateLeaf, window);
+            }
+          }
+        } else if (lateLeaf != null) {
+          clear(lateLeaf, window);
+          finishedBits &= ~lateLeaf.finishedBit;
+        } else {
+          finishedBits |= ROOT_FINISHED;
+        }
+        if (finishedBits != originalBits) {
+          writeFinishedBits(c.state(), finishedBits);
+        }
+        break;
+      default:
+        throw new IllegalStateException("Unknown shape " + shape);
+    }
+  }
+
+  void clearState(ReduceFn<?, ?, ?, W>.Context c) {
+    clear(leaf, c.window());
+    clear(lateLeaf, c.window());
+  }
+
+  private void onElement(Leaf leaf, W window, ReduceFn.Timers timers) {
+    switch (leaf.kind) {
+      case END_OF_WINDOW:
+        timers.setTimer(window.maxTimestamp(), TimeDomain.EVENT_TIME);
+        break;
+      case ELEMENT_COUNT:
+        contextFactory.stateForTrigger(window, leaf.triggerIndex, ELEMENTS_IN_PANE_TAG).add(1L);
+        break;
+      case PROCESSING_TIME:
+        CombiningValueState<Instant, Instant> delayedUntil =
+            contextFactory.stateForTrigger(window, leaf.triggerIndex, DELAYED_UNTIL_TAG);
+        if (delayedUntil.get().read() == null) {
+          Instant targetTimestamp = leaf.targetTimestamp(timers.currentProcessingTime());
+          delayedUntil.add(targetTimestamp);
+          timers.setTimer(targetTimestamp, TimeDomain.PROCESSING_TIME);
+        }
+        break;
+      default:
+        throw new IllegalStateException("Unknown leaf " + leaf.kind);
+    }
+  }
+
+  private boolean shouldFire(Leaf leaf, W window, ReduceFn.Timers timers) {
+    switch (leaf.kind) {
+      case END_OF_WINDOW:
+        return endOfWindowReached(window, timers);
+      case ELEMENT_COUNT:
+        long count = contextFactory.stateForTrigger(window, leaf.triggerIndex, ELEMENTS_IN_PANE_TAG)
+            .get().read();
+        return count >= leaf.elementCount;
+      case PROCESSING_TIME:
+        Instant delayedUntil =
+            contextFactory.stateForTrigger(window, leaf.triggerIndex, DELAYED_UNTIL_TAG)
+                .get().read();
+        Instant processingTime = timers.currentProcessingTime();
+        return delayedUntil != null
+            && processingTime != null
+            && processingTime.isAfter(delayedUntil);
+      default:
+        throw new IllegalStateException("Unknown leaf " + leaf.kind);
+    }
+  }
+
+  private void clear(@Nullable Leaf leaf, W window) {
+    if (leaf == null) {
+      return;
+    }
+    switch (leaf.kind) {
+      case END_OF_WINDOW:
+        break;
+      case ELEMENT_COUNT:
+        contextFactory.stateForTrigger(window, leaf.triggerIndex, ELEMENTS_IN_PANE_TAG).clear();
+        break;
+      case PROCESSING_TIME:
+        contextFactory.stateForTrigger(window, leaf.triggerIndex, DELAYED_UNTIL_TAG).clear();
+        break;
+      default:
+        throw new IllegalStateException("Unknown leaf " + leaf.kind);
+    }
+  }
+
+  private void prefetchLeaf(W window, @Nullable Leaf leaf) {
+    if (leaf == null) {
+      return;
+    }
+    switch (leaf.kind) {
+      case END_OF_WINDOW:
+        break;
+      case ELEMENT_COUNT:
+        contextFactory.stateForTrigger(window, leaf.triggerIndex, ELEMENTS_IN_PANE_TAG).get();
+        break;
+      case PROCESSING_TIME:
+        contextFactory.stateForTrigger(window, leaf.triggerIndex, DELAYED_UNTIL_TAG).get();
+        break;
+      default:
+        throw new IllegalStateException("Unknown leaf " + leaf.kind);
+    }
+  }
+
+  private static boolean endOfWindowReached(BoundedWindow window, ReduceFn.Timers timers) {
+    Instant eventTime = timers.currentEventTime();
+    return eventTime != null && eventTime.isAfter(window.maxTimestamp());
+  }
+
+  private void prefetchFinishedBits(ReduceFn.StateContext state) {
+    if (isFinishedSetNeeded()) {
+      state.access(TriggerRunner.FINISHED_BITS_TAG).get();
+    }
+  }
+
+  private long readFinishedBits(ReduceFn.StateContext state) {
+    if (!isFinishedSetNeeded()) {
+      return 0;
+    }
+    BitSet bitSet = state.access(TriggerRunner.FINISHED_BITS_TAG).get().read();
+    return bitSet == null || bitSet.isEmpty() ? 0 : bitSet.toLongArray()[0];
+  }
+
+  private void writeFinishedBits(ReduceFn.StateContext state, long finishedBits) {
+    ValueState<BitSet> finishedSet = state.access(TriggerRunner.FINISHED_BITS_TAG);
+    if (finishedBits == 0) {
+      finishedSet.clear();
+    } else {
+      finishedSet.set(BitSet.valueOf(new long[] {finishedBits}));
+    }
+  }
+}
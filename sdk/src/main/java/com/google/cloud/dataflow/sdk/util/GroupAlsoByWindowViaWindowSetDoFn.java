@@ -22,6 +22,10 @@ import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
 import com.google.cloud.dataflow.sdk.util.DoFnRunner.ReduceFnExecutor;
 import com.google.cloud.dataflow.sdk.util.TimerInternals.TimerData;
 import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.common.collect.Lists;
+
+import java.util.Collections;
+import java.util.List;
 
 /**
  * A general {@link GroupAlsoByWindowsDoFn}. This delegates all of the logic to the
@@ -72,7 +76,11 @@ public class GroupAlsoByWindowViaWindowSetDoFn<
             droppedDueToClosedWindow,
             reduceFnFactory.create(key));
 
-    for (TimerData timer : element.timersIterable()) {
+    // Fire the timers in timestamp order, so that windows whose state is shared (see
+    // SystemReduceFn#combiningBySlices) are output in the order of their end.
+    List<TimerData> timers = Lists.newArrayList(element.timersIterable());
+    Collections.sort(timers);
+    for (TimerData timer : timers) {
       runner.onTimer(timer);
     }
     runner.processElements(element.elementsIterable());
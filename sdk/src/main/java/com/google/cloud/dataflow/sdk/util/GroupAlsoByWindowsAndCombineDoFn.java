@@ -19,30 +19,56 @@ package com.google.cloud.dataflow.sdk.util;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.CoderException;
 import com.google.cloud.dataflow.sdk.transforms.Combine.KeyedCombineFn;
 import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
 import com.google.cloud.dataflow.sdk.transforms.windowing.DefaultTrigger;
+import com.google.cloud.dataflow.sdk.transforms.windowing.IntervalWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.OutputTimeFn;
 import com.google.cloud.dataflow.sdk.transforms.windowing.PaneInfo;
+import com.google.cloud.dataflow.sdk.transforms.windowing.SlidingWindows;
 import com.google.cloud.dataflow.sdk.transforms.windowing.WindowFn;
 import com.google.cloud.dataflow.sdk.util.WindowingStrategy.AccumulationMode;
 import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.math.LongMath;
 
 import org.joda.time.Instant;
 
+import java.math.RoundingMode;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 
+import javax.annotation.Nullable;
+
 /**
  * {@link GroupAlsoByWindowsDoFn} that uses combiner to accumulate input elements for non-merging
  * window functions with the default triggering strategy.
  *
+ * <p>For {@link SlidingWindows} whose size exceeds the period, and given a coder for the
+ * accumulators, each element is added to exactly one non-overlapping slice of width
+ * {@code gcd(size, period)} and each window's output is produced by merging the accumulators of
+ * the slices it covers, rather than adding every element to each of its {@code size / period}
+ * windows. If a key's input does not look like it was assigned by the {@link SlidingWindows}
+ * (or is not sorted by timestamp), the live slices are expanded back into per-window accumulators
+ * and the rest of the key is combined window by window, so the output is the same either way.
+ *
+ * <p>In streaming, {@link SystemReduceFn#combiningBySlices} shares slices the same way in
+ * persistent state.
+ *
  * @param <K> key type
  * @param <InputT> value input type
  * @param <AccumT> accumulator type
@@ -72,10 +98,26 @@ class GroupAlsoByWindowsAndCombineDoFn<K, InputT, AccumT, OutputT, W extends Bou
 
   private final KeyedCombineFn<K, InputT, AccumT, OutputT> combineFn;
   private WindowingStrategy<Object, W> windowingStrategy;
+  @Nullable private final Coder<AccumT> accumulatorCoder;
+
+  /** Width of the slices shared between sliding windows, or 0 if slices are not used. */
+  private final long sliceMillis;
 
   public GroupAlsoByWindowsAndCombineDoFn(
       WindowingStrategy<?, W> strategy,
       KeyedCombineFn<K, InputT, AccumT, OutputT> combineFn) {
+    this(strategy, combineFn, null);
+  }
+
+  /**
+   * Creates a {@link GroupAlsoByWindowsAndCombineDoFn} that shares slices of accumulated input
+   * between overlapping {@link SlidingWindows}, using {@code accumulatorCoder} to copy the
+   * accumulators of slices that belong to more than one window.
+   */
+  public GroupAlsoByWindowsAndCombineDoFn(
+      WindowingStrategy<?, W> strategy,
+      KeyedCombineFn<K, InputT, AccumT, OutputT> combineFn,
+      @Nullable Coder<AccumT> accumulatorCoder) {
 
     checkArgument(GroupAlsoByWindowsAndCombineDoFn.isSupported(strategy),
         "%s does not support non-default triggering, "
@@ -89,7 +131,33 @@ class GroupAlsoByWindowsAndCombineDoFn<K, InputT, AccumT, OutputT, W extends Bou
     @SuppressWarnings("unchecked")
     WindowingStrategy<Object, W> objectWindowingStrategy = (WindowingStrategy<Object, W>) strategy;
     this.windowingStrategy = objectWindowingStrategy;
+    this.accumulatorCoder = accumulatorCoder;
+    this.sliceMillis = sliceMillis(strategy, accumulatorCoder);
+  }
 
+  /**
+   * Returns the width of the slices to use for the given strategy, or 0 if the windows cannot
+   * share slices. The output time of a window must be computable from its earliest input.
+   */
+  private static long sliceMillis(
+      WindowingStrategy<?, ?> strategy, @Nullable Coder<?> accumulatorCoder) {
+    if (accumulatorCoder == null || !(strategy.getWindowFn() instanceof SlidingWindows)) {
+      return 0;
+    }
+    OutputTimeFn<?> outputTimeFn = strategy.getOutputTimeFn();
+    if (!outputTimeFn.dependsOnlyOnEarliestInputTimestamp()
+        && !outputTimeFn.dependsOnlyOnWindow()) {
+      return 0;
+    }
+    SlidingWindows windowFn = (SlidingWindows) strategy.getWindowFn();
+    long size = windowFn.getSize().getMillis();
+    long period = windowFn.getPeriod().getMillis();
+    return size > period ? LongMath.gcd(size, period) : 0;
+  }
+
+  @VisibleForTesting
+  boolean usesSlices() {
+    return sliceMillis > 0;
   }
 
   @Override
@@ -134,6 +202,11 @@ class GroupAlsoByWindowsAndCombineDoFn<K, InputT, AccumT, OutputT, W extends Bou
       }
     };
 
+    if (sliceMillis > 0) {
+      iterator = combineBySlices(
+          key, iterator, liveWindows, accumulators, accumulatorOutputTimestamps, c);
+    }
+
     while (iterator.hasNext()) {
       WindowedValue<InputT> e = iterator.next();
 
@@ -177,6 +250,163 @@ class GroupAlsoByWindowsAndCombineDoFn<K, InputT, AccumT, OutputT, W extends Bou
     }
   }
 
+  /**
+   * A non-overlapping range of {@code sliceMillis} that holds the accumulated input for the
+   * elements with timestamps in it.
+   */
+  private static class Slice<AccumT> {
+    private final long index;
+    private final Instant earliestTimestamp;
+    private AccumT accum;
+
+    private Slice(long index, Instant earliestTimestamp, AccumT accum) {
+      this.index = index;
+      this.earliestTimestamp = earliestTimestamp;
+      this.accum = accum;
+    }
+  }
+
+  /**
+   * Combines the elements of a key into slices, outputting each window once no later element can
+   * belong to it. Returns the elements that still need to be combined window by window, in which
+   * case the windows that have not been output are added to {@code liveWindows}.
+   */
+  private Iterator<WindowedValue<InputT>> combineBySlices(
+      K key, Iterator<WindowedValue<InputT>> iterator, PriorityQueue<W> liveWindows,
+      Map<W, AccumT> accumulators, Map<W, Instant> accumulatorOutputTimestamps,
+      ProcessContext c) throws CoderException {
+    SlidingWindows windowFn = (SlidingWindows) windowingStrategy.getWindowFn();
+    Deque<Slice<AccumT>> slices = new ArrayDeque<>();
+    // The start of the earliest window that has not been output yet.
+    long nextStart = Long.MIN_VALUE;
+    long lastTimestamp = Long.MIN_VALUE;
+
+    while (iterator.hasNext()) {
+      WindowedValue<InputT> e = iterator.next();
+      long timestamp = e.getTimestamp().getMillis();
+      if (timestamp < lastTimestamp
+          || !isAssignedBySlidingWindows(windowFn, timestamp, e.getWindows())) {
+        drainSlices(key, windowFn, slices, nextStart, Long.MAX_VALUE, false,
+            liveWindows, accumulators, accumulatorOutputTimestamps, c);
+        return Iterators.concat(Iterators.singletonIterator(e), iterator);
+      }
+      lastTimestamp = timestamp;
+
+      // A window [start, start + size) is complete once its maxTimestamp is before this element.
+      nextStart = drainSlices(key, windowFn, slices, nextStart, timestamp, true,
+          liveWindows, accumulators, accumulatorOutputTimestamps, c);
+
+      long index = LongMath.divide(
+          timestamp - windowFn.getOffset().getMillis(), sliceMillis, RoundingMode.FLOOR);
+      Slice<AccumT> slice = slices.peekLast();
+      if (slice == null || slice.index != index) {
+        // Elements are sorted by timestamp, so the first element of a slice is its earliest.
+        slice = new Slice<>(index, e.getTimestamp(), combineFn.createAccumulator(key));
+        slices.addLast(slice);
+      }
+      slice.accum = combineFn.addInput(key, slice.accum, e.getValue());
+    }
+
+    drainSlices(key, windowFn, slices, nextStart, Long.MAX_VALUE, true,
+        liveWindows, accumulators, accumulatorOutputTimestamps, c);
+    return Collections.emptyIterator();
+  }
+
+  /**
+   * Produces the accumulator of every non-empty window starting at or after {@code nextStart}
+   * that ends at or before {@code limit}, either outputting it or adding it to
+   * {@code liveWindows}. Slices no later window covers are dropped, and their accumulators are
+   * merged without being copied. Returns the start of the next window.
+   */
+  private long drainSlices(
+      K key, SlidingWindows windowFn, Deque<Slice<AccumT>> slices, long nextStart, long limit,
+      boolean output, PriorityQueue<W> liveWindows, Map<W, AccumT> accumulators,
+      Map<W, Instant> accumulatorOutputTimestamps, ProcessContext c) throws CoderException {
+    long size = windowFn.getSize().getMillis();
+    long period = windowFn.getPeriod().getMillis();
+    long offset = windowFn.getOffset().getMillis();
+
+    while (!slices.isEmpty()) {
+      // Skip past windows that do not cover any slice.
+      long sliceStart = offset + slices.peekFirst().index * sliceMillis;
+      long earliestStart = sliceStart - size + 1;
+      earliestStart += LongMath.mod(offset - earliestStart, period);
+      nextStart = Math.max(nextStart, earliestStart);
+      if (nextStart > limit - size) {
+        break;
+      }
+
+      long firstIndex = (nextStart - offset) / sliceMillis;
+      long endIndex = firstIndex + size / sliceMillis;
+      long sharedIndex = firstIndex + period / sliceMillis;
+      List<AccumT> accumsToBeMerged = Lists.newArrayList();
+      Instant earliestTimestamp = null;
+      for (Slice<AccumT> slice : slices) {
+        if (slice.index >= endIndex) {
+          break;
+        }
+        accumsToBeMerged.add(slice.index < sharedIndex
+            ? slice.accum : CoderUtils.clone(accumulatorCoder, slice.accum));
+        if (earliestTimestamp == null || slice.earliestTimestamp.isBefore(earliestTimestamp)) {
+          earliestTimestamp = slice.earliestTimestamp;
+        }
+      }
+      while (!slices.isEmpty() && slices.peekFirst().index < sharedIndex) {
+        slices.removeFirst();
+      }
+
+      @SuppressWarnings("unchecked")
+      W window = (W) new IntervalWindow(new Instant(nextStart), new Instant(nextStart + size));
+      accumulators.put(window, accumsToBeMerged.size() == 1
+          ? accumsToBeMerged.get(0) : combineFn.mergeAccumulators(key, accumsToBeMerged));
+      accumulatorOutputTimestamps.put(window,
+          windowingStrategy.getOutputTimeFn().assignOutputTime(earliestTimestamp, window));
+      if (output) {
+        closeWindow(key, window, accumulators, accumulatorOutputTimestamps, c);
+      } else {
+        liveWindows.add(window);
+      }
+      nextStart += period;
+    }
+    return nextStart;
+  }
+
+  /**
+   * Returns whether {@code windows} are exactly the windows {@code windowFn} assigns to
+   * {@code timestamp}.
+   */
+  static boolean isAssignedBySlidingWindows(
+      SlidingWindows windowFn, long timestamp, Collection<? extends BoundedWindow> windows) {
+    long size = windowFn.getSize().getMillis();
+    long period = windowFn.getPeriod().getMillis();
+    long lastStart =
+        timestamp - LongMath.mod(timestamp - windowFn.getOffset().getMillis(), period);
+    long expected = (lastStart - timestamp + size + period - 1) / period;
+    if (windows.size() != expected) {
+      return false;
+    }
+
+    BitSet seen = new BitSet(windows.size());
+    for (BoundedWindow window : windows) {
+      if (!(window instanceof IntervalWindow)) {
+        return false;
+      }
+      IntervalWindow intervalWindow = (IntervalWindow) window;
+      long start = intervalWindow.start().getMillis();
+      long back = lastStart - start;
+      if (intervalWindow.end().getMillis() - start != size
+          || back < 0 || back % period != 0 || back / period >= expected) {
+        return false;
+      }
+      int index = (int) (back / period);
+      if (seen.get(index)) {
+        return false;
+      }
+      seen.set(index);
+    }
+    return true;
+  }
+
   private void closeWindow(
       K key, W window, Map<W, AccumT> accumulators,
       Map<W, Instant> accumulatorOutputTimes,
@@ -58,6 +58,10 @@ public abstract class GroupAlsoByWindowsDoFn<K, InputT, OutputT, W extends Bound
 
     return GroupAlsoByWindowsViaIteratorsDoFn.isSupported(windowingStrategy)
         ? new GroupAlsoByWindowsViaIteratorsDoFn<K, V, W>(windowingStrategy)
+        : GroupAlsoByWindowsViaSessionIteratorsDoFn.isSupported(windowingStrategy)
+        ? new GroupAlsoByWindowsViaSessionIteratorsDoFn<K, V, W>(windowingStrategy, inputCoder)
+        : GroupAlsoByWindowsViaWindowBuffersDoFn.isSupported(windowingStrategy)
+        ? new GroupAlsoByWindowsViaWindowBuffersDoFn<K, V, W>(windowingStrategy)
         : new GroupAlsoByWindowsViaOutputBufferDoFn<>(
             windowingStrategy,
             SystemReduceFn.<K, V, W>buffering(inputCoder));
@@ -78,7 +82,8 @@ public abstract class GroupAlsoByWindowsDoFn<K, InputT, OutputT, W extends Bound
     return GroupAlsoByWindowsAndCombineDoFn.isSupported(windowingStrategy)
         ? new GroupAlsoByWindowsAndCombineDoFn<>(
             windowingStrategy,
-            (KeyedCombineFn<K, InputT, AccumT, OutputT>) combineFn.getFn())
+            (KeyedCombineFn<K, InputT, AccumT, OutputT>) combineFn.getFn(),
+            combineFn.getAccumulatorCoder())
         : new GroupAlsoByWindowsViaOutputBufferDoFn<>(
             windowingStrategy,
             SystemReduceFn.<K, InputT, AccumT, OutputT, W>combining(keyCoder, combineFn));
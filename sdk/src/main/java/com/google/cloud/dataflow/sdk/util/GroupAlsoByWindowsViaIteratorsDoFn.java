@@ -93,18 +93,7 @@ class GroupAlsoByWindowsViaIteratorsDoFn<K, V, W extends BoundedWindow>
   public void processElement(ProcessContext c) throws Exception {
     K key = c.element().getKey();
     // This iterable is required to be in order of increasing timestamps
-    Iterable<WindowedValue<V>> value = c.element().getValue();
-    PeekingReiterator<WindowedValue<V>> iterator;
-
-    if (value instanceof Collection) {
-      iterator = new PeekingReiterator<>(new ListReiterator<WindowedValue<V>>(
-          new ArrayList<WindowedValue<V>>((Collection<WindowedValue<V>>) value), 0));
-    } else if (value instanceof Reiterable) {
-      iterator = new PeekingReiterator<>(((Reiterable<WindowedValue<V>>) value).iterator());
-    } else {
-      throw new IllegalArgumentException(
-          "Input to GroupAlsoByWindowsDoFn must be a Collection or Reiterable");
-    }
+    PeekingReiterator<WindowedValue<V>> iterator = peekingReiterator(c.element().getValue());
 
     // This ListMultimap is a map of window maxTimestamps to the list of active
     // windows with that maxTimestamp.
@@ -146,6 +135,22 @@ class GroupAlsoByWindowsViaIteratorsDoFn<K, V, W extends BoundedWindow>
     }
   }
 
+  /**
+   * Returns a {@link PeekingReiterator} over the grouped values of a key, which must be a
+   * {@link Collection} or a {@link Reiterable}.
+   */
+  static <T> PeekingReiterator<T> peekingReiterator(Iterable<T> value) {
+    if (value instanceof Collection) {
+      return new PeekingReiterator<>(new ListReiterator<T>(
+          new ArrayList<T>((Collection<T>) value), 0));
+    } else if (value instanceof Reiterable) {
+      return new PeekingReiterator<>(((Reiterable<T>) value).iterator());
+    } else {
+      throw new IllegalArgumentException(
+          "Input to GroupAlsoByWindowsDoFn must be a Collection or Reiterable");
+    }
+  }
+
   /**
    * {@link Reiterable} representing a view of all elements in a base
    * {@link Reiterator} that are in a given window.
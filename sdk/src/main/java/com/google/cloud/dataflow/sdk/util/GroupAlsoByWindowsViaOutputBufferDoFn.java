@@ -16,6 +16,7 @@
 
 package com.google.cloud.dataflow.sdk.util;
 
+import com.google.cloud.dataflow.sdk.transforms.Aggregator;
 import com.google.cloud.dataflow.sdk.transforms.DoFn;
 import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
 import com.google.cloud.dataflow.sdk.values.KV;
@@ -48,18 +49,47 @@ class GroupAlsoByWindowsViaOutputBufferDoFn<K, InputT, OutputT, W extends Bounde
       DoFn<KV<K, Iterable<WindowedValue<InputT>>>,
       KV<K, OutputT>>.ProcessContext c)
       throws Exception {
-    K key = c.element().getKey();
+    processWithReduceFn(c, strategy, reduceFnFactory, droppedDueToClosedWindow);
+  }
+
+  /**
+   * Groups the values of the current key of {@code c} by running the {@link ReduceFn} created by
+   * {@code reduceFnFactory} over them. This handles any windowing strategy, so the specialized
+   * implementations also use it for input they cannot handle themselves.
+   */
+  static <K, InputT, OutputT, W extends BoundedWindow> void processWithReduceFn(
+      DoFn<KV<K, Iterable<WindowedValue<InputT>>>, KV<K, OutputT>>.ProcessContext c,
+      WindowingStrategy<?, W> strategy,
+      SystemReduceFn.Factory<K, InputT, OutputT, W> reduceFnFactory,
+      Aggregator<Long, Long> droppedDueToClosedWindow)
+      throws Exception {
+    processWithReduceFn(c.element().getKey(), c.element().getValue(), c.windowingInternals(),
+        strategy, reduceFnFactory, droppedDueToClosedWindow);
+  }
+
+  /**
+   * Groups {@code values}, which must be sorted by timestamp, as the values of {@code key} by
+   * running the {@link ReduceFn} created by {@code reduceFnFactory} over them.
+   */
+  static <K, InputT, OutputT, W extends BoundedWindow> void processWithReduceFn(
+      K key,
+      Iterable<WindowedValue<InputT>> values,
+      WindowingInternals<?, KV<K, OutputT>> windowingInternals,
+      WindowingStrategy<?, W> strategy,
+      SystemReduceFn.Factory<K, InputT, OutputT, W> reduceFnFactory,
+      Aggregator<Long, Long> droppedDueToClosedWindow)
+      throws Exception {
     // Used with Batch, we know that all the data is available for this key. We can't use the
     // timer manager from the context because it doesn't exist. So we create one and emulate the
     // watermark, knowing that we have all data and it is in timestamp order.
     BatchTimerInternals timerInternals = new BatchTimerInternals(Instant.now());
 
     ReduceFnRunner<K, InputT, OutputT, W> runner = new ReduceFnRunner<>(
-        key, strategy, timerInternals, c.windowingInternals(),
+        key, strategy, timerInternals, windowingInternals,
         droppedDueToClosedWindow, reduceFnFactory.create(key));
 
     Iterable<List<WindowedValue<InputT>>> chunks =
-        Iterables.partition(c.element().getValue(), 1000);
+        Iterables.partition(values, 1000);
     for (Iterable<WindowedValue<InputT>> chunk : chunks) {
       // Process the chunk of elements.
       runner.processElements(chunk);
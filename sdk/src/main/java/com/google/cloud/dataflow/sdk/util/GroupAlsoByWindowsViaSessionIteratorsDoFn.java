@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.transforms.Aggregator;
+import com.google.cloud.dataflow.sdk.transforms.Sum;
+import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.DefaultTrigger;
+import com.google.cloud.dataflow.sdk.transforms.windowing.IntervalWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.OutputTimeFn;
+import com.google.cloud.dataflow.sdk.transforms.windowing.PaneInfo;
+import com.google.cloud.dataflow.sdk.transforms.windowing.Sessions;
+import com.google.cloud.dataflow.sdk.util.WindowingStrategy.AccumulationMode;
+import com.google.cloud.dataflow.sdk.util.common.PeekingReiterator;
+import com.google.cloud.dataflow.sdk.util.common.Reiterable;
+import com.google.cloud.dataflow.sdk.util.common.Reiterator;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.Iterables;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link GroupAlsoByWindowsDoFn} that uses reiterators to handle {@link Sessions} with the
+ * default triggering strategy.
+ *
+ * <p>Since the input is sorted by timestamp, the elements of each session are usually a contiguous
+ * run of the input, and each session is output as a view over that run as soon as the next element
+ * of the input falls after its end. Only the bounds of the current session are held in memory.
+ *
+ * <p>If a window starts before the session that precedes it in the input, which windows of elements
+ * whose timestamps were moved forward after windowing may do, the rest of the key, starting with
+ * that session, is instead grouped by buffering its values as
+ * {@link GroupAlsoByWindowsViaOutputBufferDoFn} does, and counted in
+ * {@link #OUT_OF_ORDER_SESSIONS_COUNTER}. Like the watermark of the buffering implementation,
+ * sessions that were already output are not reopened.
+ *
+ * @param <K> key type
+ * @param <V> value element type
+ * @param <W> window type
+ */
+@SystemDoFnInternal
+class GroupAlsoByWindowsViaSessionIteratorsDoFn<K, V, W extends BoundedWindow>
+    extends GroupAlsoByWindowsDoFn<K, V, Iterable<V>, W> {
+  public static final String OUT_OF_ORDER_SESSIONS_COUNTER = "OutOfOrderSessions";
+
+  private final Aggregator<Long, Long> outOfOrderSessions =
+      createAggregator(OUT_OF_ORDER_SESSIONS_COUNTER, new Sum.SumLongFn());
+
+  private final WindowingStrategy<?, W> strategy;
+  private final SystemReduceFn.Factory<K, V, Iterable<V>, W> fallbackReduceFnFactory;
+
+  public static boolean isSupported(WindowingStrategy<?, ?> strategy) {
+    // Subclasses of Sessions may assign windows that are not ordered by timestamp.
+    if (!strategy.getWindowFn().getClass().equals(Sessions.class)) {
+      return false;
+    }
+
+    if (!(strategy.getTrigger().getSpec() instanceof DefaultTrigger)) {
+      return false;
+    }
+
+    // It must be possible to compute the output timestamp of a session from the input timestamp
+    // of its earliest element.
+    OutputTimeFn<?> outputTimeFn = strategy.getOutputTimeFn();
+    if (!outputTimeFn.dependsOnlyOnEarliestInputTimestamp()
+        && !outputTimeFn.dependsOnlyOnWindow()) {
+      return false;
+    }
+
+    // In Batch mode there is no late data so the default trigger (after watermark) will only fire
+    // once, and ACCUMULATING_FIRED_PANES is the same as DISCARDING_FIRED_PANES.
+    if (!(strategy.getMode().equals(AccumulationMode.DISCARDING_FIRED_PANES)
+        || strategy.getMode().equals(AccumulationMode.ACCUMULATING_FIRED_PANES))) {
+      return false;
+    }
+
+    return true;
+  }
+
+  public GroupAlsoByWindowsViaSessionIteratorsDoFn(
+      WindowingStrategy<?, W> strategy, Coder<V> inputCoder) {
+    checkArgument(GroupAlsoByWindowsViaSessionIteratorsDoFn.isSupported(strategy),
+        "%s does not support window functions other than Sessions, non-default triggering, "
+        + "or any OutputTimeFn that depends on more than the earliest timestamp or the window, "
+        + "found in windowing strategy: %s",
+        getClass(),
+        strategy);
+    this.strategy = strategy;
+    this.fallbackReduceFnFactory = SystemReduceFn.buffering(inputCoder);
+  }
+
+  @Override
+  public void processElement(ProcessContext c) throws Exception {
+    K key = c.element().getKey();
+    // This iterable is required to be in order of increasing timestamps
+    PeekingReiterator<WindowedValue<V>> iterator =
+        GroupAlsoByWindowsViaIteratorsDoFn.peekingReiterator(c.element().getValue());
+
+    while (iterator.hasNext()) {
+      final PeekingReiterator<WindowedValue<V>> sessionStart = iterator.copy();
+      WindowedValue<V> first = iterator.next();
+      IntervalWindow session = windowOf(first);
+      long size = 1;
+      while (iterator.hasNext()) {
+        IntervalWindow window = windowOf(iterator.peek());
+        if (window.start().isBefore(session.start())) {
+          // This session may not be complete, so group the rest of this key the slow way.
+          outOfOrderSessions.addValue(1L);
+          GroupAlsoByWindowsViaOutputBufferDoFn.processWithReduceFn(
+              key,
+              new Iterable<WindowedValue<V>>() {
+                @Override
+                public Iterator<WindowedValue<V>> iterator() {
+                  return sessionStart.copy();
+                }
+              },
+              c.windowingInternals(), strategy, fallbackReduceFnFactory,
+              droppedDueToClosedWindow);
+          return;
+        }
+        if (!session.intersects(window)) {
+          break;
+        }
+        session = session.span(window);
+        iterator.next();
+        size++;
+      }
+
+      // This window was produced by strategy.getWindowFn()
+      @SuppressWarnings("unchecked")
+      W typedSession = (W) session;
+      c.windowingInternals().outputWindowedValue(
+          KV.of(key, (Iterable<V>) new SessionReiterable<V>(sessionStart, size)),
+          strategy.getOutputTimeFn().assignOutputTime(first.getTimestamp(), typedSession),
+          Arrays.asList(session),
+          PaneInfo.ON_TIME_AND_ONLY_FIRING);
+    }
+  }
+
+  private static IntervalWindow windowOf(WindowedValue<?> e) {
+    Collection<? extends BoundedWindow> windows = e.getWindows();
+    checkState(windows.size() == 1, "Expected exactly one session window, found %s", windows);
+    return (IntervalWindow) Iterables.getOnlyElement(windows);
+  }
+
+  /**
+   * {@link Reiterable} representing a view of the values of the next {@code size} elements of a
+   * base {@link Reiterator}.
+   */
+  private static class SessionReiterable<V> implements Reiterable<V> {
+    private final PeekingReiterator<WindowedValue<V>> baseIterator;
+    private final long size;
+
+    public SessionReiterable(PeekingReiterator<WindowedValue<V>> baseIterator, long size) {
+      this.baseIterator = baseIterator;
+      this.size = size;
+    }
+
+    @Override
+    public Reiterator<V> iterator() {
+      return new SessionReiterator<V>(baseIterator.copy(), size);
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .addValue(Iterables.toString(this))
+          .toString();
+    }
+  }
+
+  /**
+   * The {@link Reiterator} used by {@link SessionReiterable}.
+   */
+  private static class SessionReiterator<V> implements Reiterator<V> {
+    private final PeekingReiterator<WindowedValue<V>> iterator;
+    private long remaining;
+
+    public SessionReiterator(PeekingReiterator<WindowedValue<V>> iterator, long remaining) {
+      this.iterator = iterator;
+      this.remaining = remaining;
+    }
+
+    @Override
+    public Reiterator<V> copy() {
+      return new SessionReiterator<V>(iterator.copy(), remaining);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return remaining > 0;
+    }
+
+    @Override
+    public V next() {
+      if (remaining <= 0) {
+        throw new NoSuchElementException("No next item in session");
+      }
+      remaining--;
+      return iterator.next().getValue();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.DefaultTrigger;
+import com.google.cloud.dataflow.sdk.transforms.windowing.OutputTimeFn;
+import com.google.cloud.dataflow.sdk.transforms.windowing.PaneInfo;
+import com.google.cloud.dataflow.sdk.transforms.windowing.WindowFn;
+import com.google.cloud.dataflow.sdk.util.WindowingStrategy.AccumulationMode;
+import com.google.cloud.dataflow.sdk.values.KV;
+
+import org.joda.time.Instant;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * {@link GroupAlsoByWindowsDoFn} that handles the default triggering strategy for any
+ * {@link WindowFn} and {@link OutputTimeFn} by buffering the values of each window directly.
+ *
+ * <p>In batch all the data for a key is present and sorted by timestamp, so the default trigger
+ * fires exactly once per window, with an {@link PaneInfo#ON_TIME_AND_ONLY_FIRING} pane, once the
+ * input has moved past the end of the window. This does not need the watermark holds, pane
+ * tracking and trigger state that {@link ReduceFnRunner} maintains for every element, so the
+ * output timestamp of each window is instead combined as its values are buffered.
+ *
+ * <p>Windows of a merging {@link WindowFn} are merged every {@link #MERGE_CHUNK_SIZE} elements,
+ * as {@link GroupAlsoByWindowsViaOutputBufferDoFn} does, and are output once the first element
+ * of the merged chunk has moved past their end.
+ *
+ * @param <K> key type
+ * @param <V> value element type
+ * @param <W> window type
+ */
+@SystemDoFnInternal
+class GroupAlsoByWindowsViaWindowBuffersDoFn<K, V, W extends BoundedWindow>
+    extends GroupAlsoByWindowsDoFn<K, V, Iterable<V>, W> {
+
+  /** The number of elements between merges of the buffered windows. */
+  private static final int MERGE_CHUNK_SIZE = 1000;
+
+  public static boolean isSupported(WindowingStrategy<?, ?> strategy) {
+    if (!(strategy.getTrigger().getSpec() instanceof DefaultTrigger)) {
+      return false;
+    }
+
+    // In Batch mode there is no late data so the default trigger (after watermark) will only fire
+    // once, and ACCUMULATING_FIRED_PANES is the same as DISCARDING_FIRED_PANES.
+    if (!(strategy.getMode().equals(AccumulationMode.DISCARDING_FIRED_PANES)
+        || strategy.getMode().equals(AccumulationMode.ACCUMULATING_FIRED_PANES))) {
+      return false;
+    }
+
+    return true;
+  }
+
+  private final WindowingStrategy<?, W> strategy;
+
+  public GroupAlsoByWindowsViaWindowBuffersDoFn(WindowingStrategy<?, W> strategy) {
+    checkArgument(GroupAlsoByWindowsViaWindowBuffersDoFn.isSupported(strategy),
+        "%s does not support non-default triggering, found in windowing strategy: %s",
+        getClass(),
+        strategy);
+    this.strategy = strategy;
+  }
+
+  @Override
+  public void processElement(ProcessContext c) throws Exception {
+    K key = c.element().getKey();
+    OutputTimeFn<? super W> outputTimeFn = strategy.getOutputTimeFn();
+    boolean merging = !strategy.getWindowFn().isNonMerging();
+
+    Map<W, WindowBuffer<V>> buffers = new HashMap<>();
+    // The earliest end of a buffered window, if the windows do not merge.
+    Instant nextEndOfWindow = BoundedWindow.TIMESTAMP_MAX_VALUE;
+    Instant chunkStart = null;
+    int chunkSize = 0;
+
+    // This iterable is required to be in order of increasing timestamps
+    for (WindowedValue<V> e : c.element().getValue()) {
+      for (BoundedWindow untypedWindow : e.getWindows()) {
+        // This window was produced by strategy.getWindowFn()
+        @SuppressWarnings("unchecked")
+        W window = (W) untypedWindow;
+        WindowBuffer<V> buffer = buffers.get(window);
+        if (buffer == null) {
+          buffer = new WindowBuffer<>();
+          buffers.put(window, buffer);
+          if (window.maxTimestamp().isBefore(nextEndOfWindow)) {
+            nextEndOfWindow = window.maxTimestamp();
+          }
+        }
+        buffer.add(e.getValue(), outputTimeFn.assignOutputTime(e.getTimestamp(), window),
+            outputTimeFn);
+      }
+
+      if (merging) {
+        if (chunkSize == 0) {
+          chunkStart = e.getTimestamp();
+        }
+        if (++chunkSize == MERGE_CHUNK_SIZE) {
+          mergeWindows(buffers);
+          outputWindows(c, key, buffers, chunkStart);
+          chunkSize = 0;
+        }
+      } else if (e.getTimestamp().isAfter(nextEndOfWindow)) {
+        nextEndOfWindow = outputWindows(c, key, buffers, e.getTimestamp());
+      }
+    }
+
+    if (merging) {
+      mergeWindows(buffers);
+    }
+    outputWindows(c, key, buffers, null);
+  }
+
+  /**
+   * Outputs and removes the buffered windows that end before {@code timestamp}, or all of them if
+   * it is null, and returns the earliest end of the windows that remain.
+   */
+  private Instant outputWindows(
+      ProcessContext c, K key, Map<W, WindowBuffer<V>> buffers, @Nullable Instant timestamp) {
+    List<W> windows = new ArrayList<>();
+    Instant nextEndOfWindow = BoundedWindow.TIMESTAMP_MAX_VALUE;
+    for (W window : buffers.keySet()) {
+      if (timestamp == null || window.maxTimestamp().isBefore(timestamp)) {
+        windows.add(window);
+      } else if (window.maxTimestamp().isBefore(nextEndOfWindow)) {
+        nextEndOfWindow = window.maxTimestamp();
+      }
+    }
+
+    Collections.sort(windows, new Comparator<W>() {
+      @Override
+      public int compare(W w1, W w2) {
+        return w1.maxTimestamp().compareTo(w2.maxTimestamp());
+      }
+    });
+    for (W window : windows) {
+      WindowBuffer<V> buffer = buffers.remove(window);
+      // As in WatermarkHold, the output time is no later than the end of the window.
+      Instant outputTime = buffer.outputTime.isAfter(window.maxTimestamp())
+          ? window.maxTimestamp() : buffer.outputTime;
+      c.windowingInternals().outputWindowedValue(
+          KV.of(key, (Iterable<V>) buffer.values),
+          outputTime,
+          Arrays.asList(window),
+          PaneInfo.ON_TIME_AND_ONLY_FIRING);
+    }
+    return nextEndOfWindow;
+  }
+
+  private void mergeWindows(Map<W, WindowBuffer<V>> buffers) throws Exception {
+    // Merges are recorded and applied afterwards, since the WindowFn may still be iterating
+    // over the windows when it reports a merge.
+    @SuppressWarnings("unchecked")
+    WindowFn<Object, W> windowFn = (WindowFn<Object, W>) strategy.getWindowFn();
+    MergeContextImpl mergeContext = new MergeContextImpl(windowFn, buffers.keySet());
+    windowFn.mergeWindows(mergeContext);
+
+    OutputTimeFn<? super W> outputTimeFn = strategy.getOutputTimeFn();
+    Iterator<W> mergeResults = mergeContext.mergeResults.iterator();
+    for (Collection<W> toBeMerged : mergeContext.toBeMerged) {
+      W mergeResult = mergeResults.next();
+      WindowBuffer<V> merged = new WindowBuffer<>();
+      List<Instant> outputTimes = new ArrayList<>(toBeMerged.size());
+      for (W window : toBeMerged) {
+        WindowBuffer<V> buffer = buffers.remove(window);
+        merged.values.addAll(buffer.values);
+        outputTimes.add(buffer.outputTime);
+      }
+      merged.outputTime = outputTimeFn.merge(mergeResult, outputTimes);
+      buffers.put(mergeResult, merged);
+    }
+  }
+
+  /**
+   * The {@link WindowFn.MergeContext} used by {@link #mergeWindows}, which records the merges.
+   */
+  private class MergeContextImpl extends WindowFn<Object, W>.MergeContext {
+    private final Collection<W> windows;
+    private final List<Collection<W>> toBeMerged = new ArrayList<>();
+    private final List<W> mergeResults = new ArrayList<>();
+
+    public MergeContextImpl(WindowFn<Object, W> windowFn, Collection<W> windows) {
+      windowFn.super();
+      this.windows = Collections.unmodifiableCollection(windows);
+    }
+
+    @Override
+    public Collection<W> windows() {
+      return windows;
+    }
+
+    @Override
+    public void merge(Collection<W> toBeMerged, W mergeResult) throws Exception {
+      this.toBeMerged.add(new ArrayList<>(toBeMerged));
+      this.mergeResults.add(mergeResult);
+    }
+  }
+
+  /**
+   * The values buffered for a window, and the output time combined from their timestamps.
+   */
+  private static class WindowBuffer<V> {
+    private final List<V> values = new ArrayList<>();
+    private Instant outputTime;
+
+    private void add(V value, Instant elementOutputTime, OutputTimeFn<?> outputTimeFn) {
+      values.add(value);
+      outputTime = outputTime == null
+          ? elementOutputTime : outputTimeFn.combine(outputTime, elementOutputTime);
+    }
+  }
+}
@@ -24,14 +24,18 @@ import com.google.cloud.dataflow.sdk.util.common.CounterSet;
 import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.cloud.dataflow.sdk.values.TupleTag;
 import com.google.common.base.Function;
-import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Iterables;
 
 import org.joda.time.Instant;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
  * A customized {@link DoFnRunner} that handles late data dropping.
  *
@@ -77,42 +81,19 @@ public class LateDataDroppingDoFnRunner<K, InputT, OutputT, W extends BoundedWin
   @Override
   public void invokeProcessElement(WindowedValue<KeyedWorkItem<K, InputT>> elem) {
     final K key = elem.getValue().key();
-    Iterable<Iterable<WindowedValue<InputT>>> elements = Iterables.transform(
-        elem.getValue().elementsIterable(),
-        new Function<WindowedValue<InputT>, Iterable<WindowedValue<InputT>>>() {
-          @Override
-          public Iterable<WindowedValue<InputT>> apply(final WindowedValue<InputT> input) {
-            return Iterables.transform(
-                input.getWindows(),
-                new Function<BoundedWindow, WindowedValue<InputT>>() {
-                  @Override
-                  public WindowedValue<InputT> apply(BoundedWindow window) {
-                    return WindowedValue.of(
-                        input.getValue(), input.getTimestamp(), window, input.getPane());
-                  }
-                });
-          }});
-
+    // Each element is kept in all of its remaining windows, so that the ReduceFn can tell which
+    // windows it was processed in.
     Iterable<WindowedValue<InputT>> nonLateElements = Iterables.filter(
-        Iterables.concat(elements),
-        new Predicate<WindowedValue<InputT>>() {
-          @Override
-          public boolean apply(WindowedValue<InputT> input) {
-            BoundedWindow window = Iterables.getOnlyElement(input.getWindows());
-            if (canDropDueToExpiredWindow(window)) {
-              // The element is too late for this window.
-              droppedDueToLateness.addValue(1L);
-              WindowTracing.debug(
-                  "ReduceFnRunner.processElement: Dropping element at {} for key:{}; window:{} "
-                  + "since too far behind inputWatermark:{}; outputWatermark:{}",
-                  input.getTimestamp(), key, window, timerInternals.currentInputWatermarkTime(),
-                  timerInternals.currentOutputWatermarkTime());
-              return false;
-            } else {
-              return true;
-            }
-          }
-        });
+        Iterables.transform(
+            elem.getValue().elementsIterable(),
+            new Function<WindowedValue<InputT>, WindowedValue<InputT>>() {
+              @Override
+              @Nullable
+              public WindowedValue<InputT> apply(WindowedValue<InputT> input) {
+                return dropExpiredWindows(key, input);
+              }
+            }),
+        Predicates.notNull());
     KeyedWorkItem<K, InputT> inputs = ComposedKeyedWorkItem.create(
         elem.getValue().key(), elem.getValue().timersIterable(), nonLateElements);
     // This can contain user code. Wrap it in case it throws an exception.
@@ -125,6 +106,43 @@ public class LateDataDroppingDoFnRunner<K, InputT, OutputT, W extends BoundedWin
     }
   }
 
+  /**
+   * Returns {@code input} in just the windows it is not too late for, or {@code null} if it is too
+   * late for all of them.
+   */
+  @Nullable
+  private WindowedValue<InputT> dropExpiredWindows(K key, WindowedValue<InputT> input) {
+    Collection<? extends BoundedWindow> windows = input.getWindows();
+    List<BoundedWindow> nonLateWindows = null;
+    int index = 0;
+    for (BoundedWindow window : windows) {
+      if (canDropDueToExpiredWindow(window)) {
+        // The element is too late for this window.
+        droppedDueToLateness.addValue(1L);
+        WindowTracing.debug(
+            "ReduceFnRunner.processElement: Dropping element at {} for key:{}; window:{} "
+            + "since too far behind inputWatermark:{}; outputWatermark:{}",
+            input.getTimestamp(), key, window, timerInternals.currentInputWatermarkTime(),
+            timerInternals.currentOutputWatermarkTime());
+        if (nonLateWindows == null) {
+          nonLateWindows = new ArrayList<>(windows.size());
+          Iterables.addAll(nonLateWindows, Iterables.limit(windows, index));
+        }
+      } else if (nonLateWindows != null) {
+        nonLateWindows.add(window);
+      }
+      index++;
+    }
+
+    if (nonLateWindows == null) {
+      return input;
+    } else if (nonLateWindows.isEmpty()) {
+      return null;
+    }
+    return WindowedValue.of(
+        input.getValue(), input.getTimestamp(), nonLateWindows, input.getPane());
+  }
+
   /** Is {@code window} expired w.r.t. the garbage collection watermark? */
   private boolean canDropDueToExpiredWindow(BoundedWindow window) {
     Instant inputWM = timerInternals.currentInputWatermarkTime();
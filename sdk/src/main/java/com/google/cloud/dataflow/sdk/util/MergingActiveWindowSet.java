@@ -18,6 +18,8 @@ package com.google.cloud.dataflow.sdk.util;
 import com.google.cloud.dataflow.sdk.coders.MapCoder;
 import com.google.cloud.dataflow.sdk.coders.SetCoder;
 import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.IntervalWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.Sessions;
 import com.google.cloud.dataflow.sdk.transforms.windowing.WindowFn;
 import com.google.cloud.dataflow.sdk.util.state.StateInternals;
 import com.google.cloud.dataflow.sdk.util.state.StateNamespaces;
@@ -28,12 +30,18 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterables;
 
+import org.joda.time.Instant;
+
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
 
 import javax.annotation.Nullable;
 
@@ -46,6 +54,10 @@ import javax.annotation.Nullable;
  * <p>Note that this object must be serialized and stored when work units are committed such
  * that subsequent work units can recover the equivalence classes etc.
  *
+ * <p>For {@link Sessions}, the ACTIVE windows are also kept ordered by start time, so that
+ * merging only needs to consider the ACTIVE windows overlapping the NEW windows, rather than
+ * sorting all the windows on every merge.
+ *
  * @param <W> the type of window being managed
  */
 public class MergingActiveWindowSet<W extends BoundedWindow> implements ActiveWindowSet<W> {
@@ -102,6 +114,23 @@ public class MergingActiveWindowSet<W extends BoundedWindow> implements ActiveWi
   @Nullable
   private Map<W, Set<W>> originalActiveWindowToStateAddressWindows;
 
+  /**
+   * The ACTIVE windows (excluding NEW windows) by start time, if {@link #windowFn} is
+   * {@link Sessions} and these windows are disjoint, as they are after every merge. Null if
+   * merging must go through {@link WindowFn#mergeWindows}.
+   *
+   * <p>Does not need to be persisted.
+   */
+  @Nullable
+  private NavigableMap<Instant, W> sessionIndex;
+
+  /**
+   * The NEW windows added since the last merge.
+   *
+   * <p>Does not need to be persisted.
+   */
+  private final Set<W> newWindows;
+
   /**
    * Handle representing our state in the backend.
    */
@@ -120,6 +149,21 @@ public class MergingActiveWindowSet<W extends BoundedWindow> implements ActiveWi
     activeWindowToEphemeralWindows = new HashMap<>();
     originalActiveWindowToStateAddressWindows = deepCopy(activeWindowToStateAddressWindows);
     windowToActiveWindow = invert(activeWindowToStateAddressWindows);
+
+    newWindows = new HashSet<>();
+    for (Map.Entry<W, Set<W>> entry : activeWindowToStateAddressWindows.entrySet()) {
+      if (entry.getValue().isEmpty()) {
+        newWindows.add(entry.getKey());
+      }
+    }
+    if (windowFn.getClass().equals(Sessions.class)) {
+      sessionIndex = new TreeMap<>();
+      for (W window : activeWindowToStateAddressWindows.keySet()) {
+        if (!newWindows.contains(window)) {
+          index(window);
+        }
+      }
+    }
   }
 
   @Override
@@ -172,6 +216,7 @@ public class MergingActiveWindowSet<W extends BoundedWindow> implements ActiveWi
   public void addNew(W window) {
     if (!windowToActiveWindow.containsKey(window)) {
       activeWindowToStateAddressWindows.put(window, new HashSet<W>());
+      newWindows.add(window);
     }
   }
 
@@ -182,6 +227,8 @@ public class MergingActiveWindowSet<W extends BoundedWindow> implements ActiveWi
       stateAddressWindows.add(window);
       activeWindowToStateAddressWindows.put(window, stateAddressWindows);
       windowToActiveWindow.put(window, window);
+      newWindows.remove(window);
+      index(window);
     }
   }
 
@@ -199,6 +246,8 @@ public class MergingActiveWindowSet<W extends BoundedWindow> implements ActiveWi
       activeWindowToEphemeralWindows.remove(window);
     }
     windowToActiveWindow.remove(window);
+    newWindows.remove(window);
+    unindex(window);
   }
 
   private class MergeContextImpl extends WindowFn<Object, W>.MergeContext {
@@ -222,17 +271,126 @@ public class MergingActiveWindowSet<W extends BoundedWindow> implements ActiveWi
 
   @Override
   public void merge(MergeCallback<W> mergeCallback) throws Exception {
-    // See what the window function does with the NEW and already ACTIVE windows.
-    windowFn.mergeWindows(new MergeContextImpl(mergeCallback));
+    if (!mergeSessions(mergeCallback)) {
+      // See what the window function does with the NEW and already ACTIVE windows.
+      windowFn.mergeWindows(new MergeContextImpl(mergeCallback));
+    }
 
-    for (Map.Entry<W, Set<W>> entry : activeWindowToStateAddressWindows.entrySet()) {
-      if (entry.getValue().isEmpty()) {
+    for (W window : newWindows) {
+      Set<W> stateAddressWindows = activeWindowToStateAddressWindows.get(window);
+      if (stateAddressWindows != null && stateAddressWindows.isEmpty()) {
         // This window was NEW but since it survived merging must now become ACTIVE.
-        W window = entry.getKey();
-        entry.getValue().add(window);
+        stateAddressWindows.add(window);
         windowToActiveWindow.put(window, window);
+        index(window);
+      }
+    }
+    newWindows.clear();
+  }
+
+  /**
+   * Merges the NEW windows using {@link #sessionIndex}, making the same merges as
+   * {@link Sessions#mergeWindows} would. Returns false, without merging, if the index cannot be
+   * used.
+   *
+   * <p>Each NEW window, in order, is grown into a merge group by repeatedly absorbing the ACTIVE
+   * windows and subsequent NEW windows overlapping the group's span. Since the ACTIVE windows are
+   * disjoint, those overlapping a span are found with a range lookup.
+   */
+  @SuppressWarnings("unchecked")
+  private boolean mergeSessions(MergeCallback<W> mergeCallback) throws Exception {
+    if (sessionIndex == null) {
+      return false;
+    }
+    List<IntervalWindow> sortedNewWindows = new ArrayList<>(newWindows.size());
+    for (W window : newWindows) {
+      IntervalWindow interval = (IntervalWindow) window;
+      if (!interval.end().isAfter(interval.start())) {
+        // Empty windows don't overlap even themselves; leave them to the window function.
+        return false;
+      }
+      sortedNewWindows.add(interval);
+    }
+    Collections.sort(sortedNewWindows);
+
+    int next = 0;
+    while (next < sortedNewWindows.size()) {
+      List<IntervalWindow> parts = new ArrayList<>();
+      Set<IntervalWindow> absorbedActive = new HashSet<>();
+      IntervalWindow union = sortedNewWindows.get(next++);
+      parts.add(union);
+      boolean grown;
+      do {
+        grown = false;
+        for (W active : overlappingActive(union)) {
+          if (absorbedActive.add((IntervalWindow) active)) {
+            union = union.span((IntervalWindow) active);
+            grown = true;
+          }
+        }
+        while (next < sortedNewWindows.size()
+            && sortedNewWindows.get(next).intersects(union)) {
+          union = union.span(sortedNewWindows.get(next));
+          parts.add(sortedNewWindows.get(next++));
+          grown = true;
+        }
+      } while (grown);
+
+      parts.addAll(absorbedActive);
+      if (parts.size() > 1) {
+        Collections.sort(parts);
+        recordMerge(mergeCallback, (Collection<W>) (Collection<?>) parts, (W) union);
       }
     }
+    return true;
+  }
+
+  /**
+   * Returns the indexed ACTIVE windows overlapping {@code span}. Since they are disjoint, these
+   * are the window starting before {@code span} if it reaches into it, and the windows starting
+   * within it.
+   */
+  private List<W> overlappingActive(IntervalWindow span) {
+    List<W> result = new ArrayList<>();
+    Map.Entry<Instant, W> before = sessionIndex.lowerEntry(span.start());
+    if (before != null && ((IntervalWindow) before.getValue()).intersects(span)) {
+      result.add(before.getValue());
+    }
+    result.addAll(sessionIndex.subMap(span.start(), true, span.end(), false).values());
+    return result;
+  }
+
+  /**
+   * Adds an ACTIVE window to {@link #sessionIndex}, or drops the index if the window overlaps an
+   * indexed window.
+   */
+  private void index(W window) {
+    if (sessionIndex == null) {
+      return;
+    }
+    IntervalWindow interval = (IntervalWindow) window;
+    Map.Entry<Instant, W> floor = sessionIndex.floorEntry(interval.start());
+    Map.Entry<Instant, W> higher = sessionIndex.higherEntry(interval.start());
+    if (!interval.end().isAfter(interval.start())
+        || (floor != null && ((IntervalWindow) floor.getValue()).intersects(interval))
+        || (higher != null && ((IntervalWindow) higher.getValue()).intersects(interval))) {
+      sessionIndex = null;
+      return;
+    }
+    sessionIndex.put(interval.start(), window);
+  }
+
+  /**
+   * Removes a window from {@link #sessionIndex}, if present.
+   */
+  private void unindex(W window) {
+    if (sessionIndex == null) {
+      return;
+    }
+    Instant start = ((IntervalWindow) window).start();
+    if (window.equals(sessionIndex.get(start))) {
+      sessionIndex.remove(start);
+    }
   }
 
   /**
@@ -269,6 +427,7 @@ public class MergingActiveWindowSet<W extends BoundedWindow> implements ActiveWi
         windowToActiveWindow.put(otherStateAddressWindow, mergeResult);
       }
       activeWindowToStateAddressWindows.remove(other);
+      unindex(other);
 
       Set<W> otherEphemeralWindows = activeWindowToEphemeralWindows.get(other);
       if (otherEphemeralWindows != null) {
@@ -311,6 +470,8 @@ public class MergingActiveWindowSet<W extends BoundedWindow> implements ActiveWi
     windowToActiveWindow.put(mergeResult, mergeResult);
 
     activeWindowToStateAddressWindows.put(mergeResult, newStateAddressWindows);
+    unindex(mergeResult);
+    index(mergeResult);
     if (!newEphemeralWindows.isEmpty()) {
       activeWindowToEphemeralWindows.put(mergeResult, newEphemeralWindows);
     }
@@ -343,6 +504,35 @@ public class MergingActiveWindowSet<W extends BoundedWindow> implements ActiveWi
     return result;
   }
 
+  @Override
+  public void compactStateAddresses(W window) {
+    Set<W> stateAddressWindows = activeWindowToStateAddressWindows.get(window);
+    Preconditions.checkState(stateAddressWindows != null, "Window %s is not ACTIVE", window);
+    if (stateAddressWindows.size() <= 1) {
+      return;
+    }
+
+    W writeStateAddress = writeStateAddress(window);
+    Set<W> ephemeralWindows = activeWindowToEphemeralWindows.get(window);
+    if (ephemeralWindows == null) {
+      ephemeralWindows = new HashSet<>();
+      activeWindowToEphemeralWindows.put(window, ephemeralWindows);
+    }
+    for (W stateAddressWindow : stateAddressWindows) {
+      // The ACTIVE window itself stays known while it is ACTIVE, so it is never EPHEMERAL.
+      if (!stateAddressWindow.equals(writeStateAddress) && !stateAddressWindow.equals(window)) {
+        ephemeralWindows.add(stateAddressWindow);
+      }
+    }
+    if (ephemeralWindows.isEmpty()) {
+      activeWindowToEphemeralWindows.remove(window);
+    }
+
+    Set<W> compacted = new HashSet<>();
+    compacted.add(writeStateAddress);
+    activeWindowToStateAddressWindows.put(window, compacted);
+  }
+
   @VisibleForTesting
   public void checkInvariants() {
     Set<W> knownStateAddressWindows = new HashSet<>();
@@ -57,6 +57,17 @@ public abstract class NonEmptyPanes<W extends BoundedWindow> {
    */
   public abstract StateContents<Boolean> isEmpty(ReduceFn<?, ?, ?, W>.Context context);
 
+  /**
+   * Move the record of content in the merging windows into the writing window of the merged
+   * window.
+   */
+  public abstract void onMerge(ReduceFn<?, ?, ?, W>.OnMergeContext context);
+
+  /**
+   * Prefetch the record of content that {@link #onMerge} will move.
+   */
+  public void prefetchOnMerge(ReduceFn.MergingStateContext state) {}
+
   /**
    * An implementation of {@code NonEmptyPanes} optimized for use with discarding mode. Uses the
    * presence of data in the accumulation buffer to record non-empty panes.
@@ -84,6 +95,11 @@ public abstract class NonEmptyPanes<W extends BoundedWindow> {
     public void clearPane(ReduceFn<?, ?, ?, W>.Context context) {
       // Nothing to do -- the reduceFn is tracking contents
     }
+
+    @Override
+    public void onMerge(ReduceFn<?, ?, ?, W>.OnMergeContext context) {
+      // Nothing to do -- the reduceFn is tracking contents
+    }
   }
 
   /**
@@ -111,6 +127,16 @@ public abstract class NonEmptyPanes<W extends BoundedWindow> {
       // to require a prefetch.
       return context.state().accessAcrossMergedWindows(PANE_ADDITIONS_TAG).isEmpty();
     }
+
+    @Override
+    public void prefetchOnMerge(ReduceFn.MergingStateContext state) {
+      state.accessAcrossMergedWindows(PANE_ADDITIONS_TAG).get();
+    }
+
+    @Override
+    public void onMerge(ReduceFn<?, ?, ?, W>.OnMergeContext context) {
+      context.state().compactAcrossMergedWindows(PANE_ADDITIONS_TAG);
+    }
   }
 }
 
@@ -74,4 +74,9 @@ public class NonMergingActiveWindowSet<W extends BoundedWindow> implements Activ
   public W writeStateAddress(W window) {
     return window;
   }
+
+  @Override
+  public void compactStateAddresses(W window) {
+    // Nothing to compact, since the state of each window is stored in that window alone.
+  }
 }
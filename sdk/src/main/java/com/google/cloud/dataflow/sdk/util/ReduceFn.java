@@ -56,12 +56,20 @@ public abstract class ReduceFn<K, InputT, OutputT, W extends BoundedWindow>
      * merged into the current window.
      *
      * <p>If no windows were merged, this reads and writes to just the current window.
-     * Otherwise, when windows merge we do not eagerly combine state, but rather defer the
-     * combination to reading time. Thus reads will be from all 'merged windows' for the
-     * current window, and writes will be to the designated 'writing window' for the current window.
+     * Otherwise, reads will be from all 'merged windows' for the current window, and writes will
+     * be to the designated 'writing window' for the current window, until the state has been
+     * compacted with {@link MergingStateContext#compactAcrossMergedWindows}.
      */
     <StateT extends MergeableState<?, ?>> StateT accessAcrossMergedWindows(
         StateTag<StateT> address);
+
+    /**
+     * Access the storage for the given {@code address} in the given {@code window}, which must be
+     * of the type of windows this operates on but need not be the current window.
+     *
+     * <p>Never accounts for merged windows.
+     */
+    <StateT extends State> StateT accessInWindow(BoundedWindow window, StateTag<StateT> address);
   }
 
   /** Interface for interacting with persistent state within {@link #onMerge}. */
@@ -77,6 +85,14 @@ public abstract class ReduceFn<K, InputT, OutputT, W extends BoundedWindow>
      */
     public abstract <StateT extends State> Map<BoundedWindow, StateT>
         mergingAccessInEachMergingWindow(StateTag<StateT> address);
+
+    /**
+     * Move the storage for the given {@code address} in all of the 'merged windows' for the
+     * current window into its 'writing window', so that {@link #accessAcrossMergedWindows} reads
+     * just that window.
+     */
+    <StateT extends MergeableState<?, ?>> void compactAcrossMergedWindows(
+        StateTag<StateT> address);
   }
 
   /**
@@ -140,6 +156,11 @@ public abstract class ReduceFn<K, InputT, OutputT, W extends BoundedWindow>
 
     /** Return the timestamp associated with the value. */
     public abstract Instant timestamp();
+
+    /**
+     * Return all of the windows the value is being processed in, including the current window.
+     */
+    public abstract Collection<? extends BoundedWindow> windows();
   }
 
   /** Information accessible within {@link #onMerge}. */
@@ -184,9 +205,22 @@ public abstract class ReduceFn<K, InputT, OutputT, W extends BoundedWindow>
    * result window should be cleared into between the read and write in case it was in the source
    * windows.
    * </ul>
+   *
+   * <p>Either way, any state accessed with {@link StateContext#accessAcrossMergedWindows} must be
+   * compacted with {@link MergingStateContext#compactAcrossMergedWindows} before this returns,
+   * since the {@link ReduceFnRunner} afterwards only reads the state of the merged window from its
+   * 'writing window'.
    */
   public abstract void onMerge(OnMergeContext c) throws Exception;
 
+  /**
+   * Called before {@link #onMerge} is invoked to provide an opportunity to prefetch the state it
+   * will compact.
+   *
+   * @param c Context to use prefetch from.
+   */
+  public void prefetchOnMerge(MergingStateContext c) {}
+
   /**
    * Called when triggers fire.
    *
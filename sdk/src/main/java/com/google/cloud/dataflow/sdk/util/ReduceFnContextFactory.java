@@ -28,6 +28,7 @@ import com.google.cloud.dataflow.sdk.util.state.MergeableState;
 import com.google.cloud.dataflow.sdk.util.state.State;
 import com.google.cloud.dataflow.sdk.util.state.StateContents;
 import com.google.cloud.dataflow.sdk.util.state.StateInternals;
+import com.google.cloud.dataflow.sdk.util.state.StateMerging;
 import com.google.cloud.dataflow.sdk.util.state.StateNamespace;
 import com.google.cloud.dataflow.sdk.util.state.StateNamespaces;
 import com.google.cloud.dataflow.sdk.util.state.StateNamespaces.WindowNamespace;
@@ -41,6 +42,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
@@ -82,8 +84,8 @@ class ReduceFnContextFactory<K, InputT, OutputT, W extends BoundedWindow> {
   }
 
   public ReduceFn<K, InputT, OutputT, W>.ProcessValueContext forValue(
-      W window, InputT value, Instant timestamp) {
-    return new ProcessValueContextImpl(stateContext(window), value, timestamp);
+      W window, InputT value, Instant timestamp, Collection<? extends BoundedWindow> windows) {
+    return new ProcessValueContextImpl(stateContext(window), value, timestamp, windows);
   }
 
   public ReduceFn<K, InputT, OutputT, W>.OnTriggerContext forTrigger(
@@ -183,6 +185,30 @@ class ReduceFnContextFactory<K, InputT, OutputT, W extends BoundedWindow> {
       StateNamespace writeNamespace = namespaceFor(activeWindows.writeStateAddress(window));
       return stateInternals.mergedState(readNamespaces, writeNamespace, address, window);
     }
+
+    @Override
+    public <StorageT extends State> StorageT accessInWindow(
+        BoundedWindow window, StateTag<StorageT> address) {
+      @SuppressWarnings("unchecked")
+      W typedWindow = (W) window;
+      return stateInternals.state(namespaceFor(typedWindow), address);
+    }
+
+    <StorageT extends MergeableState<?, ?>> void compactAcrossMergedWindows(
+        StateTag<StorageT> address) {
+      Set<W> readWindows = activeWindows.readStateAddresses(window);
+      W writeWindow = activeWindows.writeStateAddress(window);
+      if (readWindows.size() == 1 && readWindows.contains(writeWindow)) {
+        // Already compacted.
+        return;
+      }
+      List<StateNamespace> readNamespaces = new ArrayList<>();
+      for (W readWindow : readWindows) {
+        readNamespaces.add(namespaceFor(readWindow));
+      }
+      StateMerging.mergeIntoNamespace(
+          stateInternals, readNamespaces, namespaceFor(writeWindow), address, window);
+    }
   }
 
   static class MergingStateContextImpl<W extends BoundedWindow>
@@ -215,6 +241,12 @@ class ReduceFnContextFactory<K, InputT, OutputT, W extends BoundedWindow> {
       return delegate.accessAcrossMergedWindows(address);
     }
 
+    @Override
+    public <StorageT extends State> StorageT accessInWindow(
+        BoundedWindow window, StateTag<StorageT> address) {
+      return delegate.accessInWindow(window, address);
+    }
+
     @Override
     public <StateT extends MergeableState<?, ?>> StateT mergingAccess(StateTag<StateT> address) {
       List<StateNamespace> readNamespaces = new ArrayList<>();
@@ -225,6 +257,12 @@ class ReduceFnContextFactory<K, InputT, OutputT, W extends BoundedWindow> {
           readNamespaces, delegate.windowNamespace, address, delegate.window);
     }
 
+    @Override
+    public <StateT extends MergeableState<?, ?>> void compactAcrossMergedWindows(
+        StateTag<StateT> address) {
+      delegate.compactAcrossMergedWindows(address);
+    }
+
     @Override
     public <StateT extends State> Map<BoundedWindow, StateT> mergingAccessInEachMergingWindow(
         StateTag<StateT> address) {
@@ -280,14 +318,17 @@ class ReduceFnContextFactory<K, InputT, OutputT, W extends BoundedWindow> {
 
     private final InputT value;
     private final Instant timestamp;
+    private final Collection<? extends BoundedWindow> windows;
     private final StateContextImpl<W> state;
     private final TimersImpl timers;
 
-    private ProcessValueContextImpl(StateContextImpl<W> state, InputT value, Instant timestamp) {
+    private ProcessValueContextImpl(StateContextImpl<W> state, InputT value, Instant timestamp,
+        Collection<? extends BoundedWindow> windows) {
       reduceFn.super();
       this.state = state;
       this.value = value;
       this.timestamp = timestamp;
+      this.windows = windows;
       this.timers = new TimersImpl(state.namespace());
     }
 
@@ -321,6 +362,11 @@ class ReduceFnContextFactory<K, InputT, OutputT, W extends BoundedWindow> {
       return timestamp;
     }
 
+    @Override
+    public Collection<? extends BoundedWindow> windows() {
+      return windows;
+    }
+
     @Override
     public Timers timers() {
       return timers;
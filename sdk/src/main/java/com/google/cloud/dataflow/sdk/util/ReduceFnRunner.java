@@ -247,7 +247,7 @@ public class ReduceFnRunner<K, InputT, OutputT, W extends BoundedWindow> {
     // Trigger output from any window for which the trigger is ready
     for (W mergedWindow : windowsToConsider) {
       ReduceFn<K, InputT, OutputT, W>.Context context = contextFactory.base(mergedWindow);
-      triggerRunner.prefetchShouldFire(context.state());
+      triggerRunner.prefetchShouldFire(mergedWindow, context.state());
       emitIfAppropriate(context, false /* isEndOfWindow */);
     }
 
@@ -308,7 +308,13 @@ public class ReduceFnRunner<K, InputT, OutputT, W extends BoundedWindow> {
           ReduceFn<K, InputT, OutputT, W>.OnMergeContext mergeResultContext =
               contextFactory.forMerge(toBeMerged, mergeResult);
 
-          // Prefetch various state.
+          // Prefetch various state. This includes all of the state that is compacted into the
+          // writing window below, so that backends which batch reads, such as Windmill, fetch it
+          // together with the trigger state. The compaction itself happens here rather than in
+          // the background, since its writes must be part of the same commit as the merge.
+          reduceFn.prefetchOnMerge(mergeResultContext.state());
+          watermarkHold.prefetchOnMerge(mergeResultContext.state());
+          nonEmptyPanes.prefetchOnMerge(mergeResultContext.state());
           triggerRunner.prefetchForMerge(mergeResultContext.state());
 
           // Run the reduceFn to perform any needed merging.
@@ -318,9 +324,9 @@ public class ReduceFnRunner<K, InputT, OutputT, W extends BoundedWindow> {
             throw wrapMaybeUserException(e);
           }
 
-          // Merge the watermark holds if the output time function is not just MIN.
-          // Otherwise, leave all the merging window watermark holds where they are.
+          // Merge the watermark holds and the record of non-empty panes.
           watermarkHold.onMerge(mergeResultContext);
+          nonEmptyPanes.onMerge(mergeResultContext);
 
           // Have the trigger merge state as needed
           try {
@@ -346,9 +352,11 @@ public class ReduceFnRunner<K, InputT, OutputT, W extends BoundedWindow> {
             // We no longer care about any previous panes of merged away windows. The
             // merge result window gets to start fresh if it is new.
             paneInfoTracker.clear(clearContext.state());
-            // Any reduceFn state, watermark holds and non-empty pane state have either been
-            // merged away or will be lazily merged when the next pane fires.
           }
+
+          // The reduceFn state, watermark holds and non-empty pane state have all been moved into
+          // the writing window of mergeResult, so later reads need not visit the other windows.
+          activeWindows.compactStateAddresses(mergeResult);
         }
       });
     } catch (Exception e) {
@@ -379,14 +387,16 @@ public class ReduceFnRunner<K, InputT, OutputT, W extends BoundedWindow> {
     // Prefetch in each of the windows if we're going to need to process triggers
     for (W window : windows) {
       ReduceFn<K, InputT, OutputT, W>.ProcessValueContext context =
-          contextFactory.forValue(window, value.getValue(), value.getTimestamp());
-      triggerRunner.prefetchForValue(context.state());
+          contextFactory.forValue(
+              window, value.getValue(), value.getTimestamp(), value.getWindows());
+      triggerRunner.prefetchForValue(window, context.state());
     }
 
     // Process the element for each (representative) window it belongs to.
     for (W window : windows) {
       ReduceFn<K, InputT, OutputT, W>.ProcessValueContext context =
-          contextFactory.forValue(window, value.getValue(), value.getTimestamp());
+          contextFactory.forValue(
+              window, value.getValue(), value.getTimestamp(), value.getWindows());
 
       // Check to see if the triggerRunner thinks the window is closed. If so, drop that window.
       if (triggerRunner.isClosed(context.state())) {
@@ -661,7 +671,7 @@ public class ReduceFnRunner<K, InputT, OutputT, W extends BoundedWindow> {
     StateContents<Boolean> isEmptyFuture = nonEmptyPanes.isEmpty(context);
 
     reduceFn.prefetchOnTrigger(context.state());
-    triggerRunner.prefetchOnFire(context.state());
+    triggerRunner.prefetchOnFire(context.window(), context.state());
 
     // Calculate the pane info.
     final PaneInfo pane = paneFuture.read();
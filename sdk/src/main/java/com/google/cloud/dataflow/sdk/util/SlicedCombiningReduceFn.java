@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.dataflow.sdk.util;
+
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.CoderException;
+import com.google.cloud.dataflow.sdk.transforms.Combine.CombineFn;
+import com.google.cloud.dataflow.sdk.transforms.windowing.DefaultTrigger;
+import com.google.cloud.dataflow.sdk.transforms.windowing.IntervalWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.SlidingWindows;
+import com.google.cloud.dataflow.sdk.util.WindowingStrategy.AccumulationMode;
+import com.google.cloud.dataflow.sdk.util.state.CombiningValueStateInternal;
+import com.google.cloud.dataflow.sdk.util.state.StateContents;
+import com.google.cloud.dataflow.sdk.util.state.StateTag;
+import com.google.cloud.dataflow.sdk.util.state.StateTags;
+import com.google.common.math.LongMath;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link ReduceFn} that combines the input of overlapping {@link SlidingWindows} in slices of
+ * width {@code gcd(size, period)}, like {@link GroupAlsoByWindowsAndCombineDoFn} does in batch.
+ * Each element is added to the combining state of the slice holding its timestamp, and a window's
+ * output is produced by merging the accumulators of the slices it covers, rather than adding
+ * every element to the state of each of its {@code size / period} windows.
+ *
+ * <p>{@link ReduceFnRunner} calls {@link #processValue} once for each window of an element. If
+ * those windows are exactly the windows the {@link SlidingWindows} assigns to its timestamp, the
+ * element is added to its slice in the call for the latest of them, and the other calls do
+ * nothing. Otherwise, such as when some of its windows were already expired, the element is added
+ * to the state of each of its windows, which is merged into the output along with the slices.
+ *
+ * <p>A slice is read by every window that covers it and cleared with the latest of them. This is
+ * only correct if no window that covers a slice produces a pane after that window's state was
+ * cleared, so it is limited to the default trigger with either no allowed lateness or accumulating
+ * panes (see {@link #isSupported}), and relies on the windows of a key being fired in the order of
+ * their end, as {@link GroupAlsoByWindowViaWindowSetDoFn} does.
+ *
+ * @param <K> The type of key being processed.
+ * @param <InputT> The type of values associated with the key.
+ * @param <AccumT> The type of the accumulators.
+ * @param <OutputT> The output type that will be produced for each key.
+ */
+class SlicedCombiningReduceFn<K, InputT, AccumT, OutputT>
+    extends ReduceFn<K, InputT, OutputT, IntervalWindow> {
+
+  private static final String BUFFER_NAME = "buf";
+  private static final String SLICE_NAME = "slice";
+
+  /**
+   * Returns whether combining by slices produces the same panes as combining in each window for
+   * the given strategy.
+   */
+  static boolean isSupported(WindowingStrategy<?, ?> strategy) {
+    if (!(strategy.getWindowFn() instanceof SlidingWindows)
+        || !(strategy.getTrigger().getSpec() instanceof DefaultTrigger)) {
+      return false;
+    }
+    SlidingWindows windowFn = (SlidingWindows) strategy.getWindowFn();
+    if (!windowFn.getSize().isLongerThan(windowFn.getPeriod())) {
+      return false;
+    }
+    // With no allowed lateness each window produces a single pane, and accumulating panes
+    // never need the state of a window to be cleared before its last pane.
+    return strategy.getAllowedLateness().equals(Duration.ZERO)
+        || strategy.getMode() == AccumulationMode.ACCUMULATING_FIRED_PANES;
+  }
+
+  private final SlidingWindows windowFn;
+  private final CombineFn<InputT, AccumT, OutputT> combineFn;
+  private final Coder<AccumT> accumCoder;
+  private final StateTag<CombiningValueStateInternal<InputT, AccumT, OutputT>> bufferTag;
+  private final StateTag<CombiningValueStateInternal<InputT, AccumT, OutputT>> sliceTag;
+  private final long sliceMillis;
+
+  SlicedCombiningReduceFn(SlidingWindows windowFn, Coder<AccumT> accumCoder,
+      CombineFn<InputT, AccumT, OutputT> combineFn) {
+    this.windowFn = windowFn;
+    this.combineFn = combineFn;
+    this.accumCoder = accumCoder;
+    this.bufferTag = StateTags.makeSystemTagInternal(
+        StateTags.combiningValueWithAccumInternal(BUFFER_NAME, accumCoder, combineFn));
+    this.sliceTag = StateTags.makeSystemTagInternal(
+        StateTags.combiningValueWithAccumInternal(SLICE_NAME, accumCoder, combineFn));
+    this.sliceMillis = LongMath.gcd(
+        windowFn.getSize().getMillis(), windowFn.getPeriod().getMillis());
+  }
+
+  @Override
+  public void processValue(ProcessValueContext c) throws Exception {
+    long timestamp = c.timestamp().getMillis();
+    if (!GroupAlsoByWindowsAndCombineDoFn.isAssignedBySlidingWindows(
+        windowFn, timestamp, c.windows())) {
+      c.state().access(bufferTag).add(c.value());
+    } else if (c.window().start().getMillis() == lastStart(timestamp)) {
+      c.state().accessInWindow(slice(sliceStart(timestamp)), sliceTag).add(c.value());
+    }
+  }
+
+  @Override
+  public void onMerge(OnMergeContext c) throws Exception {
+    // SlidingWindows never merge.
+  }
+
+  @Override
+  public void prefetchOnTrigger(StateContext c) {
+    c.access(bufferTag).getAccum();
+  }
+
+  @Override
+  public void onTrigger(OnTriggerContext c) throws Exception {
+    long start = c.window().start().getMillis();
+    long period = windowFn.getPeriod().getMillis();
+    boolean isLast = c.paneInfo().isLast();
+
+    // Start all of the reads before waiting for any of them.
+    List<StateContents<AccumT>> futures = new ArrayList<>();
+    futures.add(c.state().access(bufferTag).getAccum());
+    for (long sliceStart = start; sliceStart < c.window().end().getMillis();
+        sliceStart += sliceMillis) {
+      futures.add(c.state().accessInWindow(slice(sliceStart), sliceTag).getAccum());
+    }
+
+    // Merging may modify the accumulators, so copy those whose state is read again later: all of
+    // them unless this is the last pane, and otherwise the slices later windows also cover.
+    List<AccumT> accums = new ArrayList<>(futures.size());
+    for (int i = 0; i < futures.size(); i++) {
+      AccumT accum = futures.get(i).read();
+      boolean isReadLater = !isLast || (i > 0 && (i - 1) * sliceMillis >= period);
+      accums.add(isReadLater ? copy(accum) : accum);
+    }
+    c.output(combineFn.extractOutput(combineFn.mergeAccumulators(accums)));
+  }
+
+  @Override
+  public void clearState(Context c) throws Exception {
+    c.state().access(bufferTag).clear();
+    // Every later window that covers a slice starts after it, so the slices in the first period
+    // of the window are not read again.
+    long start = c.window().start().getMillis();
+    long period = windowFn.getPeriod().getMillis();
+    for (long sliceStart = start; sliceStart < start + period; sliceStart += sliceMillis) {
+      c.state().accessInWindow(slice(sliceStart), sliceTag).clear();
+    }
+  }
+
+  @Override
+  public StateContents<Boolean> isEmpty(StateContext state) {
+    // Only consulted for discarding panes, which are limited to a single pane per window. A
+    // window is only fired after an element was processed in it, so that pane is never empty.
+    return new StateContents<Boolean>() {
+      @Override
+      public Boolean read() {
+        return false;
+      }
+    };
+  }
+
+  private long lastStart(long timestamp) {
+    long period = windowFn.getPeriod().getMillis();
+    return timestamp - LongMath.mod(timestamp - windowFn.getOffset().getMillis(), period);
+  }
+
+  private long sliceStart(long timestamp) {
+    return timestamp - LongMath.mod(timestamp - windowFn.getOffset().getMillis(), sliceMillis);
+  }
+
+  /**
+   * Returns the window whose state namespace holds the slice. Slices are shorter than the
+   * windows, so their namespaces never collide with those of the windows.
+   */
+  private IntervalWindow slice(long sliceStart) {
+    return new IntervalWindow(new Instant(sliceStart), new Instant(sliceStart + sliceMillis));
+  }
+
+  private AccumT copy(AccumT accum) throws CoderException {
+    return CoderUtils.clone(accumCoder, accum);
+  }
+}
@@ -22,6 +22,7 @@ import com.google.cloud.dataflow.sdk.transforms.Combine.CombineFn;
 import com.google.cloud.dataflow.sdk.transforms.CombineWithContext.RequiresContextInternal;
 import com.google.cloud.dataflow.sdk.transforms.GroupByKey;
 import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.SlidingWindows;
 import com.google.cloud.dataflow.sdk.util.state.BagState;
 import com.google.cloud.dataflow.sdk.util.state.CombiningValueState;
 import com.google.cloud.dataflow.sdk.util.state.MergeableState;
@@ -97,6 +98,45 @@ public class SystemReduceFn<K, InputT, OutputT, W extends BoundedWindow>
     };
   }
 
+  /**
+   * Returns whether {@link #combiningBySlices} can be used for the given strategy.
+   */
+  public static boolean canCombineBySlices(WindowingStrategy<?, ?> strategy) {
+    return SlicedCombiningReduceFn.isSupported(strategy);
+  }
+
+  /**
+   * Create a factory that produces {@link ReduceFn} instances that combine all of the input
+   * values using a {@link CombineFn}, like {@link #combining}, but add each value to the state of
+   * a single slice shared by the overlapping {@link SlidingWindows} of the strategy rather than to
+   * the state of each of its windows. The strategy must satisfy {@link #canCombineBySlices}.
+   */
+  public static
+  <K, InputT, AccumT, OutputT, W extends BoundedWindow> Factory<K, InputT, OutputT, W>
+  combiningBySlices(
+      final Coder<K> keyCoder, final AppliedCombineFn<K, InputT, AccumT, OutputT> combineFn,
+      WindowingStrategy<?, W> strategy) {
+    checkArgument(canCombineBySlices(strategy),
+        "Cannot combine by slices for windowing strategy: %s", strategy);
+    checkArgument(
+        !(combineFn.getFn() instanceof RequiresContextInternal),
+        "Combiner lifting is not supported for combine functions with contexts: %s",
+        combineFn.getFn().getClass().getName());
+    final SlidingWindows windowFn = (SlidingWindows) strategy.getWindowFn();
+    return new Factory<K, InputT, OutputT, W>() {
+
+      @Override
+      public ReduceFn<K, InputT, OutputT, W> create(K key) {
+        // The windows of SlidingWindows are IntervalWindows.
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ReduceFn<K, InputT, OutputT, W> reduceFn = (ReduceFn) new SlicedCombiningReduceFn<>(
+            windowFn, combineFn.getAccumulatorCoder(),
+            (CombineFn<InputT, AccumT, OutputT>) combineFn.getFn().forKey(key, keyCoder));
+        return reduceFn;
+      }
+    };
+  }
+
   private StateTag<? extends MergeableState<InputT, OutputT>> bufferTag;
 
   public SystemReduceFn(StateTag<? extends MergeableState<InputT, OutputT>> bufferTag) {
@@ -110,9 +150,14 @@ public class SystemReduceFn<K, InputT, OutputT, W extends BoundedWindow>
 
   @Override
   public void onMerge(OnMergeContext c) throws Exception {
-    // All of the state used by SystemReduceFn is mergeable. Rather than eagerly reading it in
-    // to perform the merge here, we wait until the output is desired, and combine the values
-    // from all the source windows at that point.
+    // All of the state used by SystemReduceFn is mergeable, so it is moved into the writing
+    // window of the merged window, and later reads need not visit every source window.
+    c.state().compactAcrossMergedWindows(bufferTag);
+  }
+
+  @Override
+  public void prefetchOnMerge(MergingStateContext c) {
+    c.accessAcrossMergedWindows(bufferTag).get();
   }
 
   @Override
@@ -20,9 +20,11 @@ import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
 import com.google.cloud.dataflow.sdk.transforms.windowing.Trigger;
 import com.google.cloud.dataflow.sdk.transforms.windowing.Trigger.MergingTriggerInfo;
 import com.google.cloud.dataflow.sdk.transforms.windowing.Trigger.TriggerInfo;
+import com.google.cloud.dataflow.sdk.util.state.State;
 import com.google.cloud.dataflow.sdk.util.state.StateInternals;
 import com.google.cloud.dataflow.sdk.util.state.StateNamespace;
 import com.google.cloud.dataflow.sdk.util.state.StateNamespaces;
+import com.google.cloud.dataflow.sdk.util.state.StateTag;
 import com.google.common.base.Predicate;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.Iterables;
@@ -75,6 +77,23 @@ public class TriggerContextFactory<W extends BoundedWindow> {
         mergingWindows, finishedSets);
   }
 
+  /**
+   * Returns whether the windows of the {@link WindowingStrategy} may merge.
+   */
+  boolean isMerging() {
+    return !windowingStrategy.getWindowFn().isNonMerging();
+  }
+
+  /**
+   * Returns the state for {@code address} of the trigger at {@code triggerIndex} in
+   * {@code window}, which is what that trigger sees through its context's {@code state()}.
+   */
+  <StateT extends State> StateT stateForTrigger(
+      W window, int triggerIndex, StateTag<StateT> address) {
+    return stateInternals.state(StateNamespaces.windowAndTrigger(
+        windowingStrategy.getWindowFn().windowCoder(), window, triggerIndex), address);
+  }
+
   private class TriggerInfoImpl implements Trigger.TriggerInfo<W> {
 
     protected final ExecutableTrigger<W> trigger;
@@ -28,6 +28,8 @@ import com.google.common.collect.ImmutableMap;
 import java.util.BitSet;
 import java.util.Map;
 
+import javax.annotation.Nullable;
+
 /**
  * Executes a trigger within the context provided by {@link ReduceFnRunner}.
  *
@@ -39,6 +41,9 @@ import java.util.Map;
  * <li> Ensuring that the timer and state associated with each trigger node is separate.
  * </ul>
  *
+ * <p>Common trigger trees in non-merging windows are run through their {@link CompiledTrigger}
+ * form, which keeps the same state as walking the tree.
+ *
  * @param <W> The kind of windows being processed.
  */
 public class TriggerRunner<W extends BoundedWindow> {
@@ -48,11 +53,24 @@ public class TriggerRunner<W extends BoundedWindow> {
 
   private final ExecutableTrigger<W> rootTrigger;
   private final TriggerContextFactory<W> contextFactory;
+  @Nullable private final CompiledTrigger<W> compiledTrigger;
 
   public TriggerRunner(ExecutableTrigger<W> rootTrigger, TriggerContextFactory<W> contextFactory) {
+    this(rootTrigger, contextFactory, true);
+  }
+
+  @VisibleForTesting
+  TriggerRunner(ExecutableTrigger<W> rootTrigger, TriggerContextFactory<W> contextFactory,
+      boolean compile) {
     Preconditions.checkState(rootTrigger.getTriggerIndex() == 0);
     this.rootTrigger = rootTrigger;
     this.contextFactory = contextFactory;
+    this.compiledTrigger = compile ? CompiledTrigger.compile(rootTrigger, contextFactory) : null;
+  }
+
+  @VisibleForTesting
+  boolean isCompiled() {
+    return compiledTrigger != null;
   }
 
   private FinishedTriggersBitSet readFinishedBits(ValueState<BitSet> state) {
@@ -71,24 +89,39 @@ public class TriggerRunner<W extends BoundedWindow> {
 
   /** Return true if the trigger is closed in the window corresponding to the specified state. */
   public boolean isClosed(ReduceFn.StateContext state) {
+    if (compiledTrigger != null) {
+      return compiledTrigger.isClosed(state);
+    }
     return readFinishedBits(state.access(FINISHED_BITS_TAG)).isFinished(rootTrigger);
   }
 
-  public void prefetchForValue(ReduceFn.StateContext state) {
+  public void prefetchForValue(W window, ReduceFn.StateContext state) {
+    if (compiledTrigger != null) {
+      compiledTrigger.prefetchForValue(window, state);
+      return;
+    }
     if (isFinishedSetNeeded()) {
       state.access(FINISHED_BITS_TAG).get();
     }
     rootTrigger.getSpec().prefetchOnElement(state);
   }
 
-  public void prefetchOnFire(ReduceFn.StateContext state) {
+  public void prefetchOnFire(W window, ReduceFn.StateContext state) {
+    if (compiledTrigger != null) {
+      compiledTrigger.prefetchShouldFire(window, state);
+      return;
+    }
     if (isFinishedSetNeeded()) {
       state.access(FINISHED_BITS_TAG).get();
     }
     rootTrigger.getSpec().prefetchOnFire(state);
   }
 
-  public void prefetchShouldFire(ReduceFn.StateContext state) {
+  public void prefetchShouldFire(W window, ReduceFn.StateContext state) {
+    if (compiledTrigger != null) {
+      compiledTrigger.prefetchShouldFire(window, state);
+      return;
+    }
     if (isFinishedSetNeeded()) {
       state.access(FINISHED_BITS_TAG).get();
     }
@@ -99,6 +132,11 @@ public class TriggerRunner<W extends BoundedWindow> {
    * Run the trigger logic to deal with a new value.
    */
   public void processValue(ReduceFn<?, ?, ?, W>.ProcessValueContext c) throws Exception {
+    if (compiledTrigger != null) {
+      compiledTrigger.processValue(c);
+      return;
+    }
+
     // Clone so that we can detect changes and so that changes here don't pollute merging.
     FinishedTriggersBitSet finishedSet =
         readFinishedBits(c.state().access(FINISHED_BITS_TAG)).copy();
@@ -146,6 +184,10 @@ public class TriggerRunner<W extends BoundedWindow> {
   }
 
   public boolean shouldFire(ReduceFn<?, ?, ?, W>.Context c) throws Exception {
+    if (compiledTrigger != null) {
+      return compiledTrigger.shouldFire(c);
+    }
+
     FinishedTriggers finishedSet = readFinishedBits(c.state().access(FINISHED_BITS_TAG)).copy();
     Trigger<W>.TriggerContext context = contextFactory.base(c.window(), c.timers(),
         rootTrigger, finishedSet);
@@ -153,6 +195,11 @@ public class TriggerRunner<W extends BoundedWindow> {
   }
 
   public void onFire(ReduceFn<?, ?, ?, W>.Context c) throws Exception {
+    if (compiledTrigger != null) {
+      compiledTrigger.onFire(c);
+      return;
+    }
+
     FinishedTriggersBitSet finishedSet =
         readFinishedBits(c.state().access(FINISHED_BITS_TAG)).copy();
     Trigger<W>.TriggerContext context = contextFactory.base(c.window(), c.timers(),
@@ -182,6 +229,11 @@ public class TriggerRunner<W extends BoundedWindow> {
    * the window is closed.
    */
   public void clearState(ReduceFn<?, ?, ?, W>.Context c) throws Exception {
+    if (compiledTrigger != null) {
+      compiledTrigger.clearState(c);
+      return;
+    }
+
     // Don't need to clone, because we'll be clearing the finished bits anyways.
     FinishedTriggers finishedSet = readFinishedBits(c.state().access(FINISHED_BITS_TAG));
     rootTrigger.invokeClear(contextFactory.base(
@@ -200,6 +252,9 @@ public class TriggerRunner<W extends BoundedWindow> {
   }
 
   private boolean isFinishedSetNeeded() {
+    if (compiledTrigger != null) {
+      return compiledTrigger.isFinishedSetNeeded();
+    }
     // TODO: If we know that no trigger in the tree will ever finish, we don't need to do the
     // lookup. Right now, we special case this for the DefaultTrigger.
     return !(rootTrigger.getSpec() instanceof DefaultTrigger);
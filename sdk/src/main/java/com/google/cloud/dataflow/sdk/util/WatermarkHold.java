@@ -314,6 +314,14 @@ public class WatermarkHold<W extends BoundedWindow> implements Serializable {
     }
   }
 
+  /**
+   * Prefetches the holds that {@link #onMerge} will compact.
+   */
+  public void prefetchOnMerge(ReduceFn.MergingStateContext state) {
+    state.accessAcrossMergedWindows(elementHoldTag).get();
+    state.accessAcrossMergedWindows(EXTRA_HOLD_TAG).get();
+  }
+
   /**
    * Updates the watermark hold when windows merge if it is possible the merged value does
    * not equal all of the existing holds. For example, if the new window implies a later
@@ -335,8 +343,10 @@ public class WatermarkHold<W extends BoundedWindow> implements Serializable {
               arbitraryTimestamp, context.window()));
     }
 
-    context.state().accessAcrossMergedWindows(elementHoldTag).releaseExtraneousHolds();
-    context.state().accessAcrossMergedWindows(EXTRA_HOLD_TAG).releaseExtraneousHolds();
+    // Merge the holds into the writing window of the merged window. This also releases any
+    // extraneous holds, as the merged hold replaces them.
+    context.state().compactAcrossMergedWindows(elementHoldTag);
+    context.state().compactAcrossMergedWindows(EXTRA_HOLD_TAG);
   }
 
   /**
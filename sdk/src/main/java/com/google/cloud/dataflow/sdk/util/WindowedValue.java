@@ -57,7 +57,6 @@ import java.util.Set;
 public abstract class WindowedValue<T> {
 
   protected final T value;
-  protected final PaneInfo pane;
 
   /**
    * Returns a {@code WindowedValue} with the given value, timestamp,
@@ -92,10 +91,14 @@ public abstract class WindowedValue<T> {
     boolean isGlobal = GlobalWindow.INSTANCE.equals(window);
     if (isGlobal && BoundedWindow.TIMESTAMP_MIN_VALUE.equals(timestamp)) {
       return valueInGlobalWindow(value, pane);
+    } else if (isGlobal && PaneInfo.NO_FIRING.equals(pane)) {
+      return new TimestampedValueInGlobalWindow<>(value, timestamp);
     } else if (isGlobal) {
-      return new TimestampedValueInGlobalWindow<>(value, timestamp, pane);
+      return new TimestampedValueInGlobalWindowWithPane<>(value, timestamp, pane);
+    } else if (PaneInfo.NO_FIRING.equals(pane)) {
+      return new TimestampedValueInSingleWindow<>(value, timestamp, window);
     } else {
-      return new TimestampedValueInSingleWindow<>(value, timestamp, window, pane);
+      return new TimestampedValueInSingleWindowWithPane<>(value, timestamp, window, pane);
     }
   }
 
@@ -104,7 +107,7 @@ public abstract class WindowedValue<T> {
    * default timestamp and pane.
    */
   public static <T> WindowedValue<T> valueInGlobalWindow(T value) {
-    return new ValueInGlobalWindow<>(value, PaneInfo.NO_FIRING);
+    return new ValueInGlobalWindow<>(value);
   }
 
   /**
@@ -112,7 +115,11 @@ public abstract class WindowedValue<T> {
    * default timestamp and the specified pane.
    */
   public static <T> WindowedValue<T> valueInGlobalWindow(T value, PaneInfo pane) {
-    return new ValueInGlobalWindow<>(value, pane);
+    if (PaneInfo.NO_FIRING.equals(pane)) {
+      return new ValueInGlobalWindow<>(value);
+    } else {
+      return new ValueInGlobalWindowWithPane<>(value, pane);
+    }
   }
 
   /**
@@ -123,7 +130,7 @@ public abstract class WindowedValue<T> {
     if (BoundedWindow.TIMESTAMP_MIN_VALUE.equals(timestamp)) {
       return valueInGlobalWindow(value);
     } else {
-      return new TimestampedValueInGlobalWindow<>(value, timestamp, PaneInfo.NO_FIRING);
+      return new TimestampedValueInGlobalWindow<>(value, timestamp);
     }
   }
 
@@ -143,9 +150,8 @@ public abstract class WindowedValue<T> {
     return new ValueInEmptyWindows<T>(value, pane);
   }
 
-  private WindowedValue(T value, PaneInfo pane) {
+  private WindowedValue(T value) {
     this.value = value;
-    this.pane = checkNotNull(pane);
   }
 
   /**
@@ -174,8 +180,14 @@ public abstract class WindowedValue<T> {
   /**
    * Returns the pane of this {@code WindowedValue} in its window.
    */
-  public PaneInfo getPane() {
-    return pane;
+  public abstract PaneInfo getPane();
+
+  /**
+   * Returns the window of this {@code WindowedValue} if it is in exactly one, without creating a
+   * collection of it, or {@code null} otherwise.
+   */
+  BoundedWindow getOnlyWindow() {
+    return null;
   }
 
   @Override
@@ -196,8 +208,8 @@ public abstract class WindowedValue<T> {
    */
   private abstract static class MinTimestampWindowedValue<T>
       extends WindowedValue<T> {
-    public MinTimestampWindowedValue(T value, PaneInfo pane) {
-      super(value, pane);
+    public MinTimestampWindowedValue(T value) {
+      super(value);
     }
 
     @Override
@@ -207,18 +219,18 @@ public abstract class WindowedValue<T> {
   }
 
   /**
-   * The representation of a WindowedValue where timestamp == MIN and
-   * windows == {GlobalWindow}.
+   * The representation of a WindowedValue where timestamp == MIN,
+   * windows == {GlobalWindow} and pane == NO_FIRING.
    */
   private static class ValueInGlobalWindow<T>
       extends MinTimestampWindowedValue<T> {
-    public ValueInGlobalWindow(T value, PaneInfo pane) {
-      super(value, pane);
+    public ValueInGlobalWindow(T value) {
+      super(value);
     }
 
     @Override
     public <NewT> WindowedValue<NewT> withValue(NewT value) {
-      return new ValueInGlobalWindow<>(value, pane);
+      return new ValueInGlobalWindow<>(value);
     }
 
     @Override
@@ -226,11 +238,21 @@ public abstract class WindowedValue<T> {
       return GLOBAL_WINDOWS;
     }
 
+    @Override
+    public PaneInfo getPane() {
+      return PaneInfo.NO_FIRING;
+    }
+
+    @Override
+    BoundedWindow getOnlyWindow() {
+      return GlobalWindow.INSTANCE;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (o instanceof ValueInGlobalWindow) {
         ValueInGlobalWindow<?> that = (ValueInGlobalWindow<?>) o;
-        return Objects.equals(that.pane, this.pane)
+        return Objects.equals(that.getPane(), this.getPane())
             && Objects.equals(that.value, this.value);
       } else {
         return false;
@@ -239,26 +261,53 @@ public abstract class WindowedValue<T> {
 
     @Override
     public int hashCode() {
-      return Objects.hash(value, pane);
+      return Objects.hash(value, getPane());
     }
 
     @Override
     public String toString() {
       return MoreObjects.toStringHelper(getClass())
           .add("value", value)
-          .add("pane", pane)
+          .add("pane", getPane())
           .toString();
     }
   }
 
+  /**
+   * The representation of a WindowedValue where timestamp == MIN,
+   * windows == {GlobalWindow} and pane != NO_FIRING.
+   */
+  private static class ValueInGlobalWindowWithPane<T>
+      extends ValueInGlobalWindow<T> {
+    private final PaneInfo pane;
+
+    public ValueInGlobalWindowWithPane(T value, PaneInfo pane) {
+      super(value);
+      this.pane = checkNotNull(pane);
+    }
+
+    @Override
+    public <NewT> WindowedValue<NewT> withValue(NewT value) {
+      return new ValueInGlobalWindowWithPane<>(value, pane);
+    }
+
+    @Override
+    public PaneInfo getPane() {
+      return pane;
+    }
+  }
+
   /**
    * The representation of a WindowedValue where timestamp == MIN and
    * windows == {}.
    */
   private static class ValueInEmptyWindows<T>
       extends MinTimestampWindowedValue<T> {
+    private final PaneInfo pane;
+
     public ValueInEmptyWindows(T value, PaneInfo pane) {
-      super(value, pane);
+      super(value);
+      this.pane = checkNotNull(pane);
     }
 
     @Override
@@ -271,6 +320,11 @@ public abstract class WindowedValue<T> {
       return Collections.emptyList();
     }
 
+    @Override
+    public PaneInfo getPane() {
+      return pane;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (o instanceof ValueInEmptyWindows) {
@@ -305,9 +359,8 @@ public abstract class WindowedValue<T> {
     protected final Instant timestamp;
 
     public TimestampedWindowedValue(T value,
-                                    Instant timestamp,
-                                    PaneInfo pane) {
-      super(value, pane);
+                                    Instant timestamp) {
+      super(value);
       this.timestamp = checkNotNull(timestamp);
     }
 
@@ -319,19 +372,18 @@ public abstract class WindowedValue<T> {
 
   /**
    * The representation of a WindowedValue where timestamp {@code >}
-   * MIN and windows == {GlobalWindow}.
+   * MIN, windows == {GlobalWindow} and pane == NO_FIRING.
    */
   private static class TimestampedValueInGlobalWindow<T>
       extends TimestampedWindowedValue<T> {
     public TimestampedValueInGlobalWindow(T value,
-                                          Instant timestamp,
-                                          PaneInfo pane) {
-      super(value, timestamp, pane);
+                                          Instant timestamp) {
+      super(value, timestamp);
     }
 
     @Override
     public <NewT> WindowedValue<NewT> withValue(NewT value) {
-      return new TimestampedValueInGlobalWindow<>(value, timestamp, pane);
+      return new TimestampedValueInGlobalWindow<>(value, timestamp);
     }
 
     @Override
@@ -339,13 +391,23 @@ public abstract class WindowedValue<T> {
       return GLOBAL_WINDOWS;
     }
 
+    @Override
+    public PaneInfo getPane() {
+      return PaneInfo.NO_FIRING;
+    }
+
+    @Override
+    BoundedWindow getOnlyWindow() {
+      return GlobalWindow.INSTANCE;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (o instanceof TimestampedValueInGlobalWindow) {
         TimestampedValueInGlobalWindow<?> that =
             (TimestampedValueInGlobalWindow<?>) o;
         return this.timestamp.isEqual(that.timestamp) // don't compare chronology objects
-            && Objects.equals(that.pane, this.pane)
+            && Objects.equals(that.getPane(), this.getPane())
             && Objects.equals(that.value, this.value);
       } else {
         return false;
@@ -354,7 +416,7 @@ public abstract class WindowedValue<T> {
 
     @Override
     public int hashCode() {
-      return Objects.hash(value, pane, timestamp.getMillis());
+      return Objects.hash(value, getPane(), timestamp.getMillis());
     }
 
     @Override
@@ -362,30 +424,55 @@ public abstract class WindowedValue<T> {
       return MoreObjects.toStringHelper(getClass())
           .add("value", value)
           .add("timestamp", timestamp)
-          .add("pane", pane)
+          .add("pane", getPane())
           .toString();
     }
   }
 
   /**
-   * The representation of a WindowedValue where timestamp is arbitrary and
-   * windows == a single non-Global window.
+   * The representation of a WindowedValue where timestamp {@code >}
+   * MIN, windows == {GlobalWindow} and pane != NO_FIRING.
+   */
+  private static class TimestampedValueInGlobalWindowWithPane<T>
+      extends TimestampedValueInGlobalWindow<T> {
+    private final PaneInfo pane;
+
+    public TimestampedValueInGlobalWindowWithPane(T value,
+                                                  Instant timestamp,
+                                                  PaneInfo pane) {
+      super(value, timestamp);
+      this.pane = checkNotNull(pane);
+    }
+
+    @Override
+    public <NewT> WindowedValue<NewT> withValue(NewT value) {
+      return new TimestampedValueInGlobalWindowWithPane<>(value, timestamp, pane);
+    }
+
+    @Override
+    public PaneInfo getPane() {
+      return pane;
+    }
+  }
+
+  /**
+   * The representation of a WindowedValue where timestamp is arbitrary,
+   * windows == a single non-Global window and pane == NO_FIRING.
    */
   private static class TimestampedValueInSingleWindow<T>
       extends TimestampedWindowedValue<T> {
-    private final BoundedWindow window;
+    protected final BoundedWindow window;
 
     public TimestampedValueInSingleWindow(T value,
                                           Instant timestamp,
-                                          BoundedWindow window,
-                                          PaneInfo pane) {
-      super(value, timestamp, pane);
+                                          BoundedWindow window) {
+      super(value, timestamp);
       this.window = checkNotNull(window);
     }
 
     @Override
     public <NewT> WindowedValue<NewT> withValue(NewT value) {
-      return new TimestampedValueInSingleWindow<>(value, timestamp, window, pane);
+      return new TimestampedValueInSingleWindow<>(value, timestamp, window);
     }
 
     @Override
@@ -393,6 +480,16 @@ public abstract class WindowedValue<T> {
       return Collections.singletonList(window);
     }
 
+    @Override
+    public PaneInfo getPane() {
+      return PaneInfo.NO_FIRING;
+    }
+
+    @Override
+    BoundedWindow getOnlyWindow() {
+      return window;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (o instanceof TimestampedValueInSingleWindow) {
@@ -400,7 +497,7 @@ public abstract class WindowedValue<T> {
             (TimestampedValueInSingleWindow<?>) o;
         return Objects.equals(that.value, this.value)
             && this.timestamp.isEqual(that.timestamp) // don't compare chronology objects
-            && Objects.equals(that.pane, this.pane)
+            && Objects.equals(that.getPane(), this.getPane())
             && Objects.equals(that.window, this.window);
       } else {
         return false;
@@ -409,7 +506,7 @@ public abstract class WindowedValue<T> {
 
     @Override
     public int hashCode() {
-      return Objects.hash(value, timestamp.getMillis(), pane, window);
+      return Objects.hash(value, timestamp.getMillis(), getPane(), window);
     }
 
     @Override
@@ -418,11 +515,38 @@ public abstract class WindowedValue<T> {
           .add("value", value)
           .add("timestamp", timestamp)
           .add("window", window)
-          .add("pane", pane)
+          .add("pane", getPane())
           .toString();
     }
   }
 
+  /**
+   * The representation of a WindowedValue where timestamp is arbitrary,
+   * windows == a single non-Global window and pane != NO_FIRING.
+   */
+  private static class TimestampedValueInSingleWindowWithPane<T>
+      extends TimestampedValueInSingleWindow<T> {
+    private final PaneInfo pane;
+
+    public TimestampedValueInSingleWindowWithPane(T value,
+                                                  Instant timestamp,
+                                                  BoundedWindow window,
+                                                  PaneInfo pane) {
+      super(value, timestamp, window);
+      this.pane = checkNotNull(pane);
+    }
+
+    @Override
+    public <NewT> WindowedValue<NewT> withValue(NewT value) {
+      return new TimestampedValueInSingleWindowWithPane<>(value, timestamp, window, pane);
+    }
+
+    @Override
+    public PaneInfo getPane() {
+      return pane;
+    }
+  }
+
   /**
    * The representation of a WindowedValue, excluding the special
    * cases captured above.
@@ -430,14 +554,16 @@ public abstract class WindowedValue<T> {
   private static class TimestampedValueInMultipleWindows<T>
       extends TimestampedWindowedValue<T> {
     private Collection<? extends BoundedWindow> windows;
+    private final PaneInfo pane;
 
     public TimestampedValueInMultipleWindows(
         T value,
         Instant timestamp,
         Collection<? extends BoundedWindow> windows,
         PaneInfo pane) {
-      super(value, timestamp, pane);
+      super(value, timestamp);
       this.windows = checkNotNull(windows);
+      this.pane = checkNotNull(pane);
     }
 
     @Override
@@ -450,6 +576,11 @@ public abstract class WindowedValue<T> {
       return windows;
     }
 
+    @Override
+    public PaneInfo getPane() {
+      return pane;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (o instanceof TimestampedValueInMultipleWindows) {
@@ -541,6 +672,8 @@ public abstract class WindowedValue<T> {
     private final Coder<? extends BoundedWindow> windowCoder;
     // Precompute and cache the coder for a list of windows.
     private final Coder<Collection<? extends BoundedWindow>> windowsCoder;
+    // The same coder, used to code a single window without a collection of it.
+    private final CollectionCoder<BoundedWindow> windowsCollectionCoder;
 
     public static <T> FullWindowedValueCoder<T> of(
         Coder<T> valueCoder,
@@ -569,9 +702,12 @@ public abstract class WindowedValue<T> {
       // windowsCoder in a way that makes encode() and decode() work
       // right, and cast the window type away here.
       @SuppressWarnings({"unchecked", "rawtypes"})
-      Coder<Collection<? extends BoundedWindow>> collectionCoder =
-          (Coder) CollectionCoder.of(this.windowCoder);
-      this.windowsCoder = collectionCoder;
+      CollectionCoder<BoundedWindow> collectionCoder =
+          (CollectionCoder) CollectionCoder.of(this.windowCoder);
+      this.windowsCollectionCoder = collectionCoder;
+      @SuppressWarnings({"unchecked", "rawtypes"})
+      Coder<Collection<? extends BoundedWindow>> windowsCoder = (Coder) collectionCoder;
+      this.windowsCoder = windowsCoder;
     }
 
     public Coder<? extends BoundedWindow> getWindowCoder() {
@@ -596,7 +732,12 @@ public abstract class WindowedValue<T> {
       valueCoder.encode(windowedElem.getValue(), outStream, nestedContext);
       InstantCoder.of().encode(
           windowedElem.getTimestamp(), outStream, nestedContext);
-      windowsCoder.encode(windowedElem.getWindows(), outStream, nestedContext);
+      BoundedWindow window = windowedElem.getOnlyWindow();
+      if (window != null) {
+        windowsCollectionCoder.encodeSingleton(window, outStream, nestedContext);
+      } else {
+        windowsCoder.encode(windowedElem.getWindows(), outStream, nestedContext);
+      }
       PaneInfoCoder.INSTANCE.encode(windowedElem.getPane(), outStream, context);
     }
 
@@ -606,8 +747,9 @@ public abstract class WindowedValue<T> {
       Context nestedContext = context.nested();
       T value = valueCoder.decode(inStream, nestedContext);
       Instant timestamp = InstantCoder.of().decode(inStream, nestedContext);
+      // A single window is unwrapped by WindowedValue.of, so needs no modifiable collection.
       Collection<? extends BoundedWindow> windows =
-          windowsCoder.decode(inStream, nestedContext);
+          windowsCollectionCoder.decodeElements(inStream, nestedContext);
       PaneInfo pane = PaneInfoCoder.INSTANCE.decode(inStream, nestedContext);
       return WindowedValue.of(value, timestamp, windows, pane);
     }
@@ -628,7 +770,12 @@ public abstract class WindowedValue<T> {
                                          Context context) throws Exception {
       valueCoder.registerByteSizeObserver(value.getValue(), observer, context);
       InstantCoder.of().registerByteSizeObserver(value.getTimestamp(), observer, context);
-      windowsCoder.registerByteSizeObserver(value.getWindows(), observer, context);
+      BoundedWindow window = value.getOnlyWindow();
+      if (window != null) {
+        windowsCollectionCoder.registerSingletonByteSizeObserver(window, observer, context);
+      } else {
+        windowsCoder.registerByteSizeObserver(value.getWindows(), observer, context);
+      }
     }
 
     @Override
@@ -38,7 +38,10 @@ import javax.annotation.Nullable;
  */
 @Experimental(Kind.STATE)
 public class InMemoryStateInternals extends MergingStateInternals {
-  private interface InMemoryState {
+  /**
+   * State that can report whether it is empty, for {@link #isEmptyForTesting}.
+   */
+  protected interface InMemoryState {
     boolean isEmptyForTesting();
   }
 
@@ -53,7 +56,7 @@ public class InMemoryStateInternals extends MergingStateInternals {
 
         @Override
         public <T> BagState<T> bindBag(final StateTag<BagState<T>> address, Coder<T> elemCoder) {
-          return new InMemoryBag<T>();
+          return InMemoryStateInternals.this.bindBag(address, elemCoder);
         }
 
         @Override
@@ -91,6 +94,14 @@ public class InMemoryStateInternals extends MergingStateInternals {
     return inMemoryState.get(namespace, address);
   }
 
+  /**
+   * Creates the {@link BagState} for {@code address}, which must also implement
+   * {@link InMemoryState}.
+   */
+  protected <T> BagState<T> bindBag(StateTag<BagState<T>> address, Coder<T> elemCoder) {
+    return new InMemoryBag<T>();
+  }
+
   private final class InMemoryValue<T> implements ValueState<T>, InMemoryState {
     private boolean isCleared = true;
     private T value = null;
@@ -24,6 +24,7 @@ import org.joda.time.Instant;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -79,22 +80,29 @@ class MergedWatermarkStateInternal<W extends BoundedWindow> implements Watermark
       @Override
       public Instant read() {
         List<Instant> outputTimesToMerge = Lists.newArrayListWithCapacity(sources.size());
+        // Whether the only hold is already in the result, so compacting would rewrite it as is.
+        boolean onlyHoldInResult = true;
+        Iterator<WatermarkStateInternal> sourceIterator = sources.iterator();
         for (StateContents<Instant> read : reads) {
+          WatermarkStateInternal source = sourceIterator.next();
           Instant sourceOutputTime = read.read();
           if (sourceOutputTime != null) {
             outputTimesToMerge.add(sourceOutputTime);
+            onlyHoldInResult &= source == result;
           }
         }
 
         if (outputTimesToMerge.isEmpty()) {
           return null;
-        } else {
+        }
+
+        Instant mergedOutputTime = outputTimeFn.merge(resultWindow, outputTimesToMerge);
+        if (!onlyHoldInResult || !mergedOutputTime.equals(outputTimesToMerge.get(0))) {
           // Also, compact the state
           clear();
-          Instant mergedOutputTime = outputTimeFn.merge(resultWindow, outputTimesToMerge);
           add(mergedOutputTime);
-          return mergedOutputTime;
         }
+        return mergedOutputTime;
       }
     };
   }
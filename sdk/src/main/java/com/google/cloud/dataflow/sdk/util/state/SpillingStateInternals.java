@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.dataflow.sdk.util.state;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.cloud.dataflow.sdk.annotations.Experimental;
+import com.google.cloud.dataflow.sdk.annotations.Experimental.Kind;
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * {@link InMemoryStateInternals} that spills the contents of large {@link BagState bags} to local
+ * disk in encoded form.
+ *
+ * <p>The bags of all the {@link SpillingStateInternals} sharing a {@link SpillBudget} keep at
+ * most {@link SpillBudget#getMaxBytes} bytes of values in memory, as measured by the size of
+ * their encodings. A bag that cannot reserve memory for a new value writes the values it holds,
+ * and every value added to it afterwards, to a file in {@link SpillBudget#getDirectory}. Reading
+ * a spilled bag returns an iterable that decodes the file each time it is iterated.
+ *
+ * <p>As with {@link InMemoryStateInternals}, the contents read from a bag remain valid after the
+ * bag, or this {@link SpillingStateInternals}, is cleared, so that they may be kept by downstream
+ * code after the key they belong to has been processed. The files backing them are only deleted
+ * by {@link #deleteFiles}, at the end of the bundle, after which they can no longer be read.
+ *
+ * <p>Iterating over spilled contents does not hold a file open between values: each file has a
+ * single channel, opened on first read, that its iterators read from at their own positions.
+ * An iterator that is abandoned part way through therefore holds no file descriptor.
+ */
+@Experimental(Kind.STATE)
+public class SpillingStateInternals extends InMemoryStateInternals {
+  private static final Logger LOG = LoggerFactory.getLogger(SpillingStateInternals.class);
+
+  /**
+   * The number of values between measurements of the encoded size of a value. The other values
+   * are assumed to have the mean size of the measured ones.
+   */
+  private static final int SIZE_SAMPLE_PERIOD = 16;
+
+  /**
+   * The memory available to the bags of the {@link SpillingStateInternals} that share it,
+   * usually all of those in a worker, and the directory they spill to.
+   */
+  public static class SpillBudget {
+    private final File directory;
+    private final long maxBytes;
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    public SpillBudget(File directory, long maxBytes) {
+      checkArgument(maxBytes >= 0, "maxBytes must be non-negative, but was %s", maxBytes);
+      this.directory = directory;
+      this.maxBytes = maxBytes;
+    }
+
+    public File getDirectory() {
+      return directory;
+    }
+
+    public long getMaxBytes() {
+      return maxBytes;
+    }
+
+    /**
+     * Returns the number of bytes of values currently held in memory.
+     */
+    public long getReservedBytes() {
+      return reservedBytes.get();
+    }
+
+    private boolean tryReserve(long bytes) {
+      while (true) {
+        long reserved = reservedBytes.get();
+        if (reserved + bytes > maxBytes) {
+          return false;
+        }
+        if (reservedBytes.compareAndSet(reserved, reserved + bytes)) {
+          return true;
+        }
+      }
+    }
+
+    private void release(long bytes) {
+      reservedBytes.addAndGet(-bytes);
+    }
+  }
+
+  private final SpillBudget budget;
+  private final List<SpillingBag<?>> bags = new ArrayList<>();
+  private final List<SpillFile<?>> spillFiles = new ArrayList<>();
+  private boolean spilled = false;
+
+  public SpillingStateInternals(SpillBudget budget) {
+    this.budget = budget;
+  }
+
+  @Override
+  protected <T> BagState<T> bindBag(StateTag<BagState<T>> address, Coder<T> elemCoder) {
+    SpillingBag<T> bag = new SpillingBag<>(elemCoder);
+    bags.add(bag);
+    return bag;
+  }
+
+  /**
+   * Clears all the state, releasing the memory reserved by its bags. The files the bags spilled
+   * to are kept until {@link #deleteFiles}, so that contents already read remain valid.
+   */
+  @Override
+  public void clear() {
+    super.clear();
+    for (SpillingBag<?> bag : bags) {
+      bag.clear();
+    }
+    bags.clear();
+    spilled = false;
+  }
+
+  /**
+   * Deletes the files that bags have spilled to, after which the contents read from those bags
+   * can no longer be iterated. Called once no reader of the contents is left, at the end of the
+   * bundle.
+   */
+  public void deleteFiles() {
+    for (SpillFile<?> spillFile : spillFiles) {
+      spillFile.delete();
+    }
+    spillFiles.clear();
+  }
+
+  /**
+   * Returns true if any bag has spilled since the state was last cleared.
+   */
+  public boolean hasSpilled() {
+    return spilled;
+  }
+
+  private final class SpillingBag<T> implements BagState<T>, InMemoryState {
+    private final Coder<T> elemCoder;
+    private List<T> contents = new ArrayList<>();
+    private long reservedBytes = 0;
+
+    // The values added while the bag was in memory, and the total size of those measured.
+    private long numAdded = 0;
+    private long sampledBytes = 0;
+
+    @Nullable
+    private SpillFile<T> spillFile = null;
+
+    private SpillingBag(Coder<T> elemCoder) {
+      this.elemCoder = elemCoder;
+    }
+
+    @Override
+    public void clear() {
+      // As in InMemoryBag, the contents are hot-swapped so that results already read remain
+      // valid. The file is only deleted at the end of the bundle.
+      contents = new ArrayList<>();
+      budget.release(reservedBytes);
+      reservedBytes = 0;
+      numAdded = 0;
+      sampledBytes = 0;
+      if (spillFile != null) {
+        spillFile.finishWriting();
+        spillFile = null;
+      }
+    }
+
+    @Override
+    public StateContents<Iterable<T>> get() {
+      return new StateContents<Iterable<T>>() {
+        @Override
+        public Iterable<T> read() {
+          return spillFile == null ? contents : spillFile.contents();
+        }
+      };
+    }
+
+    @Override
+    public void add(T input) {
+      if (spillFile == null) {
+        long size = estimateSize(input);
+        if (budget.tryReserve(size)) {
+          reservedBytes += size;
+          contents.add(input);
+          return;
+        }
+        spill();
+      }
+      spillFile.write(input);
+    }
+
+    private long estimateSize(T input) {
+      long sample = numAdded / SIZE_SAMPLE_PERIOD;
+      if (numAdded++ % SIZE_SAMPLE_PERIOD == 0) {
+        CountingOutputStream counter = new CountingOutputStream(ByteStreams.nullOutputStream());
+        try {
+          elemCoder.encode(input, counter, Coder.Context.NESTED);
+        } catch (IOException e) {
+          throw new RuntimeException("Unable to encode value of bag state", e);
+        }
+        sampledBytes += counter.getCount();
+        return counter.getCount();
+      }
+      return sampledBytes / (sample + 1);
+    }
+
+    /**
+     * Moves the values held in memory to a new file, to which all later values are written.
+     */
+    private void spill() {
+      try {
+        File file = File.createTempFile("state", ".bag", budget.getDirectory());
+        spillFile = new SpillFile<>(file, elemCoder);
+        spillFiles.add(spillFile);
+        spilled = true;
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to create file to spill bag state", e);
+      }
+      for (T value : contents) {
+        spillFile.write(value);
+      }
+      contents = new ArrayList<>();
+      budget.release(reservedBytes);
+      reservedBytes = 0;
+    }
+
+    @Override
+    public boolean isEmptyForTesting() {
+      return contents.isEmpty() && spillFile == null;
+    }
+
+    @Override
+    public StateContents<Boolean> isEmpty() {
+      return new StateContents<Boolean>() {
+        @Override
+        public Boolean read() {
+          return contents.isEmpty() && spillFile == null;
+        }
+      };
+    }
+  }
+
+  /**
+   * A file of encoded values, which may be read while it is still being written.
+   */
+  private static final class SpillFile<T> {
+    private final File file;
+    private final Coder<T> elemCoder;
+    @Nullable
+    private OutputStream out;
+    private int numValues = 0;
+
+    // The channel that all iterators over the file read from, opened on first read.
+    @Nullable
+    private FileChannel channel = null;
+    private boolean deleted = false;
+
+    private SpillFile(File file, Coder<T> elemCoder) throws IOException {
+      this.file = file;
+      this.elemCoder = elemCoder;
+      this.out = new BufferedOutputStream(new FileOutputStream(file));
+    }
+
+    private void write(T value) {
+      try {
+        elemCoder.encode(value, out, Coder.Context.NESTED);
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to spill bag state to " + file, e);
+      }
+      numValues++;
+    }
+
+    private void finishWriting() {
+      try {
+        out.close();
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to spill bag state to " + file, e);
+      }
+      out = null;
+    }
+
+    private void delete() {
+      try {
+        if (out != null) {
+          out.close();
+          out = null;
+        }
+        if (channel != null) {
+          channel.close();
+          channel = null;
+        }
+      } catch (IOException e) {
+        LOG.warn("Unable to close spilled state file {}", file, e);
+      }
+      deleted = true;
+      if (!file.delete()) {
+        LOG.warn("Unable to delete spilled state file {}", file);
+      }
+    }
+
+    /**
+     * Returns the values written so far. Values written later are not included.
+     */
+    private Iterable<T> contents() {
+      final int count = numValues;
+      return new Iterable<T>() {
+        @Override
+        public Iterator<T> iterator() {
+          return read(count);
+        }
+      };
+    }
+
+    private Iterator<T> read(final int count) {
+      checkState(!deleted,
+          "Spilled bag state in %s was read after the end of the bundle that wrote it", file);
+      try {
+        if (out != null) {
+          out.flush();
+        }
+        if (channel == null) {
+          channel = new RandomAccessFile(file, "r").getChannel();
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to read spilled bag state from " + file, e);
+      }
+      return new AbstractIterator<T>() {
+        private int remaining = count;
+        @Nullable
+        private InputStream in = new BufferedInputStream(new ChannelInputStream(SpillFile.this));
+
+        @Override
+        protected T computeNext() {
+          if (remaining == 0) {
+            in = null;
+            return endOfData();
+          }
+          remaining--;
+          try {
+            return elemCoder.decode(in, Coder.Context.NESTED);
+          } catch (IOException e) {
+            throw new RuntimeException("Unable to read spilled bag state from " + file, e);
+          }
+        }
+      };
+    }
+  }
+
+  /**
+   * An {@link InputStream} over a {@link SpillFile} that reads from the file's shared channel at
+   * its own position, and so holds no file open itself.
+   */
+  private static final class ChannelInputStream extends InputStream {
+    private final SpillFile<?> spillFile;
+    private long position = 0;
+
+    private ChannelInputStream(SpillFile<?> spillFile) {
+      this.spillFile = spillFile;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      checkState(!spillFile.deleted,
+          "Spilled bag state in %s was read after the end of the bundle that wrote it",
+          spillFile.file);
+      int read = spillFile.channel.read(ByteBuffer.wrap(b, off, len), position);
+      if (read > 0) {
+        position += read;
+      }
+      return read;
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.dataflow.sdk.util.state;
+
+import com.google.cloud.dataflow.sdk.annotations.Experimental;
+import com.google.cloud.dataflow.sdk.annotations.Experimental.Kind;
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.transforms.Combine.CombineFn;
+import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.OutputTimeFn;
+import com.google.cloud.dataflow.sdk.util.state.StateTag.StateBinder;
+
+import org.joda.time.Instant;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Helpers for eagerly merging {@link MergeableState} from several namespaces into one, as
+ * opposed to reading it across the namespaces as {@link StateInternals#mergedState} does.
+ *
+ * <p>The state in every source is read before any of it is merged, so that backends which batch
+ * reads, such as Windmill, fetch all of it at once. The sources are then cleared, so that later
+ * reads need only the result.
+ */
+@Experimental(Kind.STATE)
+public class StateMerging {
+
+  private StateMerging() {}
+
+  /**
+   * Moves the state for {@code address} in each of the {@code sourceNamespaces} into
+   * {@code resultNamespace}, which may be one of them.
+   */
+  public static <StateT extends MergeableState<?, ?>> void mergeIntoNamespace(
+      final StateInternals stateInternals,
+      final Collection<StateNamespace> sourceNamespaces,
+      final StateNamespace resultNamespace,
+      StateTag<StateT> address,
+      final BoundedWindow resultWindow) {
+    address.bind(new StateBinder() {
+      @Override
+      public <T> ValueState<T> bindValue(StateTag<ValueState<T>> address, Coder<T> coder) {
+        throw new IllegalStateException(
+            "Value is not mergable. Should not be passed to mergeIntoNamespace");
+      }
+
+      @Override
+      public <T> BagState<T> bindBag(StateTag<BagState<T>> address, Coder<T> elemCoder) {
+        List<BagState<T>> sources = new ArrayList<>();
+        for (StateNamespace sourceNamespace : sourceNamespaces) {
+          sources.add(stateInternals.state(sourceNamespace, address));
+        }
+        BagState<T> result = stateInternals.state(resultNamespace, address);
+        mergeBags(sources, result);
+        return result;
+      }
+
+      @Override
+      public <InputT, AccumT, OutputT>
+      CombiningValueStateInternal<InputT, AccumT, OutputT> bindCombiningValue(
+          StateTag<CombiningValueStateInternal<InputT, AccumT, OutputT>> address,
+          Coder<AccumT> accumCoder, CombineFn<InputT, AccumT, OutputT> combineFn) {
+        List<CombiningValueStateInternal<InputT, AccumT, OutputT>> sources = new ArrayList<>();
+        for (StateNamespace sourceNamespace : sourceNamespaces) {
+          sources.add(stateInternals.state(sourceNamespace, address));
+        }
+        CombiningValueStateInternal<InputT, AccumT, OutputT> result =
+            stateInternals.state(resultNamespace, address);
+        mergeCombiningValues(sources, result);
+        return result;
+      }
+
+      @Override
+      public <W extends BoundedWindow> WatermarkStateInternal bindWatermark(
+          StateTag<WatermarkStateInternal> address,
+          OutputTimeFn<? super W> outputTimeFn) {
+        List<WatermarkStateInternal> sources = new ArrayList<>();
+        for (StateNamespace sourceNamespace : sourceNamespaces) {
+          sources.add(stateInternals.state(sourceNamespace, address));
+        }
+        WatermarkStateInternal result = stateInternals.state(resultNamespace, address);
+
+        // It is the responsibility of the SDK to only pass allowed result windows.
+        @SuppressWarnings("unchecked")
+        W typedResultWindow = (W) resultWindow;
+
+        mergeWatermarks(sources, result, typedResultWindow, outputTimeFn);
+        return result;
+      }
+    });
+  }
+
+  /**
+   * Adds the contents of each of the {@code sources} to {@code result}, which may be one of them,
+   * and clears the other sources.
+   */
+  public static <T> void mergeBags(Collection<BagState<T>> sources, BagState<T> result) {
+    List<BagState<T>> toMerge = new ArrayList<>(sources.size());
+    List<StateContents<Iterable<T>>> reads = new ArrayList<>(sources.size());
+    for (BagState<T> source : sources) {
+      if (source != result) {
+        toMerge.add(source);
+        reads.add(source.get());
+      }
+    }
+
+    for (int i = 0; i < toMerge.size(); i++) {
+      for (T value : reads.get(i).read()) {
+        result.add(value);
+      }
+      toMerge.get(i).clear();
+    }
+  }
+
+  /**
+   * Adds the accumulators of each of the non-empty {@code sources} to {@code result}, which may
+   * be one of them, and clears the other sources.
+   */
+  public static <InputT, AccumT, OutputT> void mergeCombiningValues(
+      Collection<? extends CombiningValueStateInternal<InputT, AccumT, OutputT>> sources,
+      CombiningValueStateInternal<InputT, AccumT, OutputT> result) {
+    List<CombiningValueStateInternal<InputT, AccumT, OutputT>> toMerge =
+        new ArrayList<>(sources.size());
+    List<StateContents<Boolean>> isEmptyReads = new ArrayList<>(sources.size());
+    List<StateContents<AccumT>> accumReads = new ArrayList<>(sources.size());
+    for (CombiningValueStateInternal<InputT, AccumT, OutputT> source : sources) {
+      if (source != result) {
+        toMerge.add(source);
+        isEmptyReads.add(source.isEmpty());
+        accumReads.add(source.getAccum());
+      }
+    }
+
+    for (int i = 0; i < toMerge.size(); i++) {
+      // Empty sources are skipped, so that merging them does not make the result non-empty.
+      if (!isEmptyReads.get(i).read()) {
+        result.addAccum(accumReads.get(i).read());
+      }
+      toMerge.get(i).clear();
+    }
+  }
+
+  /**
+   * Replaces the hold in {@code result}, which may be one of the {@code sources}, with the holds
+   * of all the {@code sources} merged by {@code outputTimeFn}, and clears the other sources.
+   */
+  public static <W extends BoundedWindow> void mergeWatermarks(
+      Collection<WatermarkStateInternal> sources,
+      WatermarkStateInternal result,
+      W resultWindow,
+      OutputTimeFn<? super W> outputTimeFn) {
+    List<WatermarkStateInternal> toMerge = new ArrayList<>(sources.size());
+    List<StateContents<Instant>> reads = new ArrayList<>(sources.size());
+    for (WatermarkStateInternal source : sources) {
+      if (source != result) {
+        toMerge.add(source);
+        reads.add(source.get());
+      }
+    }
+    if (toMerge.isEmpty()) {
+      return;
+    }
+    StateContents<Instant> resultRead = result.get();
+
+    List<Instant> outputTimesToMerge = new ArrayList<>(toMerge.size() + 1);
+    for (int i = 0; i < toMerge.size(); i++) {
+      Instant sourceOutputTime = reads.get(i).read();
+      if (sourceOutputTime != null) {
+        outputTimesToMerge.add(sourceOutputTime);
+      }
+      toMerge.get(i).clear();
+    }
+    if (outputTimesToMerge.isEmpty()) {
+      return;
+    }
+
+    Instant resultOutputTime = resultRead.read();
+    if (resultOutputTime != null) {
+      outputTimesToMerge.add(resultOutputTime);
+    }
+    Instant mergedOutputTime = outputTimeFn.merge(resultWindow, outputTimesToMerge);
+    if (!mergedOutputTime.equals(resultOutputTime)) {
+      result.clear();
+      result.add(mergedOutputTime);
+    }
+  }
+}
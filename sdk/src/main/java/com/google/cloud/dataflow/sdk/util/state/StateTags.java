@@ -70,6 +70,18 @@ public class StateTags {
     return combiningValueInternal(id, accumCoder, combineFn);
   }
 
+  /**
+   * Like {@link #combiningValue}, but the state also gives access to its {@code AccumT}
+   * accumulator, so that accumulators can be read and added directly.
+   */
+  public static <InputT, AccumT, OutputT>
+  StateTag<CombiningValueStateInternal<InputT, AccumT, OutputT>>
+  combiningValueWithAccumInternal(
+      String id, Coder<AccumT> accumCoder, CombineFn<InputT, AccumT, OutputT> combineFn) {
+    return new CombiningValueStateTag<InputT, AccumT, OutputT>(
+        new StructuredId(id), accumCoder, combineFn);
+  }
+
   /**
    * Create a state tag for values that use a {@link CombineFn} to automatically merge
    * multiple {@code InputT}s into a single {@code OutputT}.
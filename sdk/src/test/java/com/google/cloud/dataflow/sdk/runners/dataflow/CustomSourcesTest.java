@@ -59,13 +59,14 @@ import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
 import com.google.cloud.dataflow.sdk.io.BoundedSource;
 import com.google.cloud.dataflow.sdk.io.CountingSource;
 import com.google.cloud.dataflow.sdk.io.Read;
+import com.google.cloud.dataflow.sdk.io.UnboundedSource;
 import com.google.cloud.dataflow.sdk.options.DataflowPipelineOptions;
 import com.google.cloud.dataflow.sdk.options.PipelineOptions;
 import com.google.cloud.dataflow.sdk.options.PipelineOptionsFactory;
 import com.google.cloud.dataflow.sdk.runners.DataflowPipelineTranslator;
 import com.google.cloud.dataflow.sdk.runners.worker.DataflowApiUtils;
+import com.google.cloud.dataflow.sdk.runners.worker.ReaderCache;
 import com.google.cloud.dataflow.sdk.runners.worker.ReaderFactory;
-import com.google.cloud.dataflow.sdk.runners.worker.StreamingDataflowWorker.ReaderCacheEntry;
 import com.google.cloud.dataflow.sdk.runners.worker.StreamingModeExecutionContext;
 import com.google.cloud.dataflow.sdk.runners.worker.windmill.Windmill;
 import com.google.cloud.dataflow.sdk.testing.DataflowAssert;
@@ -103,7 +104,6 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
@@ -635,9 +635,9 @@ public class CustomSourcesTest {
 
   @Test
   public void testReadUnboundedReader() throws Exception {
+    ReaderCache.ForComputation readerCache = new ReaderCache().forComputation("computation");
     StreamingModeExecutionContext context = new StreamingModeExecutionContext("stageName",
-        new ConcurrentHashMap<ByteString, ReaderCacheEntry>(), /*stateNameMap=*/null,
-        /*stateCache=*/null);
+        readerCache, /*stateNameMap=*/null, /*stateCache=*/null);
 
     DataflowPipelineOptions options =
         PipelineOptionsFactory.create().as(DataflowPipelineOptions.class);
@@ -659,7 +659,9 @@ public class CustomSourcesTest {
           null, // synchronized processing time
           null, // StateReader
           null, // StateFetcher
-          Windmill.WorkItemCommitRequest.newBuilder());
+          Windmill.WorkItemCommitRequest.newBuilder()
+              .setKey(ByteString.copyFromUtf8("0000000000000001"))
+              .setWorkToken(0));
 
       @SuppressWarnings({"unchecked", "rawtypes"})
       NativeReader<WindowedValue<ValueWithRecordId<KV<Integer, Integer>>>> reader =
@@ -708,12 +710,20 @@ public class CustomSourcesTest {
               .getFinalizeIdsList()
               .size());
 
-      assertNotNull(context.getCachedReader());
+      // The reader was returned to the cache. Taking it out to check removes it, so put it back.
+      UnboundedSource.UnboundedReader<?> cachedReader = context.getCachedReader();
+      assertNotNull(cachedReader);
+      readerCache.release(context.getSerializedKey(), 0L, cachedReader);
 
       Windmill.Counter backlog = getCounter(context, "dataflow_backlog_size-stageName");
       assertEquals(7L, backlog.getIntScalar());
       assertTrue(backlog.getCumulative());
       assertEquals(Windmill.Counter.Kind.SUM, backlog.getKind());
+
+      // Everything committed other than the outputs, including the backlog, is state written.
+      assertEquals(
+          context.getOutputBuilder().clone().clearOutputMessages().build().getSerializedSize(),
+          context.getStateBytesWritten());
     }
   }
 
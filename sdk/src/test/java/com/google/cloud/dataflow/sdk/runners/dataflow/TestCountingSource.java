@@ -32,6 +32,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
@@ -47,6 +48,7 @@ import javax.annotation.Nullable;
 public class TestCountingSource
     extends UnboundedSource<KV<Integer, Integer>, TestCountingSource.CounterMark> {
   private static List<Integer> finalizeTracker;
+  private static final AtomicInteger openReaders = new AtomicInteger();
   private final int numMessagesPerShard;
   private final int shardNumber;
   private final boolean dedup;
@@ -55,6 +57,13 @@ public class TestCountingSource
     TestCountingSource.finalizeTracker = finalizeTracker;
   }
 
+  /**
+   * Returns the number of readers of any {@link TestCountingSource} created and not yet closed.
+   */
+  public static int getOpenReaders() {
+    return openReaders.get();
+  }
+
   public TestCountingSource(int numMessagesPerShard) {
     this(numMessagesPerShard, 0, false);
   }
@@ -171,7 +180,9 @@ public class TestCountingSource
     }
 
     @Override
-    public void close() {}
+    public void close() {
+      openReaders.decrementAndGet();
+    }
 
     @Override
     public TestCountingSource getCurrentSource() {
@@ -199,6 +210,7 @@ public class TestCountingSource
   @Override
   public CountingSourceReader createReader(
       PipelineOptions options, @Nullable CounterMark checkpointMark) {
+    openReaders.incrementAndGet();
     return new CountingSourceReader(checkpointMark != null ? checkpointMark.current : 0);
   }
 
@@ -19,6 +19,8 @@ package com.google.cloud.dataflow.sdk.runners.worker;
 import static com.google.cloud.dataflow.sdk.util.Structs.addString;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
@@ -144,6 +146,36 @@ public class DefaultParDoFnFactoryTest {
     assertEquals(DEFAULT_EXECUTION_CONTEXT, normalParDoFn.getExecutionContext());
   }
 
+  /**
+   * Tests that {@link NormalParDoFn NormalParDoFns} created from the same specification, which
+   * may run concurrently in different executors, each have their own deserialized
+   * {@link DoFnInfo}, and hand out distinct copies of the user {@link DoFn}.
+   */
+  @Test
+  public void testCreateNormalParDoFnDoesNotShareDoFnInfo() throws Exception {
+    String serializedFn =
+        StringUtils.byteArrayToJsonString(
+            SerializableUtils.serializeToByteArray(
+                new DoFnInfo<>(new TestDoFn("shared", 7L), WindowingStrategy.globalDefault())));
+    CloudObject cloudUserFn = CloudObject.forClassName("DoFn");
+    addString(cloudUserFn, "serialized_fn", serializedFn);
+
+    NormalParDoFn first = (NormalParDoFn) DEFAULT_FACTORY.create(
+        DEFAULT_OPTIONS, cloudUserFn, "name", "transformName", null, dummySingleOutputInfo, 1,
+        DEFAULT_EXECUTION_CONTEXT, EMPTY_COUNTER_SET.getAddCounterMutator(), EMPTY_STATE_SAMPLER);
+    NormalParDoFn second = (NormalParDoFn) DEFAULT_FACTORY.create(
+        DEFAULT_OPTIONS, cloudUserFn, "name", "transformName", null, dummySingleOutputInfo, 1,
+        DEFAULT_EXECUTION_CONTEXT, EMPTY_COUNTER_SET.getAddCounterMutator(), EMPTY_STATE_SAMPLER);
+
+    DoFnInfo<?, ?> firstInfo = first.getDoFnInfo();
+    DoFnInfo<?, ?> secondInfo = second.getDoFnInfo();
+    assertSame(firstInfo.getWindowingStrategy(), first.getDoFnInfo().getWindowingStrategy());
+    assertNotSame(firstInfo.getWindowingStrategy(), secondInfo.getWindowingStrategy());
+    assertNotSame(firstInfo.getDoFn(), first.getDoFnInfo().getDoFn());
+    assertNotSame(firstInfo.getDoFn(), secondInfo.getDoFn());
+    assertEquals("shared", ((TestDoFn) secondInfo.getDoFn()).stringField);
+  }
+
   @Test
   public void testCreateUnknownParDoFn() throws Exception {
     // A bogus serialized DoFn
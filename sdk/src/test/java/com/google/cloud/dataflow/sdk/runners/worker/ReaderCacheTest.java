@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.runners.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.google.cloud.dataflow.sdk.io.UnboundedSource;
+import com.google.common.base.Ticker;
+import com.google.protobuf.ByteString;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ReaderCache}.
+ */
+@RunWith(JUnit4.class)
+public class ReaderCacheTest {
+  private static final ByteString KEY_1 = ByteString.copyFromUtf8("key1");
+  private static final ByteString KEY_2 = ByteString.copyFromUtf8("key2");
+  private static final ByteString KEY_3 = ByteString.copyFromUtf8("key3");
+
+  private static class FakeTicker extends Ticker {
+    private long nanos = 0;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    public void advance(long duration, TimeUnit unit) {
+      nanos += unit.toNanos(duration);
+    }
+  }
+
+  private FakeTicker ticker;
+  private ReaderCache cache;
+  private ReaderCache.ForComputation readers;
+
+  @Before
+  public void setUp() {
+    ticker = new FakeTicker();
+    cache = new ReaderCache(2, 10, TimeUnit.SECONDS, ticker);
+    readers = cache.forComputation("computation");
+  }
+
+  private static UnboundedSource.UnboundedReader<?> mockReader() {
+    return mock(UnboundedSource.UnboundedReader.class);
+  }
+
+  @Test
+  public void testAcquireRemovesReaderUntilReleased() throws Exception {
+    UnboundedSource.UnboundedReader<?> reader = mockReader();
+    readers.release(KEY_1, 1L, reader);
+
+    assertSame(reader, readers.acquire(KEY_1, 1L));
+    assertNull(readers.acquire(KEY_1, 1L));
+
+    readers.release(KEY_1, 1L, reader);
+    assertSame(reader, readers.acquire(KEY_1, 1L));
+    verify(reader, never()).close();
+  }
+
+  @Test
+  public void testComputationsAreSeparate() throws Exception {
+    UnboundedSource.UnboundedReader<?> reader = mockReader();
+    readers.release(KEY_1, 1L, reader);
+
+    assertNull(cache.forComputation("other").acquire(KEY_1, 1L));
+    assertSame(reader, readers.acquire(KEY_1, 1L));
+  }
+
+  @Test
+  public void testDefaultExpirationKeepsReadersOfSlowKeys() throws Exception {
+    ReaderCache defaultCache = new ReaderCache(ReaderCache.DEFAULT_MAX_READERS,
+        ReaderCache.DEFAULT_IDLE_EXPIRATION_SEC, TimeUnit.SECONDS, ticker);
+    UnboundedSource.UnboundedReader<?> reader = mockReader();
+    defaultCache.forComputation("computation").release(KEY_1, 1L, reader);
+
+    // A key whose work items are minutes apart keeps its reader.
+    ticker.advance(5, TimeUnit.MINUTES);
+    assertSame(reader, defaultCache.forComputation("computation").acquire(KEY_1, 1L));
+    verify(reader, never()).close();
+  }
+
+  @Test
+  public void testInvalidTokenClosesReader() throws Exception {
+    UnboundedSource.UnboundedReader<?> reader = mockReader();
+    readers.release(KEY_1, 1L, reader);
+
+    assertNull(readers.acquire(KEY_1, 2L));
+    verify(reader).close();
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testReplacedReaderIsClosed() throws Exception {
+    UnboundedSource.UnboundedReader<?> reader1 = mockReader();
+    UnboundedSource.UnboundedReader<?> reader2 = mockReader();
+    readers.release(KEY_1, 1L, reader1);
+    readers.release(KEY_1, 1L, reader1);
+    verify(reader1, never()).close();
+
+    readers.release(KEY_1, 2L, reader2);
+    verify(reader1).close();
+    assertSame(reader2, readers.acquire(KEY_1, 2L));
+  }
+
+  @Test
+  public void testSizeEvictionClosesReader() throws Exception {
+    UnboundedSource.UnboundedReader<?> reader1 = mockReader();
+    UnboundedSource.UnboundedReader<?> reader2 = mockReader();
+    UnboundedSource.UnboundedReader<?> reader3 = mockReader();
+    readers.release(KEY_1, 1L, reader1);
+    readers.release(KEY_2, 1L, reader2);
+    readers.release(KEY_3, 1L, reader3);
+
+    assertEquals(2, cache.size());
+    verify(reader1).close();
+    verify(reader2, never()).close();
+    verify(reader3, never()).close();
+  }
+
+  @Test
+  public void testIdleEvictionClosesReader() throws Exception {
+    UnboundedSource.UnboundedReader<?> reader1 = mockReader();
+    UnboundedSource.UnboundedReader<?> reader2 = mockReader();
+    readers.release(KEY_1, 1L, reader1);
+    ticker.advance(6, TimeUnit.SECONDS);
+    readers.release(KEY_2, 1L, reader2);
+    ticker.advance(6, TimeUnit.SECONDS);
+
+    cache.cleanUp();
+    assertEquals(1, cache.size());
+    verify(reader1).close();
+    verify(reader2, never()).close();
+    assertSame(reader2, readers.acquire(KEY_2, 1L));
+  }
+}
@@ -24,6 +24,8 @@ import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -94,6 +96,9 @@ import org.junit.runners.model.Statement;
 import org.mockito.Mockito;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
@@ -390,6 +395,35 @@ public class StreamingDataflowWorkerTest {
     }
   }
 
+  @Test
+  public void testBasicHarnessWithWorkPriority() throws Exception {
+    List<ParallelInstruction> instructions = Arrays.asList(
+        makeSourceInstruction(StringUtf8Coder.of()),
+        makeSinkInstruction(StringUtf8Coder.of(), 0));
+
+    FakeWindmillServer server = new FakeWindmillServer();
+    DataflowWorkerHarnessOptions options = createTestingPipelineOptions();
+    options.setStreamingWorkPriority(
+        DataflowWorkerHarnessOptions.StreamingWorkPriority.OLDEST_INPUT_FIRST);
+    StreamingDataflowWorker worker =
+        new StreamingDataflowWorker(Arrays.asList(defaultMapTask(instructions)), server, options);
+    worker.start();
+
+    final int numIters = 200;
+    for (int i = 0; i < numIters; ++i) {
+      server.addWorkToOffer(makeInput(i, TimeUnit.MILLISECONDS.toMicros(numIters - i)));
+    }
+
+    Map<Long, Windmill.WorkItemCommitRequest> result = server.waitForAndGetCommits(numIters);
+    worker.stop();
+
+    for (int i = 0; i < numIters; ++i) {
+      assertTrue(result.containsKey((long) i));
+      assertEquals(makeExpectedOutput(i, TimeUnit.MILLISECONDS.toMicros(numIters - i)).build(),
+                          stripCounters(result.get((long) i)));
+    }
+  }
+
   static class BlockingFn extends DoFn<String, String> implements TestRule {
     public static CountDownLatch blocker = new CountDownLatch(1);
     public static Semaphore counter = new Semaphore(0);
@@ -659,6 +693,113 @@ public class StreamingDataflowWorkerTest {
     exception = server.getException();
   }
 
+  static class FailFirstAttemptFn extends DoFn<String, String> {
+    static boolean thrown = false;
+    static final List<String> PROCESSED = new ArrayList<>();
+
+    @Override
+    public void processElement(ProcessContext c) throws Exception {
+      if (!thrown) {
+        thrown = true;
+        throw new Exception("Exception!");
+      }
+      synchronized (PROCESSED) {
+        PROCESSED.add(c.element());
+      }
+      c.output(c.element());
+    }
+  }
+
+  @Test
+  public void testRetriedWorkKeepsPriority() throws Exception {
+    List<ParallelInstruction> instructions = Arrays.asList(
+        makeSourceInstruction(StringUtf8Coder.of()),
+        makeDoFnInstruction(new FailFirstAttemptFn(), 0, StringUtf8Coder.of()),
+        makeSinkInstruction(StringUtf8Coder.of(), 1));
+
+    FakeWindmillServer server = new FakeWindmillServer();
+    server.setExpectedExceptionCount(1);
+    DataflowWorkerHarnessOptions options = createTestingPipelineOptions();
+    options.setNumberOfWorkerHarnessThreads(1);
+    options.setStreamingWorkPriority(
+        DataflowWorkerHarnessOptions.StreamingWorkPriority.OLDEST_INPUT_FIRST);
+    options.setStreamingWorkMaxPriorityDelayMillis(TimeUnit.HOURS.toMillis(1));
+    StreamingDataflowWorker worker =
+        new StreamingDataflowWorker(Arrays.asList(defaultMapTask(instructions)), server, options);
+    worker.setRetryLocallyDelayMs(100);
+
+    // The work item with the oldest input starts on the only thread and fails on its first
+    // attempt, while newer work is queued behind it.
+    server.addWorkToOffer(
+        Windmill.GetWorkResponse.newBuilder(makeInput(0, 0))
+            .mergeFrom(makeInput(1, TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis())))
+            .build());
+    worker.start();
+
+    server.waitForAndGetCommits(2);
+    worker.stop();
+
+    // The retry still has the oldest input, so it runs before the newer work.
+    assertThat(FailFirstAttemptFn.PROCESSED, contains("data0", "data1"));
+  }
+
+  @Test
+  public void testPrewarmedExecutorsServeFirstWork() throws Exception {
+    List<ParallelInstruction> instructions = Arrays.asList(
+        makeSourceInstruction(StringUtf8Coder.of()),
+        makeSinkInstruction(StringUtf8Coder.of(), 0));
+
+    FakeWindmillServer server = new FakeWindmillServer();
+    DataflowWorkerHarnessOptions options = createTestingPipelineOptions();
+    options.setStreamingPrewarmedExecutorsPerComputation(2);
+    StreamingDataflowWorker worker =
+        new StreamingDataflowWorker(Arrays.asList(defaultMapTask(instructions)), server, options);
+    StreamingDataflowWorker.ExecutorPool pool = worker.getExecutorPool(DEFAULT_COMPUTATION_ID);
+    for (int i = 0; i < 100 && pool.getIdleCount() < 2; i++) {
+      Thread.sleep(100);
+    }
+    assertEquals(2, pool.getPrewarmedCount());
+    assertEquals(2, pool.getIdleCount());
+
+    worker.start();
+    server.addWorkToOffer(makeInput(0, 0));
+    Map<Long, Windmill.WorkItemCommitRequest> result = server.waitForAndGetCommits(1);
+    worker.stop();
+
+    assertEquals(makeExpectedOutput(0, 0).build(), stripCounters(result.get(0L)));
+    assertEquals(1, pool.getHitCount());
+    assertEquals(0, pool.getMissCount());
+    // Stopping the worker closes the executors in the pool.
+    assertEquals(0, pool.getIdleCount());
+  }
+
+  @Test
+  public void testExecutorPoolMetrics() throws Exception {
+    StreamingDataflowWorker.ExecutorPool pool = new StreamingDataflowWorker.ExecutorPool();
+    assertNull(pool.acquire());
+
+    StreamingDataflowWorker.WorkerAndContext workerAndContext =
+        new StreamingDataflowWorker.WorkerAndContext(null, null);
+    pool.addPrewarmed(workerAndContext);
+    assertEquals(1, pool.getIdleCount());
+    assertSame(workerAndContext, pool.acquire());
+    assertEquals(0, pool.getIdleCount());
+    pool.release(workerAndContext);
+
+    assertEquals(1, pool.getHitCount());
+    assertEquals(1, pool.getMissCount());
+    assertEquals(1, pool.getPrewarmedCount());
+    StringWriter html = new StringWriter();
+    pool.printHtml(new PrintWriter(html));
+    assertEquals(" Idle: 1 Hits: 1/2 Hit Ratio: 0.5 Pre-warmed: 1", html.toString());
+
+    // Draining the pool for shutdown does not count as a use.
+    assertSame(workerAndContext, pool.drain());
+    assertNull(pool.drain());
+    assertEquals(1, pool.getHitCount());
+    assertEquals(1, pool.getMissCount());
+  }
+
   @Test
   public void testAssignWindows() throws Exception {
     Duration gapDuration = Duration.standardSeconds(1);
@@ -1145,6 +1286,84 @@ public class StreamingDataflowWorkerTest {
             .getIntScalar());
   }
 
+  static class FailOnceFn extends DoFn<ValueWithRecordId<KV<Integer, Integer>>, String> {
+    static boolean thrown = false;
+
+    @Override
+    public void processElement(ProcessContext c) {
+      if (!thrown) {
+        thrown = true;
+        throw new StreamingDataflowWorker.KeyTokenInvalidException("key");
+      }
+      KV<Integer, Integer> elem = c.element().getValue();
+      c.output(elem.getKey() + ":" + elem.getValue());
+    }
+  }
+
+  @Test
+  public void testUnboundedReaderClosedOnFailure() throws Exception {
+    DataflowPipelineOptions options =
+        PipelineOptionsFactory.create().as(DataflowPipelineOptions.class);
+    options.setNumWorkers(1);
+
+    List<ParallelInstruction> instructions =
+        Arrays.asList(
+            new ParallelInstruction()
+                .setSystemName("Read")
+                .setRead(
+                    new ReadInstruction()
+                        .setSource(
+                            CustomSources.serializeToCloudSource(
+                                new TestCountingSource(1), options)))
+                .setOutputs(
+                    Arrays.asList(
+                        new InstructionOutput()
+                            .setName("read_output")
+                            .setCodec(
+                                WindowedValue.getFullCoder(
+                                        ValueWithRecordId.ValueWithRecordIdCoder.of(
+                                            KvCoder.of(VarIntCoder.of(), VarIntCoder.of())),
+                                        GlobalWindow.Coder.INSTANCE)
+                                    .asCloudObject()))),
+            makeDoFnInstruction(
+                new FailOnceFn(), 0, StringUtf8Coder.of(), GlobalWindow.Coder.INSTANCE),
+            makeSinkInstruction(StringUtf8Coder.of(), 1, GlobalWindow.Coder.INSTANCE));
+
+    int openReaders = TestCountingSource.getOpenReaders();
+    FakeWindmillServer server = new FakeWindmillServer();
+    StreamingDataflowWorker worker = new StreamingDataflowWorker(
+        Arrays.asList(defaultMapTask(instructions)), server, createTestingPipelineOptions());
+    worker.start();
+
+    // The first work item fails after creating its reader.
+    server.addWorkToOffer(buildInput(
+        "work {" +
+        "  computation_id: \"computation\"" +
+        "  input_data_watermark: 0" +
+        "  work {" +
+        "    key: \"0000000000000001\"" +
+        "    work_token: 1" +
+        "  }" +
+        "}", null));
+    server.waitForEmptyWorkQueue();
+    server.addWorkToOffer(buildInput(
+        "work {" +
+        "  computation_id: \"computation\"" +
+        "  input_data_watermark: 0" +
+        "  work {" +
+        "    key: \"0000000000000001\"" +
+        "    work_token: 2" +
+        "  }" +
+        "}", null));
+
+    Map<Long, Windmill.WorkItemCommitRequest> result = server.waitForAndGetCommits(1);
+    assertEquals(1, result.size());
+    assertTrue(result.containsKey(2L));
+
+    // Only the reader of the second work item, which is cached, is still open.
+    assertEquals(openReaders + 1, TestCountingSource.getOpenReaders());
+  }
+
   private static class MockWork extends StreamingDataflowWorker.Work {
     public MockWork(long workToken) {
       super(workToken);
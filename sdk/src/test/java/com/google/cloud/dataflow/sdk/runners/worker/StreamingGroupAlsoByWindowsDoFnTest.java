@@ -52,6 +52,7 @@ import com.google.cloud.dataflow.sdk.util.ExecutionContext;
 import com.google.cloud.dataflow.sdk.util.KeyedWorkItem;
 import com.google.cloud.dataflow.sdk.util.NullSideInputReader;
 import com.google.cloud.dataflow.sdk.util.ReshuffleTriggerTest;
+import com.google.cloud.dataflow.sdk.util.SystemReduceFn;
 import com.google.cloud.dataflow.sdk.util.TimeDomain;
 import com.google.cloud.dataflow.sdk.util.TimerInternals;
 import com.google.cloud.dataflow.sdk.util.TimerInternals.TimerData;
@@ -526,6 +527,82 @@ public class StreamingGroupAlsoByWindowsDoFnTest {
     assertThat(item1.getWindows(), Matchers.<BoundedWindow>contains(window(15, 25)));
   }
 
+  @Test public void testSlidingWindowsCombineBySlices() throws Exception {
+    TupleTag<KV<String, Long>> outputTag = new TupleTag<>();
+    CombineFn<Long, ?, Long> combineFn = new SumLongs();
+    CoderRegistry registry = new CoderRegistry();
+    registry.registerStandardCoders();
+
+    AppliedCombineFn<String, Long, ?, Long> appliedCombineFn = AppliedCombineFn.withInputCoder(
+        combineFn.asKeyedFn(), registry, KvCoder.of(StringUtf8Coder.of(), BigEndianLongCoder.of()));
+
+    DoFnRunnerBase.ListOutputManager outputManager = new DoFnRunnerBase.ListOutputManager();
+    WindowingStrategy<? super String, IntervalWindow> windowingStrategy = WindowingStrategy.of(
+        SlidingWindows.of(Duration.millis(30)).every(Duration.millis(10)));
+    assertTrue(SystemReduceFn.canCombineBySlices(windowingStrategy));
+    DoFnRunner<KeyedWorkItem<String, Long>, KV<String, Long>> runner = makeRunner(
+        outputTag, outputManager, windowingStrategy, appliedCombineFn);
+
+    when(mockTimerInternals.currentInputWatermarkTime()).thenReturn(new Instant(5));
+
+    runner.startBundle();
+
+    WorkItem.Builder workItem1 = WorkItem.newBuilder();
+    workItem1.setKey(ByteString.copyFromUtf8(KEY));
+    workItem1.setWorkToken(WORK_TOKEN);
+    InputMessageBundle.Builder messageBundle = workItem1.addMessageBundlesBuilder();
+    messageBundle.setSourceComputationId(SOURCE_COMPUTATION_ID);
+
+    Coder<Long> valueCoder = BigEndianLongCoder.of();
+    addElement(messageBundle, Arrays.asList(window(-20, 10), window(-10, 20), window(0, 30)),
+        new Instant(5), valueCoder, 1L);
+    addElement(messageBundle, Arrays.asList(window(-10, 20), window(0, 30), window(10, 40)),
+        new Instant(12), valueCoder, 2L);
+    addElement(messageBundle, Arrays.asList(window(0, 30), window(10, 40), window(20, 50)),
+        new Instant(25), valueCoder, 4L);
+    // Not in all of the windows for its timestamp, so combined in each of its windows.
+    addElement(messageBundle, Arrays.asList(window(-10, 20), window(0, 30)),
+        new Instant(3), valueCoder, 8L);
+    // Too late for window(-30, 0), so combined in each of the others.
+    addElement(messageBundle, Arrays.asList(window(-30, 0), window(-20, 10), window(-10, 20)),
+        new Instant(-5), valueCoder, 16L);
+
+    runner.processElement(createValue(workItem1, valueCoder));
+
+    runner.finishBundle();
+    runner.startBundle();
+
+    WorkItem.Builder workItem2 = WorkItem.newBuilder();
+    workItem2.setKey(ByteString.copyFromUtf8(KEY));
+    workItem2.setWorkToken(WORK_TOKEN);
+    // Windows that share slices must still be output in the order of their end.
+    addTimer(workItem2, window(20, 50), new Instant(49), Timer.Type.WATERMARK);
+    addTimer(workItem2, window(10, 40), new Instant(39), Timer.Type.WATERMARK);
+    addTimer(workItem2, window(0, 30), new Instant(29), Timer.Type.WATERMARK);
+    addTimer(workItem2, window(-10, 20), new Instant(19), Timer.Type.WATERMARK);
+    addTimer(workItem2, window(-20, 10), new Instant(9), Timer.Type.WATERMARK);
+
+    runner.processElement(createValue(workItem2, valueCoder));
+
+    runner.finishBundle();
+
+    List<WindowedValue<KV<String, Long>>> result = outputManager.getOutput(outputTag);
+
+    assertEquals(5, result.size());
+    long[][] expected = {{-20, 10, 17}, {-10, 20, 27}, {0, 30, 15}, {10, 40, 6}, {20, 50, 4}};
+    for (int i = 0; i < expected.length; i++) {
+      WindowedValue<KV<String, Long>> item = result.get(i);
+      assertEquals(KEY, item.getValue().getKey());
+      assertEquals((Long) expected[i][2], item.getValue().getValue());
+      assertThat(item.getWindows(),
+          Matchers.<BoundedWindow>contains(window(expected[i][0], expected[i][1])));
+    }
+
+    assertEquals(
+        counters.getExistingCounter("merge-DroppedDueToLateness").getAggregate(),
+        new Long(1));
+  }
+
   private DoFnRunner<KeyedWorkItem<String, String>, KV<String, Iterable<String>>> makeRunner(
           TupleTag<KV<String, Iterable<String>>> outputTag,
           DoFnRunners.OutputManager outputManager,
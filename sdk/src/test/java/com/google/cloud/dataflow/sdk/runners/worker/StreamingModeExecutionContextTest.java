@@ -19,13 +19,14 @@ package com.google.cloud.dataflow.sdk.runners.worker;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 
 import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
 import com.google.cloud.dataflow.sdk.io.UnboundedSource;
 import com.google.cloud.dataflow.sdk.options.DataflowPipelineOptions;
 import com.google.cloud.dataflow.sdk.options.PipelineOptionsFactory;
 import com.google.cloud.dataflow.sdk.runners.dataflow.TestCountingSource;
-import com.google.cloud.dataflow.sdk.runners.worker.StreamingDataflowWorker.ReaderCacheEntry;
 import com.google.cloud.dataflow.sdk.runners.worker.windmill.Windmill;
 import com.google.cloud.dataflow.sdk.testing.PCollectionViewTesting;
 import com.google.cloud.dataflow.sdk.testing.PCollectionViewTesting.ConstantViewFn;
@@ -103,6 +104,48 @@ public class StreamingModeExecutionContextTest {
     assertEquals(Windmill.Timer.Type.WATERMARK, timer.getType());
   }
 
+  @Test
+  public void testStateBytesWrittenExcludesOutputs() {
+    StreamingModeExecutionContext executionContext = new StreamingModeExecutionContext("stageName",
+        null, new ConcurrentHashMap<String, String>(),
+        new WindmillStateCache().forComputation("comp"));
+
+    Windmill.WorkItemCommitRequest.Builder outputBuilder =
+        Windmill.WorkItemCommitRequest.newBuilder()
+            .setKey(ByteString.copyFromUtf8("key"))
+            .setWorkToken(17L);
+    executionContext.start(
+        Windmill.WorkItem.newBuilder()
+            .setKey(ByteString.copyFromUtf8("key"))
+            .setWorkToken(17L)
+            .build(),
+        new Instant(1000), // input watermark
+        null, // output watermark
+        null, // synchronized processing time
+        stateReader, stateFetcher, outputBuilder);
+    ExecutionContext.StepContext step =
+        executionContext.getOrCreateStepContext("step", "transform", null);
+
+    step.timerInternals().setTimer(
+        TimerData.of(new StateNamespaceForTest("key"), new Instant(5000), TimeDomain.EVENT_TIME));
+    step.timerInternals().setTimer(
+        TimerData.of(
+            new StateNamespaceForTest("key"), new Instant(6000), TimeDomain.PROCESSING_TIME));
+    outputBuilder.addOutputMessagesBuilder()
+        .setDestinationStreamId("out")
+        .addBundlesBuilder()
+        .setKey(ByteString.copyFromUtf8("key"))
+        .addMessagesBuilder()
+        .setTimestamp(0)
+        .setData(ByteString.copyFromUtf8("data"));
+    executionContext.flushState();
+
+    Windmill.WorkItemCommitRequest commit = outputBuilder.build();
+    assertEquals(2, commit.getOutputTimersCount());
+    assertEquals(commit.toBuilder().clearOutputMessages().build().getSerializedSize(),
+        executionContext.getStateBytesWritten());
+  }
+
   /**
    * Tests that the {@link SideInputReader} returned by the {@link StreamingModeExecutionContext}
    * contains the expected views when they are deserialized, as occurs on the
@@ -161,8 +204,7 @@ public class StreamingModeExecutionContextTest {
         PipelineOptionsFactory.create().as(DataflowPipelineOptions.class);
     options.setNumWorkers(5);
 
-    ConcurrentHashMap<ByteString, ReaderCacheEntry> readerCache =
-        new ConcurrentHashMap<ByteString, ReaderCacheEntry>();
+    ReaderCache.ForComputation readerCache = new ReaderCache().forComputation("comp");
     StreamingModeExecutionContext context =
         new StreamingModeExecutionContext("stageName", readerCache, /*stateNameMap=*/null,
             /*stateCache=*/null);
@@ -172,12 +214,17 @@ public class StreamingModeExecutionContextTest {
     UnboundedSource.UnboundedReader<?> reader2 =
         new TestCountingSource(Integer.MAX_VALUE).createReader(options, null);
 
-    readerCache.put(ByteString.copyFromUtf8("0000000000000001"), new ReaderCacheEntry(reader1, 1L));
-    readerCache.put(ByteString.copyFromUtf8("0000000000000002"), new ReaderCacheEntry(reader2, 2L));
+    readerCache.release(ByteString.copyFromUtf8("0000000000000001"), 1L, reader1);
+    readerCache.release(ByteString.copyFromUtf8("0000000000000002"), 2L, reader2);
 
     startContext(context, "0000000000000001", 1L);
     assertEquals(reader1, context.getCachedReader());
 
+    // The reader is not available to other work while in use.
+    startContext(context, "0000000000000001", 1L);
+    assertEquals(null, context.getCachedReader());
+
+    readerCache.release(ByteString.copyFromUtf8("0000000000000001"), 1L, reader1);
     startContext(context, "0000000000000001", 1L);
     assertEquals(reader1, context.getCachedReader());
 
@@ -187,4 +234,26 @@ public class StreamingModeExecutionContextTest {
     startContext(context, "0000000000000003", 3L);
     assertEquals(null, context.getCachedReader());
   }
+
+  @Test
+  public void testInvalidateActiveReader() throws Exception {
+    ReaderCache.ForComputation readerCache = new ReaderCache().forComputation("comp");
+    StreamingModeExecutionContext context =
+        new StreamingModeExecutionContext("stageName", readerCache, /*stateNameMap=*/null,
+            /*stateCache=*/null);
+    UnboundedSource.UnboundedReader<?> reader = mock(UnboundedSource.UnboundedReader.class);
+    readerCache.release(ByteString.copyFromUtf8("0000000000000001"), 1L, reader);
+
+    // The work item acquires the reader and then fails.
+    startContext(context, "0000000000000001", 1L);
+    context.setActiveReader(context.getCachedReader());
+    context.invalidateActiveReader();
+    verify(reader).close();
+
+    // The reader is not returned to the cache, and is only closed once.
+    startContext(context, "0000000000000001", 1L);
+    assertEquals(null, context.getCachedReader());
+    context.invalidateActiveReader();
+    verify(reader).close();
+  }
 }
@@ -17,7 +17,10 @@ package com.google.cloud.dataflow.sdk.runners.worker;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
 
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
 import com.google.cloud.dataflow.sdk.transforms.windowing.IntervalWindow;
 import com.google.cloud.dataflow.sdk.util.state.State;
 import com.google.cloud.dataflow.sdk.util.state.StateNamespace;
@@ -25,6 +28,7 @@ import com.google.cloud.dataflow.sdk.util.state.StateNamespaces;
 import com.google.cloud.dataflow.sdk.util.state.StateTag;
 import com.google.protobuf.ByteString;
 
+import org.hamcrest.Matchers;
 import org.joda.time.Instant;
 import org.junit.Before;
 import org.junit.Test;
@@ -32,6 +36,8 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Objects;
 
 /**
@@ -113,6 +119,25 @@ public class WindmillStateCacheTest {
     }
   }
 
+  private static class EncodableTestState extends TestState
+      implements WindmillStateCache.OffHeapEncodable {
+    EncodableTestState(String value) {
+      super(value);
+    }
+
+    @Override
+    public WindmillStateCache.OffHeapDecoder<TestState> encode(OutputStream out)
+        throws IOException {
+      StringUtf8Coder.of().encode(value, out, Coder.Context.OUTER);
+      return new WindmillStateCache.OffHeapDecoder<TestState>() {
+        @Override
+        public TestState decode(InputStream in) throws IOException {
+          return new EncodableTestState(StringUtf8Coder.of().decode(in, Coder.Context.OUTER));
+        }
+      };
+    }
+  }
+
   private static StateNamespace windowNamespace(long start) {
     return StateNamespaces.window(
         IntervalWindow.getCoder(), new IntervalWindow(new Instant(start), new Instant(start + 1)));
@@ -207,4 +232,71 @@ public class WindmillStateCacheTest {
     assertNull(keyCache2.get(StateNamespaces.global(), new TestStateTag("tag1")));
     assertNull(keyCache3.get(StateNamespaces.global(), new TestStateTag("tag1")));
   }
+
+  /**
+   * Verifies that entries evicted from the heap are kept in the off-heap tier.
+   */
+  @Test
+  public void testOffHeapTier() throws Exception {
+    // A heap tier too small for any entry moves every entry to the off-heap tier.
+    cache = new WindmillStateCache(1, 1 << 20);
+    keyCache = cache.forComputation(COMPUTATION).forKey(KEY, STATE_FAMILY, 0L);
+
+    keyCache.put(
+        StateNamespaces.global(), new TestStateTag("tag1"), new EncodableTestState("g1"), 2);
+    keyCache.put(StateNamespaces.global(), new TestStateTag("tag2"), new TestState("g2"), 2);
+    assertEquals(0, cache.getWeight());
+    // Evicted entries are only encoded once the work item using them commits.
+    assertEquals(0, cache.getOffHeapBytes());
+    keyCache.commit();
+    // Only the encodable state is kept, in a single block.
+    assertEquals(WindmillStateCache.OFF_HEAP_BLOCK_SIZE, cache.getOffHeapBytes());
+
+    assertEquals(new TestState("g1"),
+        keyCache.get(StateNamespaces.global(), new TestStateTag("tag1")));
+    assertNull(keyCache.get(StateNamespaces.global(), new TestStateTag("tag2")));
+    assertNull(keyCache.get(windowNamespace(0), new TestStateTag("tag1")));
+
+    keyCache = cache.forComputation(COMPUTATION).forKey(KEY, STATE_FAMILY, 1L);
+    assertNull(keyCache.get(StateNamespaces.global(), new TestStateTag("tag1")));
+    assertEquals(0, cache.getOffHeapBytes());
+  }
+
+  /**
+   * Verifies that entries evicted while their work item still uses them are not encoded.
+   */
+  @Test
+  public void testOffHeapTierSkipsEntriesInUse() throws Exception {
+    cache = new WindmillStateCache(1, 1 << 20);
+    keyCache = cache.forComputation(COMPUTATION).forKey(KEY, STATE_FAMILY, 0L);
+    WindmillStateCache.ForKey otherKeyCache = cache.forComputation(COMPUTATION).forKey(
+        ByteString.copyFromUtf8("otherKey"), STATE_FAMILY, 0L);
+
+    keyCache.put(
+        StateNamespaces.global(), new TestStateTag("tag1"), new EncodableTestState("g1"), 2);
+    otherKeyCache.commit();
+    assertEquals(0, cache.getOffHeapBytes());
+    assertNull(keyCache.get(StateNamespaces.global(), new TestStateTag("tag1")));
+  }
+
+  /**
+   * Verifies that the off-heap tier weighs the bookkeeping of its entries, and reuses its direct
+   * memory.
+   */
+  @Test
+  public void testOffHeapTierIsBounded() throws Exception {
+    long maxOffHeapBytes = 64 * WindmillStateCache.OFF_HEAP_BLOCK_SIZE;
+    cache = new WindmillStateCache(1, maxOffHeapBytes);
+    for (int i = 0; i < 1000; i++) {
+      keyCache = cache.forComputation(COMPUTATION).forKey(
+          ByteString.copyFromUtf8("key" + i), STATE_FAMILY, 0L);
+      keyCache.put(
+          StateNamespaces.global(), new TestStateTag("tag1"), new EncodableTestState("g1"), 2);
+      keyCache.commit();
+    }
+    // Without their bookkeeping, 48 entries of one block would fit in the weight of the tier.
+    assertThat(cache.getOffHeapBytes(),
+        Matchers.lessThanOrEqualTo(40L * WindmillStateCache.OFF_HEAP_BLOCK_SIZE));
+    assertEquals(maxOffHeapBytes, cache.getOffHeapAllocatedBytes());
+  }
 }
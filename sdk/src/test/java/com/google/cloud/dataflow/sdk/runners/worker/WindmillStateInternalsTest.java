@@ -646,6 +646,37 @@ public class WindmillStateInternalsTest {
     Mockito.verifyNoMoreInteractions(mockReader);
   }
 
+  @Test
+  public void testWatermarkAddCoveredByCachedHoldSkipsWrite() throws Exception {
+    StateTag<WatermarkStateInternal> addr = StateTags.watermarkStateInternal(
+        "watermark", OutputTimeFns.outputAtLatestInputTimestamp());
+    WatermarkStateInternal bag = underTest.state(NAMESPACE, addr);
+
+    when(mockReader.watermarkFuture(key(NAMESPACE, "watermark"), STATE_FAMILY))
+        .thenReturn(Futures.immediateFuture(new Instant(2000)));
+    assertThat(bag.get().read(), Matchers.equalTo(new Instant(2000)));
+
+    // The cached hold already accounts for an earlier addition.
+    bag.add(new Instant(1000));
+    Windmill.WorkItemCommitRequest.Builder commitBuilder =
+        Windmill.WorkItemCommitRequest.newBuilder();
+    underTest.persist(commitBuilder);
+    assertEquals(0, commitBuilder.getWatermarkHoldsCount());
+
+    // But not for a later one, which is combined with the cached hold without reading it again.
+    bag = underTest.state(NAMESPACE, addr);
+    bag.add(new Instant(3000));
+    assertThat(bag.get().read(), Matchers.equalTo(new Instant(3000)));
+    commitBuilder = Windmill.WorkItemCommitRequest.newBuilder();
+    underTest.persist(commitBuilder);
+    assertEquals(1, commitBuilder.getWatermarkHoldsCount());
+    assertEquals(TimeUnit.MILLISECONDS.toMicros(3000),
+        commitBuilder.getWatermarkHolds(0).getTimestamps(0));
+
+    Mockito.verify(mockReader).watermarkFuture(key(NAMESPACE, "watermark"), STATE_FAMILY);
+    Mockito.verifyNoMoreInteractions(mockReader);
+  }
+
   @Test
   public void testWatermarkClearPersist() throws Exception {
     StateTag<WatermarkStateInternal> addr = StateTags.watermarkStateInternal(
@@ -927,6 +958,42 @@ public class WindmillStateInternalsTest {
     Mockito.verifyNoMoreInteractions(mockReader);
   }
 
+  @Test
+  public void testOffHeapCachedStates() throws Exception {
+    // A heap tier too small for any entry moves every entry to the off-heap tier.
+    cache = new WindmillStateCache(1, 1 << 20);
+    underTest = new WindmillStateInternals(STATE_FAMILY, mockReader,
+        cache.forComputation("comp").forKey(ByteString.EMPTY, STATE_FAMILY, 17L),
+        readStateSupplier);
+    StateTag<ValueState<String>> valueAddr = StateTags.value("value", StringUtf8Coder.of());
+    StateTag<BagState<String>> bagAddr = StateTags.bag("bag", StringUtf8Coder.of());
+    StateTag<WatermarkStateInternal> holdAddr = StateTags.watermarkStateInternal(
+        "watermark", OutputTimeFns.outputAtEarliestInputTimestamp());
+
+    underTest.state(NAMESPACE, valueAddr).set("Hi");
+    BagState<String> bag = underTest.state(NAMESPACE, bagAddr);
+    bag.clear();
+    bag.add("hello");
+    bag.add("world");
+    WatermarkStateInternal hold = underTest.state(NAMESPACE, holdAddr);
+    hold.clear();
+    hold.add(new Instant(2000));
+    underTest.persist(Windmill.WorkItemCommitRequest.newBuilder());
+
+    assertEquals(0, cache.getWeight());
+    assertTrue(cache.getOffHeapBytes() > 0);
+
+    underTest = new WindmillStateInternals(STATE_FAMILY, mockReader,
+        cache.forComputation("comp").forKey(ByteString.EMPTY, STATE_FAMILY, 17L),
+        readStateSupplier);
+    assertEquals("Hi", underTest.state(NAMESPACE, valueAddr).get().read());
+    assertThat(underTest.state(NAMESPACE, bagAddr).get().read(),
+        Matchers.containsInAnyOrder("hello", "world"));
+    assertEquals(new Instant(2000), underTest.state(NAMESPACE, holdAddr).get().read());
+
+    Mockito.verifyNoMoreInteractions(mockReader);
+  }
+
   @Test
   public void testSystemTags() throws Exception {
     CombiningValueState<Integer, Integer> value =
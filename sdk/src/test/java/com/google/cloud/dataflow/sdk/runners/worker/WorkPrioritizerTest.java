@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.runners.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.google.cloud.dataflow.sdk.options.DataflowWorkerHarnessOptions;
+import com.google.cloud.dataflow.sdk.options.DataflowWorkerHarnessOptions.StreamingWorkPriority;
+import com.google.cloud.dataflow.sdk.options.PipelineOptionsFactory;
+import com.google.cloud.dataflow.sdk.runners.worker.windmill.Windmill;
+import com.google.cloud.dataflow.sdk.testing.ResetDateTimeProvider;
+import com.google.protobuf.ByteString;
+
+import org.joda.time.Instant;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Tests for {@link WorkPrioritizer}.
+ */
+@RunWith(JUnit4.class)
+public class WorkPrioritizerTest {
+  private static final long NOW = 1000000L;
+  private static final long MAX_DELAY = 10000L;
+
+  @Rule public ResetDateTimeProvider resetDateTimeProvider = new ResetDateTimeProvider();
+
+  @Before
+  public void setUp() {
+    resetDateTimeProvider.setDateTimeFixed(NOW);
+  }
+
+  private static StreamingDataflowWorker.Work work(
+      String computation, @Nullable Instant inputWatermark,
+      long... messageTimestampsMillis) {
+    Windmill.InputMessageBundle.Builder bundle =
+        Windmill.InputMessageBundle.newBuilder().setSourceComputationId("upstream");
+    for (long timestamp : messageTimestampsMillis) {
+      bundle.addMessages(Windmill.Message.newBuilder()
+          .setTimestamp(TimeUnit.MILLISECONDS.toMicros(timestamp))
+          .setData(ByteString.EMPTY));
+    }
+    Windmill.WorkItem workItem = Windmill.WorkItem.newBuilder()
+        .setKey(ByteString.copyFromUtf8("key"))
+        .setWorkToken(1)
+        .addMessageBundles(bundle)
+        .build();
+    return new StreamingDataflowWorker.Work(computation, workItem, inputWatermark) {
+      @Override
+      public void run() {}
+    };
+  }
+
+  private static final Runnable OTHER_TASK = new Runnable() {
+    @Override
+    public void run() {}
+  };
+
+  @Test
+  public void testFifoHasNoPrioritizer() {
+    DataflowWorkerHarnessOptions options =
+        PipelineOptionsFactory.as(DataflowWorkerHarnessOptions.class);
+    assertNull(WorkPrioritizer.fromOptions(options));
+    options.setStreamingWorkPriority(StreamingWorkPriority.FAIR);
+    assertNotNull(WorkPrioritizer.fromOptions(options));
+  }
+
+  @Test
+  public void testOldestInputFirst() {
+    WorkPrioritizer prioritizer =
+        new WorkPrioritizer(StreamingWorkPriority.OLDEST_INPUT_FIRST, MAX_DELAY);
+    assertEquals(NOW + MAX_DELAY, prioritizer.priority(OTHER_TASK));
+    assertEquals(NOW + MAX_DELAY, prioritizer.priority(work("c", null, NOW + 5)));
+    assertEquals(NOW + MAX_DELAY - 300, prioritizer.priority(work("c", null, NOW - 300)));
+    assertEquals(NOW + MAX_DELAY - 700,
+        prioritizer.priority(work("c", null, NOW - 300, NOW - 700)));
+    // Urgency is bounded by the maximum delay, so older work cannot starve newer work forever.
+    assertEquals(NOW, prioritizer.priority(work("c", null, NOW - 5 * MAX_DELAY)));
+  }
+
+  @Test
+  public void testWatermarkLag() {
+    WorkPrioritizer prioritizer =
+        new WorkPrioritizer(StreamingWorkPriority.WATERMARK_LAG, MAX_DELAY);
+    assertEquals(NOW + MAX_DELAY, prioritizer.priority(work("c", null, NOW - 300)));
+    assertEquals(NOW + MAX_DELAY - 2000,
+        prioritizer.priority(work("c", new Instant(NOW - 2000), NOW)));
+    assertEquals(NOW, prioritizer.priority(work("c", new Instant(0), NOW)));
+  }
+
+  @Test
+  public void testFair() {
+    WorkPrioritizer prioritizer = new WorkPrioritizer(StreamingWorkPriority.FAIR, MAX_DELAY);
+    long share = WorkPrioritizer.FAIR_SHARE_MILLIS;
+    assertEquals(NOW + share, prioritizer.priority(work("a", null)));
+    assertEquals(NOW + 2 * share, prioritizer.priority(work("a", null)));
+    assertEquals(NOW + 3 * share, prioritizer.priority(work("a", null)));
+    // Another computation is interleaved with the burst for the first.
+    assertEquals(NOW + share, prioritizer.priority(work("b", null)));
+    for (int i = 0; i < 2 * MAX_DELAY / share; i++) {
+      prioritizer.priority(work("a", null));
+    }
+    assertEquals(NOW + MAX_DELAY, prioritizer.priority(work("a", null)));
+
+    // Once time catches up the computation is no longer penalized.
+    resetDateTimeProvider.setDateTimeFixed(NOW + 2 * MAX_DELAY);
+    assertEquals(NOW + 2 * MAX_DELAY + share, prioritizer.priority(work("a", null)));
+  }
+
+  @Test
+  public void testOldestInputTimestampIncludesWatermarkTimers() {
+    Windmill.WorkItem workItem = Windmill.WorkItem.newBuilder()
+        .setKey(ByteString.copyFromUtf8("key"))
+        .setWorkToken(1)
+        .setTimers(Windmill.TimerBundle.newBuilder()
+            .addTimers(Windmill.Timer.newBuilder()
+                .setTag(ByteString.copyFromUtf8("a"))
+                .setTimestamp(TimeUnit.MILLISECONDS.toMicros(50))
+                .setType(Windmill.Timer.Type.WATERMARK))
+            .addTimers(Windmill.Timer.newBuilder()
+                .setTag(ByteString.copyFromUtf8("b"))
+                .setTimestamp(TimeUnit.MILLISECONDS.toMicros(10))
+                .setType(Windmill.Timer.Type.REALTIME)))
+        .build();
+    assertEquals(new Instant(50), WorkPrioritizer.oldestInputTimestamp(workItem));
+    assertNull(WorkPrioritizer.oldestInputTimestamp(
+        Windmill.WorkItem.newBuilder().setKey(ByteString.EMPTY).setWorkToken(1).build()));
+  }
+}
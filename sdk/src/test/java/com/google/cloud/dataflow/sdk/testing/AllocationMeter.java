@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.dataflow.sdk.testing;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the bytes allocated on the heap by the current thread while running a piece of code,
+ * for micro-benchmark tests that compare the allocation of two ways of doing the same work.
+ *
+ * <p>This relies on {@code com.sun.management.ThreadMXBean}, so tests should be skipped when
+ * {@link #isSupported} is false.
+ */
+public class AllocationMeter {
+
+  /** A piece of code to measure. */
+  public interface Body {
+    void run() throws Exception;
+  }
+
+  // The number of times the body is run before measuring it, so that it is compiled first.
+  private static final int WARM_UP_RUNS = 20000;
+
+  // The number of times the runs are measured. The JVM only ever adds to the allocation of the
+  // body, such as when it replaces a partly used allocation buffer, so the least is reported.
+  private static final int TRIALS = 5;
+
+  /**
+   * Returns whether the allocation of the current thread can be measured.
+   */
+  public static boolean isSupported() {
+    Object bean = ManagementFactory.getThreadMXBean();
+    return bean instanceof com.sun.management.ThreadMXBean
+        && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+        && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemoryEnabled();
+  }
+
+  /**
+   * Runs {@code body} the given number of times, after warming it up, and returns the average
+   * number of bytes it allocated per run, in the trial that allocated the least.
+   *
+   * <p>The body should keep what it creates reachable, such as by storing it in a field, so that
+   * the JIT does not eliminate allocations of one variant and not the other. The result may still
+   * include the unused ends of the thread-local allocation buffers the JVM replaced in the trial.
+   */
+  public static double bytesPerRun(int runs, Body body) throws Exception {
+    com.sun.management.ThreadMXBean bean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    for (int i = 0; i < WARM_UP_RUNS; i++) {
+      body.run();
+    }
+    long threadId = Thread.currentThread().getId();
+    long least = Long.MAX_VALUE;
+    for (int trial = 0; trial < TRIALS; trial++) {
+      long before = bean.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < runs; i++) {
+        body.run();
+      }
+      least = Math.min(least, bean.getThreadAllocatedBytes(threadId) - before);
+    }
+    return (double) least / runs;
+  }
+}
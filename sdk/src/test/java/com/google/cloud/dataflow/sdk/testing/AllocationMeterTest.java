@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.dataflow.sdk.testing;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link AllocationMeter}. */
+@RunWith(JUnit4.class)
+public class AllocationMeterTest {
+  private Object sink;
+
+  @Test
+  public void testMeasuresAllocation() throws Exception {
+    assumeTrue(AllocationMeter.isSupported());
+    double empty = AllocationMeter.bytesPerRun(10000, new AllocationMeter.Body() {
+      @Override
+      public void run() {
+        sink = null;
+      }
+    });
+    double array = AllocationMeter.bytesPerRun(10000, new AllocationMeter.Body() {
+      @Override
+      public void run() {
+        sink = new long[128];
+      }
+    });
+    assertEquals(String.valueOf(empty), 0, empty, 16);
+    // 128 longs and the array header, plus up to a fifth for the unused ends of the thread's
+    // allocation buffers, which are counted as allocated when they are replaced.
+    assertThat(array, greaterThanOrEqualTo(1040.0));
+    assertThat(array, lessThan(1248.0));
+  }
+}
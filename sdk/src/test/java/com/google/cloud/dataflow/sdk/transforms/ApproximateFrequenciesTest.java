@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.transforms;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.TestUtils;
+import com.google.cloud.dataflow.sdk.coders.BigEndianIntegerCoder;
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.cloud.dataflow.sdk.testing.DataflowAssert;
+import com.google.cloud.dataflow.sdk.testing.RunnableOnService;
+import com.google.cloud.dataflow.sdk.testing.TestPipeline;
+import com.google.cloud.dataflow.sdk.transforms.ApproximateFrequencies.CountMinSketch;
+import com.google.cloud.dataflow.sdk.transforms.ApproximateFrequencies.CountMinSketchCombineFn;
+import com.google.cloud.dataflow.sdk.transforms.ApproximateFrequencies.HeavyHittersCombineFn;
+import com.google.cloud.dataflow.sdk.transforms.ApproximateFrequencies.SpaceSaving;
+import com.google.cloud.dataflow.sdk.transforms.Combine.CombineFn;
+import com.google.cloud.dataflow.sdk.util.CoderUtils;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for {@link ApproximateFrequencies}.
+ */
+@RunWith(JUnit4.class)
+public class ApproximateFrequenciesTest {
+
+  @Test
+  @Category(RunnableOnService.class)
+  public void testCountMinGlobally() {
+    Pipeline p = TestPipeline.create();
+
+    PCollection<String> input = p.apply(
+        Create.of(Arrays.asList("a", "b", "b", "c", "c", "c")).withCoder(StringUtf8Coder.of()));
+    PCollection<CountMinSketch> sketch =
+        input.apply(ApproximateFrequencies.<String>countMinGlobally(0.01, 0.99));
+
+    DataflowAssert.thatSingleton(sketch).satisfies(new CheckCounts());
+
+    p.run();
+  }
+
+  private static class CheckCounts implements SerializableFunction<CountMinSketch, Void> {
+    @Override
+    public Void apply(CountMinSketch sketch) {
+      assertEquals(6, sketch.getTotalCount());
+      assertEquals(1, sketch.estimateCount("a", StringUtf8Coder.of()));
+      assertEquals(2, sketch.estimateCount("b", StringUtf8Coder.of()));
+      assertEquals(3, sketch.estimateCount("c", StringUtf8Coder.of()));
+      assertEquals(0, sketch.estimateCount("d", StringUtf8Coder.of()));
+      return null;
+    }
+  }
+
+  @Test
+  public void testCountMinErrorBound() {
+    double epsilon = 0.001;
+    CountMinSketchCombineFn<Integer> fn =
+        CountMinSketchCombineFn.create(epsilon, 0.99, VarIntCoder.of());
+    assertEquals(2719, fn.createAccumulator().getWidth());
+    assertEquals(5, fn.createAccumulator().getDepth());
+
+    List<Integer> input = zipfian(100000, 5000, new Random(0));
+    int[] trueCounts = new int[5000];
+    for (int value : input) {
+      trueCounts[value]++;
+    }
+
+    CountMinSketch sketch = shardedApply(fn, input, 10);
+    assertEquals(input.size(), sketch.getTotalCount());
+    int numOverBound = 0;
+    for (int value = 0; value < trueCounts.length; value++) {
+      long estimate = sketch.estimateCount(value, VarIntCoder.of());
+      assertThat(estimate, greaterThanOrEqualTo((long) trueCounts[value]));
+      if (estimate > trueCounts[value] + epsilon * input.size()) {
+        numOverBound++;
+      }
+    }
+    assertThat(numOverBound, lessThanOrEqualTo(trueCounts.length / 100));
+  }
+
+  @Test
+  public void testCountMinCoder() throws Throwable {
+    CountMinSketchCombineFn<Integer> fn =
+        CountMinSketchCombineFn.create(0.01, 0.9, VarIntCoder.of());
+    CountMinSketch sketch = fn.apply(zipfian(1000, 100, new Random(0)));
+    Coder<CountMinSketch> coder = fn.getAccumulatorCoder(null, VarIntCoder.of());
+    coder.verifyDeterministic();
+    CountMinSketch decoded = roundTrip(coder, sketch);
+    assertEquals(sketch.getTotalCount(), decoded.getTotalCount());
+    for (int value = 0; value < 100; value++) {
+      assertEquals(sketch.estimateCount(value, VarIntCoder.of()),
+          decoded.estimateCount(value, VarIntCoder.of()));
+    }
+  }
+
+  @Test
+  public void testCountMinMergeDifferentShapes() {
+    try {
+      new CountMinSketch(2, 10).merge(new CountMinSketch(3, 10));
+      fail("Merged sketches of different shapes");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().startsWith("Cannot merge CountMinSketches"));
+    }
+  }
+
+  @Test
+  public void testHeavyHittersExactWithinCapacity() {
+    List<Integer> input = new ArrayList<>();
+    for (int value = 1; value <= 10; value++) {
+      for (int i = 0; i < value; i++) {
+        input.add(value);
+      }
+    }
+    TestUtils.checkCombineFn(
+        new HeavyHittersCombineFn<>(3, 10, BigEndianIntegerCoder.of()),
+        input,
+        Arrays.asList(KV.of(10, 10L), KV.of(9, 9L), KV.of(8, 8L)));
+  }
+
+  @Test
+  public void testHeavyHittersErrorBound() {
+    int capacity = 100;
+    List<Integer> input = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      input.add(-1);
+    }
+    for (int i = 0; i < 500; i++) {
+      input.add(-2);
+    }
+    for (int i = 0; i < 300; i++) {
+      input.add(-3);
+    }
+    for (int i = 0; i < 2000; i++) {
+      input.add(i);
+    }
+    Collections.shuffle(input, new Random(0));
+    long maxError = input.size() / capacity;
+
+    HeavyHittersCombineFn<Integer> fn =
+        new HeavyHittersCombineFn<>(3, capacity, BigEndianIntegerCoder.of());
+    for (int numShards : new int[] {1, 7, 20}) {
+      List<KV<Integer, Long>> hitters = shardedApply(fn, input, numShards);
+      assertEquals(3, hitters.size());
+      long[] trueCounts = {1000, 500, 300};
+      for (int i = 0; i < 3; i++) {
+        assertEquals(-(i + 1), (int) hitters.get(i).getKey());
+        assertThat(hitters.get(i).getValue(), greaterThanOrEqualTo(trueCounts[i]));
+        assertThat(hitters.get(i).getValue(), lessThanOrEqualTo(trueCounts[i] + maxError));
+      }
+    }
+  }
+
+  @Test
+  public void testHeavyHittersPerKey() {
+    Pipeline p = TestPipeline.create();
+
+    PCollection<KV<String, String>> input = p.apply(Create.of(
+        KV.of("k1", "a"), KV.of("k1", "a"), KV.of("k1", "b"),
+        KV.of("k2", "c"), KV.of("k2", "d"), KV.of("k2", "d"), KV.of("k2", "d")));
+    PCollection<KV<String, List<KV<String, Long>>>> hitters =
+        input.apply(ApproximateFrequencies.<String, String>heavyHittersPerKey(1, 5));
+
+    DataflowAssert.that(hitters).containsInAnyOrder(
+        KV.of("k1", Arrays.asList(KV.of("a", 2L))),
+        KV.of("k2", Arrays.asList(KV.of("d", 3L))));
+
+    p.run();
+  }
+
+  @Test
+  public void testSpaceSavingCoder() throws Throwable {
+    HeavyHittersCombineFn<String> fn =
+        new HeavyHittersCombineFn<>(5, 20, StringUtf8Coder.of());
+    SpaceSaving<String> summary = fn.createAccumulator();
+    for (int value : zipfian(1000, 100, new Random(0))) {
+      summary = fn.addInput(summary, "value" + value);
+    }
+    Coder<SpaceSaving<String>> coder = fn.getAccumulatorCoder(null, StringUtf8Coder.of());
+    coder.verifyDeterministic();
+    SpaceSaving<String> decoded = roundTrip(coder, summary);
+    assertEquals(summary.getTop(20), decoded.getTop(20));
+    assertEquals(summary.getTopErrors(20), decoded.getTopErrors(20));
+
+    // The decoded summary goes on counting the elements it tracks. Elements with equal counts
+    // may be ordered differently.
+    for (int i = 0; i < 10; i++) {
+      summary = fn.addInput(summary, "value" + i);
+      decoded = fn.addInput(decoded, "value" + i);
+    }
+    assertEquals(new HashSet<>(summary.getTop(20)), new HashSet<>(decoded.getTop(20)));
+  }
+
+  @Test
+  public void testInvalidArguments() {
+    try {
+      ApproximateFrequencies.heavyHittersGlobally(10, 5);
+      fail("Accepted a capacity smaller than the number of heavy hitters");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().startsWith("ApproximateFrequencies needs at least one"));
+    }
+    try {
+      ApproximateFrequencies.countMinGlobally(0.01, 1.0);
+      fail("Accepted a confidence of 1");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().startsWith("ApproximateFrequencies needs an epsilon"));
+    }
+  }
+
+  /**
+   * Returns {@code size} values in {@code [0, numValues)} drawn with frequencies
+   * proportional to {@code 1 / (value + 1)}.
+   */
+  private static List<Integer> zipfian(int size, int numValues, Random random) {
+    double[] cumulative = new double[numValues];
+    double total = 0;
+    for (int value = 0; value < numValues; value++) {
+      total += 1.0 / (value + 1);
+      cumulative[value] = total;
+    }
+    List<Integer> values = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      int value = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+      values.add(Math.min(value < 0 ? -value - 1 : value, numValues - 1));
+    }
+    return values;
+  }
+
+  private static <InputT, AccumT, OutputT> OutputT shardedApply(
+      CombineFn<InputT, AccumT, OutputT> fn, List<InputT> values, int numShards) {
+    List<AccumT> accumulators = new ArrayList<>();
+    for (int shard = 0; shard < numShards; shard++) {
+      AccumT accumulator = fn.createAccumulator();
+      for (int i = shard; i < values.size(); i += numShards) {
+        accumulator = fn.addInput(accumulator, values.get(i));
+      }
+      accumulators.add(accumulator);
+    }
+    return fn.extractOutput(fn.mergeAccumulators(accumulators));
+  }
+
+  private static <T> T roundTrip(Coder<T> coder, T value) throws Exception {
+    return CoderUtils.decodeFromByteArray(coder, CoderUtils.encodeToByteArray(coder, value));
+  }
+}
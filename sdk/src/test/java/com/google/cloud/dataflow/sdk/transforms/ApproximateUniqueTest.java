@@ -16,16 +16,26 @@
 
 package com.google.cloud.dataflow.sdk.transforms;
 
+import static org.hamcrest.Matchers.lessThan;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.cloud.dataflow.sdk.Pipeline;
 import com.google.cloud.dataflow.sdk.TestUtils;
+import com.google.cloud.dataflow.sdk.coders.BigEndianIntegerCoder;
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.VarLongCoder;
 import com.google.cloud.dataflow.sdk.testing.DataflowAssert;
 import com.google.cloud.dataflow.sdk.testing.RunnableOnService;
 import com.google.cloud.dataflow.sdk.testing.TestPipeline;
+import com.google.cloud.dataflow.sdk.transforms.ApproximateUnique.ApproximateUniqueCombineFn;
+import com.google.cloud.dataflow.sdk.transforms.ApproximateUnique.HyperLogLogCombineFn;
+import com.google.cloud.dataflow.sdk.transforms.ApproximateUnique.HyperLogLogCombineFn.HyperLogLog;
 import com.google.cloud.dataflow.sdk.transforms.Combine.CombineFn;
+import com.google.cloud.dataflow.sdk.util.CoderUtils;
 import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.cloud.dataflow.sdk.values.PCollection;
 import com.google.cloud.dataflow.sdk.values.PCollectionView;
@@ -196,6 +206,151 @@ public class ApproximateUniqueTest implements Serializable {
     assertEquals("ApproximateUnique.Globally", ApproximateUnique.<Integer>globally(16).getName());
   }
 
+  @Test
+  public void testEstimationErrorToPrecision() {
+    assertEquals(18, ApproximateUnique.precisionFromEstimationError(0.0025));
+    assertEquals(14, ApproximateUnique.precisionFromEstimationError(0.01));
+    assertEquals(12, ApproximateUnique.precisionFromEstimationError(0.02));
+    assertEquals(9, ApproximateUnique.precisionFromEstimationError(0.05));
+    assertEquals(4, ApproximateUnique.precisionFromEstimationError(0.5));
+  }
+
+  @Test
+  @Category(RunnableOnService.class)
+  public void testHyperLogLogWithSmallInput() {
+    Pipeline p = TestPipeline.create();
+
+    PCollection<Integer> input = p.apply(
+        Create.of(Arrays.asList(1, 2, 3, 3)));
+
+    PCollection<Long> estimate = input
+        .apply(ApproximateUnique.<Integer>hyperLogLogGlobally(12));
+
+    DataflowAssert.thatSingleton(estimate).isEqualTo(3L);
+
+    p.run();
+  }
+
+  @Test
+  public void testHyperLogLogPerKey() {
+    List<KV<Long, Long>> elements = Lists.newArrayList();
+    for (long uniqueCount : ImmutableList.of(20L, 50L, 100L)) {
+      for (long value = 0; value < 1000; value++) {
+        elements.add(KV.of(uniqueCount, value % uniqueCount));
+      }
+    }
+
+    Pipeline p = TestPipeline.create();
+    PCollection<KV<Long, Long>> input = p.apply(Create.of(elements));
+    PCollection<KV<Long, Long>> counts =
+        input.apply(ApproximateUnique.<Long, Long>hyperLogLogPerKey(12));
+
+    DataflowAssert.that(counts).containsInAnyOrder(
+        KV.of(20L, 20L), KV.of(50L, 50L), KV.of(100L, 100L));
+
+    p.run();
+  }
+
+  @Test
+  public void testHyperLogLogAccuracy() throws Exception {
+    HyperLogLogCombineFn<Long> fn = new HyperLogLogCombineFn<>(14, VarLongCoder.of());
+    HyperLogLog sketch = fn.createAccumulator();
+    long added = 0;
+    for (long uniqueCount : ImmutableList.of(10L, 1000L, 10000L, 100000L, 1000000L)) {
+      for (; added < uniqueCount; added++) {
+        sketch = fn.addInput(sketch, added);
+        // Duplicates do not change the estimate.
+        sketch = fn.addInput(sketch, added / 2);
+      }
+      // 0.8% standard error, within 4 standard deviations.
+      assertEquals(uniqueCount, (double) fn.extractOutput(sketch), uniqueCount * 0.033);
+      assertEquals(uniqueCount < 4096, sketch.isSparse());
+    }
+  }
+
+  @Test
+  public void testHyperLogLogIndependentOfSharding() {
+    HyperLogLogCombineFn<Integer> fn =
+        new HyperLogLogCombineFn<>(10, BigEndianIntegerCoder.of());
+    for (int size : new int[] {100, 1000}) {
+      List<Integer> input = new ArrayList<>();
+      for (int i = 0; i < size; i++) {
+        input.add(i % (size / 2));
+      }
+      TestUtils.checkCombineFn(fn, input, fn.apply(input));
+    }
+  }
+
+  @Test
+  public void testHyperLogLogCoder() throws Exception {
+    HyperLogLogCombineFn<Long> fn = new HyperLogLogCombineFn<>(14, VarLongCoder.of());
+    Coder<HyperLogLog> coder = fn.getAccumulatorCoder(null, VarLongCoder.of());
+    HyperLogLog sketch = fn.createAccumulator();
+    assertEquals(fn.extractOutput(sketch), fn.extractOutput(roundTrip(coder, sketch)));
+
+    for (long i = 0; i < 100; i++) {
+      sketch = fn.addInput(sketch, i);
+    }
+    HyperLogLog decoded = roundTrip(coder, sketch);
+    assertTrue(decoded.isSparse());
+    assertEquals(fn.extractOutput(sketch), fn.extractOutput(decoded));
+    assertThat(CoderUtils.encodeToByteArray(coder, sketch).length, lessThan(100 * 5));
+
+    for (long i = 100; i < 100000; i++) {
+      sketch = fn.addInput(sketch, i);
+      decoded = fn.addInput(decoded, i);
+    }
+    assertFalse(decoded.isSparse());
+    assertEquals(fn.extractOutput(sketch), fn.extractOutput(decoded));
+    assertEquals(fn.extractOutput(sketch), fn.extractOutput(roundTrip(coder, decoded)));
+  }
+
+  /**
+   * Compares the encoded accumulator size with that of {@link ApproximateUniqueCombineFn} at
+   * the same estimation error.
+   */
+  @Test
+  public void testHyperLogLogAccumulatorSmallerThanSample() throws Exception {
+    HyperLogLogCombineFn<Long> hllFn = new HyperLogLogCombineFn<>(
+        ApproximateUnique.precisionFromEstimationError(0.01), VarLongCoder.of());
+    ApproximateUniqueCombineFn<Long> sampleFn = new ApproximateUniqueCombineFn<>(
+        ApproximateUnique.sampleSizeFromEstimationError(0.01), VarLongCoder.of());
+    HyperLogLog sketch = hllFn.createAccumulator();
+    ApproximateUniqueCombineFn.LargestUnique sample = sampleFn.createAccumulator();
+    for (long i = 0; i < 100000; i++) {
+      sketch = hllFn.addInput(sketch, i);
+      sample = sampleFn.addInput(sample, i);
+    }
+    int hllBytes = CoderUtils.encodeToByteArray(
+        hllFn.getAccumulatorCoder(null, VarLongCoder.of()), sketch).length;
+    int sampleBytes = CoderUtils.encodeToByteArray(
+        sampleFn.getAccumulatorCoder(null, VarLongCoder.of()), sample).length;
+    assertThat(hllBytes * 10, lessThan(sampleBytes));
+  }
+
+  @Test
+  public void testHyperLogLogMergeDifferentPrecisions() {
+    HyperLogLog sketch = new HyperLogLog(10);
+    try {
+      sketch.merge(new HyperLogLog(12));
+      fail("Merged sketches of different precisions");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().startsWith("Cannot merge HyperLogLog sketches"));
+    }
+  }
+
+  @Test
+  public void testHyperLogLogGetName() {
+    assertEquals("ApproximateUnique.HyperLogLogPerKey",
+        ApproximateUnique.<Long, Long>hyperLogLogPerKey(12).getName());
+    assertEquals("ApproximateUnique.HyperLogLogGlobally",
+        ApproximateUnique.<Integer>hyperLogLogGlobally(12).getName());
+  }
+
+  private static <T> T roundTrip(Coder<T> coder, T value) throws Exception {
+    return CoderUtils.decodeFromByteArray(coder, CoderUtils.encodeToByteArray(coder, value));
+  }
+
   /**
    * Applies {@code ApproximateUnique(sampleSize)} verifying that the estimation
    * error falls within the maximum allowed error of {@code 2/sqrt(sampleSize)}.
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.transforms;
+
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.cloud.dataflow.sdk.testing.DataflowAssert;
+import com.google.cloud.dataflow.sdk.testing.RunnableOnService;
+import com.google.cloud.dataflow.sdk.testing.TestPipeline;
+import com.google.cloud.dataflow.sdk.transforms.BatchElements.BatchElementsFn;
+import com.google.cloud.dataflow.sdk.transforms.BatchElements.BatchSizeEstimator;
+import com.google.cloud.dataflow.sdk.transforms.windowing.FixedWindows;
+import com.google.cloud.dataflow.sdk.transforms.windowing.Window;
+import com.google.cloud.dataflow.sdk.util.CoderUtils;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link BatchElements}.
+ */
+@RunWith(JUnit4.class)
+public class BatchElementsTest {
+
+  @Test
+  @Category(RunnableOnService.class)
+  public void testBatchElements() {
+    Pipeline p = TestPipeline.create();
+
+    List<Integer> input = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      input.add(i);
+    }
+    PCollection<List<Integer>> batches = p
+        .apply(Create.of(input).withCoder(VarIntCoder.of()))
+        .apply(BatchElements.<Integer>create().withMaxBatchSize(10));
+
+    DataflowAssert.that(batches).satisfies(new CheckBatches(100, 10));
+
+    p.run();
+  }
+
+  /**
+   * Checks that the batches hold {@code 0, ..., numElements - 1} exactly once, in batches of at
+   * most {@code maxBatchSize}.
+   */
+  private static class CheckBatches implements SerializableFunction<Iterable<List<Integer>>, Void> {
+    private final int numElements;
+    private final int maxBatchSize;
+
+    CheckBatches(int numElements, int maxBatchSize) {
+      this.numElements = numElements;
+      this.maxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public Void apply(Iterable<List<Integer>> batches) {
+      List<Integer> elements = new ArrayList<>();
+      for (List<Integer> batch : batches) {
+        assertThat(batch.size(), lessThanOrEqualTo(maxBatchSize));
+        elements.addAll(batch);
+      }
+      Collections.sort(elements);
+      assertEquals(numElements, elements.size());
+      for (int i = 0; i < numElements; i++) {
+        assertEquals(i, (int) elements.get(i));
+      }
+      return null;
+    }
+  }
+
+  @Test
+  @Category(RunnableOnService.class)
+  public void testBatchElementsPerWindow() {
+    Pipeline p = TestPipeline.create();
+
+    List<Integer> input = new ArrayList<>();
+    List<Long> timestamps = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      input.add(i);
+      timestamps.add(i * 1000L);
+    }
+    PCollection<List<Integer>> batches = p
+        .apply(Create.timestamped(input, timestamps).withCoder(VarIntCoder.of()))
+        .apply(Window.<Integer>into(FixedWindows.of(Duration.standardSeconds(10))))
+        .apply(BatchElements.<Integer>create().withMinBatchSize(1000));
+
+    DataflowAssert.that(batches).satisfies(new CheckWindows());
+
+    p.run();
+  }
+
+  /**
+   * Checks that each batch only has elements of a single ten-second window.
+   */
+  private static class CheckWindows implements SerializableFunction<Iterable<List<Integer>>, Void> {
+    @Override
+    public Void apply(Iterable<List<Integer>> batches) {
+      int numElements = 0;
+      for (List<Integer> batch : batches) {
+        for (int element : batch) {
+          assertEquals(batch.get(0) / 10, element / 10);
+        }
+        numElements += batch.size();
+      }
+      assertEquals(100, numElements);
+      return null;
+    }
+  }
+
+  @Test
+  public void testMaxBatchBytes() throws Exception {
+    List<String> input = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      input.add("element" + i);
+    }
+    input.add(new String(new char[100]));
+    // A varint length and "elementNN" take 10 bytes, so at most 3 of them fit in 32 bytes.
+    BatchElementsFn<String> fn = new BatchElementsFn<>(
+        StringUtf8Coder.of(), 1000, 1000, 32, -1, 1000000000L);
+    DoFnTester<String, List<String>> tester = DoFnTester.of(fn);
+
+    List<String> elements = new ArrayList<>();
+    for (List<String> batch : tester.processBatch(input)) {
+      long bytes = 0;
+      for (String element : batch) {
+        bytes += CoderUtils.encodeToByteArray(StringUtf8Coder.of(), element).length + 1;
+      }
+      assertTrue(batch.size() == 1 || bytes <= 32);
+      elements.addAll(batch);
+    }
+    assertEquals(input, elements);
+  }
+
+  @Test
+  public void testZeroBufferingDuration() {
+    BatchElementsFn<Integer> fn = new BatchElementsFn<>(VarIntCoder.of(), 10, 10, 1000, 0, 1);
+    DoFnTester<Integer, List<Integer>> tester = DoFnTester.of(fn);
+
+    assertEquals(
+        Arrays.asList(Arrays.asList(1), Arrays.asList(2), Arrays.asList(3)),
+        tester.processBatch(1, 2, 3));
+    assertEquals(3L, (long) tester.getAggregatorValue(fn.batches));
+    assertEquals(1L, (long) tester.getAggregatorValue(fn.maxBatchSizeSeen));
+  }
+
+  @Test
+  public void testBatchSizeAggregators() {
+    BatchElementsFn<Integer> fn =
+        new BatchElementsFn<>(VarIntCoder.of(), 4, 4, Long.MAX_VALUE, -1, 1);
+    DoFnTester<Integer, List<Integer>> tester = DoFnTester.of(fn);
+
+    assertEquals(
+        Arrays.asList(Arrays.asList(1, 2, 3, 4), Arrays.asList(5, 6)),
+        tester.processBatch(1, 2, 3, 4, 5, 6));
+    assertEquals(2L, (long) tester.getAggregatorValue(fn.batches));
+    assertEquals(6L, (long) tester.getAggregatorValue(fn.batchedElements));
+    assertEquals(2L, (long) tester.getAggregatorValue(fn.minBatchSizeSeen));
+    assertEquals(4L, (long) tester.getAggregatorValue(fn.maxBatchSizeSeen));
+  }
+
+  @Test
+  public void testBatchSizeEstimator() {
+    // Target batches of 100ms.
+    BatchSizeEstimator estimator = new BatchSizeEstimator(1, 1000, 100000000L);
+    assertEquals(1, estimator.getBatchSize());
+
+    // At 1ms per element, the size doubles up to 100 and stays there.
+    for (int i = 0; i < 20; i++) {
+      estimator.update(estimator.getBatchSize(), estimator.getBatchSize() * 1000000L);
+    }
+    assertEquals(100, estimator.getBatchSize());
+
+    // Once elements slow down to 10ms, the size shrinks to about 10.
+    for (int i = 0; i < 20; i++) {
+      estimator.update(estimator.getBatchSize(), estimator.getBatchSize() * 10000000L);
+    }
+    assertEquals(10, estimator.getBatchSize());
+
+    // Very cheap batches stop at the maximum.
+    for (int i = 0; i < 20; i++) {
+      estimator.update(estimator.getBatchSize(), 1);
+    }
+    assertEquals(1000, estimator.getBatchSize());
+  }
+
+  @Test
+  public void testInvalidArguments() {
+    try {
+      BatchElements.create().withMinBatchSize(0);
+      fail("Accepted a minimum batch size of 0");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().startsWith("BatchElements needs a positive minimum"));
+    }
+    try {
+      BatchElements.create().withTargetBatchDuration(Duration.ZERO);
+      fail("Accepted an empty target batch duration");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().startsWith("BatchElements needs a positive target"));
+    }
+  }
+}
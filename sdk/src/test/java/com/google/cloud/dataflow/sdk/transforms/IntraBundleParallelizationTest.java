@@ -19,16 +19,22 @@ package com.google.cloud.dataflow.sdk.transforms;
 import static com.google.cloud.dataflow.sdk.testing.SystemNanoTimeSleeper.sleepMillis;
 import static org.hamcrest.Matchers.both;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
 import com.google.cloud.dataflow.sdk.Pipeline;
 import com.google.cloud.dataflow.sdk.testing.TestPipeline;
+import com.google.cloud.dataflow.sdk.transforms.IntraBundleParallelization.AsyncDoFn;
+import com.google.cloud.dataflow.sdk.transforms.IntraBundleParallelization.AsyncIntraBundleProcessingDoFn;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -36,6 +42,13 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -48,14 +61,21 @@ public class IntraBundleParallelizationTest {
   private static final AtomicInteger numSuccesses = new AtomicInteger();
   private static final AtomicInteger numProcessed = new AtomicInteger();
   private static final AtomicInteger numFailures = new AtomicInteger();
+  private static final AtomicInteger numInFlight = new AtomicInteger();
+  private static final AtomicInteger maxInFlight = new AtomicInteger();
   private static int concurrentElements = 0;
   private static int maxConcurrency = 0;
 
+  private static final ScheduledExecutorService SCHEDULER = Executors.newScheduledThreadPool(
+      4, new ThreadFactoryBuilder().setDaemon(true).build());
+
   @Before
   public void setUp() {
     numSuccesses.set(0);
     numProcessed.set(0);
     numFailures.set(0);
+    numInFlight.set(0);
+    maxInFlight.set(0);
     concurrentElements = 0;
     maxConcurrency = 0;
   }
@@ -122,6 +142,149 @@ public class IntraBundleParallelizationTest {
     }
   }
 
+  /**
+   * Completes each element's future on another thread after a delay, optionally failing
+   * the element equal to {@code failingElement}.
+   */
+  private static class AsyncDelayFn extends AsyncDoFn<Integer, Integer> {
+    public static final long DELAY_MS = 25;
+
+    private final boolean decreasingDelays;
+    private final int failingElement;
+
+    private AsyncDelayFn(boolean decreasingDelays, int failingElement) {
+      this.decreasingDelays = decreasingDelays;
+      this.failingElement = failingElement;
+    }
+
+    @Override
+    public Future<List<Integer>> processElement(final Integer element) {
+      numProcessed.incrementAndGet();
+      int inFlight = numInFlight.incrementAndGet();
+      while (true) {
+        int max = maxInFlight.get();
+        if (inFlight <= max || maxInFlight.compareAndSet(max, inFlight)) {
+          break;
+        }
+      }
+
+      final SettableFuture<List<Integer>> future = SettableFuture.create();
+      // With decreasing delays, later elements complete first.
+      long delayMs = decreasingDelays ? (20 - element % 20) * 5 : DELAY_MS;
+      SCHEDULER.schedule(new Runnable() {
+        @Override
+        public void run() {
+          numInFlight.decrementAndGet();
+          if (element == failingElement) {
+            numFailures.incrementAndGet();
+            future.setException(new RuntimeException("Expected failure"));
+          } else {
+            numSuccesses.incrementAndGet();
+            future.set(Arrays.asList(element, -element));
+          }
+        }
+      }, delayMs, TimeUnit.MILLISECONDS);
+      return future;
+    }
+  }
+
+  @Test
+  public void testAsyncParallelization() {
+    long minDuration = Long.MAX_VALUE;
+    // Take the minimum from multiple runs.
+    for (int i = 0; i < 5; ++i) {
+      minDuration = Math.min(minDuration, runAsync(2 * PARALLELISM_FACTOR, PARALLELISM_FACTOR));
+    }
+
+    // As with threads, no more than half the elements can be in flight at once.
+    assertThat(minDuration, greaterThanOrEqualTo(2 * AsyncDelayFn.DELAY_MS));
+    assertThat(minDuration, lessThanOrEqualTo(8 * AsyncDelayFn.DELAY_MS));
+    assertThat(maxInFlight.get(), lessThanOrEqualTo(PARALLELISM_FACTOR));
+  }
+
+  @Test
+  public void testAsyncMaxInFlightElements() {
+    runAsync(50, 3);
+    assertThat(maxInFlight.get(), is(both(greaterThanOrEqualTo(2)).and(lessThanOrEqualTo(3))));
+    assertEquals(50, numSuccesses.get());
+  }
+
+  @Test(timeout = 5000L)
+  public void testAsyncOrderedOutput() {
+    List<Integer> input = new ArrayList<>();
+    List<Integer> expected = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      input.add(i);
+      expected.add(i);
+      expected.add(-i);
+    }
+
+    DoFnTester<Integer, Integer> tester = DoFnTester.of(
+        new AsyncIntraBundleProcessingDoFn<>(new AsyncDelayFn(true, -1), 10, true));
+    assertEquals(expected, tester.processBatch(input));
+    assertThat(maxInFlight.get(), lessThanOrEqualTo(10));
+
+    // Unordered output has the same elements, but not in order.
+    tester = DoFnTester.of(
+        new AsyncIntraBundleProcessingDoFn<>(new AsyncDelayFn(true, -1), 10, false));
+    List<Integer> unordered = tester.processBatch(input);
+    assertThat(unordered, not(equalTo(expected)));
+    Collections.sort(unordered);
+    Collections.sort(expected);
+    assertEquals(expected, unordered);
+  }
+
+  /**
+   * Returns plain {@link Future}s from an executor, which cannot signal their completion.
+   */
+  private static class AsyncPlainFutureFn extends AsyncDoFn<Integer, Integer> {
+    @Override
+    public Future<List<Integer>> processElement(final Integer element) {
+      return SCHEDULER.submit(new Callable<List<Integer>>() {
+        @Override
+        public List<Integer> call() throws Exception {
+          sleepMillis(element % 3);
+          return Collections.singletonList(element);
+        }
+      });
+    }
+  }
+
+  @Test(timeout = 5000L)
+  public void testAsyncPlainFutures() {
+    List<Integer> input = new ArrayList<>();
+    for (int i = 0; i < 30; i++) {
+      input.add(i);
+    }
+    DoFnTester<Integer, Integer> tester = DoFnTester.of(
+        new AsyncIntraBundleProcessingDoFn<>(new AsyncPlainFutureFn(), 4, false));
+    List<Integer> output = tester.processBatch(input);
+    Collections.sort(output);
+    assertEquals(input, output);
+  }
+
+  @Test(timeout = 5000L)
+  public void testAsyncExceptionHandling() {
+    DoFnTester<Integer, Integer> tester = DoFnTester.of(
+        new AsyncIntraBundleProcessingDoFn<>(new AsyncDelayFn(false, 99), 10, false));
+    List<Integer> input = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      input.add(i);
+    }
+    try {
+      tester.processBatch(input);
+      fail("Expected exception to propagate");
+    } catch (RuntimeException e) {
+      assertThat(e.getMessage(), containsString("Expected failure"));
+    }
+
+    // The failure on the last element surfaces in finishBundle, after every element completed.
+    assertEquals(100, numProcessed.get());
+    assertEquals(99, numSuccesses.get());
+    assertEquals(1, numFailures.get());
+    assertEquals(0, numInFlight.get());
+  }
+
   @Test
   public void testParallelization() {
     long minDuration = Long.MAX_VALUE;
@@ -186,6 +349,40 @@ public class IntraBundleParallelizationTest {
         IntraBundleParallelization.of(new DelayFn<Integer>()).withMaxParallelism(1).getName());
   }
 
+  @Test
+  public void testAsyncGetName() {
+    assertEquals(
+        "IntraBundleParallelization.AsyncBound",
+        IntraBundleParallelization.ofAsync(new AsyncDelayFn(false, -1))
+            .withMaxInFlightElements(1).getName());
+  }
+
+  private long runAsync(int numElements, int maxInFlightElements) {
+    Pipeline pipeline = TestPipeline.create();
+
+    ArrayList<Integer> data = new ArrayList<>(numElements);
+    for (int i = 0; i < numElements; ++i) {
+      data.add(i);
+    }
+
+    ConcurrencyMeasuringFn<Integer> downstream = new ConcurrencyMeasuringFn<>();
+    pipeline
+        .apply(Create.of(data))
+        .apply(IntraBundleParallelization.ofAsync(new AsyncDelayFn(false, -1))
+            .withMaxInFlightElements(maxInFlightElements))
+        .apply(ParDo.of(downstream));
+
+    long startTime = System.nanoTime();
+
+    pipeline.run();
+
+    // Outputs are emitted on the bundle thread only.
+    assertEquals(1, maxConcurrency);
+
+    long endTime = System.nanoTime();
+    return TimeUnit.MILLISECONDS.convert(endTime - startTime, TimeUnit.NANOSECONDS);
+  }
+
   private long run(int numElements, int maxParallelism, DoFn<Integer, Integer> doFn) {
     Pipeline pipeline = TestPipeline.create();
 
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.transforms;
+
+import static com.google.cloud.dataflow.sdk.TestUtils.checkCombineFn;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.coders.BigEndianIntegerCoder;
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.CoderRegistry;
+import com.google.cloud.dataflow.sdk.coders.DoubleCoder;
+import com.google.cloud.dataflow.sdk.coders.KvCoder;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.coders.VarLongCoder;
+import com.google.cloud.dataflow.sdk.runners.DirectPipeline;
+import com.google.cloud.dataflow.sdk.testing.DataflowAssert;
+import com.google.cloud.dataflow.sdk.testing.TestPipeline;
+import com.google.cloud.dataflow.sdk.transforms.ApproximateQuantiles.ApproximateQuantilesCombineFn;
+import com.google.cloud.dataflow.sdk.transforms.Combine.CombineFn;
+import com.google.cloud.dataflow.sdk.transforms.KllQuantiles.KllQuantilesCombineFn;
+import com.google.cloud.dataflow.sdk.util.CoderUtils;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for {@link KllQuantiles}.
+ *
+ * <p>The comparisons with {@link ApproximateQuantiles} stand in for benchmarks of the accuracy
+ * and the accumulator size of the two algorithms.
+ */
+@RunWith(JUnit4.class)
+public class KllQuantilesTest {
+
+  @Test
+  public void testQuantilesGlobally() {
+    DirectPipeline p = DirectPipeline.createForTest();
+
+    PCollection<Integer> input = p.apply(Create.of(intRange(101)));
+    PCollection<List<Integer>> quantiles = input.apply(KllQuantiles.<Integer>globally(5));
+
+    p.run();
+
+    DataflowAssert.that(quantiles)
+        .containsInAnyOrder(Arrays.asList(0, 25, 50, 75, 100));
+  }
+
+  @Test
+  public void testQuantilesPerKey() {
+    Pipeline p = TestPipeline.create();
+
+    PCollection<KV<String, Integer>> input = p.apply(
+        Create.of(ApproximateQuantilesTest.TABLE).withCoder(
+            KvCoder.of(StringUtf8Coder.of(), BigEndianIntegerCoder.of())));
+    PCollection<KV<String, List<Integer>>> quantiles = input.apply(
+        KllQuantiles.<String, Integer>perKey(3));
+
+    DataflowAssert.that(quantiles)
+        .containsInAnyOrder(
+            KV.of("a", Arrays.asList(1, 2, 3)),
+            KV.of("b", Arrays.asList(1, 10, 100)));
+    p.run();
+  }
+
+  @Test
+  public void testSingleton() {
+    checkCombineFn(
+        KllQuantilesCombineFn.<Integer>create(5),
+        Arrays.asList(389),
+        Arrays.asList(389, 389, 389, 389, 389));
+  }
+
+  @Test
+  public void testSimpleQuantiles() {
+    checkCombineFn(
+        KllQuantilesCombineFn.<Integer>create(5),
+        intRange(101),
+        Arrays.asList(0, 25, 50, 75, 100));
+  }
+
+  @Test
+  public void testLotsOfDuplicates() {
+    List<Integer> all = new ArrayList<>();
+    all.add(1);
+    for (int i = 1; i < 300; i++) {
+      all.add(2);
+    }
+    for (int i = 300; i < 1000; i++) {
+      all.add(3);
+    }
+    checkCombineFn(
+        KllQuantilesCombineFn.<Integer>create(5),
+        all,
+        Arrays.asList(1, 2, 3, 3, 3));
+  }
+
+  @Test
+  public void testAlternateComparator() {
+    List<String> inputs = Arrays.asList(
+        "aa", "aaa", "aaaa", "b", "ccccc", "dddd", "zz");
+    checkCombineFn(
+        KllQuantilesCombineFn.<String>create(3),
+        inputs,
+        Arrays.asList("aa", "b", "zz"));
+  }
+
+  @Test
+  public void testEmpty() {
+    assertEquals(Collections.emptyList(),
+        KllQuantiles.ofLongs(5).apply(Collections.<Long>emptyList()));
+  }
+
+  @Test
+  public void testLargeInputWithinEpsilon() {
+    int size = 100000;
+    double epsilon = 0.01;
+    List<Integer> values = intRange(size);
+    Collections.shuffle(values, new Random(0));
+    List<Integer> quantiles =
+        KllQuantilesCombineFn.<Integer>create(11).withEpsilon(epsilon).apply(values);
+    assertThat(maxRankError(quantiles, size), lessThanOrEqualTo(epsilon * size));
+  }
+
+  @Test
+  public void testLongs() {
+    int size = 100000;
+    double epsilon = 0.01;
+    List<Long> values = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      values.add(i - 50000L);
+    }
+    Collections.shuffle(values, new Random(0));
+    List<Long> quantiles = shardedApply(
+        KllQuantiles.ofLongs(11).withEpsilon(epsilon), values, 10);
+    assertEquals(-50000L, (long) quantiles.get(0));
+    assertEquals(49999L, (long) quantiles.get(10));
+    for (int q = 1; q < 10; q++) {
+      long expected = q * (size - 1L) / 10 - 50000;
+      assertThat((double) Math.abs(quantiles.get(q) - expected),
+          lessThanOrEqualTo(epsilon * size));
+    }
+  }
+
+  @Test
+  public void testDoubles() {
+    int size = 100000;
+    double epsilon = 0.01;
+    List<Double> values = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      values.add(i / 1000.0);
+    }
+    Collections.shuffle(values, new Random(0));
+    List<Double> quantiles = shardedApply(
+        KllQuantiles.ofDoubles(5).withEpsilon(epsilon), values, 10);
+    assertEquals(0.0, quantiles.get(0), 0.0);
+    assertEquals(99.999, quantiles.get(4), 0.0);
+    for (int q = 1; q < 4; q++) {
+      assertEquals(q * 25.0, quantiles.get(q), epsilon * 100);
+    }
+  }
+
+  @Test
+  public void testAccumulatorCoders() throws Exception {
+    CoderRegistry registry = new CoderRegistry();
+    registry.registerStandardCoders();
+    Random random = new Random(0);
+    List<Long> longs = new ArrayList<>();
+    List<Double> doubles = new ArrayList<>();
+    List<Integer> ints = new ArrayList<>();
+    for (int i = 0; i < 10000; i++) {
+      longs.add(random.nextLong());
+      doubles.add(random.nextGaussian());
+      ints.add(random.nextInt());
+    }
+    checkAccumulatorCoder(KllQuantiles.ofLongs(7), VarLongCoder.of(), longs, registry);
+    checkAccumulatorCoder(KllQuantiles.ofDoubles(7), DoubleCoder.of(), doubles, registry);
+    checkAccumulatorCoder(
+        KllQuantilesCombineFn.<Integer>create(7), BigEndianIntegerCoder.of(), ints, registry);
+    checkAccumulatorCoder(KllQuantiles.ofLongs(7), VarLongCoder.of(),
+        Collections.<Long>emptyList(), registry);
+  }
+
+  /**
+   * Compares the accuracy of the two algorithms at the same {@code epsilon}.
+   */
+  @Test
+  public void testAccuracyComparedToBuffers() {
+    int size = 200000;
+    double epsilon = 0.005;
+    List<Integer> values = intRange(size);
+    Collections.shuffle(values, new Random(1));
+
+    double kllError = maxRankError(
+        KllQuantilesCombineFn.<Integer>create(101).withEpsilon(epsilon).apply(values), size);
+    double buffersError = maxRankError(
+        ApproximateQuantilesCombineFn.<Integer>create(101).withEpsilon(epsilon).apply(values),
+        size);
+    assertThat(kllError, lessThanOrEqualTo(epsilon * size));
+    assertThat(buffersError, lessThanOrEqualTo(epsilon * size));
+  }
+
+  /**
+   * Compares the encoded size of the accumulators of the two algorithms at the same
+   * {@code epsilon}.
+   */
+  @Test
+  public void testAccumulatorSmallerThanBuffers() throws Exception {
+    CoderRegistry registry = new CoderRegistry();
+    registry.registerStandardCoders();
+    Random random = new Random(0);
+    List<Long> values = new ArrayList<>();
+    for (int i = 0; i < 1000000; i++) {
+      values.add((long) random.nextInt(1000000));
+    }
+
+    ApproximateQuantilesCombineFn<Long, Top.Largest<Long>> buffersFn =
+        ApproximateQuantilesCombineFn.<Long>create(101).withEpsilon(0.01);
+    long kllBytes = encodedAccumulatorSize(
+        KllQuantiles.ofLongs(101).withEpsilon(0.01), values, registry);
+    long buffersBytes = encodedAccumulatorSize(buffersFn, values, registry);
+    assertThat(kllBytes * 10, lessThan(buffersBytes));
+  }
+
+  private static <InputT, AccumT> long encodedAccumulatorSize(
+      CombineFn<InputT, AccumT, ?> fn, List<InputT> values, CoderRegistry registry)
+      throws Exception {
+    AccumT accumulator = fn.createAccumulator();
+    for (InputT value : values) {
+      accumulator = fn.addInput(accumulator, value);
+    }
+    Coder<InputT> inputCoder = registry.getDefaultCoder(values.get(0));
+    return CoderUtils.encodeToByteArray(
+        fn.getAccumulatorCoder(registry, inputCoder), accumulator).length;
+  }
+
+  private static <InputT, AccumT, OutputT> void checkAccumulatorCoder(
+      CombineFn<InputT, AccumT, OutputT> fn, Coder<InputT> inputCoder, List<InputT> values,
+      CoderRegistry registry) throws Exception {
+    AccumT accumulator = fn.createAccumulator();
+    for (InputT value : values) {
+      accumulator = fn.addInput(accumulator, value);
+    }
+    Coder<AccumT> coder = fn.getAccumulatorCoder(registry, inputCoder);
+    AccumT decoded = CoderUtils.decodeFromByteArray(
+        coder, CoderUtils.encodeToByteArray(coder, accumulator));
+    assertEquals(fn.extractOutput(accumulator), fn.extractOutput(decoded));
+
+    // The decoded accumulator continues to choose the same values as the original.
+    for (InputT value : values) {
+      accumulator = fn.addInput(accumulator, value);
+      decoded = fn.addInput(decoded, value);
+    }
+    assertEquals(fn.extractOutput(accumulator), fn.extractOutput(decoded));
+  }
+
+  private static <InputT, AccumT, OutputT> OutputT shardedApply(
+      CombineFn<InputT, AccumT, OutputT> fn, List<InputT> values, int numShards) {
+    List<AccumT> accumulators = new ArrayList<>();
+    int shardSize = values.size() / numShards;
+    for (int shard = 0; shard < numShards; shard++) {
+      AccumT accumulator = fn.createAccumulator();
+      for (InputT value : values.subList(shard * shardSize, (shard + 1) * shardSize)) {
+        accumulator = fn.addInput(accumulator, value);
+      }
+      accumulators.add(accumulator);
+    }
+    return fn.extractOutput(fn.mergeAccumulators(accumulators));
+  }
+
+  /**
+   * Returns the largest distance between the rank of an intermediate quantile of
+   * {@code 0, ..., size - 1} and the rank of its approximation.
+   */
+  private static double maxRankError(List<Integer> quantiles, int size) {
+    int numQuantiles = quantiles.size();
+    double maxError = 0;
+    for (int q = 1; q < numQuantiles - 1; q++) {
+      double expected = (size - 1.0) * q / (numQuantiles - 1);
+      maxError = Math.max(maxError, Math.abs(quantiles.get(q) - expected));
+    }
+    return maxError;
+  }
+
+  private static List<Integer> intRange(int size) {
+    List<Integer> all = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      all.add(i);
+    }
+    return all;
+  }
+}
@@ -18,15 +18,20 @@ package com.google.cloud.dataflow.sdk.transforms;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.google.cloud.dataflow.sdk.Pipeline;
 import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
 import com.google.cloud.dataflow.sdk.testing.DataflowAssert;
 import com.google.cloud.dataflow.sdk.testing.RunnableOnService;
 import com.google.cloud.dataflow.sdk.testing.TestPipeline;
+import com.google.cloud.dataflow.sdk.transforms.RemoveDuplicates.PreDeduplicateFn;
+import com.google.cloud.dataflow.sdk.transforms.windowing.FixedWindows;
+import com.google.cloud.dataflow.sdk.transforms.windowing.Window;
 import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.cloud.dataflow.sdk.values.PCollection;
 
+import org.joda.time.Duration;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 import org.junit.runner.RunWith;
@@ -128,4 +133,100 @@ public class RemoveDuplicatesTest {
 
     p.run();
   }
+
+  @Test
+  @Category(RunnableOnService.class)
+  public void testRemoveDuplicatesWithPreDeduplication() {
+    List<String> strings = Arrays.asList(
+        "k1",
+        "k5",
+        "k5",
+        "k2",
+        "k1",
+        "k2",
+        "k3");
+
+    Pipeline p = TestPipeline.create();
+
+    PCollection<String> input =
+        p.apply(Create.of(strings)
+            .withCoder(StringUtf8Coder.of()));
+
+    PCollection<String> output =
+        input.apply(RemoveDuplicates.<String>create().withPreDeduplication(1 << 20));
+
+    DataflowAssert.that(output)
+        .containsInAnyOrder("k1", "k5", "k2", "k3");
+    p.run();
+  }
+
+  @Test
+  @Category(RunnableOnService.class)
+  public void testRemoveDuplicatesWithRepresentativeValueAndPreDeduplication() {
+    List<KV<String, String>> strings = Arrays.asList(
+        KV.of("k1", "v1"),
+        KV.of("k1", "v2"),
+        KV.of("k2", "v1"));
+
+    Pipeline p = TestPipeline.create();
+
+    PCollection<KV<String, String>> input = p.apply(Create.of(strings));
+
+    PCollection<KV<String, String>> output = input.apply(
+        RemoveDuplicates.withRepresentativeValueFn(new Keys()).withPreDeduplication(1 << 20));
+
+    DataflowAssert.that(output).satisfies(new Checker());
+
+    p.run();
+  }
+
+  @Test
+  @Category(RunnableOnService.class)
+  public void testPreDeduplicationKeepsWindows() {
+    Pipeline p = TestPipeline.create();
+
+    PCollection<String> input = p
+        .apply(Create.timestamped(Arrays.asList("k1", "k1", "k1"), Arrays.asList(0L, 1L, 20000L))
+            .withCoder(StringUtf8Coder.of()))
+        .apply(Window.<String>into(FixedWindows.of(Duration.standardSeconds(10))));
+
+    PCollection<String> output =
+        input.apply(RemoveDuplicates.<String>create().withPreDeduplication(1 << 20));
+
+    DataflowAssert.that(output).containsInAnyOrder("k1", "k1");
+    p.run();
+  }
+
+  @Test
+  public void testPreDeduplicateFnMemoryBudget() {
+    // Enough budget to remember two one-byte keys.
+    PreDeduplicateFn<String, Void> fn = new PreDeduplicateFn<>(
+        StringUtf8Coder.of(), 2 * (PreDeduplicateFn.PER_KEY_OVERHEAD + 1));
+    DoFnTester<KV<String, Void>, KV<String, Void>> tester = DoFnTester.of(fn);
+
+    List<KV<String, Void>> output = tester.processBatch(
+        KV.of("a", (Void) null), KV.of("b", (Void) null), KV.of("a", (Void) null),
+        KV.of("c", (Void) null), KV.of("c", (Void) null), KV.of("b", (Void) null));
+
+    // "c" did not fit in the budget, so its repeat is left for the shuffle to remove.
+    assertEquals(
+        Arrays.asList(KV.of("a", (Void) null), KV.of("b", (Void) null),
+            KV.of("c", (Void) null), KV.of("c", (Void) null)),
+        output);
+    assertEquals(2L, (long) tester.getAggregatorValue(fn.preDeduplicatedElements));
+
+    // Keys are only remembered within a bundle.
+    assertEquals(Arrays.asList(KV.of("a", (Void) null)),
+        tester.processBatch(KV.of("a", (Void) null)));
+  }
+
+  @Test
+  public void testInvalidPreDeduplicationBudget() {
+    try {
+      RemoveDuplicates.<String>create().withPreDeduplication(0);
+      fail("Accepted an empty pre-deduplication budget");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().startsWith("RemoveDuplicates needs a positive"));
+    }
+  }
 }
@@ -16,17 +16,25 @@
 
 package com.google.cloud.dataflow.sdk.transforms;
 
+import static org.hamcrest.Matchers.lessThan;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
 
 import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.TestUtils;
 import com.google.cloud.dataflow.sdk.coders.BigEndianIntegerCoder;
+import com.google.cloud.dataflow.sdk.coders.Coder;
 import com.google.cloud.dataflow.sdk.coders.KvCoder;
 import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
 import com.google.cloud.dataflow.sdk.testing.DataflowAssert;
 import com.google.cloud.dataflow.sdk.testing.TestPipeline;
+import com.google.cloud.dataflow.sdk.transforms.Top.BoundedLongList;
+import com.google.cloud.dataflow.sdk.transforms.Top.TopDoubleFn;
+import com.google.cloud.dataflow.sdk.transforms.Top.TopLongFn;
 import com.google.cloud.dataflow.sdk.transforms.windowing.FixedWindows;
 import com.google.cloud.dataflow.sdk.transforms.windowing.Window;
 import com.google.cloud.dataflow.sdk.transforms.windowing.Window.Bound;
+import com.google.cloud.dataflow.sdk.util.CoderUtils;
 import com.google.cloud.dataflow.sdk.values.KV;
 import com.google.cloud.dataflow.sdk.values.PCollection;
 
@@ -39,10 +47,12 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
 
 /** Tests for Top. */
 @RunWith(JUnit4.class)
@@ -232,6 +242,108 @@ public class TopTest {
     assertEquals("Largest.PerKey", Top.<String, Integer>largestPerKey(2).getName());
   }
 
+  @Test
+  public void testTopPrimitivePerKey() {
+    Pipeline p = TestPipeline.create();
+    PCollection<KV<String, Integer>> inputTable = createInputTable(p);
+
+    PCollection<KV<String, List<Integer>>> largestPerKey = inputTable
+        .apply(Top.<String>largestIntegersPerKey(2));
+    PCollection<KV<String, List<Integer>>> smallestPerKey = inputTable
+        .apply(Top.<String>smallestIntegersPerKey(2));
+
+    DataflowAssert.that(largestPerKey).containsInAnyOrder(
+        KV.of("a", Arrays.asList(3, 2)),
+        KV.of("b", Arrays.asList(100, 10)));
+    DataflowAssert.that(smallestPerKey).containsInAnyOrder(
+        KV.of("a", Arrays.asList(1, 2)),
+        KV.of("b", Arrays.asList(1, 10)));
+
+    p.run();
+  }
+
+  @Test
+  public void testTopLongFn() {
+    Random random = new Random(0);
+    List<Long> input = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      input.add(random.nextLong());
+    }
+    input.addAll(Arrays.asList(Long.MIN_VALUE, Long.MAX_VALUE, 7L, 7L, 7L));
+    List<Long> sorted = new ArrayList<>(input);
+    Collections.sort(sorted);
+
+    TestUtils.checkCombineFn(new TopLongFn(10, false), input, sorted.subList(0, 10));
+    TestUtils.checkCombineFn(new TopLongFn(0, false), input, Collections.<Long>emptyList());
+    Collections.reverse(sorted);
+    TestUtils.checkCombineFn(new TopLongFn(10, true), input, sorted.subList(0, 10));
+    TestUtils.checkCombineFn(new TopLongFn(1000, true), input, sorted);
+  }
+
+  @Test
+  public void testTopDoubleFnOrdering() {
+    List<Double> input = Arrays.asList(Double.NaN, 0.0, -0.0, 1.5, -1.5, Double.MIN_VALUE,
+        -Double.MAX_VALUE, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, 1.5);
+    List<Double> sorted = new ArrayList<>(input);
+    Collections.sort(sorted);
+
+    TestUtils.checkCombineFn(new TopDoubleFn(10, false), input, sorted);
+    Collections.reverse(sorted);
+    TestUtils.checkCombineFn(new TopDoubleFn(4, true), input, sorted.subList(0, 4));
+  }
+
+  @Test
+  public void testBoundedLongListCoder() throws Exception {
+    TopLongFn fn = new TopLongFn(100, false);
+    BoundedLongList accumulator = fn.createAccumulator();
+    for (long value = 1000000; value < 1001000; value++) {
+      fn.addInput(accumulator, value);
+    }
+    Coder<BoundedLongList> coder = fn.getAccumulatorCoder(null, null);
+    byte[] encoded = CoderUtils.encodeToByteArray(coder, accumulator);
+    BoundedLongList decoded = CoderUtils.decodeFromByteArray(coder, encoded);
+    assertEquals(fn.extractOutput(accumulator), fn.extractOutput(decoded));
+    // Consecutive values cost a byte each after the first.
+    assertThat(encoded.length, lessThan(110));
+
+    // The decoded accumulator keeps accepting inputs.
+    fn.addInput(decoded, 0L);
+    assertEquals(0L, (long) fn.extractOutput(decoded).get(0));
+    assertEquals(100, fn.extractOutput(decoded).size());
+  }
+
+  @Test
+  public void testBoundedLongListAddAfterMergingEmptyLists() {
+    TopLongFn fn = new TopLongFn(10, true);
+    BoundedLongList merged = fn.mergeAccumulators(
+        Arrays.asList(fn.createAccumulator(), fn.createAccumulator()));
+    for (long value = 0; value < 20; value++) {
+      merged = fn.addInput(merged, value);
+    }
+    assertEquals(Arrays.asList(19L, 18L, 17L, 16L, 15L, 14L, 13L, 12L, 11L, 10L),
+        fn.extractOutput(merged));
+  }
+
+  @Test
+  public void testTopCombineFnSortedListAndQueue() {
+    Random random = new Random(0);
+    List<Integer> input = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      input.add(random.nextInt(500));
+    }
+    List<Integer> sorted = new ArrayList<>(input);
+    Collections.sort(sorted, Collections.reverseOrder());
+
+    // Below MAX_SORTED_LIST_SIZE the heap is a sorted list; above it, a PriorityQueue.
+    for (int count : new int[] {1, 10, Top.BoundedHeap.MAX_SORTED_LIST_SIZE,
+        Top.BoundedHeap.MAX_SORTED_LIST_SIZE + 1, 1000}) {
+      TestUtils.checkCombineFn(
+          new Top.TopCombineFn<>(count, new IntegerComparator()),
+          input,
+          new ArrayList<>(sorted.subList(0, count)));
+    }
+  }
+
   private static class OrderByLength implements Comparator<String>, Serializable {
     @Override
     public int compare(String a, String b) {
@@ -19,8 +19,13 @@ package com.google.cloud.dataflow.sdk.transforms.join;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.emptyIterable;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.junit.Assert.assertThat;
 
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.cloud.dataflow.sdk.transforms.join.CoGbkResult.CoGbkResultCoder;
+import com.google.cloud.dataflow.sdk.util.CoderUtils;
 import com.google.cloud.dataflow.sdk.util.common.Reiterable;
 import com.google.cloud.dataflow.sdk.util.common.Reiterator;
 import com.google.cloud.dataflow.sdk.values.TupleTag;
@@ -60,6 +65,64 @@ public class CoGbkResultTest {
     assertThat(result.getAll(new TupleTag<Integer>("tag0")), contains(0, 2, 4));
   }
 
+  @Test
+  public void testSpilledResults() {
+    runSpilledResult(0);
+    runSpilledResult(1);
+    runSpilledResult(2);
+    runSpilledResult(10);
+  }
+
+  public void runSpilledResult(int inMemoryElementsPerTag) {
+    int valueLen = 9;
+    TestUnionValues values = new TestUnionValues(0, 1, 0, 3, 0, 3, 3, 0, 0);
+    CoGbkResult result = new CoGbkResult(
+        createSchema(5), values, createUnionCoder(5), inMemoryElementsPerTag);
+    assertThat(values.maxPos(), equalTo(valueLen));
+    assertThat(result.getAll(new TupleTag<Integer>("tag0")), contains(0, 2, 4, 7, 8));
+    assertThat(result.getAll(new TupleTag<Integer>("tag3")), contains(3, 5, 6));
+    assertThat(result.getAll(new TupleTag<Integer>("tag2")), emptyIterable());
+    assertThat(result.getOnly(new TupleTag<Integer>("tag1")), equalTo(1));
+    assertThat(result.getAll(new TupleTag<Integer>("tag0")), contains(0, 2, 4, 7, 8));
+  }
+
+  @Test
+  public void testSpilledResultsEncode() throws Exception {
+    CoGbkResultSchema schema = createSchema(2);
+    UnionCoder unionCoder = createUnionCoder(2);
+    CoGbkResult result =
+        new CoGbkResult(schema, new TestUnionValues(0, 1, 0, 0, 1, 0), unionCoder, 1);
+
+    Coder<CoGbkResult> coder = CoGbkResultCoder.of(schema, unionCoder);
+    CoGbkResult decoded = CoderUtils.decodeFromByteArray(
+        coder, CoderUtils.encodeToByteArray(coder, result));
+    assertThat(decoded.getAll(new TupleTag<Integer>("tag0")), contains(0, 2, 3, 5));
+    assertThat(decoded.getAll(new TupleTag<Integer>("tag1")), contains(1, 4));
+  }
+
+  @Test
+  public void testSpillFilesDeletedWhenUnreachable() throws Exception {
+    CoGbkResult result =
+        new CoGbkResult(createSchema(2), new TestUnionValues(0, 1, 0, 1), createUnionCoder(2), 0);
+    assertThat(result.getAll(new TupleTag<Integer>("tag1")), contains(1, 3));
+    assertThat(CoGbkResult.liveSpillFileCount(), greaterThanOrEqualTo(2));
+
+    result = null;
+    for (int attempt = 0; attempt < 100 && CoGbkResult.liveSpillFileCount() > 0; attempt++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertThat(CoGbkResult.liveSpillFileCount(), equalTo(0));
+  }
+
+  private UnionCoder createUnionCoder(int size) {
+    List<Coder<?>> coders = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      coders.add(VarIntCoder.of());
+    }
+    return UnionCoder.of(coders);
+  }
+
   private CoGbkResultSchema createSchema(int size) {
     List<TupleTag<?>> tags = new ArrayList<>();
     for (int i = 0; i < size; i++) {
@@ -143,6 +143,48 @@ public class CoGroupByKeyTest implements Serializable {
     p.run();
   }
 
+  @Test
+  public void testCoGroupByKeyWithSpilling() {
+    final TupleTag<String> tag1 = new TupleTag<>();
+    final TupleTag<String> tag2 = new TupleTag<>();
+
+    Pipeline p = TestPipeline.create();
+
+    List<KV<Integer, String>> list1 =
+        Arrays.asList(
+            KV.of(1, "collection1-1a"),
+            KV.of(1, "collection1-1b"),
+            KV.of(1, "collection1-1c"),
+            KV.of(2, "collection1-2"));
+    List<KV<Integer, String>> list2 =
+        Arrays.asList(
+            KV.of(1, "collection2-1a"),
+            KV.of(1, "collection2-1b"),
+            KV.of(3, "collection2-3"));
+    PCollection<KV<Integer, String>> collection1 = createInput("CreateList1", p, list1);
+    PCollection<KV<Integer, String>> collection2 = createInput("CreateList2", p, list2);
+    PCollection<KV<Integer, CoGbkResult>> coGbkResults =
+        KeyedPCollectionTuple.of(tag1, collection1)
+            .and(tag2, collection2)
+            .apply(CoGroupByKey.<Integer>create().withSpillThreshold(1));
+
+    DataflowAssert.thatMap(coGbkResults).satisfies(
+        new SerializableFunction<Map<Integer, CoGbkResult>, Void>() {
+          @Override
+          public Void apply(Map<Integer, CoGbkResult> results) {
+            assertThat(results.get(1).getAll(tag1), containsInAnyOrder(
+                "collection1-1a", "collection1-1b", "collection1-1c"));
+            assertThat(results.get(1).getAll(tag2), containsInAnyOrder(
+                "collection2-1a", "collection2-1b"));
+            assertEquals("collection1-2", results.get(2).getOnly(tag1));
+            assertEquals("collection2-3", results.get(3).getOnly(tag2));
+            return null;
+          }
+        });
+
+    p.run();
+  }
+
   /**
    * Returns a {@code PCollection<KV<Integer, CoGbkResult>>} containing the
    * results of the {@code CoGroupByKey} over three
@@ -121,4 +121,19 @@ public class FixedWindowsTest {
           FixedWindows.of(new Duration(500)), timestamp);
     }
   }
+
+  @Test
+  public void testAssignsWindowsAtBoundaries() throws Exception {
+    FixedWindows windowFn = FixedWindows.of(new Duration(10));
+    IntervalWindow window = new IntervalWindow(new Instant(0), new Instant(10));
+
+    assertEquals(Arrays.asList(window), WindowFnTestUtils.assignedWindows(windowFn, 1));
+    assertEquals(Arrays.asList(window), WindowFnTestUtils.assignedWindows(windowFn, 9));
+
+    assertEquals(Arrays.asList(new IntervalWindow(new Instant(10), new Instant(20))),
+        WindowFnTestUtils.assignedWindows(windowFn, 10));
+    assertEquals(Arrays.asList(new IntervalWindow(new Instant(-10), new Instant(0))),
+        WindowFnTestUtils.assignedWindows(windowFn, -1));
+    assertEquals(Arrays.asList(window), WindowFnTestUtils.assignedWindows(windowFn, 0));
+  }
 }
@@ -32,6 +32,7 @@ import org.junit.runners.JUnit4;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -190,4 +191,29 @@ public class SlidingWindowsTest {
           SlidingWindows.of(new Duration(1000)).every(new Duration(500)), timestamp);
     }
   }
+
+  @Test
+  public void testWindowsChangeWithinPeriod() throws Exception {
+    // The windows containing a timestamp change within a period when the size is not a multiple
+    // of the period.
+    SlidingWindows windowFn = SlidingWindows.of(new Duration(5)).every(new Duration(3));
+    List<IntervalWindow> twoWindows = Arrays.asList(
+        new IntervalWindow(new Instant(0), new Instant(5)),
+        new IntervalWindow(new Instant(-3), new Instant(2)));
+
+    assertEquals(twoWindows, WindowFnTestUtils.assignedWindows(windowFn, 0));
+    assertEquals(twoWindows, WindowFnTestUtils.assignedWindows(windowFn, 1));
+    assertEquals(Arrays.asList(new IntervalWindow(new Instant(0), new Instant(5))),
+        WindowFnTestUtils.assignedWindows(windowFn, 2));
+    assertEquals(twoWindows, WindowFnTestUtils.assignedWindows(windowFn, 1));
+  }
+
+  @Test
+  public void testAssignsNoWindowsInGaps() throws Exception {
+    SlidingWindows windowFn = SlidingWindows.of(new Duration(2)).every(new Duration(5));
+    assertEquals(Arrays.asList(new IntervalWindow(new Instant(5), new Instant(7))),
+        WindowFnTestUtils.assignedWindows(windowFn, 6));
+    assertTrue(WindowFnTestUtils.assignedWindows(windowFn, 8).isEmpty());
+    assertTrue(WindowFnTestUtils.assignedWindows(windowFn, 9).isEmpty());
+  }
 }
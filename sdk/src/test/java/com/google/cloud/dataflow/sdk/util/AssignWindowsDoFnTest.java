@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.dataflow.sdk.util;
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.cloud.dataflow.sdk.options.PipelineOptionsFactory;
+import com.google.cloud.dataflow.sdk.testing.AllocationMeter;
+import com.google.cloud.dataflow.sdk.testing.WindowFnTestUtils;
+import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.FixedWindows;
+import com.google.cloud.dataflow.sdk.transforms.windowing.IntervalWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.SlidingWindows;
+import com.google.cloud.dataflow.sdk.transforms.windowing.WindowFn;
+import com.google.cloud.dataflow.sdk.util.common.CounterSet;
+import com.google.cloud.dataflow.sdk.values.TupleTag;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+/** Tests for {@link AssignWindowsDoFn}. */
+@RunWith(JUnit4.class)
+public class AssignWindowsDoFnTest {
+  private final TupleTag<String> outputTag = new TupleTag<>();
+  private Object sink;
+
+  @Test
+  public void testReusesWindowsOfSameBoundaries() throws Exception {
+    List<WindowedValue<String>> output = assign(
+        SlidingWindows.of(Duration.millis(10)).every(Duration.millis(5)), 1L, 3L, 6L, 9L, 12L);
+
+    assertEquals(5, output.size());
+    assertSame(output.get(0).getWindows(), output.get(1).getWindows());
+    assertNotSame(output.get(1).getWindows(), output.get(2).getWindows());
+    assertSame(output.get(2).getWindows(), output.get(3).getWindows());
+    assertNotSame(output.get(3).getWindows(), output.get(4).getWindows());
+
+    output = assign(FixedWindows.of(Duration.millis(10)), 1L, 9L, 10L, 3L);
+    assertSame(onlyWindow(output.get(0)), onlyWindow(output.get(1)));
+    assertNotSame(onlyWindow(output.get(1)), onlyWindow(output.get(2)));
+    assertNotSame(onlyWindow(output.get(2)), onlyWindow(output.get(3)));
+  }
+
+  @Test
+  public void testAssignsSameWindowsAsWindowFn() throws Exception {
+    List<WindowFn<Object, IntervalWindow>> windowFns =
+        Arrays.<WindowFn<Object, IntervalWindow>>asList(
+        FixedWindows.of(Duration.millis(10)).withOffset(Duration.millis(3)),
+        SlidingWindows.of(Duration.millis(10)).every(Duration.millis(3)),
+        SlidingWindows.of(Duration.millis(10)).every(Duration.millis(5)),
+        SlidingWindows.of(Duration.millis(3)).every(Duration.millis(10)));
+    Random random = new Random(17);
+    Long[] timestamps = new Long[500];
+    for (int i = 0; i < timestamps.length; i++) {
+      // Mostly increasing, with some going back in time.
+      timestamps[i] = i / 2 + random.nextInt(20) - 15L;
+    }
+
+    for (WindowFn<Object, IntervalWindow> windowFn : windowFns) {
+      List<WindowedValue<String>> output = assign(windowFn, timestamps);
+      assertEquals(timestamps.length, output.size());
+      for (int i = 0; i < timestamps.length; i++) {
+        Collection<IntervalWindow> expected =
+            WindowFnTestUtils.assignedWindows(windowFn, timestamps[i]);
+        assertEquals(new Instant(timestamps[i]), output.get(i).getTimestamp());
+        assertEquals(new ArrayList<BoundedWindow>(expected),
+            new ArrayList<BoundedWindow>(output.get(i).getWindows()));
+      }
+    }
+  }
+
+  /**
+   * Reports the bytes allocated per element when consecutive elements are in the same window,
+   * whose window is reused, and when they alternate between two windows.
+   */
+  @Test
+  public void testReusingWindowsAllocatesLess() throws Exception {
+    assumeTrue(AllocationMeter.isSupported());
+    FixedWindows windowFn = FixedWindows.of(Duration.millis(10));
+    double sameWindowBytes = bytesPerElement(windowFn, 1L, 5L);
+    double alternatingBytes = bytesPerElement(windowFn, 1L, 15L);
+    assertThat(String.format("%.1f bytes per element in the same window, %.1f alternating",
+        sameWindowBytes, alternatingBytes), sameWindowBytes, lessThan(alternatingBytes));
+  }
+
+  private double bytesPerElement(WindowFn<Object, IntervalWindow> windowFn, long... timestamps)
+      throws Exception {
+    final DoFnRunner<String, String> runner = runner(windowFn, new DoFnRunners.OutputManager() {
+      @Override
+      public <T> void output(TupleTag<T> tag, WindowedValue<T> output) {
+        sink = output;
+      }
+    });
+    final List<WindowedValue<String>> input = new ArrayList<>();
+    for (long timestamp : timestamps) {
+      input.add(WindowedValue.timestampedValueInGlobalWindow("v", new Instant(timestamp)));
+    }
+    runner.startBundle();
+    double bytes = AllocationMeter.bytesPerRun(20000, new AllocationMeter.Body() {
+      @Override
+      public void run() {
+        for (WindowedValue<String> value : input) {
+          runner.processElement(value);
+        }
+      }
+    });
+    runner.finishBundle();
+    return bytes / timestamps.length;
+  }
+
+  private List<WindowedValue<String>> assign(
+      WindowFn<Object, IntervalWindow> windowFn, Long... timestamps) {
+    DoFnRunnerBase.ListOutputManager outputManager = new DoFnRunnerBase.ListOutputManager();
+    DoFnRunner<String, String> runner = runner(windowFn, outputManager);
+    runner.startBundle();
+    for (long timestamp : timestamps) {
+      runner.processElement(
+          WindowedValue.timestampedValueInGlobalWindow("v", new Instant(timestamp)));
+    }
+    runner.finishBundle();
+    return outputManager.getOutput(outputTag);
+  }
+
+  private DoFnRunner<String, String> runner(
+      WindowFn<Object, IntervalWindow> windowFn, DoFnRunners.OutputManager outputManager) {
+    return DoFnRunners.simpleRunner(
+        PipelineOptionsFactory.create(),
+        new AssignWindowsDoFn<String, IntervalWindow>(windowFn),
+        NullSideInputReader.empty(),
+        outputManager,
+        outputTag,
+        new ArrayList<TupleTag<?>>(),
+        DirectModeExecutionContext.create()
+            .getOrCreateStepContext("AssignWindowsStep", "AssignWindowsTransform", null),
+        new CounterSet().getAddCounterMutator(),
+        WindowingStrategy.of(windowFn));
+  }
+
+  private static BoundedWindow onlyWindow(WindowedValue<?> value) {
+    assertEquals(1, value.getWindows().size());
+    return value.getWindows().iterator().next();
+  }
+}
@@ -15,6 +15,8 @@
  */
 package com.google.cloud.dataflow.sdk.util;
 
+import static org.junit.Assert.assertEquals;
+
 import com.google.cloud.dataflow.sdk.util.TimerInternals.TimerData;
 import com.google.cloud.dataflow.sdk.util.state.StateNamespace;
 import com.google.cloud.dataflow.sdk.util.state.StateNamespaceForTest;
@@ -24,10 +26,16 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
 /**
  * Tests for {@link BatchTimerInternals}.
  */
@@ -113,4 +121,86 @@ public class BatchTimerInternalsTest {
     Mockito.verify(mockRunner).onTimer(watermarkTime);
     Mockito.verifyNoMoreInteractions(mockRunner);
   }
+
+  @Test
+  public void testDeleteTimer() throws Exception {
+    BatchTimerInternals underTest = new BatchTimerInternals(new Instant(0));
+    TimerData watermarkTime1 = TimerData.of(NS1, new Instant(19), TimeDomain.EVENT_TIME);
+    TimerData watermarkTime2 = TimerData.of(NS1, new Instant(29), TimeDomain.EVENT_TIME);
+    underTest.setTimer(watermarkTime1);
+    underTest.setTimer(watermarkTime2);
+    underTest.deleteTimer(watermarkTime1);
+
+    underTest.advanceInputWatermark(mockRunner, new Instant(30));
+    Mockito.verify(mockRunner).onTimer(watermarkTime2);
+    Mockito.verifyNoMoreInteractions(mockRunner);
+  }
+
+  @Test
+  public void testDeleteAndResetTimer() throws Exception {
+    BatchTimerInternals underTest = new BatchTimerInternals(new Instant(0));
+    TimerData watermarkTime = TimerData.of(NS1, new Instant(19), TimeDomain.EVENT_TIME);
+    underTest.setTimer(watermarkTime);
+    underTest.deleteTimer(watermarkTime);
+    underTest.setTimer(watermarkTime);
+
+    underTest.advanceInputWatermark(mockRunner, new Instant(20));
+    Mockito.verify(mockRunner).onTimer(watermarkTime);
+    Mockito.verifyNoMoreInteractions(mockRunner);
+  }
+
+  @Test
+  public void testRepeatedDeleteAndResetQueuesTimerOnce() throws Exception {
+    BatchTimerInternals underTest = new BatchTimerInternals(new Instant(0));
+    TimerData watermarkTime = TimerData.of(NS1, new Instant(19), TimeDomain.EVENT_TIME);
+    for (int i = 0; i < 1000; i++) {
+      underTest.setTimer(watermarkTime);
+      underTest.deleteTimer(watermarkTime);
+    }
+    underTest.setTimer(watermarkTime);
+    assertEquals(1, underTest.queuedTimerCount());
+
+    underTest.advanceInputWatermark(mockRunner, new Instant(20));
+    Mockito.verify(mockRunner).onTimer(watermarkTime);
+    Mockito.verifyNoMoreInteractions(mockRunner);
+    assertEquals(0, underTest.queuedTimerCount());
+
+    // A timer deleted after it fired is queued again when it is set again.
+    underTest.deleteTimer(watermarkTime);
+    underTest.setTimer(watermarkTime);
+    assertEquals(1, underTest.queuedTimerCount());
+  }
+
+  @Test
+  public void testManyWindows() throws Exception {
+    BatchTimerInternals underTest = new BatchTimerInternals(new Instant(0));
+    int numWindows = 5000;
+    List<TimerData> timers = new ArrayList<>();
+    for (int i = 0; i < numWindows; i++) {
+      timers.add(TimerData.of(
+          new StateNamespaceForTest("W" + i), new Instant(10 * i + 9), TimeDomain.EVENT_TIME));
+    }
+    List<TimerData> shuffled = new ArrayList<>(timers);
+    Collections.shuffle(shuffled, new Random(1234));
+    for (TimerData timer : shuffled) {
+      underTest.setTimer(timer);
+    }
+    // Delete every other timer, as ReduceFnRunner does when a window is closed early.
+    for (int i = 1; i < numWindows; i += 2) {
+      underTest.deleteTimer(timers.get(i));
+    }
+
+    for (int i = 0; i < numWindows; i += 100) {
+      underTest.advanceInputWatermark(mockRunner, new Instant(10 * i));
+    }
+    underTest.advanceInputWatermark(mockRunner, new Instant(10 * numWindows));
+
+    List<TimerData> expected = new ArrayList<>();
+    for (int i = 0; i < numWindows; i += 2) {
+      expected.add(timers.get(i));
+    }
+    ArgumentCaptor<TimerData> fired = ArgumentCaptor.forClass(TimerData.class);
+    Mockito.verify(mockRunner, Mockito.times(expected.size())).onTimer(fired.capture());
+    assertEquals(expected, fired.getAllValues());
+  }
 }
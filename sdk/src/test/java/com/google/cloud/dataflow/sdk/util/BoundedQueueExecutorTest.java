@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link BoundedQueueExecutor}.
+ */
+@RunWith(JUnit4.class)
+public class BoundedQueueExecutorTest {
+
+  /** A task that records its id when run. */
+  private static class RecordingTask implements Runnable {
+    private final int id;
+    private final List<Integer> ran;
+
+    RecordingTask(int id, List<Integer> ran) {
+      this.id = id;
+      this.ran = ran;
+    }
+
+    @Override
+    public void run() {
+      ran.add(id);
+    }
+  }
+
+  private List<Integer> runBehindBlockingTask(
+      BoundedQueueExecutor executor, List<Integer> ids) throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch blocker = new CountDownLatch(1);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          blocker.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    started.await();
+
+    List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+    for (int id : ids) {
+      executor.execute(new RecordingTask(id, ran));
+    }
+    blocker.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    return ran;
+  }
+
+  @Test
+  public void testRunsInQueueOrder() throws Exception {
+    BoundedQueueExecutor executor = new BoundedQueueExecutor(
+        1, 60, TimeUnit.SECONDS, 10, Executors.defaultThreadFactory());
+    assertEquals(Arrays.asList(3, 1, 2),
+        runBehindBlockingTask(executor, Arrays.asList(3, 1, 2)));
+  }
+
+  @Test
+  public void testRunsInPriorityOrder() throws Exception {
+    BoundedQueueExecutor executor = new BoundedQueueExecutor(
+        1, 60, TimeUnit.SECONDS, 10, Executors.defaultThreadFactory(),
+        new BoundedQueueExecutor.Prioritizer() {
+          @Override
+          public long priority(Runnable task) {
+            // Even ids first, and otherwise in the order queued.
+            return task instanceof RecordingTask ? ((RecordingTask) task).id % 2 : 0;
+          }
+        });
+    assertEquals(Arrays.asList(4, 2, 6, 3, 1, 5),
+        runBehindBlockingTask(executor, Arrays.asList(3, 4, 1, 2, 5, 6)));
+  }
+}
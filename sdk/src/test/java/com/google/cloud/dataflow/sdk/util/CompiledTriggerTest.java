@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.cloud.dataflow.sdk.transforms.windowing.AfterFirst;
+import com.google.cloud.dataflow.sdk.transforms.windowing.AfterPane;
+import com.google.cloud.dataflow.sdk.transforms.windowing.AfterProcessingTime;
+import com.google.cloud.dataflow.sdk.transforms.windowing.AfterWatermark;
+import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.DefaultTrigger;
+import com.google.cloud.dataflow.sdk.transforms.windowing.FixedWindows;
+import com.google.cloud.dataflow.sdk.transforms.windowing.IntervalWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.Repeatedly;
+import com.google.cloud.dataflow.sdk.transforms.windowing.Sessions;
+import com.google.cloud.dataflow.sdk.transforms.windowing.Trigger;
+import com.google.cloud.dataflow.sdk.transforms.windowing.WindowFn;
+import com.google.cloud.dataflow.sdk.util.TimerInternals.TimerData;
+import com.google.cloud.dataflow.sdk.util.state.InMemoryStateInternals;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests for {@link CompiledTrigger}, comparing it with the {@link ExecutableTrigger} tree it is
+ * compiled from.
+ */
+@RunWith(JUnit4.class)
+public class CompiledTriggerTest {
+
+  private static final List<IntervalWindow> WINDOWS = Arrays.asList(
+      new IntervalWindow(new Instant(0), new Instant(10)),
+      new IntervalWindow(new Instant(10), new Instant(20)),
+      new IntervalWindow(new Instant(20), new Instant(30)));
+
+  /**
+   * A {@link ReduceFnRunner}'s view of a {@link TriggerRunner}, with its own state and timers.
+   */
+  private static class Harness {
+    private final InMemoryStateInternals stateInternals = new InMemoryStateInternals();
+    private final TestTimerInternals timerInternals = new TestTimerInternals();
+    private final ReduceFnContextFactory<String, Integer, Iterable<Integer>, IntervalWindow>
+        contextFactory;
+    private final TriggerRunner<IntervalWindow> triggerRunner;
+
+    private Harness(WindowingStrategy<?, IntervalWindow> strategy, boolean compile) {
+      ActiveWindowSet<IntervalWindow> activeWindows = new NonMergingActiveWindowSet<>();
+      this.contextFactory = new ReduceFnContextFactory<>("key",
+          SystemReduceFn.<String, Integer, IntervalWindow>buffering(VarIntCoder.of())
+              .create("key"),
+          strategy, stateInternals, activeWindows, timerInternals);
+      this.triggerRunner = new TriggerRunner<>(strategy.getTrigger(),
+          new TriggerContextFactory<>(strategy, stateInternals, activeWindows), compile);
+    }
+
+    private boolean isClosed(IntervalWindow window) {
+      return triggerRunner.isClosed(contextFactory.base(window).state());
+    }
+
+    private void processValue(IntervalWindow window, int value, Instant timestamp)
+        throws Exception {
+      ReduceFn<String, Integer, Iterable<Integer>, IntervalWindow>.ProcessValueContext context =
+          contextFactory.forValue(window, value, timestamp, Arrays.asList(window));
+      triggerRunner.prefetchForValue(window, context.state());
+      triggerRunner.processValue(context);
+    }
+
+    private boolean shouldFire(IntervalWindow window) throws Exception {
+      ReduceFn<String, Integer, Iterable<Integer>, IntervalWindow>.Context context =
+          contextFactory.base(window);
+      triggerRunner.prefetchShouldFire(window, context.state());
+      return triggerRunner.shouldFire(context);
+    }
+
+    private void onFire(IntervalWindow window) throws Exception {
+      ReduceFn<String, Integer, Iterable<Integer>, IntervalWindow>.Context context =
+          contextFactory.base(window);
+      triggerRunner.onFire(context);
+      if (triggerRunner.isClosed(context.state())) {
+        triggerRunner.clearState(context);
+      }
+    }
+  }
+
+  private static class TestTimerInternals implements TimerInternals {
+    private final Set<TimerData> timers = new HashSet<>();
+    private Instant processingTime = new Instant(0);
+    private Instant inputWatermark = BoundedWindow.TIMESTAMP_MIN_VALUE;
+
+    @Override
+    public void setTimer(TimerData timer) {
+      timers.add(timer);
+    }
+
+    @Override
+    public void deleteTimer(TimerData timer) {
+      timers.remove(timer);
+    }
+
+    @Override
+    public Instant currentProcessingTime() {
+      return processingTime;
+    }
+
+    @Override
+    public Instant currentSynchronizedProcessingTime() {
+      return null;
+    }
+
+    @Override
+    public Instant currentInputWatermarkTime() {
+      return inputWatermark;
+    }
+
+    @Override
+    public Instant currentOutputWatermarkTime() {
+      return null;
+    }
+  }
+
+  private static <W extends BoundedWindow> boolean isCompiled(
+      WindowFn<?, W> windowFn, Trigger<W> trigger) {
+    WindowingStrategy<?, W> strategy = WindowingStrategy.of(windowFn).withTrigger(trigger);
+    ActiveWindowSet<W> activeWindows = new NonMergingActiveWindowSet<>();
+    return new TriggerRunner<>(strategy.getTrigger(), new TriggerContextFactory<>(
+        strategy, new InMemoryStateInternals(), activeWindows)).isCompiled();
+  }
+
+  @Test
+  public void testCompilesCommonTriggers() {
+    FixedWindows windowFn = FixedWindows.of(Duration.millis(10));
+    assertTrue(isCompiled(windowFn, DefaultTrigger.<IntervalWindow>of()));
+    assertTrue(isCompiled(windowFn, AfterPane.<IntervalWindow>elementCountAtLeast(3)));
+    assertTrue(isCompiled(windowFn, AfterWatermark.<IntervalWindow>pastEndOfWindow()));
+    assertTrue(isCompiled(windowFn,
+        Repeatedly.forever(AfterProcessingTime.<IntervalWindow>pastFirstElementInPane()
+            .plusDelayOf(Duration.millis(5)))));
+    assertTrue(isCompiled(windowFn, AfterWatermark.<IntervalWindow>pastEndOfWindow()
+        .withEarlyFirings(AfterPane.<IntervalWindow>elementCountAtLeast(2))
+        .withLateFirings(AfterPane.<IntervalWindow>elementCountAtLeast(1))
+        .buildTrigger()));
+  }
+
+  @Test
+  public void testDoesNotCompileOtherTriggers() {
+    assertFalse(isCompiled(Sessions.withGapDuration(Duration.millis(10)),
+        AfterPane.<IntervalWindow>elementCountAtLeast(3)));
+    assertFalse(isCompiled(FixedWindows.of(Duration.millis(10)),
+        AfterFirst.<IntervalWindow>of(
+            AfterPane.<IntervalWindow>elementCountAtLeast(3),
+            AfterWatermark.<IntervalWindow>pastEndOfWindow())));
+    assertFalse(isCompiled(FixedWindows.of(Duration.millis(10)),
+        Repeatedly.forever(AfterWatermark.<IntervalWindow>pastEndOfWindow()
+            .withEarlyFirings(AfterPane.<IntervalWindow>elementCountAtLeast(2))
+            .buildTrigger())));
+  }
+
+  @Test
+  public void testMatchesInterpreter() throws Exception {
+    List<Trigger<IntervalWindow>> triggers = Arrays.<Trigger<IntervalWindow>>asList(
+        DefaultTrigger.<IntervalWindow>of(),
+        AfterPane.<IntervalWindow>elementCountAtLeast(3),
+        AfterWatermark.<IntervalWindow>pastEndOfWindow(),
+        AfterProcessingTime.<IntervalWindow>pastFirstElementInPane()
+            .plusDelayOf(Duration.millis(5)),
+        Repeatedly.forever(AfterPane.<IntervalWindow>elementCountAtLeast(2)),
+        Repeatedly.forever(AfterProcessingTime.<IntervalWindow>pastFirstElementInPane()
+            .alignedTo(Duration.millis(7))),
+        Repeatedly.forever(AfterWatermark.<IntervalWindow>pastEndOfWindow()),
+        AfterWatermark.<IntervalWindow>pastEndOfWindow()
+            .withEarlyFirings(AfterPane.<IntervalWindow>elementCountAtLeast(2))
+            .buildTrigger(),
+        AfterWatermark.<IntervalWindow>pastEndOfWindow()
+            .withEarlyFirings(AfterProcessingTime.<IntervalWindow>pastFirstElementInPane()
+                .plusDelayOf(Duration.millis(3)))
+            .withLateFirings(AfterPane.<IntervalWindow>elementCountAtLeast(2))
+            .buildTrigger());
+
+    Random random = new Random(1234);
+    for (Trigger<IntervalWindow> trigger : triggers) {
+      WindowingStrategy<?, IntervalWindow> strategy =
+          WindowingStrategy.of(FixedWindows.of(Duration.millis(10))).withTrigger(trigger);
+      for (int round = 0; round < 20; round++) {
+        Harness compiled = new Harness(strategy, true);
+        Harness interpreted = new Harness(strategy, false);
+        assertTrue(compiled.triggerRunner.isCompiled());
+        assertFalse(interpreted.triggerRunner.isCompiled());
+
+        for (int step = 0; step < 100; step++) {
+          int action = random.nextInt(4);
+          if (action < 2) {
+            IntervalWindow window = WINDOWS.get(random.nextInt(WINDOWS.size()));
+            Instant timestamp = window.start().plus(random.nextInt(10));
+            assertEquals(trigger.toString(), interpreted.isClosed(window),
+                compiled.isClosed(window));
+            if (!compiled.isClosed(window)) {
+              compiled.processValue(window, step, timestamp);
+              interpreted.processValue(window, step, timestamp);
+            }
+          } else if (action == 2) {
+            Instant watermark = compiled.timerInternals.inputWatermark.isBefore(new Instant(0))
+                ? new Instant(0) : compiled.timerInternals.inputWatermark.plus(random.nextInt(4));
+            compiled.timerInternals.inputWatermark = watermark;
+            interpreted.timerInternals.inputWatermark = watermark;
+          } else {
+            Instant processingTime =
+                compiled.timerInternals.processingTime.plus(random.nextInt(4));
+            compiled.timerInternals.processingTime = processingTime;
+            interpreted.timerInternals.processingTime = processingTime;
+          }
+
+          for (IntervalWindow window : WINDOWS) {
+            assertEquals(trigger.toString(), interpreted.isClosed(window),
+                compiled.isClosed(window));
+            if (compiled.isClosed(window)) {
+              continue;
+            }
+            boolean shouldFire = compiled.shouldFire(window);
+            assertEquals(trigger.toString(), interpreted.shouldFire(window), shouldFire);
+            if (shouldFire) {
+              compiled.onFire(window);
+              interpreted.onFire(window);
+            }
+          }
+          assertEquals(trigger.toString(),
+              interpreted.timerInternals.timers, compiled.timerInternals.timers);
+        }
+      }
+    }
+  }
+}
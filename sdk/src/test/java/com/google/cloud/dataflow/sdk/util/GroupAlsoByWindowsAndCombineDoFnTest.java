@@ -16,16 +16,40 @@
 
 package com.google.cloud.dataflow.sdk.util;
 
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.CoderRegistry;
+import com.google.cloud.dataflow.sdk.coders.ListCoder;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.coders.VarLongCoder;
+import com.google.cloud.dataflow.sdk.testing.WindowFnTestUtils;
 import com.google.cloud.dataflow.sdk.transforms.Combine.CombineFn;
 import com.google.cloud.dataflow.sdk.transforms.Combine.KeyedCombineFn;
 import com.google.cloud.dataflow.sdk.transforms.Sum;
 import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.IntervalWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.OutputTimeFns;
+import com.google.cloud.dataflow.sdk.transforms.windowing.PaneInfo;
+import com.google.cloud.dataflow.sdk.transforms.windowing.SlidingWindows;
 import com.google.cloud.dataflow.sdk.util.GroupAlsoByWindowsProperties.GroupAlsoByWindowsDoFnFactory;
+import com.google.cloud.dataflow.sdk.values.KV;
 
+import org.joda.time.Duration;
+import org.joda.time.Instant;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
 /** Unit tests for {@link GroupAlsoByWindowsAndCombineDoFn}. */
 @RunWith(JUnit4.class)
 public class GroupAlsoByWindowsAndCombineDoFnTest {
@@ -34,10 +58,18 @@ public class GroupAlsoByWindowsAndCombineDoFnTest {
   implements GroupAlsoByWindowsDoFnFactory<K, InputT, OutputT> {
 
     private final KeyedCombineFn<K, InputT, AccumT, OutputT> keyedCombineFn;
+    private final Coder<AccumT> accumulatorCoder;
 
     public GABWAndCombineDoFnFactory(
         KeyedCombineFn<K, InputT, AccumT, OutputT> keyedCombineFn) {
+      this(keyedCombineFn, null);
+    }
+
+    public GABWAndCombineDoFnFactory(
+        KeyedCombineFn<K, InputT, AccumT, OutputT> keyedCombineFn,
+        Coder<AccumT> accumulatorCoder) {
       this.keyedCombineFn = keyedCombineFn;
+      this.accumulatorCoder = accumulatorCoder;
     }
 
     @Override
@@ -46,7 +78,45 @@ public class GroupAlsoByWindowsAndCombineDoFnTest {
 
       return new GroupAlsoByWindowsAndCombineDoFn<K, InputT, AccumT, OutputT, W>(
           windowingStrategy,
-          keyedCombineFn);
+          keyedCombineFn,
+          accumulatorCoder);
+    }
+  }
+
+  /**
+   * Collects the values into a sorted list. Merging mutates the first accumulator, so sharing an
+   * accumulator between windows without copying it shows up in the output.
+   */
+  private static class ListCombineFn extends CombineFn<Long, List<Long>, List<Long>> {
+    @Override
+    public List<Long> createAccumulator() {
+      return new ArrayList<>();
+    }
+
+    @Override
+    public List<Long> addInput(List<Long> accumulator, Long input) {
+      accumulator.add(input);
+      return accumulator;
+    }
+
+    @Override
+    public List<Long> mergeAccumulators(Iterable<List<Long>> accumulators) {
+      List<Long> result = null;
+      for (List<Long> accumulator : accumulators) {
+        if (result == null) {
+          result = accumulator;
+        } else {
+          result.addAll(accumulator);
+        }
+      }
+      return result == null ? createAccumulator() : result;
+    }
+
+    @Override
+    public List<Long> extractOutput(List<Long> accumulator) {
+      List<Long> output = new ArrayList<>(accumulator);
+      Collections.sort(output);
+      return output;
     }
   }
 
@@ -65,6 +135,131 @@ public class GroupAlsoByWindowsAndCombineDoFnTest {
         combineFn);
   }
 
+  @Test
+  public void testCombinesElementsInSlidingWindowsWithSharedSlices() throws Exception {
+    CombineFn<Long, long[], Long> combineFn = new Sum.SumLongFn();
+    KeyedCombineFn<String, Long, long[], Long> keyedFn = combineFn.<String>asKeyedFn();
+
+    GroupAlsoByWindowsProperties.combinesElementsInSlidingWindows(
+        new GABWAndCombineDoFnFactory<>(keyedFn, keyedFn.getAccumulatorCoder(
+            new CoderRegistry(), StringUtf8Coder.of(), VarLongCoder.of())),
+        combineFn);
+  }
+
+  @Test
+  public void testSharedSlicesOnlyForOverlappingSlidingWindows() throws Exception {
+    ListCombineFn combineFn = new ListCombineFn();
+    Coder<List<Long>> accumulatorCoder = ListCoder.of(VarLongCoder.of());
+
+    assertTrue(newSlicingDoFn(combineFn, accumulatorCoder,
+        WindowingStrategy.of(SlidingWindows.of(Duration.millis(30)).every(Duration.millis(10))))
+        .usesSlices());
+    assertFalse(newSlicingDoFn(combineFn, null,
+        WindowingStrategy.of(SlidingWindows.of(Duration.millis(30)).every(Duration.millis(10))))
+        .usesSlices());
+    assertFalse(newSlicingDoFn(combineFn, accumulatorCoder,
+        WindowingStrategy.of(SlidingWindows.of(Duration.millis(10)).every(Duration.millis(10))))
+        .usesSlices());
+    assertFalse(newSlicingDoFn(combineFn, accumulatorCoder,
+        WindowingStrategy.of(SlidingWindows.of(Duration.millis(30)).every(Duration.millis(10)))
+            .withOutputTimeFn(OutputTimeFns.outputAtLatestInputTimestamp()))
+        .usesSlices());
+  }
+
+  @Test
+  public void testSharedSlicesMatchPerWindowCombining() throws Exception {
+    Random random = new Random(1234);
+    long[][] shapes =
+        {{30, 10, 0}, {25, 10, 3}, {60, 45, 7}, {20, 10, 0}, {100, 1, 0}, {150, 2, 1}};
+    for (long[] shape : shapes) {
+      SlidingWindows windowFn = SlidingWindows.of(Duration.millis(shape[0]))
+          .every(Duration.millis(shape[1])).withOffset(Duration.millis(shape[2]));
+      for (int round = 0; round < 20; round++) {
+        List<WindowedValue<Long>> input = new ArrayList<>();
+        long timestamp = random.nextInt(200) - 100;
+        for (int i = random.nextInt(50); i >= 0; i--) {
+          // Mostly dense input, with the occasional gap longer than a window.
+          timestamp += random.nextInt(10) == 0 ? random.nextInt(300) : random.nextInt(4);
+          input.add(valueInAssignedWindows(windowFn, (long) i, timestamp));
+        }
+        assertSameOutput(WindowingStrategy.of(windowFn), input);
+        assertSameOutput(WindowingStrategy.of(windowFn)
+            .withOutputTimeFn(OutputTimeFns.outputAtEndOfWindow()), input);
+      }
+    }
+  }
+
+  @Test
+  public void testSharedSlicesFallBackToPerWindowCombining() throws Exception {
+    SlidingWindows windowFn = SlidingWindows.of(Duration.millis(30)).every(Duration.millis(10));
+    WindowingStrategy<?, IntervalWindow> strategy = WindowingStrategy.of(windowFn);
+
+    // An element that is not in every window the WindowFn assigns to it.
+    List<WindowedValue<Long>> partiallyAssigned = new ArrayList<>();
+    for (long timestamp = 0; timestamp < 100; timestamp += 3) {
+      partiallyAssigned.add(valueInAssignedWindows(windowFn, timestamp, timestamp));
+    }
+    partiallyAssigned.add(WindowedValue.of(100L, new Instant(100),
+        new IntervalWindow(new Instant(90), new Instant(120)), PaneInfo.NO_FIRING));
+    partiallyAssigned.add(valueInAssignedWindows(windowFn, 101L, 101));
+    assertSameOutput(strategy, partiallyAssigned);
+
+    // An element that is out of timestamp order.
+    List<WindowedValue<Long>> unsorted = new ArrayList<>();
+    for (long timestamp = 0; timestamp < 100; timestamp += 3) {
+      unsorted.add(valueInAssignedWindows(windowFn, timestamp, timestamp));
+    }
+    unsorted.add(valueInAssignedWindows(windowFn, 50L, 50));
+    unsorted.add(valueInAssignedWindows(windowFn, 120L, 120));
+    assertSameOutput(strategy, unsorted);
+  }
+
+  @Test
+  public void testSharedSlicesForManyOverlappingWindows() throws Exception {
+    // Every timestamp is in 100 windows, more than fit in a long bitmask.
+    SlidingWindows windowFn = SlidingWindows.of(Duration.millis(100)).every(Duration.millis(1));
+    List<IntervalWindow> windows =
+        new ArrayList<>(WindowFnTestUtils.assignedWindows(windowFn, 7));
+    assertThat(windows.size(), equalTo(100));
+    assertTrue(
+        GroupAlsoByWindowsAndCombineDoFn.isAssignedBySlidingWindows(windowFn, 7, windows));
+
+    List<IntervalWindow> missing = new ArrayList<>(windows.subList(1, windows.size()));
+    assertFalse(
+        GroupAlsoByWindowsAndCombineDoFn.isAssignedBySlidingWindows(windowFn, 7, missing));
+    List<IntervalWindow> duplicated = new ArrayList<>(missing);
+    duplicated.add(windows.get(1));
+    assertFalse(
+        GroupAlsoByWindowsAndCombineDoFn.isAssignedBySlidingWindows(windowFn, 7, duplicated));
+  }
+
+  private static <W extends BoundedWindow>
+      GroupAlsoByWindowsAndCombineDoFn<String, Long, List<Long>, List<Long>, W> newSlicingDoFn(
+          ListCombineFn combineFn, Coder<List<Long>> accumulatorCoder,
+          WindowingStrategy<?, W> windowingStrategy) {
+    return new GroupAlsoByWindowsAndCombineDoFn<>(
+        windowingStrategy, combineFn.<String>asKeyedFn(), accumulatorCoder);
+  }
+
+  private static WindowedValue<Long> valueInAssignedWindows(
+      SlidingWindows windowFn, long value, long timestamp) throws Exception {
+    Collection<IntervalWindow> windows = WindowFnTestUtils.assignedWindows(windowFn, timestamp);
+    return WindowedValue.of(value, new Instant(timestamp), windows, PaneInfo.NO_FIRING);
+  }
+
+  private void assertSameOutput(
+      WindowingStrategy<?, IntervalWindow> strategy, List<WindowedValue<Long>> input)
+      throws Exception {
+    KeyedCombineFn<String, Long, List<Long>, List<Long>> keyedFn =
+        new ListCombineFn().<String>asKeyedFn();
+    List<WindowedValue<KV<String, List<Long>>>> expected = GroupAlsoByWindowsProperties.runGABW(
+        new GABWAndCombineDoFnFactory<>(keyedFn), strategy, "k", input);
+    List<WindowedValue<KV<String, List<Long>>>> actual = GroupAlsoByWindowsProperties.runGABW(
+        new GABWAndCombineDoFnFactory<>(keyedFn, ListCoder.of(VarLongCoder.of())),
+        strategy, "k", input);
+    assertThat(actual, equalTo(expected));
+  }
+
   @Test
   public void testCombinesIntoSessions() throws Exception {
     CombineFn<Long, ?, Long> combineFn = new Sum.SumLongFn();
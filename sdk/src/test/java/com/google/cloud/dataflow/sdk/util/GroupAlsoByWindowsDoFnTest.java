@@ -28,6 +28,7 @@ import com.google.cloud.dataflow.sdk.transforms.Sum;
 import com.google.cloud.dataflow.sdk.transforms.windowing.AfterPane;
 import com.google.cloud.dataflow.sdk.transforms.windowing.FixedWindows;
 import com.google.cloud.dataflow.sdk.transforms.windowing.IntervalWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.OutputTimeFns;
 import com.google.cloud.dataflow.sdk.transforms.windowing.Sessions;
 
 import org.joda.time.Duration;
@@ -61,7 +62,19 @@ public class GroupAlsoByWindowsDoFnTest {
 
     assertThat(
         GroupAlsoByWindowsDoFn.createForIterable(windowingStrategy, inputCoder),
-        instanceOf(GroupAlsoByWindowsViaOutputBufferDoFn.class));
+        instanceOf(GroupAlsoByWindowsViaSessionIteratorsDoFn.class));
+  }
+
+  @Test
+  public void testCreateNoncombiningWithLatestTimestamp() throws Exception {
+    Coder<Long> inputCoder = VarLongCoder.of();
+    WindowingStrategy<?, IntervalWindow> windowingStrategy =
+        WindowingStrategy.of(FixedWindows.of(Duration.millis(10)))
+        .withOutputTimeFn(OutputTimeFns.outputAtLatestInputTimestamp());
+
+    assertThat(
+        GroupAlsoByWindowsDoFn.createForIterable(windowingStrategy, inputCoder),
+        instanceOf(GroupAlsoByWindowsViaWindowBuffersDoFn.class));
   }
 
   @Test
@@ -652,7 +652,7 @@ public class GroupAlsoByWindowsProperties {
     return runGABW(gabwFactory, windowingStrategy, key, Arrays.asList(values));
   }
 
-  private static <K, InputT, OutputT, W extends BoundedWindow>
+  static <K, InputT, OutputT, W extends BoundedWindow>
   List<WindowedValue<KV<K, OutputT>>> runGABW(
       GroupAlsoByWindowsDoFnFactory<K, InputT, OutputT> gabwFactory,
       WindowingStrategy<?, W> windowingStrategy,
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.options.PipelineOptionsFactory;
+import com.google.cloud.dataflow.sdk.transforms.DoFnTester;
+import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.IntervalWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.PaneInfo;
+import com.google.cloud.dataflow.sdk.transforms.windowing.Sessions;
+import com.google.cloud.dataflow.sdk.util.GroupAlsoByWindowsProperties.GroupAlsoByWindowsDoFnFactory;
+import com.google.cloud.dataflow.sdk.util.common.CounterSet;
+import com.google.cloud.dataflow.sdk.util.common.Reiterable;
+import com.google.cloud.dataflow.sdk.util.common.Reiterator;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.cloud.dataflow.sdk.values.TupleTag;
+import com.google.common.collect.ImmutableList;
+
+import org.hamcrest.Matchers;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit tests for {@link GroupAlsoByWindowsViaSessionIteratorsDoFn}.
+ */
+@RunWith(JUnit4.class)
+public class GroupAlsoByWindowsViaSessionIteratorsDoFnTest {
+
+  @Rule
+  public final transient ExpectedException thrown = ExpectedException.none();
+
+  private class GABWViaSessionIteratorsDoFnFactory<K, InputT>
+  implements GroupAlsoByWindowsDoFnFactory<K, InputT, Iterable<InputT>> {
+    private final Coder<InputT> inputCoder;
+
+    public GABWViaSessionIteratorsDoFnFactory(Coder<InputT> inputCoder) {
+      this.inputCoder = inputCoder;
+    }
+
+    @Override
+    public <W extends BoundedWindow> GroupAlsoByWindowsDoFn<K, InputT, Iterable<InputT>, W>
+        forStrategy(WindowingStrategy<?, W> windowingStrategy) {
+      return new GroupAlsoByWindowsViaSessionIteratorsDoFn<K, InputT, W>(
+          windowingStrategy, inputCoder);
+    }
+  }
+
+  private class GABWViaOutputBufferDoFnFactory<K, InputT>
+  implements GroupAlsoByWindowsDoFnFactory<K, InputT, Iterable<InputT>> {
+    private final Coder<InputT> inputCoder;
+
+    public GABWViaOutputBufferDoFnFactory(Coder<InputT> inputCoder) {
+      this.inputCoder = inputCoder;
+    }
+
+    @Override
+    public <W extends BoundedWindow> GroupAlsoByWindowsDoFn<K, InputT, Iterable<InputT>, W>
+        forStrategy(WindowingStrategy<?, W> windowingStrategy) {
+      return new GroupAlsoByWindowsViaOutputBufferDoFn<K, InputT, Iterable<InputT>, W>(
+          windowingStrategy, SystemReduceFn.<K, InputT, W>buffering(inputCoder));
+    }
+  }
+
+  @Test
+  public void testGroupsElementsInMergedSessions() throws Exception {
+    GroupAlsoByWindowsProperties.groupsElementsInMergedSessions(
+        new GABWViaSessionIteratorsDoFnFactory<String, String>(StringUtf8Coder.of()));
+  }
+
+  @Test
+  public void testGroupsElementsInMergedSessionsWithEndOfWindowTimestamp() throws Exception {
+    GroupAlsoByWindowsProperties.groupsElementsInMergedSessionsWithEndOfWindowTimestamp(
+        new GABWViaSessionIteratorsDoFnFactory<String, String>(StringUtf8Coder.of()));
+  }
+
+  @Test
+  public void testLatestTimestampNotSupported() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("OutputTimeFn");
+    thrown.expectMessage("not support");
+
+    GroupAlsoByWindowsProperties.groupsElementsInMergedSessionsWithLatestTimestamp(
+        new GABWViaSessionIteratorsDoFnFactory<String, String>(StringUtf8Coder.of()));
+  }
+
+  @Test
+  public void testNonSessionsNotSupported() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Sessions");
+    thrown.expectMessage("not support");
+
+    GroupAlsoByWindowsProperties.groupsElementsIntoFixedWindows(
+        new GABWViaSessionIteratorsDoFnFactory<String, String>(StringUtf8Coder.of()));
+  }
+
+  @Test
+  public void testSessionValuesAreReiterable() throws Exception {
+    List<WindowedValue<KV<String, Iterable<String>>>> result = GroupAlsoByWindowsProperties.runGABW(
+        new GABWViaSessionIteratorsDoFnFactory<String, String>(StringUtf8Coder.of()),
+        WindowingStrategy.of(Sessions.withGapDuration(Duration.millis(10))),
+        "k",
+        Arrays.asList(
+            valueInSession("v1", 0, 10),
+            valueInSession("v2", 5, 10),
+            valueInSession("v3", 20, 10),
+            valueInSession("v4", 25, 10)));
+
+    assertThat(result.size(), equalTo(2));
+    // Iterating the later session first must not disturb the earlier one.
+    assertThat(result.get(1).getValue().getValue(), contains("v3", "v4"));
+    assertThat(result.get(0).getValue().getValue(), contains("v1", "v2"));
+    assertThat(result.get(0).getValue().getValue(), contains("v1", "v2"));
+    assertThat(result.get(1).getValue().getValue(), contains("v3", "v4"));
+  }
+
+  @Test
+  public void testUnsortedInputFallsBackToOutputBuffer() throws Exception {
+    assertMatchesOutputBuffer(
+        WindowingStrategy.of(Sessions.withGapDuration(Duration.millis(10))),
+        Arrays.asList(valueInSession("v1", 5, 10), valueInSession("v2", 0, 10)));
+  }
+
+  @Test
+  public void testOutOfOrderWindowsFallBackToOutputBuffer() throws Exception {
+    // Sorted by timestamp, but the second window starts before the first one.
+    List<WindowedValue<KV<String, Iterable<String>>>> result = assertMatchesOutputBuffer(
+        WindowingStrategy.of(Sessions.withGapDuration(Duration.millis(10))),
+        Arrays.asList(
+            valueInWindow("v1", 0, 10, 20),
+            valueInWindow("v2", 5, 0, 8),
+            valueInWindow("v3", 6, 15, 30),
+            valueInWindow("v4", 7, 40, 50)));
+
+    List<BoundedWindow> windows = new ArrayList<>();
+    for (WindowedValue<?> session : result) {
+      windows.addAll(session.getWindows());
+    }
+    assertThat(windows, Matchers.<BoundedWindow>containsInAnyOrder(
+        new IntervalWindow(new Instant(0), new Instant(8)),
+        new IntervalWindow(new Instant(10), new Instant(30)),
+        new IntervalWindow(new Instant(40), new Instant(50))));
+  }
+
+  @Test
+  public void testOutputsSessionsBeforeEndOfKey() throws Exception {
+    DoFnTester<KV<String, Iterable<WindowedValue<String>>>, KV<String, Iterable<String>>> tester =
+        DoFnTester.of(new GroupAlsoByWindowsViaSessionIteratorsDoFn<String, String, IntervalWindow>(
+            WindowingStrategy.of(Sessions.withGapDuration(Duration.millis(10))),
+            StringUtf8Coder.of()));
+    RecordingReiterable<WindowedValue<String>> input = new RecordingReiterable<>(tester,
+        Arrays.asList(
+            valueInSession("v1", 0, 10),
+            valueInSession("v2", 5, 10),
+            valueInSession("v3", 20, 10),
+            valueInSession("v4", 40, 10)));
+
+    List<KV<String, Iterable<String>>> result =
+        tester.processBatch(KV.<String, Iterable<WindowedValue<String>>>of("k", input));
+
+    // Each session is output once the first element after it has been read.
+    assertThat(input.outputsAtFirstRead, contains(0, 0, 0, 1));
+    assertThat(result.size(), equalTo(3));
+    assertThat(result.get(0).getValue(), contains("v1", "v2"));
+    assertThat(result.get(1).getValue(), contains("v3"));
+    assertThat(result.get(2).getValue(), contains("v4"));
+  }
+
+  @Test
+  public void testOutOfOrderWindowAfterOutputGroupsRestOfKey() throws Exception {
+    WindowingStrategy<?, IntervalWindow> strategy =
+        WindowingStrategy.of(Sessions.withGapDuration(Duration.millis(10)));
+    TupleTag<KV<String, Iterable<String>>> outputTag = new TupleTag<>();
+    DoFnRunnerBase.ListOutputManager outputManager = new DoFnRunnerBase.ListOutputManager();
+    CounterSet counters = new CounterSet();
+    DoFnRunner<KV<String, Iterable<WindowedValue<String>>>, KV<String, Iterable<String>>> runner =
+        DoFnRunners.simpleRunner(
+            PipelineOptionsFactory.create(),
+            new GroupAlsoByWindowsViaSessionIteratorsDoFn<String, String, IntervalWindow>(
+                strategy, StringUtf8Coder.of()),
+            NullSideInputReader.empty(),
+            outputManager,
+            outputTag,
+            new ArrayList<TupleTag<?>>(),
+            DirectModeExecutionContext.create()
+                .getOrCreateStepContext("GABWStep", "GABWTransform", null),
+            counters.getAddCounterMutator(),
+            strategy);
+
+    // The session of v1 is output when v2 is read. The window of v3 starts before the session of
+    // v2, so v2 and the elements after it are grouped by buffering.
+    List<WindowedValue<String>> input = Arrays.asList(
+        valueInWindow("v1", 0, 0, 10),
+        valueInWindow("v2", 20, 20, 30),
+        valueInWindow("v3", 25, 12, 18),
+        valueInWindow("v4", 26, 26, 36));
+    runner.startBundle();
+    runner.processElement(WindowedValue.valueInEmptyWindows(
+        KV.of("k", (Iterable<WindowedValue<String>>) input)));
+    runner.finishBundle();
+
+    List<WindowedValue<KV<String, Iterable<String>>>> result = outputManager.getOutput(outputTag);
+    assertThat(result.size(), equalTo(3));
+    assertThat(result.get(0).getWindows(), Matchers.<BoundedWindow>contains(
+        new IntervalWindow(new Instant(0), new Instant(10))));
+    assertThat(result.get(0).getValue().getValue(), contains("v1"));
+    List<BoundedWindow> windows = new ArrayList<>();
+    for (WindowedValue<?> session : result) {
+      windows.addAll(session.getWindows());
+    }
+    assertThat(windows, Matchers.<BoundedWindow>containsInAnyOrder(
+        new IntervalWindow(new Instant(0), new Instant(10)),
+        new IntervalWindow(new Instant(12), new Instant(18)),
+        new IntervalWindow(new Instant(20), new Instant(36))));
+    assertThat(counters.getExistingCounter(
+        "GABWStep-" + GroupAlsoByWindowsViaSessionIteratorsDoFn.OUT_OF_ORDER_SESSIONS_COUNTER)
+        .getAggregate(), Matchers.<Object>equalTo(1L));
+  }
+
+  @Test
+  public void testMatchesOutputBuffer() throws Exception {
+    Random random = new Random(1234);
+    for (int round = 0; round < 50; round++) {
+      long gap = 1 + random.nextInt(20);
+      WindowingStrategy<?, IntervalWindow> strategy =
+          WindowingStrategy.of(Sessions.withGapDuration(Duration.millis(gap)));
+      List<WindowedValue<String>> input = new ArrayList<>();
+      long timestamp = random.nextInt(100) - 50;
+      for (int i = random.nextInt(100); i >= 0; i--) {
+        timestamp += random.nextInt((int) (2 * gap));
+        input.add(valueInSession("v" + i, timestamp, gap));
+      }
+
+      assertMatchesOutputBuffer(strategy, input);
+    }
+  }
+
+  private List<WindowedValue<KV<String, Iterable<String>>>> assertMatchesOutputBuffer(
+      WindowingStrategy<?, IntervalWindow> strategy, List<WindowedValue<String>> input)
+      throws Exception {
+    List<WindowedValue<KV<String, Iterable<String>>>> expected =
+        GroupAlsoByWindowsProperties.runGABW(
+            new GABWViaOutputBufferDoFnFactory<String, String>(StringUtf8Coder.of()),
+            strategy, "k", input);
+    List<WindowedValue<KV<String, Iterable<String>>>> actual =
+        GroupAlsoByWindowsProperties.runGABW(
+            new GABWViaSessionIteratorsDoFnFactory<String, String>(StringUtf8Coder.of()),
+            strategy, "k", input);
+
+    assertThat(actual.size(), equalTo(expected.size()));
+    for (int i = 0; i < expected.size(); i++) {
+      assertThat(ImmutableList.copyOf(actual.get(i).getWindows()),
+          equalTo(ImmutableList.copyOf(expected.get(i).getWindows())));
+      assertThat(actual.get(i).getTimestamp(), equalTo(expected.get(i).getTimestamp()));
+      assertThat(actual.get(i).getPane(), equalTo(expected.get(i).getPane()));
+      assertThat(ImmutableList.copyOf(actual.get(i).getValue().getValue()),
+          equalTo(ImmutableList.copyOf(expected.get(i).getValue().getValue())));
+    }
+    return actual;
+  }
+
+  /**
+   * A {@link Reiterable} over a list that records, for each element, how many outputs a
+   * {@link DoFnTester} had when the element was first read.
+   */
+  private static class RecordingReiterable<T> implements Reiterable<T> {
+    private final DoFnTester<?, ?> tester;
+    private final List<T> values;
+    private final List<Integer> outputsAtFirstRead = new ArrayList<>();
+
+    private RecordingReiterable(DoFnTester<?, ?> tester, List<T> values) {
+      this.tester = tester;
+      this.values = values;
+    }
+
+    @Override
+    public Reiterator<T> iterator() {
+      return new RecordingReiterator(0);
+    }
+
+    private class RecordingReiterator implements Reiterator<T> {
+      private int index;
+
+      private RecordingReiterator(int index) {
+        this.index = index;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return index < values.size();
+      }
+
+      @Override
+      public T next() {
+        if (index == outputsAtFirstRead.size()) {
+          outputsAtFirstRead.add(tester.peekOutputElements().size());
+        }
+        return values.get(index++);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Reiterator<T> copy() {
+        return new RecordingReiterator(index);
+      }
+    }
+  }
+
+  private static WindowedValue<String> valueInSession(String value, long timestamp, long gap) {
+    return WindowedValue.of(value, new Instant(timestamp),
+        new IntervalWindow(new Instant(timestamp), new Instant(timestamp + gap)),
+        PaneInfo.NO_FIRING);
+  }
+
+  private static WindowedValue<String> valueInWindow(
+      String value, long timestamp, long start, long end) {
+    return WindowedValue.of(value, new Instant(timestamp),
+        new IntervalWindow(new Instant(start), new Instant(end)), PaneInfo.NO_FIRING);
+  }
+}
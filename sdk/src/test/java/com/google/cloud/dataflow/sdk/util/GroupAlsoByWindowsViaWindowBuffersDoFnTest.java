@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.transforms.windowing.AfterPane;
+import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.FixedWindows;
+import com.google.cloud.dataflow.sdk.transforms.windowing.IntervalWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.MergeOverlappingIntervalWindows;
+import com.google.cloud.dataflow.sdk.transforms.windowing.OutputTimeFns;
+import com.google.cloud.dataflow.sdk.transforms.windowing.PaneInfo;
+import com.google.cloud.dataflow.sdk.transforms.windowing.SlidingWindows;
+import com.google.cloud.dataflow.sdk.transforms.windowing.WindowFn;
+import com.google.cloud.dataflow.sdk.util.GroupAlsoByWindowsProperties.GroupAlsoByWindowsDoFnFactory;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit tests for {@link GroupAlsoByWindowsViaWindowBuffersDoFn}.
+ */
+@RunWith(JUnit4.class)
+public class GroupAlsoByWindowsViaWindowBuffersDoFnTest {
+
+  @Rule
+  public final transient ExpectedException thrown = ExpectedException.none();
+
+  private class GABWViaWindowBuffersDoFnFactory<K, InputT>
+  implements GroupAlsoByWindowsDoFnFactory<K, InputT, Iterable<InputT>> {
+    @Override
+    public <W extends BoundedWindow> GroupAlsoByWindowsDoFn<K, InputT, Iterable<InputT>, W>
+        forStrategy(WindowingStrategy<?, W> windowingStrategy) {
+      return new GroupAlsoByWindowsViaWindowBuffersDoFn<K, InputT, W>(windowingStrategy);
+    }
+  }
+
+  private class GABWViaOutputBufferDoFnFactory<K, InputT>
+  implements GroupAlsoByWindowsDoFnFactory<K, InputT, Iterable<InputT>> {
+    private final Coder<InputT> inputCoder;
+
+    public GABWViaOutputBufferDoFnFactory(Coder<InputT> inputCoder) {
+      this.inputCoder = inputCoder;
+    }
+
+    @Override
+    public <W extends BoundedWindow> GroupAlsoByWindowsDoFn<K, InputT, Iterable<InputT>, W>
+        forStrategy(WindowingStrategy<?, W> windowingStrategy) {
+      return new GroupAlsoByWindowsViaOutputBufferDoFn<K, InputT, Iterable<InputT>, W>(
+          windowingStrategy, SystemReduceFn.<K, InputT, W>buffering(inputCoder));
+    }
+  }
+
+  /**
+   * A merging {@link WindowFn} that, unlike {@code Sessions}, assigns windows starting before the
+   * timestamp of the element.
+   */
+  private static class PaddedSessions extends WindowFn<Object, IntervalWindow> {
+    private final long padding;
+    private final long gap;
+
+    private PaddedSessions(long padding, long gap) {
+      this.padding = padding;
+      this.gap = gap;
+    }
+
+    @Override
+    public Collection<IntervalWindow> assignWindows(AssignContext c) {
+      return Arrays.asList(new IntervalWindow(
+          c.timestamp().minus(padding), c.timestamp().plus(gap)));
+    }
+
+    @Override
+    public void mergeWindows(MergeContext c) throws Exception {
+      MergeOverlappingIntervalWindows.mergeWindows(c);
+    }
+
+    @Override
+    public boolean isCompatible(WindowFn<?, ?> other) {
+      return other instanceof PaddedSessions;
+    }
+
+    @Override
+    public Coder<IntervalWindow> windowCoder() {
+      return IntervalWindow.getCoder();
+    }
+
+    @Override
+    public IntervalWindow getSideInputWindow(BoundedWindow window) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  @Test
+  public void testGroupsElementsIntoFixedWindows() throws Exception {
+    GroupAlsoByWindowsProperties.groupsElementsIntoFixedWindows(
+        new GABWViaWindowBuffersDoFnFactory<String, String>());
+  }
+
+  @Test
+  public void testGroupsElementsIntoSlidingWindows() throws Exception {
+    GroupAlsoByWindowsProperties.groupsElementsIntoSlidingWindows(
+        new GABWViaWindowBuffersDoFnFactory<String, String>());
+  }
+
+  @Test
+  public void testGroupsElementsInMergedSessions() throws Exception {
+    GroupAlsoByWindowsProperties.groupsElementsInMergedSessions(
+        new GABWViaWindowBuffersDoFnFactory<String, String>());
+  }
+
+  @Test
+  public void testGroupsElementsIntoFixedWindowsWithLatestTimestamp() throws Exception {
+    GroupAlsoByWindowsProperties.groupsElementsIntoFixedWindowsWithLatestTimestamp(
+        new GABWViaWindowBuffersDoFnFactory<String, String>());
+  }
+
+  @Test
+  public void testGroupsElementsInMergedSessionsWithLatestTimestamp() throws Exception {
+    GroupAlsoByWindowsProperties.groupsElementsInMergedSessionsWithLatestTimestamp(
+        new GABWViaWindowBuffersDoFnFactory<String, String>());
+  }
+
+  @Test
+  public void testGroupsElementsInMergedSessionsWithEndOfWindowTimestamp() throws Exception {
+    GroupAlsoByWindowsProperties.groupsElementsInMergedSessionsWithEndOfWindowTimestamp(
+        new GABWViaWindowBuffersDoFnFactory<String, String>());
+  }
+
+  @Test
+  public void testNonDefaultTriggerNotSupported() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("not support");
+
+    new GroupAlsoByWindowsViaWindowBuffersDoFn<String, String, IntervalWindow>(
+        WindowingStrategy.of(FixedWindows.of(Duration.millis(10)))
+            .withTrigger(AfterPane.<IntervalWindow>elementCountAtLeast(1)));
+  }
+
+  @Test
+  public void testMatchesOutputBufferForMergingWindows() throws Exception {
+    Random random = new Random(1234);
+    for (int round = 0; round < 50; round++) {
+      long padding = random.nextInt(10);
+      long gap = 1 + random.nextInt(20);
+      checkMatchesOutputBuffer(
+          WindowingStrategy.of(new PaddedSessions(padding, gap))
+              .withOutputTimeFn(OutputTimeFns.outputAtLatestInputTimestamp()),
+          randomInput(random, 200, 2 * gap));
+    }
+  }
+
+  @Test
+  public void testMatchesOutputBufferForMergingWindowsAcrossChunks() throws Exception {
+    Random random = new Random(1234);
+    for (int round = 0; round < 5; round++) {
+      long gap = 1 + random.nextInt(20);
+      checkMatchesOutputBuffer(
+          WindowingStrategy.of(new PaddedSessions(0, gap))
+              .withOutputTimeFn(OutputTimeFns.outputAtLatestInputTimestamp()),
+          randomInput(random, 3000, 2 * gap));
+    }
+  }
+
+  @Test
+  public void testMatchesOutputBufferForSlidingWindows() throws Exception {
+    Random random = new Random(1234);
+    for (int round = 0; round < 20; round++) {
+      long period = 1 + random.nextInt(10);
+      long size = period * (1 + random.nextInt(4));
+      checkMatchesOutputBuffer(
+          WindowingStrategy.of(SlidingWindows.of(Duration.millis(size))
+              .every(Duration.millis(period)))
+              .withOutputTimeFn(OutputTimeFns.outputAtLatestInputTimestamp()),
+          randomInput(random, 200, period));
+    }
+  }
+
+  private List<Instant> randomInput(Random random, int maxSize, long maxStep) {
+    List<Instant> timestamps = new ArrayList<>();
+    long timestamp = random.nextInt(100) - 50;
+    for (int i = random.nextInt(maxSize); i >= 0; i--) {
+      timestamp += random.nextInt((int) maxStep);
+      timestamps.add(new Instant(timestamp));
+    }
+    return timestamps;
+  }
+
+  private <W extends BoundedWindow> void checkMatchesOutputBuffer(
+      WindowingStrategy<?, W> strategy, List<Instant> timestamps) throws Exception {
+    @SuppressWarnings("unchecked")
+    WindowFn<Object, W> windowFn = (WindowFn<Object, W>) strategy.getWindowFn();
+    List<WindowedValue<String>> input = new ArrayList<>();
+    for (int i = 0; i < timestamps.size(); i++) {
+      final Instant timestamp = timestamps.get(i);
+      final String value = "v" + i;
+      Collection<W> windows = windowFn.assignWindows(windowFn.new AssignContext() {
+        @Override
+        public Object element() {
+          return value;
+        }
+
+        @Override
+        public Instant timestamp() {
+          return timestamp;
+        }
+
+        @Override
+        public Collection<? extends BoundedWindow> windows() {
+          return Collections.emptyList();
+        }
+      });
+      input.add(WindowedValue.of(value, timestamp, windows, PaneInfo.NO_FIRING));
+    }
+
+    List<WindowedValue<KV<String, Iterable<String>>>> expected = byWindow(
+        GroupAlsoByWindowsProperties.runGABW(
+            new GABWViaOutputBufferDoFnFactory<String, String>(StringUtf8Coder.of()),
+            strategy, "k", input));
+    List<WindowedValue<KV<String, Iterable<String>>>> actual = byWindow(
+        GroupAlsoByWindowsProperties.runGABW(
+            new GABWViaWindowBuffersDoFnFactory<String, String>(), strategy, "k", input));
+
+    assertThat(actual.size(), equalTo(expected.size()));
+    for (int i = 0; i < expected.size(); i++) {
+      assertThat(ImmutableList.copyOf(actual.get(i).getWindows()),
+          equalTo(ImmutableList.copyOf(expected.get(i).getWindows())));
+      assertThat(actual.get(i).getTimestamp(), equalTo(expected.get(i).getTimestamp()));
+      assertThat(actual.get(i).getPane(), equalTo(expected.get(i).getPane()));
+      assertThat(Ordering.natural().sortedCopy(actual.get(i).getValue().getValue()),
+          equalTo(Ordering.natural().sortedCopy(expected.get(i).getValue().getValue())));
+    }
+  }
+
+  private static <T> List<WindowedValue<T>> byWindow(List<WindowedValue<T>> values) {
+    List<WindowedValue<T>> sorted = new ArrayList<>(values);
+    Collections.sort(sorted, new Comparator<WindowedValue<T>>() {
+      @Override
+      public int compare(WindowedValue<T> v1, WindowedValue<T> v2) {
+        IntervalWindow w1 = (IntervalWindow) v1.getWindows().iterator().next();
+        IntervalWindow w2 = (IntervalWindow) v2.getWindows().iterator().next();
+        int cmp = w1.start().compareTo(w2.start());
+        return cmp != 0 ? cmp : w1.end().compareTo(w2.end());
+      }
+    });
+    return sorted;
+  }
+}
@@ -20,9 +20,12 @@ import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 
+import com.google.cloud.dataflow.sdk.coders.Coder;
 import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
 import com.google.cloud.dataflow.sdk.transforms.windowing.IntervalWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.MergeOverlappingIntervalWindows;
 import com.google.cloud.dataflow.sdk.transforms.windowing.Sessions;
+import com.google.cloud.dataflow.sdk.transforms.windowing.WindowFn;
 import com.google.cloud.dataflow.sdk.util.state.InMemoryStateInternals;
 import com.google.cloud.dataflow.sdk.util.state.StateInternals;
 import com.google.common.collect.ImmutableList;
@@ -36,7 +39,10 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Random;
 
 /**
  * Test NonMergingActiveWindowSet.
@@ -172,4 +178,161 @@ public class MergingActiveWindowSetTest {
 
     pruneAndPersist();
   }
+
+  @Test
+  public void testCompactStateAddresses() throws Exception {
+    @SuppressWarnings("unchecked")
+    ActiveWindowSet.MergeCallback<IntervalWindow> callback =
+        mock(ActiveWindowSet.MergeCallback.class);
+
+    // ACTIVE 1+24 (target 1+10, 15+10)
+    add(1);
+    add(15);
+    merge(callback);
+    add(8);
+    merge(callback);
+    assertEquals(ImmutableSet.of(window(1, 24)), set.getActiveWindows());
+    assertEquals(ImmutableSet.of(window(1, 10), window(15, 10)),
+        set.readStateAddresses(window(1, 24)));
+
+    // ACTIVE 1+24 (target is the previous write address)
+    // EPHEMERAL the other previous target -> 1+24
+    IntervalWindow writeStateAddress = set.writeStateAddress(window(1, 24));
+    set.compactStateAddresses(window(1, 24));
+    set.checkInvariants();
+    assertEquals(ImmutableSet.of(writeStateAddress), set.readStateAddresses(window(1, 24)));
+    assertEquals(writeStateAddress, set.writeStateAddress(window(1, 24)));
+    assertEquals(window(1, 24), set.representative(window(1, 10)));
+    assertEquals(window(1, 24), set.representative(window(15, 10)));
+
+    pruneAndPersist();
+    set = new MergingActiveWindowSet<>(windowFn, state);
+    set.checkInvariants();
+    assertEquals(ImmutableSet.of(writeStateAddress), set.readStateAddresses(window(1, 24)));
+  }
+
+  /**
+   * Merges overlapping {@link IntervalWindow}s like {@link Sessions}, but is not
+   * {@link Sessions}, so windows are always merged through {@link WindowFn#mergeWindows}.
+   */
+  private static class MergeOverlappingWindowFn extends WindowFn<Object, IntervalWindow> {
+    @Override
+    public Collection<IntervalWindow> assignWindows(AssignContext c) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void mergeWindows(MergeContext c) throws Exception {
+      MergeOverlappingIntervalWindows.mergeWindows(c);
+    }
+
+    @Override
+    public boolean isCompatible(WindowFn<?, ?> other) {
+      return other instanceof MergeOverlappingWindowFn;
+    }
+
+    @Override
+    public Coder<IntervalWindow> windowCoder() {
+      return IntervalWindow.getCoder();
+    }
+
+    @Override
+    public IntervalWindow getSideInputWindow(BoundedWindow window) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Records the merges made by an {@link ActiveWindowSet}.
+   */
+  private static class RecordingMergeCallback
+      implements ActiveWindowSet.MergeCallback<IntervalWindow> {
+    private final List<List<Object>> merges = new ArrayList<>();
+
+    @Override
+    public void onMerge(Collection<IntervalWindow> toBeMerged,
+        Collection<IntervalWindow> activeToBeMerged, IntervalWindow mergeResult) {
+      merges.add(ImmutableList.<Object>of(ImmutableList.copyOf(toBeMerged),
+          ImmutableList.copyOf(activeToBeMerged), mergeResult));
+    }
+  }
+
+  /**
+   * Verifies that merging {@link Sessions} through the ordered index makes the same merges as
+   * merging through {@link WindowFn#mergeWindows}.
+   */
+  @Test
+  public void testSessionIndexMatchesMergeWindows() throws Exception {
+    Random random = new Random(17);
+    StateInternals expectedState = new InMemoryStateInternals();
+    MergingActiveWindowSet<IntervalWindow> expectedSet =
+        new MergingActiveWindowSet<>(new MergeOverlappingWindowFn(), expectedState);
+
+    for (int round = 0; round < 500; round++) {
+      int numWindows = 1 + random.nextInt(4);
+      for (int i = 0; i < numWindows; i++) {
+        // Like the windows assigned by windowFn, all NEW windows have the same size.
+        IntervalWindow window = window(random.nextInt(2000), 10);
+        set.addNew(window);
+        expectedSet.addNew(window);
+      }
+      RecordingMergeCallback callback = new RecordingMergeCallback();
+      RecordingMergeCallback expectedCallback = new RecordingMergeCallback();
+      set.merge(callback);
+      expectedSet.merge(expectedCallback);
+      set.checkInvariants();
+
+      assertEquals(expectedCallback.merges, callback.merges);
+      assertEquals(expectedSet.getActiveWindows(), set.getActiveWindows());
+      for (IntervalWindow active : set.getActiveWindows()) {
+        assertEquals(expectedSet.readStateAddresses(active), set.readStateAddresses(active));
+      }
+
+      if (round % 50 == 49) {
+        // Expire an ACTIVE window.
+        IntervalWindow expired = set.getActiveWindows().iterator().next();
+        set.remove(expired);
+        expectedSet.remove(expired);
+      }
+      set.removeEphemeralWindows();
+      expectedSet.removeEphemeralWindows();
+      if (round % 10 == 9) {
+        // Start a new work unit from the persisted state.
+        set.persist();
+        set = new MergingActiveWindowSet<>(windowFn, state);
+        expectedSet.persist();
+        expectedSet = new MergingActiveWindowSet<>(new MergeOverlappingWindowFn(), expectedState);
+      }
+    }
+  }
+
+  /**
+   * Merges into a key with thousands of sessions.
+   */
+  @Test
+  public void testManySessions() throws Exception {
+    int numSessions = 5000;
+    for (int i = 0; i < numSessions; i++) {
+      set.addNew(window(i * 20, 10));
+    }
+    RecordingMergeCallback callback = new RecordingMergeCallback();
+    set.merge(callback);
+    assertEquals(0, callback.merges.size());
+    assertEquals(numSessions, set.getActiveWindows().size());
+
+    // Each new window bridges two neighbouring sessions.
+    for (int round = 0; round < 1000; round++) {
+      set.addNew(window(round * 40 + 5, 20));
+      set.merge(callback);
+      assertEquals(round + 1, callback.merges.size());
+      assertEquals(ImmutableList.of(
+              ImmutableList.of(window(round * 40, 10), window(round * 40 + 5, 20),
+                  window(round * 40 + 20, 10)),
+              ImmutableList.of(window(round * 40, 10), window(round * 40 + 20, 10)),
+              window(round * 40, 30)),
+          callback.merges.get(round));
+    }
+    set.checkInvariants();
+    assertEquals(numSessions - 1000, set.getActiveWindows().size());
+  }
 }
@@ -31,6 +31,7 @@ import static org.mockito.Mockito.when;
 
 import com.google.cloud.dataflow.sdk.WindowMatchers;
 import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.cloud.dataflow.sdk.transforms.Combine.CombineFn;
 import com.google.cloud.dataflow.sdk.transforms.Sum;
 import com.google.cloud.dataflow.sdk.transforms.windowing.AfterEach;
 import com.google.cloud.dataflow.sdk.transforms.windowing.AfterFirst;
@@ -48,6 +49,7 @@ import com.google.cloud.dataflow.sdk.transforms.windowing.Trigger;
 import com.google.cloud.dataflow.sdk.transforms.windowing.Window.ClosingBehavior;
 import com.google.cloud.dataflow.sdk.util.WindowingStrategy.AccumulationMode;
 import com.google.cloud.dataflow.sdk.values.TimestampedValue;
+import com.google.common.collect.Iterables;
 
 import org.joda.time.Duration;
 import org.joda.time.Instant;
@@ -61,7 +63,11 @@ import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests for {@link ReduceFnRunner}. These tests instantiate a full "stack" of
@@ -568,6 +574,48 @@ public class ReduceFnRunnerTest {
         equalTo(PaneInfo.createPane(true, true, Timing.ON_TIME, 0, 0)));
   }
 
+  @Test
+  public void testMergeCompactsState() throws Exception {
+    ReduceFnTester<Integer, Iterable<Integer>, IntervalWindow> tester =
+        ReduceFnTester.nonCombining(Sessions.withGapDuration(Duration.millis(10)), mockTrigger,
+            AccumulationMode.ACCUMULATING_FIRED_PANES, Duration.millis(0));
+
+    tester.injectElements(
+        TimestampedValue.of(1, new Instant(1)), // in [1, 11)
+        TimestampedValue.of(15, new Instant(15))); // in [15, 25)
+    assertEquals(2, tester.getNumWindowsWithContents());
+
+    // This bridges the two sessions, whose state is moved into a single window.
+    tester.injectElements(TimestampedValue.of(8, new Instant(8))); // in [8, 18)
+    assertEquals(1, tester.getNumWindowsWithContents());
+    assertEquals(new Instant(1), tester.getWatermarkHold());
+
+    tester.advanceInputWatermark(new Instant(100));
+    List<WindowedValue<Iterable<Integer>>> output = tester.extractOutput();
+    assertThat(output.size(), equalTo(1));
+    assertThat(output.get(0),
+        isSingleWindowedValue(containsInAnyOrder(1, 8, 15),
+            1, // timestamp
+            1, // window start
+            25)); // window end
+  }
+
+  @Test
+  public void testMergeCompactsCombinedState() throws Exception {
+    ReduceFnTester<Integer, Integer, IntervalWindow> tester = ReduceFnTester.combining(
+        WindowingStrategy.of(Sessions.withGapDuration(Duration.millis(10))),
+        new Sum.SumIntegerFn().<String>asKeyedFn(), VarIntCoder.of());
+
+    tester.injectElements(
+        TimestampedValue.of(1, new Instant(1)),
+        TimestampedValue.of(15, new Instant(15)));
+    tester.injectElements(TimestampedValue.of(8, new Instant(8)));
+    assertEquals(1, tester.getNumWindowsWithContents());
+
+    tester.advanceInputWatermark(new Instant(100));
+    assertThat(tester.extractOutput(), contains(isSingleWindowedValue(equalTo(24), 1, 1, 25)));
+  }
+
   /**
    * Tests that when data is assigned to multiple windows but some of those windows have
    * had their triggers finish, then the data is dropped and counted accurately.
@@ -825,4 +873,115 @@ public class ReduceFnRunnerTest {
         output.get(3),
         WindowMatchers.valueWithPaneInfo(PaneInfo.createPane(false, true, Timing.LATE, 3, 2)));
   }
+
+  /** Sums the values, counting how many times a value is added to an accumulator. */
+  private static class CountingSumFn extends CombineFn<Integer, Integer, Integer> {
+    private static final AtomicInteger ADDED_INPUTS = new AtomicInteger();
+
+    @Override
+    public Integer createAccumulator() {
+      return 0;
+    }
+
+    @Override
+    public Integer addInput(Integer accumulator, Integer input) {
+      ADDED_INPUTS.incrementAndGet();
+      return accumulator + input;
+    }
+
+    @Override
+    public Integer mergeAccumulators(Iterable<Integer> accumulators) {
+      int sum = 0;
+      for (Integer accumulator : accumulators) {
+        sum += accumulator;
+      }
+      return sum;
+    }
+
+    @Override
+    public Integer extractOutput(Integer accumulator) {
+      return accumulator;
+    }
+  }
+
+  @Test
+  public void testCombiningBySlicesAddsEachValueOnce() throws Exception {
+    // Every timestamp is in 100 windows.
+    WindowingStrategy<?, IntervalWindow> strategy = WindowingStrategy.of(
+        SlidingWindows.of(Duration.millis(100)).every(Duration.millis(1)));
+    ReduceFnTester<Integer, Integer, IntervalWindow> tester = ReduceFnTester.combiningBySlices(
+        strategy, new CountingSumFn().<String>asKeyedFn(), VarIntCoder.of());
+
+    CountingSumFn.ADDED_INPUTS.set(0);
+    tester.injectElements(
+        TimestampedValue.of(1, new Instant(5)),
+        TimestampedValue.of(2, new Instant(50)));
+    assertEquals(2, CountingSumFn.ADDED_INPUTS.get());
+
+    tester.advanceInputWatermark(new Instant(200));
+    List<WindowedValue<Integer>> output = tester.extractOutput();
+    // The windows starting in [-94, 50].
+    assertEquals(145, output.size());
+    for (WindowedValue<Integer> value : output) {
+      IntervalWindow window = (IntervalWindow) Iterables.getOnlyElement(value.getWindows());
+      int expected = (window.start().getMillis() <= 5 ? 1 : 0)
+          + (window.end().getMillis() > 50 ? 2 : 0);
+      assertEquals((Integer) expected, value.getValue());
+    }
+    tester.assertHasOnlyGlobalState();
+  }
+
+  @Test
+  public void testCombiningBySlicesMatchesCombiningInEachWindow() throws Exception {
+    List<WindowingStrategy<?, IntervalWindow>> strategies =
+        Arrays.<WindowingStrategy<?, IntervalWindow>>asList(
+            WindowingStrategy.of(SlidingWindows.of(Duration.millis(10))
+                .every(Duration.millis(3)).withOffset(Duration.millis(1))),
+            WindowingStrategy.of(
+                SlidingWindows.of(Duration.millis(100)).every(Duration.millis(1))),
+            WindowingStrategy.of(SlidingWindows.of(Duration.millis(30)).every(Duration.millis(10)))
+                .withMode(AccumulationMode.ACCUMULATING_FIRED_PANES)
+                .withAllowedLateness(Duration.millis(50)));
+    Random random = new Random(1234);
+    for (WindowingStrategy<?, IntervalWindow> strategy : strategies) {
+      assertTrue(SystemReduceFn.canCombineBySlices(strategy));
+      for (int round = 0; round < 5; round++) {
+        ReduceFnTester<Integer, Integer, IntervalWindow> sliced = ReduceFnTester.combiningBySlices(
+            strategy, new Sum.SumIntegerFn().<String>asKeyedFn(), VarIntCoder.of());
+        ReduceFnTester<Integer, Integer, IntervalWindow> perWindow = ReduceFnTester.combining(
+            strategy, new Sum.SumIntegerFn().<String>asKeyedFn(), VarIntCoder.of());
+        // Late values are only injected while none of their windows is expired.
+        long lateness = Math.max(0, strategy.getAllowedLateness().getMillis() - 10);
+        long watermark = 0;
+        for (int step = 0; step < 20; step++) {
+          List<TimestampedValue<Integer>> values = new ArrayList<>();
+          for (int i = random.nextInt(5); i > 0; i--) {
+            long timestamp = watermark - lateness + random.nextInt((int) lateness + 50);
+            values.add(TimestampedValue.of(random.nextInt(100), new Instant(timestamp)));
+          }
+          injectElements(sliced, values);
+          injectElements(perWindow, values);
+          watermark += random.nextInt(30);
+          sliced.advanceInputWatermark(new Instant(watermark));
+          perWindow.advanceInputWatermark(new Instant(watermark));
+        }
+        sliced.advanceInputWatermark(new Instant(watermark + 1000));
+        perWindow.advanceInputWatermark(new Instant(watermark + 1000));
+
+        assertThat(sliced.extractOutput(), equalTo(perWindow.extractOutput()));
+        sliced.assertHasOnlyGlobalState();
+      }
+    }
+    assertFalse(SystemReduceFn.canCombineBySlices(
+        WindowingStrategy.of(SlidingWindows.of(Duration.millis(30)).every(Duration.millis(10)))
+            .withAllowedLateness(Duration.millis(50))));
+    assertFalse(SystemReduceFn.canCombineBySlices(
+        WindowingStrategy.of(SlidingWindows.of(Duration.millis(10)).every(Duration.millis(10)))));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void injectElements(ReduceFnTester<Integer, ?, IntervalWindow> tester,
+      List<TimestampedValue<Integer>> values) throws Exception {
+    tester.injectElements(values.toArray(new TimestampedValue[values.size()]));
+  }
 }
@@ -125,19 +125,32 @@ public class ReduceFnTester<InputT, OutputT, W extends BoundedWindow> {
           KeyedCombineFn<String, Integer, AccumT, OutputT> combineFn,
           Coder<OutputT> outputCoder) throws Exception {
 
-    CoderRegistry registry = new CoderRegistry();
-    registry.registerStandardCoders();
-    AppliedCombineFn<String, Integer, AccumT, OutputT> fn =
-        AppliedCombineFn.<String, Integer, AccumT, OutputT>withInputCoder(
-            combineFn, registry, KvCoder.of(StringUtf8Coder.of(), VarIntCoder.of()));
+    return new ReduceFnTester<Integer, OutputT, W>(
+        strategy,
+        SystemReduceFn.<String, Integer, AccumT, OutputT, W>combining(
+            StringUtf8Coder.of(), applied(combineFn)).create(KEY),
+        outputCoder);
+  }
 
+  public static <W extends BoundedWindow, AccumT, OutputT> ReduceFnTester<Integer, OutputT, W>
+      combiningBySlices(WindowingStrategy<?, W> strategy,
+          KeyedCombineFn<String, Integer, AccumT, OutputT> combineFn,
+          Coder<OutputT> outputCoder) throws Exception {
     return new ReduceFnTester<Integer, OutputT, W>(
         strategy,
-        SystemReduceFn.<String, Integer, AccumT, OutputT, W>combining(StringUtf8Coder.of(), fn)
-            .create(KEY),
+        SystemReduceFn.<String, Integer, AccumT, OutputT, W>combiningBySlices(
+            StringUtf8Coder.of(), applied(combineFn), strategy).create(KEY),
         outputCoder);
   }
 
+  private static <AccumT, OutputT> AppliedCombineFn<String, Integer, AccumT, OutputT> applied(
+      KeyedCombineFn<String, Integer, AccumT, OutputT> combineFn) {
+    CoderRegistry registry = new CoderRegistry();
+    registry.registerStandardCoders();
+    return AppliedCombineFn.<String, Integer, AccumT, OutputT>withInputCoder(
+        combineFn, registry, KvCoder.of(StringUtf8Coder.of(), VarIntCoder.of()));
+  }
+
   public static <W extends BoundedWindow, AccumT, OutputT> ReduceFnTester<Integer, OutputT, W>
       combining(WindowFn<?, W> windowFn, Trigger<W> trigger, AccumulationMode mode,
           KeyedCombineFn<String, Integer, AccumT, OutputT> combineFn, Coder<OutputT> outputCoder,
@@ -246,6 +259,23 @@ public class ReduceFnTester<InputT, OutputT, W extends BoundedWindow> {
         actualWindows.keySet());
   }
 
+  /**
+   * Returns the number of windows holding state other than trigger and pane bookkeeping, such as
+   * buffered values and watermark holds.
+   */
+  public final int getNumWindowsWithContents() {
+    Set<StateTag<?>> bookkeepingTags = ImmutableSet.<StateTag<?>>of(
+        TriggerRunner.FINISHED_BITS_TAG, PaneInfoTracker.PANE_INFO_TAG);
+    int numWindows = 0;
+    for (StateNamespace namespace : stateInternals.getNamespacesInUse()) {
+      if (namespace instanceof StateNamespaces.WindowNamespace
+          && !Sets.difference(stateInternals.getTagsInUse(namespace), bookkeepingTags).isEmpty()) {
+        numWindows++;
+      }
+    }
+    return numWindows;
+  }
+
   private StateNamespace windowNamespace(W window) {
     return StateNamespaces.window(windowFn.windowCoder(), window);
   }
@@ -16,11 +16,23 @@
 
 package com.google.cloud.dataflow.sdk.util;
 
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
 import com.google.cloud.dataflow.sdk.coders.Coder;
 import com.google.cloud.dataflow.sdk.coders.CoderException;
+import com.google.cloud.dataflow.sdk.coders.CollectionCoder;
+import com.google.cloud.dataflow.sdk.coders.InstantCoder;
 import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.cloud.dataflow.sdk.testing.AllocationMeter;
+import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.GlobalWindow;
 import com.google.cloud.dataflow.sdk.transforms.windowing.IntervalWindow;
 import com.google.cloud.dataflow.sdk.transforms.windowing.PaneInfo;
+import com.google.cloud.dataflow.sdk.transforms.windowing.PaneInfo.PaneInfoCoder;
+import com.google.cloud.dataflow.sdk.util.WindowedValue.FullWindowedValueCoder;
 
 import org.joda.time.Instant;
 import org.junit.Assert;
@@ -28,11 +40,21 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 
 /** Test case for {@link WindowedValue}. */
 @RunWith(JUnit4.class)
 public class WindowedValueTest {
+  private static final int RUNS = 20000;
+
+  private Object sink;
+
   @Test
   public void testWindowedValueCoder() throws CoderException {
     Instant timestamp = new Instant(1234);
@@ -54,4 +76,155 @@ public class WindowedValueTest {
     Assert.assertEquals(value.getTimestamp(), decodedValue.getTimestamp());
     Assert.assertArrayEquals(value.getWindows().toArray(), decodedValue.getWindows().toArray());
   }
+
+  @Test
+  public void testFullCoderMatchesCollectionEncoding() throws Exception {
+    Instant timestamp = new Instant(1234);
+    IntervalWindow window = new IntervalWindow(timestamp, timestamp.plus(1000));
+    List<WindowedValue<String>> values = Arrays.asList(
+        WindowedValue.of("abc", timestamp, window, PaneInfo.ON_TIME_AND_ONLY_FIRING),
+        WindowedValue.of("abc", timestamp, window, PaneInfo.NO_FIRING),
+        WindowedValue.of("abc", timestamp,
+            Arrays.asList(window, new IntervalWindow(timestamp.plus(1000), timestamp.plus(2000))),
+            PaneInfo.NO_FIRING),
+        WindowedValue.valueInEmptyWindows("abc"));
+
+    Coder<WindowedValue<String>> windowedValueCoder =
+        WindowedValue.getFullCoder(StringUtf8Coder.of(), IntervalWindow.getCoder());
+    for (WindowedValue<String> value : values) {
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      StringUtf8Coder.of().encode(value.getValue(), expected, Coder.Context.NESTED);
+      InstantCoder.of().encode(value.getTimestamp(), expected, Coder.Context.NESTED);
+      List<IntervalWindow> windows = new ArrayList<>();
+      for (BoundedWindow w : value.getWindows()) {
+        windows.add((IntervalWindow) w);
+      }
+      CollectionCoder.of(IntervalWindow.getCoder()).encode(
+          windows, expected, Coder.Context.NESTED);
+      PaneInfoCoder.INSTANCE.encode(value.getPane(), expected, Coder.Context.OUTER);
+
+      byte[] encoded = CoderUtils.encodeToByteArray(windowedValueCoder, value);
+      Assert.assertArrayEquals(expected.toByteArray(), encoded);
+      Assert.assertEquals(value, CoderUtils.decodeFromByteArray(windowedValueCoder, encoded));
+    }
+  }
+
+  @Test
+  public void testFullCoderGlobalWindow() throws Exception {
+    Coder<WindowedValue<String>> windowedValueCoder =
+        WindowedValue.getFullCoder(StringUtf8Coder.of(), GlobalWindow.Coder.INSTANCE);
+    for (WindowedValue<String> value : Arrays.asList(
+        WindowedValue.valueInGlobalWindow("abc"),
+        WindowedValue.valueInGlobalWindow("abc", PaneInfo.ON_TIME_AND_ONLY_FIRING),
+        WindowedValue.timestampedValueInGlobalWindow("abc", new Instant(1234)),
+        WindowedValue.of("abc", new Instant(1234), GlobalWindow.INSTANCE,
+            PaneInfo.ON_TIME_AND_ONLY_FIRING))) {
+      Assert.assertEquals(value, CoderUtils.clone(windowedValueCoder, value));
+    }
+  }
+
+  @Test
+  public void testEveryVariantKeepsItsPane() {
+    Instant timestamp = new Instant(1234);
+    IntervalWindow window = new IntervalWindow(timestamp, timestamp.plus(1000));
+    List<Collection<? extends BoundedWindow>> windowsList =
+        Arrays.<Collection<? extends BoundedWindow>>asList(
+        Arrays.<BoundedWindow>asList(GlobalWindow.INSTANCE),
+        Arrays.<BoundedWindow>asList(window),
+        Arrays.<BoundedWindow>asList(
+            window, new IntervalWindow(timestamp.plus(1000), timestamp.plus(2000))),
+        new ArrayList<BoundedWindow>());
+    for (PaneInfo pane : Arrays.asList(PaneInfo.NO_FIRING, PaneInfo.ON_TIME_AND_ONLY_FIRING)) {
+      for (Instant valueTimestamp : Arrays.asList(BoundedWindow.TIMESTAMP_MIN_VALUE, timestamp)) {
+        for (Collection<? extends BoundedWindow> windows : windowsList) {
+          WindowedValue<String> value = WindowedValue.of("abc", valueTimestamp, windows, pane);
+          WindowedValue<Integer> withValue = value.withValue(17);
+          Assert.assertEquals(pane, value.getPane());
+          Assert.assertEquals(pane, withValue.getPane());
+          Assert.assertEquals(valueTimestamp, withValue.getTimestamp());
+          Assert.assertArrayEquals(windows.toArray(), withValue.getWindows().toArray());
+          Assert.assertEquals(WindowedValue.of(17, valueTimestamp, windows, pane), withValue);
+          Assert.assertNotEquals(value.withValue(17), value.withValue(18));
+        }
+        Assert.assertNotEquals(
+            WindowedValue.of("abc", valueTimestamp, window, PaneInfo.NO_FIRING),
+            WindowedValue.of("abc", valueTimestamp, window, PaneInfo.ON_TIME_AND_ONLY_FIRING));
+      }
+    }
+  }
+
+  /**
+   * Reports the bytes allocated per element by {@link WindowedValue#withValue} for a value in a
+   * single window without a pane, which omits the pane field, and one with a pane.
+   */
+  @Test
+  public void testSingleWindowValueWithoutPaneAllocatesLess() throws Exception {
+    assumeTrue(AllocationMeter.isSupported());
+    Instant timestamp = new Instant(1234);
+    IntervalWindow window = new IntervalWindow(timestamp, timestamp.plus(1000));
+    final WindowedValue<String> compact =
+        WindowedValue.of("abc", timestamp, window, PaneInfo.NO_FIRING);
+    final WindowedValue<String> withPane =
+        WindowedValue.of("abc", timestamp, window, PaneInfo.ON_TIME_AND_ONLY_FIRING);
+    double compactBytes = AllocationMeter.bytesPerRun(RUNS, new AllocationMeter.Body() {
+      @Override
+      public void run() {
+        sink = compact.withValue("def");
+      }
+    });
+    double withPaneBytes = AllocationMeter.bytesPerRun(RUNS, new AllocationMeter.Body() {
+      @Override
+      public void run() {
+        sink = withPane.withValue("def");
+      }
+    });
+    assertThat(String.format("%.1f bytes per element without a pane, %.1f with a pane",
+        compactBytes, withPaneBytes), compactBytes, lessThan(withPaneBytes));
+  }
+
+  /**
+   * Reports the bytes allocated per element by coding a value in a single window with its
+   * {@link FullWindowedValueCoder}, and by coding it through a collection of its windows, as the
+   * coder does for values in several windows.
+   */
+  @Test
+  public void testFullCoderSingleWindowAllocatesLessThanCollection() throws Exception {
+    assumeTrue(AllocationMeter.isSupported());
+    Instant timestamp = new Instant(1234);
+    final WindowedValue<Integer> value = WindowedValue.of(
+        17, timestamp, new IntervalWindow(timestamp, timestamp.plus(1000)), PaneInfo.NO_FIRING);
+    final FullWindowedValueCoder<Integer> coder =
+        WindowedValue.getFullCoder(VarIntCoder.of(), IntervalWindow.getCoder());
+    final Coder<Collection<? extends BoundedWindow>> windowsCoder = coder.getWindowsCoder();
+    final byte[] encoded = CoderUtils.encodeToByteArray(coder, value);
+    final ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+
+    double fastBytes = AllocationMeter.bytesPerRun(RUNS, new AllocationMeter.Body() {
+      @Override
+      public void run() throws Exception {
+        outStream.reset();
+        coder.encode(value, outStream, Coder.Context.OUTER);
+        sink = coder.decode(new ByteArrayInputStream(encoded), Coder.Context.OUTER);
+      }
+    });
+    double collectionBytes = AllocationMeter.bytesPerRun(RUNS, new AllocationMeter.Body() {
+      @Override
+      public void run() throws Exception {
+        outStream.reset();
+        VarIntCoder.of().encode(value.getValue(), outStream, Coder.Context.NESTED);
+        InstantCoder.of().encode(value.getTimestamp(), outStream, Coder.Context.NESTED);
+        windowsCoder.encode(value.getWindows(), outStream, Coder.Context.NESTED);
+        PaneInfoCoder.INSTANCE.encode(value.getPane(), outStream, Coder.Context.OUTER);
+        InputStream inStream = new ByteArrayInputStream(encoded);
+        sink = WindowedValue.of(
+            VarIntCoder.of().decode(inStream, Coder.Context.NESTED),
+            InstantCoder.of().decode(inStream, Coder.Context.NESTED),
+            windowsCoder.decode(inStream, Coder.Context.NESTED),
+            PaneInfoCoder.INSTANCE.decode(inStream, Coder.Context.NESTED));
+      }
+    });
+    Assert.assertArrayEquals(encoded, outStream.toByteArray());
+    assertThat(String.format("%.1f bytes per element, %.1f through a collection of windows",
+        fastBytes, collectionBytes), fastBytes, lessThan(collectionBytes));
+  }
 }
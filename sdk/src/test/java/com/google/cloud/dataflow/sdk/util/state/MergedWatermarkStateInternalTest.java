@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.dataflow.sdk.util.state;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.IntervalWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.OutputTimeFn;
+import com.google.cloud.dataflow.sdk.transforms.windowing.OutputTimeFns;
+
+import org.joda.time.Instant;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link MergedWatermarkStateInternal}.
+ */
+@RunWith(JUnit4.class)
+public class MergedWatermarkStateInternalTest {
+
+  private static final IntervalWindow RESULT_WINDOW =
+      new IntervalWindow(new Instant(0), new Instant(20));
+  private static final OutputTimeFn<BoundedWindow> LATEST =
+      OutputTimeFns.outputAtLatestInputTimestamp();
+  private static final StateTag<WatermarkStateInternal> ADDR =
+      StateTags.watermarkStateInternal("watermark", LATEST);
+
+  private final InMemoryStateInternals stateInternals = new InMemoryStateInternals();
+
+  /**
+   * A {@link WatermarkStateInternal} that counts the writes made to it.
+   */
+  private static class CountingWatermarkState implements WatermarkStateInternal {
+    private final WatermarkStateInternal delegate;
+    private int writes = 0;
+
+    private CountingWatermarkState(WatermarkStateInternal delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void clear() {
+      writes++;
+      delegate.clear();
+    }
+
+    @Override
+    public void add(Instant outputTime) {
+      writes++;
+      delegate.add(outputTime);
+    }
+
+    @Override
+    public StateContents<Instant> get() {
+      return delegate.get();
+    }
+
+    @Override
+    public StateContents<Boolean> isEmpty() {
+      return delegate.isEmpty();
+    }
+
+    @Override
+    public void releaseExtraneousHolds() {
+      delegate.releaseExtraneousHolds();
+    }
+  }
+
+  private CountingWatermarkState state(String namespace) {
+    return new CountingWatermarkState(
+        stateInternals.state(new StateNamespaceForTest(namespace), ADDR));
+  }
+
+  @Test
+  public void testCompactsHoldsFromSeveralSources() throws Exception {
+    CountingWatermarkState source = state("source");
+    CountingWatermarkState result = state("result");
+    source.add(new Instant(5));
+    result.add(new Instant(3));
+
+    MergedWatermarkStateInternal<IntervalWindow> merged = new MergedWatermarkStateInternal<>(
+        Arrays.<WatermarkStateInternal>asList(source, result), result, RESULT_WINDOW, LATEST);
+    assertEquals(new Instant(5), merged.get().read());
+
+    assertEquals(null, source.get().read());
+    assertEquals(new Instant(5), result.get().read());
+  }
+
+  @Test
+  public void testDoesNotRewriteHoldOnlyInResult() throws Exception {
+    CountingWatermarkState source = state("source");
+    CountingWatermarkState result = state("result");
+    result.add(new Instant(3));
+
+    MergedWatermarkStateInternal<IntervalWindow> merged = new MergedWatermarkStateInternal<>(
+        Arrays.<WatermarkStateInternal>asList(source, result), result, RESULT_WINDOW, LATEST);
+    assertEquals(new Instant(3), merged.get().read());
+    merged.releaseExtraneousHolds();
+
+    assertEquals(0, source.writes);
+    assertEquals(1, result.writes);
+    assertEquals(new Instant(3), result.get().read());
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.dataflow.sdk.util.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.transforms.windowing.IntervalWindow;
+import com.google.cloud.dataflow.sdk.util.state.SpillingStateInternals.SpillBudget;
+import com.google.common.collect.ImmutableList;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import org.hamcrest.Matchers;
+import org.joda.time.Instant;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests for {@link SpillingStateInternals}.
+ */
+@RunWith(JUnit4.class)
+public class SpillingStateInternalsTest {
+  private static final StateNamespace NAMESPACE_1 = new StateNamespaceForTest("ns1");
+  private static final StateNamespace NAMESPACE_2 = new StateNamespaceForTest("ns2");
+  private static final StateNamespace NAMESPACE_3 = new StateNamespaceForTest("ns3");
+
+  private static final StateTag<BagState<String>> STRING_BAG_ADDR =
+      StateTags.bag("stringBag", StringUtf8Coder.of());
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private SpillBudget budget;
+  private SpillingStateInternals underTest;
+
+  @Before
+  public void setUp() {
+    // Room for about ten of the values below.
+    budget = new SpillBudget(tmpFolder.getRoot(), 100);
+    underTest = new SpillingStateInternals(budget);
+  }
+
+  private static List<String> values(int from, int to) {
+    List<String> values = new ArrayList<>();
+    for (int i = from; i < to; i++) {
+      values.add(String.format("value%04d", i));
+    }
+    return values;
+  }
+
+  private void addAll(BagState<String> bag, List<String> values) {
+    for (String value : values) {
+      bag.add(value);
+    }
+  }
+
+  @Test
+  public void testSmallBagStaysInMemory() throws Exception {
+    BagState<String> bag = underTest.state(NAMESPACE_1, STRING_BAG_ADDR);
+    assertTrue(bag.isEmpty().read());
+
+    addAll(bag, values(0, 5));
+    assertThat(bag.get().read(), Matchers.<String>contains(values(0, 5).toArray(new String[0])));
+    assertFalse(bag.isEmpty().read());
+    assertFalse(underTest.hasSpilled());
+    assertEquals(50, budget.getReservedBytes());
+
+    bag.clear();
+    assertTrue(bag.isEmpty().read());
+    assertEquals(0, budget.getReservedBytes());
+  }
+
+  @Test
+  public void testLargeBagSpills() throws Exception {
+    BagState<String> bag = underTest.state(NAMESPACE_1, STRING_BAG_ADDR);
+    addAll(bag, values(0, 1000));
+
+    assertTrue(underTest.hasSpilled());
+    assertEquals(0, budget.getReservedBytes());
+    assertFalse(bag.isEmpty().read());
+
+    // The spilled contents can be iterated repeatedly, and do not change as values are added.
+    Iterable<String> contents = bag.get().read();
+    addAll(bag, values(1000, 1010));
+    assertEquals(values(0, 1000), ImmutableList.copyOf(contents));
+    assertEquals(values(0, 1000), ImmutableList.copyOf(contents));
+    assertEquals(values(0, 1010), ImmutableList.copyOf(bag.get().read()));
+  }
+
+  @Test
+  public void testSpilledContentsOutliveClearOfBag() throws Exception {
+    BagState<String> bag = underTest.state(NAMESPACE_1, STRING_BAG_ADDR);
+    addAll(bag, values(0, 100));
+    Iterable<String> contents = bag.get().read();
+
+    bag.clear();
+    assertTrue(bag.isEmpty().read());
+    assertEquals(values(0, 100), ImmutableList.copyOf(contents));
+
+    // After it is cleared, the bag is held in memory again.
+    addAll(bag, values(100, 102));
+    assertEquals(values(100, 102), ImmutableList.copyOf(bag.get().read()));
+    assertEquals(20, budget.getReservedBytes());
+  }
+
+  @Test
+  public void testDeleteFiles() throws Exception {
+    addAll(underTest.state(NAMESPACE_1, STRING_BAG_ADDR), values(0, 100));
+    addAll(underTest.state(NAMESPACE_2, STRING_BAG_ADDR), values(0, 100));
+    addAll(underTest.state(NAMESPACE_3, STRING_BAG_ADDR), values(0, 2));
+    assertThat(tmpFolder.getRoot().list(), Matchers.arrayWithSize(2));
+
+    underTest.clear();
+    assertFalse(underTest.hasSpilled());
+    assertEquals(0, budget.getReservedBytes());
+    assertTrue(underTest.state(NAMESPACE_1, STRING_BAG_ADDR).isEmpty().read());
+    assertThat(tmpFolder.getRoot().list(), Matchers.arrayWithSize(2));
+
+    underTest.deleteFiles();
+    assertThat(tmpFolder.getRoot().list(), Matchers.emptyArray());
+  }
+
+  @Test
+  public void testSpilledContentsOutliveClearOfState() throws Exception {
+    // A downstream DoFn may keep the contents of one key while later keys are processed.
+    BagState<String> bag = underTest.state(NAMESPACE_1, STRING_BAG_ADDR);
+    addAll(bag, values(0, 100));
+    Iterable<String> contents = bag.get().read();
+
+    underTest.clear();
+    addAll(underTest.state(NAMESPACE_1, STRING_BAG_ADDR), values(100, 200));
+    underTest.clear();
+    assertEquals(values(0, 100), ImmutableList.copyOf(contents));
+  }
+
+  @Test
+  public void testReadAfterDeleteFilesFails() throws Exception {
+    BagState<String> bag = underTest.state(NAMESPACE_1, STRING_BAG_ADDR);
+    addAll(bag, values(0, 100));
+    Iterable<String> contents = bag.get().read();
+    Iterator<String> partlyRead = contents.iterator();
+    partlyRead.next();
+
+    underTest.clear();
+    underTest.deleteFiles();
+    assertThat(tmpFolder.getRoot().list(), Matchers.emptyArray());
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("after the end of the bundle");
+    contents.iterator();
+  }
+
+  @Test
+  public void testPartialIterationHoldsNoFileOpen() throws Exception {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    assumeTrue(os instanceof UnixOperatingSystemMXBean);
+    UnixOperatingSystemMXBean unixOs = (UnixOperatingSystemMXBean) os;
+
+    BagState<String> bag = underTest.state(NAMESPACE_1, STRING_BAG_ADDR);
+    addAll(bag, values(0, 100));
+    Iterable<String> contents = bag.get().read();
+    underTest.clear();
+    // Open the file before counting.
+    assertEquals("value0000", contents.iterator().next());
+
+    long openFiles = unixOs.getOpenFileDescriptorCount();
+    List<Iterator<String>> iterators = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      Iterator<String> iterator = contents.iterator();
+      assertEquals("value0000", iterator.next());
+      iterators.add(iterator);
+    }
+    assertThat(unixOs.getOpenFileDescriptorCount(), Matchers.lessThan(openFiles + 10));
+
+    // Each iterator reads from its own position.
+    assertEquals("value0001", iterators.get(0).next());
+    assertEquals("value0001", iterators.get(1).next());
+    assertEquals(values(2, 100), ImmutableList.copyOf(iterators.get(0)));
+  }
+
+  @Test
+  public void testBudgetIsShared() throws Exception {
+    SpillingStateInternals other = new SpillingStateInternals(budget);
+    addAll(other.state(NAMESPACE_1, STRING_BAG_ADDR), values(0, 8));
+    assertFalse(other.hasSpilled());
+
+    // Only two more values fit in the budget.
+    addAll(underTest.state(NAMESPACE_1, STRING_BAG_ADDR), values(0, 3));
+    assertTrue(underTest.hasSpilled());
+    assertFalse(other.hasSpilled());
+    assertEquals(80, budget.getReservedBytes());
+  }
+
+  @Test
+  public void testMergeSpilledBags() throws Exception {
+    BagState<String> bag1 = underTest.state(NAMESPACE_1, STRING_BAG_ADDR);
+    BagState<String> bag2 = underTest.state(NAMESPACE_2, STRING_BAG_ADDR);
+    addAll(bag1, values(0, 100));
+    addAll(bag2, values(100, 102));
+
+    BagState<String> merged = underTest.mergedState(
+        Arrays.asList(NAMESPACE_1, NAMESPACE_2, NAMESPACE_3), NAMESPACE_3, STRING_BAG_ADDR,
+        new IntervalWindow(new Instant(0), new Instant(10)));
+    assertThat(merged.get().read(),
+        Matchers.<String>containsInAnyOrder(values(0, 102).toArray(new String[0])));
+  }
+}
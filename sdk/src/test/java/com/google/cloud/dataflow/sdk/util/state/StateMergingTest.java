@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.dataflow.sdk.util.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.cloud.dataflow.sdk.transforms.Sum;
+import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.IntervalWindow;
+import com.google.cloud.dataflow.sdk.transforms.windowing.OutputTimeFns;
+
+import org.hamcrest.Matchers;
+import org.joda.time.Instant;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link StateMerging}.
+ */
+@RunWith(JUnit4.class)
+public class StateMergingTest {
+  private static final BoundedWindow WINDOW = new IntervalWindow(new Instant(0), new Instant(20));
+  private static final StateNamespace NAMESPACE_1 = new StateNamespaceForTest("ns1");
+  private static final StateNamespace NAMESPACE_2 = new StateNamespaceForTest("ns2");
+  private static final StateNamespace NAMESPACE_3 = new StateNamespaceForTest("ns3");
+
+  private static final StateTag<BagState<String>> STRING_BAG_ADDR =
+      StateTags.bag("stringBag", StringUtf8Coder.of());
+  private static final StateTag<CombiningValueState<Integer, Integer>> SUM_INTEGER_ADDR =
+      StateTags.combiningValueFromInputInternal(
+          "sumInteger", VarIntCoder.of(), new Sum.SumIntegerFn());
+  private static final StateTag<WatermarkStateInternal> WATERMARK_EARLIEST_ADDR =
+      StateTags.watermarkStateInternal("watermark",
+          OutputTimeFns.outputAtEarliestInputTimestamp());
+  private static final StateTag<WatermarkStateInternal> WATERMARK_EOW_ADDR =
+      StateTags.watermarkStateInternal("watermark",
+          OutputTimeFns.outputAtEndOfWindow());
+
+  private final InMemoryStateInternals underTest = new InMemoryStateInternals();
+
+  private <T extends MergeableState<?, ?>> void mergeIntoNamespace1(StateTag<T> address) {
+    StateMerging.mergeIntoNamespace(underTest,
+        Arrays.asList(NAMESPACE_1, NAMESPACE_2, NAMESPACE_3), NAMESPACE_1, address, WINDOW);
+  }
+
+  @Test
+  public void testMergeBags() throws Exception {
+    BagState<String> bag1 = underTest.state(NAMESPACE_1, STRING_BAG_ADDR);
+    BagState<String> bag2 = underTest.state(NAMESPACE_2, STRING_BAG_ADDR);
+    BagState<String> bag3 = underTest.state(NAMESPACE_3, STRING_BAG_ADDR);
+    bag1.add("a");
+    bag2.add("b");
+    bag2.add("c");
+
+    mergeIntoNamespace1(STRING_BAG_ADDR);
+    assertThat(bag1.get().read(), Matchers.containsInAnyOrder("a", "b", "c"));
+    assertTrue(bag2.isEmpty().read());
+    assertTrue(bag3.isEmpty().read());
+  }
+
+  @Test
+  public void testMergeCombiningValues() throws Exception {
+    CombiningValueState<Integer, Integer> value1 = underTest.state(NAMESPACE_1, SUM_INTEGER_ADDR);
+    CombiningValueState<Integer, Integer> value2 = underTest.state(NAMESPACE_2, SUM_INTEGER_ADDR);
+    CombiningValueState<Integer, Integer> value3 = underTest.state(NAMESPACE_3, SUM_INTEGER_ADDR);
+    value2.add(5);
+    value3.add(10);
+
+    mergeIntoNamespace1(SUM_INTEGER_ADDR);
+    assertEquals(15, (int) value1.get().read());
+    assertTrue(value2.isEmpty().read());
+    assertTrue(value3.isEmpty().read());
+  }
+
+  @Test
+  public void testMergeEmptyCombiningValuesStaysEmpty() throws Exception {
+    CombiningValueState<Integer, Integer> value1 = underTest.state(NAMESPACE_1, SUM_INTEGER_ADDR);
+
+    mergeIntoNamespace1(SUM_INTEGER_ADDR);
+    assertTrue(value1.isEmpty().read());
+  }
+
+  @Test
+  public void testMergeEarliestWatermarks() throws Exception {
+    WatermarkStateInternal value1 = underTest.state(NAMESPACE_1, WATERMARK_EARLIEST_ADDR);
+    WatermarkStateInternal value2 = underTest.state(NAMESPACE_2, WATERMARK_EARLIEST_ADDR);
+    WatermarkStateInternal value3 = underTest.state(NAMESPACE_3, WATERMARK_EARLIEST_ADDR);
+    value1.add(new Instant(7));
+    value2.add(new Instant(3));
+    value3.add(new Instant(11));
+
+    mergeIntoNamespace1(WATERMARK_EARLIEST_ADDR);
+    assertEquals(new Instant(3), value1.get().read());
+    assertTrue(value2.isEmpty().read());
+    assertTrue(value3.isEmpty().read());
+  }
+
+  @Test
+  public void testMergeEndOfWindowWatermarks() throws Exception {
+    WatermarkStateInternal value1 = underTest.state(NAMESPACE_1, WATERMARK_EOW_ADDR);
+    WatermarkStateInternal value2 = underTest.state(NAMESPACE_2, WATERMARK_EOW_ADDR);
+    value2.add(new Instant(9));
+
+    mergeIntoNamespace1(WATERMARK_EOW_ADDR);
+    assertEquals(WINDOW.maxTimestamp(), value1.get().read());
+    assertTrue(value2.isEmpty().read());
+  }
+
+  @Test
+  public void testMergeIntoNamespaceAlone() throws Exception {
+    BagState<String> bag1 = underTest.state(NAMESPACE_1, STRING_BAG_ADDR);
+    bag1.add("a");
+
+    StateMerging.mergeIntoNamespace(underTest,
+        Arrays.asList(NAMESPACE_1), NAMESPACE_1, STRING_BAG_ADDR, WINDOW);
+    assertThat(bag1.get().read(), Matchers.contains("a"));
+    assertFalse(bag1.isEmpty().read());
+  }
+}